@@ -0,0 +1,30 @@
+plugins {
+    alias(libraries.plugins.jmh)
+}
+
+dependencies {
+    // Project
+    implementation(project(":pkcs11-library"))
+    implementation(project(":pkcs11-provider"))
+
+    // Test fixtures, the benchmarks provision their token with the SoftHSM2 harness
+    jmh(testFixtures(project(":pkcs11-testing")))
+}
+
+jmh {
+    // Measure the allocations per operation as well
+    jmhVersion.set("1.37")
+    profilers.add("gc")
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+
+    // The SoftHSM2 library is searched on the common locations or can be passed explicitly
+    jvmArgs.addAll(
+        listOfNotNull(
+            "--enable-preview",
+            "--enable-native-access=ALL-UNNAMED",
+            findProperty("softhsm2.library")?.let { "-Dsofthsm2.library=$it" }
+        )
+    )
+}
@@ -0,0 +1,91 @@
+package ch.swaechter.pkcs11.benchmark;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.headers.CkAttribute;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure C_GetAttributeValue for attributes of different sizes, from a single integer up to a whole certificate.
+ *
+ * @author Simon Wächter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class Pkcs11AttributeBenchmark {
+
+    /**
+     * Attribute to read.
+     */
+    @Param({"KEY_TYPE", "ID", "MODULUS", "CERTIFICATE_VALUE"})
+    public AttributeSize attributeSize;
+
+    /**
+     * Read the attribute of the private key or certificate.
+     *
+     * @param pkcs11SessionState State with the session and objects
+     * @return Attribute value
+     * @throws Pkcs11Exception Thrown if the call fails
+     */
+    @Benchmark
+    public List<byte[]> getAttributeValue(Pkcs11SessionState pkcs11SessionState) throws Pkcs11Exception {
+        long objectId = attributeSize.certificate ? pkcs11SessionState.certificateObjectId : pkcs11SessionState.privateKeyObjectId;
+        return pkcs11SessionState.pkcs11Session.getAttributeValue(objectId, List.of(attributeSize.ckAttribute));
+    }
+
+    /**
+     * Attributes in ascending size.
+     */
+    public enum AttributeSize {
+
+        /**
+         * Key type of the private key with the size of a CK_ULONG.
+         */
+        KEY_TYPE(CkAttribute.CKA_KEY_TYPE, false),
+
+        /**
+         * ID of the private key, usually a few bytes.
+         */
+        ID(CkAttribute.CKA_ID, false),
+
+        /**
+         * Modulus of the private RSA key, 256 bytes for a 2048 bit key.
+         */
+        MODULUS(CkAttribute.CKA_MODULUS, false),
+
+        /**
+         * DER encoded certificate, usually more than one kilobyte.
+         */
+        CERTIFICATE_VALUE(CkAttribute.CKA_VALUE, true);
+
+        /**
+         * Attribute to read.
+         */
+        private final CkAttribute ckAttribute;
+
+        /**
+         * Flag whether the attribute is read from the certificate instead of the private key.
+         */
+        private final boolean certificate;
+
+        /**
+         * Create a new attribute size.
+         *
+         * @param ckAttribute Attribute to read
+         * @param certificate Flag whether the attribute is read from the certificate
+         */
+        AttributeSize(CkAttribute ckAttribute, boolean certificate) {
+            this.ckAttribute = ckAttribute;
+            this.certificate = certificate;
+        }
+    }
+}
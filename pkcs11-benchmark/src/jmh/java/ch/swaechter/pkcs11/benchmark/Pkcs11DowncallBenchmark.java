@@ -0,0 +1,102 @@
+package ch.swaechter.pkcs11.benchmark;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.headers.CkMechanism;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Info;
+import ch.swaechter.pkcs11.library.objects.Pkcs11SessionInfo;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Slot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure the overhead of a downcall per PKCS#11 function, from cheap calls that hardly do any work in the module up
+ * to the cryptographic operations.
+ *
+ * @author Simon Wächter
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class Pkcs11DowncallBenchmark {
+
+    /**
+     * Message to digest and sign.
+     */
+    private static final byte[] MESSAGE = new byte[32];
+
+    /**
+     * Call C_GetInfo.
+     *
+     * @param pkcs11ModuleState State with the module
+     * @return Module information
+     * @throws Pkcs11Exception Thrown if the call fails
+     */
+    @Benchmark
+    public Pkcs11Info getInfo(Pkcs11ModuleState pkcs11ModuleState) throws Pkcs11Exception {
+        return pkcs11ModuleState.pkcs11Module.getInfo();
+    }
+
+    /**
+     * Call C_GetSlotList.
+     *
+     * @param pkcs11ModuleState State with the module
+     * @return Slots with a token
+     * @throws Pkcs11Exception Thrown if the call fails
+     */
+    @Benchmark
+    public List<Pkcs11Slot> getSlotList(Pkcs11ModuleState pkcs11ModuleState) throws Pkcs11Exception {
+        return pkcs11ModuleState.pkcs11Module.getSlots(true);
+    }
+
+    /**
+     * Call C_GetSessionInfo.
+     *
+     * @param pkcs11SessionState State with the session
+     * @return Session information
+     * @throws Pkcs11Exception Thrown if the call fails
+     */
+    @Benchmark
+    public Pkcs11SessionInfo getSessionInfo(Pkcs11SessionState pkcs11SessionState) throws Pkcs11Exception {
+        return pkcs11SessionState.pkcs11Session.getSessionInfo();
+    }
+
+    /**
+     * Call C_GenerateRandom for 32 bytes.
+     *
+     * @param pkcs11SessionState State with the session
+     * @return Random bytes
+     * @throws Pkcs11Exception Thrown if the call fails
+     */
+    @Benchmark
+    public byte[] generateRandom(Pkcs11SessionState pkcs11SessionState) throws Pkcs11Exception {
+        return pkcs11SessionState.pkcs11Session.generateRandom(32);
+    }
+
+    /**
+     * Call C_DigestInit and C_Digest with CKM_SHA256 for 32 bytes.
+     *
+     * @param pkcs11SessionState State with the session
+     * @return Digest
+     * @throws Pkcs11Exception Thrown if the call fails
+     */
+    @Benchmark
+    public byte[] digest(Pkcs11SessionState pkcs11SessionState) throws Pkcs11Exception {
+        return pkcs11SessionState.pkcs11Session.digest(CkMechanism.CKM_SHA256, MESSAGE);
+    }
+
+    /**
+     * Call C_SignInit and C_Sign with CKM_SHA256_RSA_PKCS for 32 bytes.
+     *
+     * @param pkcs11SessionState State with the session and private key
+     * @return Signature
+     * @throws Pkcs11Exception Thrown if the call fails
+     */
+    @Benchmark
+    public byte[] sign(Pkcs11SessionState pkcs11SessionState) throws Pkcs11Exception {
+        return pkcs11SessionState.pkcs11Session.sign(CkMechanism.CKM_SHA256_RSA_PKCS, pkcs11SessionState.privateKeyObjectId, MESSAGE);
+    }
+}
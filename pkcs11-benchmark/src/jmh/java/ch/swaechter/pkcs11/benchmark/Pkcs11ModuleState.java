@@ -0,0 +1,108 @@
+package ch.swaechter.pkcs11.benchmark;
+
+import ch.swaechter.pkcs11.Pkcs11SoftHsm;
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.Pkcs11Module;
+import ch.swaechter.pkcs11.library.headers.CkUserType;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Session;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Slot;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Token;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+
+/**
+ * Benchmark state with the initialized module and the logged in token, shared by all benchmark threads. The token is
+ * provisioned with an RSA key pair and its certificate chain by the SoftHSM2 harness and deleted after the trial, so
+ * the benchmarks don't depend on a prepared token.
+ *
+ * @author Simon Wächter
+ */
+@State(Scope.Benchmark)
+public class Pkcs11ModuleState {
+
+    /**
+     * Label of the token to benchmark.
+     */
+    public static final String TOKEN_LABEL = "pkcs11-benchmark";
+
+    /**
+     * Label of the key pair in the token.
+     */
+    public static final String KEY_LABEL = "benchmark";
+
+    /**
+     * ID of the key pair in the token.
+     */
+    public static final byte[] KEY_ID = {0x01};
+
+    /**
+     * Harness that provisions the token.
+     */
+    public Pkcs11SoftHsm pkcs11SoftHsm;
+
+    /**
+     * Initialized module.
+     */
+    public Pkcs11Module pkcs11Module;
+
+    /**
+     * Slot of the token to benchmark.
+     */
+    public Pkcs11Slot pkcs11Slot;
+
+    /**
+     * Token to benchmark.
+     */
+    public Pkcs11Token pkcs11Token;
+
+    /**
+     * Session that keeps the token logged in for all other sessions.
+     */
+    private Pkcs11Session loginSession;
+
+    /**
+     * Provision the token, load and initialize the module, find the token and log in.
+     *
+     * @throws Pkcs11Exception Thrown if the token can't be found or the login fails
+     * @throws IOException     Thrown if the token can't be provisioned
+     */
+    @Setup(Level.Trial)
+    public void setup() throws Pkcs11Exception, IOException {
+        // Provision the token with a key pair
+        pkcs11SoftHsm = new Pkcs11SoftHsm();
+        pkcs11SoftHsm.initializeToken(TOKEN_LABEL);
+        pkcs11SoftHsm.importKeyPair(TOKEN_LABEL, KEY_LABEL, KEY_ID, "RSA");
+
+        // Initialize the module and find the slot by the token label, SoftHSM2 assigns a random slot ID
+        pkcs11Module = pkcs11SoftHsm.createModule();
+        pkcs11Module.initializeModule();
+        pkcs11Slot = Pkcs11SoftHsm.getSlot(pkcs11Module, TOKEN_LABEL);
+        pkcs11Token = pkcs11Slot.getToken();
+
+        // Login, the login state is shared by all sessions of the application
+        loginSession = pkcs11Token.openSession(true, true);
+        loginSession.loginUser(CkUserType.CKU_USER, Pkcs11SoftHsm.USER_PIN);
+    }
+
+    /**
+     * Log out, close the session, finalize the module and delete the token.
+     *
+     * @throws Pkcs11Exception Thrown if the logout fails
+     * @throws IOException     Thrown if the session, module or harness can't be closed
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws Pkcs11Exception, IOException {
+        // Logout and close the session
+        loginSession.logoutUser();
+        loginSession.close();
+
+        // Finalize the module and delete the token
+        pkcs11Module.close();
+        pkcs11SoftHsm.close();
+    }
+}
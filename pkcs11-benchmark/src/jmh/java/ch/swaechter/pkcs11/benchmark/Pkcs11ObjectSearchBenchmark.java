@@ -0,0 +1,49 @@
+package ch.swaechter.pkcs11.benchmark;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.headers.CkAttributeValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure a whole object search with C_FindObjectsInit, C_FindObjects and C_FindObjectsFinal for different batch
+ * sizes. The search matches all objects of the token, so a small batch size results in multiple C_FindObjects calls.
+ *
+ * @author Simon Wächter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class Pkcs11ObjectSearchBenchmark {
+
+    /**
+     * Empty search template that matches all objects.
+     */
+    private static final List<CkAttributeValue> SEARCH_TEMPLATE = List.of();
+
+    /**
+     * Number of objects to retrieve per C_FindObjects call.
+     */
+    @Param({"1", "16", "128"})
+    public int batchSize;
+
+    /**
+     * Find all objects of the token.
+     *
+     * @param pkcs11SessionState State with the session
+     * @return Handles of all objects
+     * @throws Pkcs11Exception Thrown if the search fails
+     */
+    @Benchmark
+    public List<Long> findObjects(Pkcs11SessionState pkcs11SessionState) throws Pkcs11Exception {
+        return pkcs11SessionState.pkcs11Session.findObjects(SEARCH_TEMPLATE, batchSize);
+    }
+}
@@ -0,0 +1,96 @@
+package ch.swaechter.pkcs11.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the JCA provider of this library with the SunPKCS11 provider of the JDK on the same token. Each operation
+ * gets a new engine from the provider like an application does, so the session handling of the providers is part of
+ * the measurement: the provider of this library borrows a pre-authenticated session from its pool, while SunPKCS11
+ * acquires and releases a session per operation.
+ *
+ * @author Simon Wächter
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class Pkcs11ProviderBenchmark {
+
+    /**
+     * Message to digest and sign.
+     */
+    private static final byte[] MESSAGE = new byte[32];
+
+    /**
+     * Sign the message with SHA256withRSA.
+     *
+     * @param pkcs11ProviderState State with the provider and private key
+     * @return Signature
+     * @throws GeneralSecurityException Thrown if the signing fails
+     */
+    @Benchmark
+    public byte[] sign(Pkcs11ProviderState pkcs11ProviderState) throws GeneralSecurityException {
+        return signMessage(pkcs11ProviderState);
+    }
+
+    /**
+     * Sign the message with SHA256withRSA from multiple threads, so the threads compete for the sessions.
+     *
+     * @param pkcs11ProviderState State with the provider and private key
+     * @return Signature
+     * @throws GeneralSecurityException Thrown if the signing fails
+     */
+    @Benchmark
+    @Threads(Pkcs11ProviderState.SESSION_COUNT)
+    public byte[] signConcurrently(Pkcs11ProviderState pkcs11ProviderState) throws GeneralSecurityException {
+        return signMessage(pkcs11ProviderState);
+    }
+
+    /**
+     * Digest the message with SHA-256.
+     *
+     * @param pkcs11ProviderState State with the provider
+     * @return Digest
+     * @throws GeneralSecurityException Thrown if the digest fails
+     */
+    @Benchmark
+    public byte[] digest(Pkcs11ProviderState pkcs11ProviderState) throws GeneralSecurityException {
+        return MessageDigest.getInstance("SHA-256", pkcs11ProviderState.provider).digest(MESSAGE);
+    }
+
+    /**
+     * Generate 32 random bytes.
+     *
+     * @param pkcs11ProviderState State with the provider
+     * @return Random bytes
+     * @throws GeneralSecurityException Thrown if the random generator is not available
+     */
+    @Benchmark
+    public byte[] generateRandom(Pkcs11ProviderState pkcs11ProviderState) throws GeneralSecurityException {
+        byte[] random = new byte[32];
+        SecureRandom.getInstance("PKCS11", pkcs11ProviderState.provider).nextBytes(random);
+        return random;
+    }
+
+    /**
+     * Sign the message with a new signature engine of the provider.
+     *
+     * @param pkcs11ProviderState State with the provider and private key
+     * @return Signature
+     * @throws GeneralSecurityException Thrown if the signing fails
+     */
+    private static byte[] signMessage(Pkcs11ProviderState pkcs11ProviderState) throws GeneralSecurityException {
+        Signature signature = Signature.getInstance("SHA256withRSA", pkcs11ProviderState.provider);
+        signature.initSign(pkcs11ProviderState.privateKey);
+        signature.update(MESSAGE);
+        return signature.sign();
+    }
+}
@@ -0,0 +1,103 @@
+package ch.swaechter.pkcs11.benchmark;
+
+import ch.swaechter.pkcs11.Pkcs11SoftHsm;
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.provider.Pkcs11Provider;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.Security;
+import java.util.Collections;
+
+/**
+ * Benchmark state with a JCA provider for the provisioned token, either the provider of this library or the SunPKCS11
+ * provider of the JDK, and the private key loaded from its key store. Both providers share the module with the other
+ * states, SunPKCS11 tolerates the already initialized module and the already logged in user.
+ *
+ * @author Simon Wächter
+ */
+@State(Scope.Benchmark)
+public class Pkcs11ProviderState {
+
+    /**
+     * Name of the provider of this library.
+     */
+    public static final String PKCS11_PROVIDER = "PKCS11";
+
+    /**
+     * Name of the provider of the JDK.
+     */
+    public static final String SUN_PKCS11_PROVIDER = "SunPKCS11";
+
+    /**
+     * Number of pooled sessions of the provider of this library.
+     */
+    public static final int SESSION_COUNT = 4;
+
+    /**
+     * Provider to benchmark.
+     */
+    @Param({PKCS11_PROVIDER, SUN_PKCS11_PROVIDER})
+    public String providerName;
+
+    /**
+     * Configured provider.
+     */
+    public Provider provider;
+
+    /**
+     * Private key of the provisioned key pair.
+     */
+    public PrivateKey privateKey;
+
+    /**
+     * Create the provider and load the private key from its key store.
+     *
+     * @param pkcs11ModuleState State with the provisioned and logged in token
+     * @throws Pkcs11Exception          Thrown if the session pool of the provider of this library can't be opened
+     * @throws GeneralSecurityException Thrown if SunPKCS11 can't be configured or the key store has no private key
+     * @throws IOException              Thrown if the key store can't be loaded
+     */
+    @Setup(Level.Trial)
+    public void setup(Pkcs11ModuleState pkcs11ModuleState) throws Pkcs11Exception, GeneralSecurityException, IOException {
+        // Create the provider, SunPKCS11 is configured with the library and the slot of the token
+        if (providerName.equals(PKCS11_PROVIDER)) {
+            provider = new Pkcs11Provider(pkcs11ModuleState.pkcs11Token, SESSION_COUNT, Pkcs11SoftHsm.USER_PIN);
+        } else {
+            String configuration = "--name = Benchmark\n"
+                + "library = " + pkcs11ModuleState.pkcs11SoftHsm.getLibraryFile().toAbsolutePath() + "\n"
+                + "slot = " + pkcs11ModuleState.pkcs11Slot.getSlotId() + "\n";
+            provider = Security.getProvider(SUN_PKCS11_PROVIDER).configure(configuration);
+        }
+
+        // Load the key store and get the private key
+        KeyStore keyStore = KeyStore.getInstance("PKCS11", provider);
+        keyStore.load(null, Pkcs11SoftHsm.USER_PIN.toCharArray());
+        for (String alias : Collections.list(keyStore.aliases())) {
+            if (keyStore.isKeyEntry(alias)) {
+                privateKey = (PrivateKey) keyStore.getKey(alias, null);
+                return;
+            }
+        }
+        throw new GeneralSecurityException("The key store of " + providerName + " has no private key");
+    }
+
+    /**
+     * Close the provider of this library, SunPKCS11 releases its sessions when the module is finalized.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (provider instanceof Pkcs11Provider pkcs11Provider) {
+            pkcs11Provider.close();
+        }
+    }
+}
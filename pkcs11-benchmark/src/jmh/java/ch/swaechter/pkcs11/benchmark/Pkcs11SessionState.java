@@ -0,0 +1,81 @@
+package ch.swaechter.pkcs11.benchmark;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.headers.CkAttribute;
+import ch.swaechter.pkcs11.library.headers.CkAttributeValue;
+import ch.swaechter.pkcs11.library.headers.CkObjectClass;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Session;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Benchmark state with a session per benchmark thread, so the threads don't serialize on a shared session. It also
+ * provides the handles of the first private key and certificate of the provisioned token.
+ *
+ * @author Simon Wächter
+ */
+@State(Scope.Thread)
+public class Pkcs11SessionState {
+
+    /**
+     * Session of the benchmark thread.
+     */
+    public Pkcs11Session pkcs11Session;
+
+    /**
+     * Handle of the first private key.
+     */
+    public long privateKeyObjectId;
+
+    /**
+     * Handle of the first certificate.
+     */
+    public long certificateObjectId;
+
+    /**
+     * Open the session and look up the private key and certificate.
+     *
+     * @param pkcs11ModuleState State with the logged in token
+     * @throws Pkcs11Exception Thrown if the session can't be opened or the token lacks a private key or certificate
+     */
+    @Setup(Level.Trial)
+    public void setup(Pkcs11ModuleState pkcs11ModuleState) throws Pkcs11Exception {
+        // Open the session
+        pkcs11Session = pkcs11ModuleState.pkcs11Token.openSession(true, true);
+
+        // Look up the private key and certificate
+        privateKeyObjectId = findFirstObject(CkObjectClass.CKO_PRIVATE_KEY);
+        certificateObjectId = findFirstObject(CkObjectClass.CKO_CERTIFICATE);
+    }
+
+    /**
+     * Close the session.
+     *
+     * @throws IOException Thrown if the session can't be closed
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        pkcs11Session.close();
+    }
+
+    /**
+     * Find the first object of the given class.
+     *
+     * @param ckObjectClass Class of the object
+     * @return Handle of the object
+     * @throws Pkcs11Exception Thrown if the token has no such object
+     */
+    private long findFirstObject(CkObjectClass ckObjectClass) throws Pkcs11Exception {
+        List<Long> objectIds = pkcs11Session.findObjects(List.of(new CkAttributeValue(CkAttribute.CKA_CLASS, ckObjectClass.value)));
+        if (objectIds.isEmpty()) {
+            throw new Pkcs11Exception("The token has to contain at least one object of class " + ckObjectClass);
+        }
+        return objectIds.getFirst();
+    }
+}
@@ -0,0 +1,46 @@
+package ch.swaechter.pkcs11.benchmark;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.objects.Pkcs11SlotInfo;
+import ch.swaechter.pkcs11.library.objects.Pkcs11TokenInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure the functions that return large structs, where most of the time is spent decoding the padded strings,
+ * versions and counters of the struct.
+ *
+ * @author Simon Wächter
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class Pkcs11StructDecodingBenchmark {
+
+    /**
+     * Call C_GetTokenInfo and decode the CK_TOKEN_INFO struct.
+     *
+     * @param pkcs11ModuleState State with the token
+     * @return Token information
+     * @throws Pkcs11Exception Thrown if the call fails
+     */
+    @Benchmark
+    public Pkcs11TokenInfo getTokenInfo(Pkcs11ModuleState pkcs11ModuleState) throws Pkcs11Exception {
+        return pkcs11ModuleState.pkcs11Token.getTokenInfo();
+    }
+
+    /**
+     * Call C_GetSlotInfo and decode the CK_SLOT_INFO struct.
+     *
+     * @param pkcs11ModuleState State with the slot
+     * @return Slot information
+     * @throws Pkcs11Exception Thrown if the call fails
+     */
+    @Benchmark
+    public Pkcs11SlotInfo getSlotInfo(Pkcs11ModuleState pkcs11ModuleState) throws Pkcs11Exception {
+        return pkcs11ModuleState.pkcs11Slot.getSlotInfo();
+    }
+}
@@ -1,12 +1,17 @@
 package ch.swaechter.pkcs11.cli;
 
 import ch.swaechter.pkcs11.library.Pkcs11Library;
+import ch.swaechter.pkcs11.library.decorators.Pkcs11FunctionMetrics;
+import ch.swaechter.pkcs11.library.decorators.Pkcs11TraceReport;
 import ch.swaechter.pkcs11.library.objects.Pkcs11Slot;
 
 import java.io.File;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.security.cert.X509Certificate;
 import java.time.Instant;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 
 public class Pkcs11Application {
@@ -36,12 +41,17 @@ public class Pkcs11Application {
             handleHelp();
         } else if (command.equals("--version")) {
             handleVersion();
+        } else if (command.equals("--client")) {
+            handleClient(parameters);
+        } else if (command.equals("--trace-report")) {
+            handleTraceReport(parameters);
         } else {
-            // Get the library name
+            // Get the library name and the optional trace file
             String libraryName = getLibraryName();
+            Path traceFile = getTraceFile();
 
             // Create the PKCS11 module
-            try (Pkcs11Service pkcs11Service = new Pkcs11Service(libraryName)) {
+            try (Pkcs11Service pkcs11Service = new Pkcs11Service(libraryName, traceFile)) {
                 switch (command) {
                     case "--list-slots" -> handleListSlots(pkcs11Service);
                     case "--is-locked" -> handleIsLocked(pkcs11Service, parameters);
@@ -51,7 +61,11 @@ public class Pkcs11Application {
                     case "--unlock" -> handleUnlock(pkcs11Service, parameters);
                     case "--list-certificates" -> handleListCertificates(pkcs11Service, parameters);
                     case "--sign-pdf" -> handleSignPdf(pkcs11Service, parameters);
+                    case "--sign-pdf-batch" -> handleSignPdfBatch(pkcs11Service, parameters);
                     case "--verify-pdf" -> handleVerifyPdf(pkcs11Service, parameters);
+                    case "--verify-pdf-batch" -> handleVerifyPdfBatch(pkcs11Service, parameters);
+                    case "--serve" -> handleServe(pkcs11Service, parameters);
+                    case "--bench" -> handleBench(pkcs11Service, parameters);
                     default -> handleHelp();
                 }
             }
@@ -63,6 +77,11 @@ public class Pkcs11Application {
         return libraryName == null || libraryName.isBlank() ? "cryptoki" : libraryName;
     }
 
+    private static Path getTraceFile() {
+        String traceFile = System.getenv("JAVA_CRYPTOKI_TRACE");
+        return traceFile == null || traceFile.isBlank() ? null : Path.of(traceFile);
+    }
+
     private static void handleListSlots(Pkcs11Service pkcs11Service) throws Exception {
         // Get and print all available slots
         List<Pkcs11Slot> pkcs11Slots = pkcs11Service.getSlots();
@@ -76,7 +95,7 @@ public class Pkcs11Application {
         if (parameters.length != 1) {
             throw new Exception("Usage: pkcs11-cli --is-locked <SLOT_ID>");
         }
-        long slotId = Long.parseLong(parameters[0]);
+        long slotId = pkcs11Service.getSlotId(parameters[0]);
 
         // Check if the user PIN is locked
         boolean isLocked = pkcs11Service.isPinLocked(slotId);
@@ -88,7 +107,7 @@ public class Pkcs11Application {
         if (parameters.length != 1) {
             throw new Exception("Usage: pkcs11-cli --is-so-locked <SLOT_ID>");
         }
-        long slotId = Long.parseLong(parameters[0]);
+        long slotId = pkcs11Service.getSlotId(parameters[0]);
 
         // Check if the SO PIN is locked
         boolean isLocked = pkcs11Service.isSoPinLocked(slotId);
@@ -100,7 +119,7 @@ public class Pkcs11Application {
         if (parameters.length != 2) {
             throw new Exception("Usage: pkcs11-cli --login <SLOT_ID> <PIN>");
         }
-        long slotId = Long.parseLong(parameters[0]);
+        long slotId = pkcs11Service.getSlotId(parameters[0]);
         String pin = parameters[1];
 
         // Login
@@ -113,7 +132,7 @@ public class Pkcs11Application {
         if (parameters.length != 3) {
             throw new Exception("Usage: pkcs11-cli --change-pin <SLOT_ID> <CURRENT_PIN> <NEW_PIN>");
         }
-        long slotId = Long.parseLong(parameters[0]);
+        long slotId = pkcs11Service.getSlotId(parameters[0]);
         String currentPin = parameters[1];
         String newPin = parameters[2];
 
@@ -126,7 +145,7 @@ public class Pkcs11Application {
         if (parameters.length != 3) {
             throw new Exception("Usage: pkcs11-cli --unlock <SLOT_ID> <SO_PIN> <NEW_PIN>");
         }
-        long slotId = Long.parseLong(parameters[0]);
+        long slotId = pkcs11Service.getSlotId(parameters[0]);
         String soPin = parameters[1];
         String newPin = parameters[2];
 
@@ -139,27 +158,31 @@ public class Pkcs11Application {
         if (parameters.length != 1) {
             throw new Exception("Usage: pkcs11-cli --list-certificates <SLOT_ID>");
         }
-        long slotId = Long.parseLong(parameters[0]);
+        long slotId = pkcs11Service.getSlotId(parameters[0]);
 
         // Get the certificates
         List<X509Certificate> certificates = pkcs11Service.getCertificates(slotId);
 
         // Print the certificates
         for (X509Certificate certificate : certificates) {
-            String subject = certificate.getSubjectX500Principal().toString();
-            String issuer = certificate.getIssuerX500Principal().toString();
-            Instant fromDate = certificate.getNotBefore().toInstant();
-            Instant toDate = certificate.getNotAfter().toInstant();
-            System.out.println(STR."\{subject};\{issuer};\{fromDate};\{toDate}");
+            System.out.println(formatCertificate(certificate));
         }
     }
 
+    static String formatCertificate(X509Certificate certificate) {
+        String subject = certificate.getSubjectX500Principal().toString();
+        String issuer = certificate.getIssuerX500Principal().toString();
+        Instant fromDate = certificate.getNotBefore().toInstant();
+        Instant toDate = certificate.getNotAfter().toInstant();
+        return STR."\{subject};\{issuer};\{fromDate};\{toDate}";
+    }
+
     private static void handleSignPdf(Pkcs11Service pkcs11Service, String[] parameters) throws Exception {
         // Check the arguments
         if (parameters.length != 4) {
             throw new Exception("Usage: pkcs11-cli --sign-pdf <SLOT_ID> <PIN> <INPUT_FILE> <OUTPUT_FILE>");
         }
-        long slotId = Long.parseLong(parameters[0]);
+        long slotId = pkcs11Service.getSlotId(parameters[0]);
         String pin = parameters[1];
         File inputFile = new File(parameters[2]);
         File outputFile = new File(parameters[3]);
@@ -168,6 +191,21 @@ public class Pkcs11Application {
         pkcs11Service.signPdfFile(slotId, pin, inputFile, outputFile);
     }
 
+    private static void handleSignPdfBatch(Pkcs11Service pkcs11Service, String[] parameters) throws Exception {
+        // Check the arguments
+        if (parameters.length != 4) {
+            throw new Exception("Usage: pkcs11-cli --sign-pdf-batch <SLOT_ID> <PIN> <INPUT_DIR> <OUTPUT_DIR>");
+        }
+        long slotId = pkcs11Service.getSlotId(parameters[0]);
+        String pin = parameters[1];
+        File inputDirectory = new File(parameters[2]);
+        File outputDirectory = new File(parameters[3]);
+
+        // Sign all PDF files of the directory
+        int signedFiles = pkcs11Service.signPdfFiles(slotId, pin, inputDirectory, outputDirectory);
+        System.out.println(signedFiles);
+    }
+
     private static void handleVerifyPdf(Pkcs11Service pkcs11Service, String[] parameters) throws Exception {
         // Check the arguments
         if (parameters.length != 1) {
@@ -179,6 +217,135 @@ public class Pkcs11Application {
         pkcs11Service.verifyPdfFile(file);
     }
 
+    private static void handleVerifyPdfBatch(Pkcs11Service pkcs11Service, String[] parameters) throws Exception {
+        // Check the arguments
+        if (parameters.length != 1) {
+            throw new Exception("Usage: pkcs11-cli --verify-pdf-batch <INPUT_DIR>");
+        }
+        File inputDirectory = new File(parameters[0]);
+
+        // Verify all PDF files of the directory
+        long startTime = System.nanoTime();
+        List<Pkcs11BatchVerifier.Pkcs11VerificationResult> results = pkcs11Service.verifyPdfFiles(inputDirectory);
+        long durationNanos = System.nanoTime() - startTime;
+
+        // Print the result and latency of each file
+        int failedFiles = 0;
+        for (Pkcs11BatchVerifier.Pkcs11VerificationResult result : results) {
+            String status = result.isValid() ? "OK" : result.error();
+            System.out.println(STR."\{result.file().getName()};\{result.latencyNanos() / 1_000_000.0};\{status}");
+            failedFiles += result.isValid() ? 0 : 1;
+        }
+
+        // Print the throughput
+        double durationSeconds = durationNanos / 1_000_000_000.0;
+        System.out.println(STR."Verified \{results.size()} files in \{durationSeconds} s (\{results.size() / durationSeconds} files/s), \{failedFiles} failed");
+        if (failedFiles > 0) {
+            throw new Exception(STR."Verification failed for \{failedFiles} files");
+        }
+    }
+
+    private static void handleBench(Pkcs11Service pkcs11Service, String[] parameters) throws Exception {
+        // Check the arguments
+        String usage = "Usage: pkcs11-cli --bench <SLOT_ID> <PIN> [--threads <COUNT>] [--duration <SECONDS>] [--warmup <SECONDS>] [--format csv|json]";
+        if (parameters.length < 2 || parameters.length % 2 != 0) {
+            throw new Exception(usage);
+        }
+        long slotId = pkcs11Service.getSlotId(parameters[0]);
+        String pin = parameters[1];
+
+        // Parse the options
+        int threadCount = 1;
+        Duration duration = Duration.ofSeconds(10);
+        Duration warmup = Duration.ofSeconds(2);
+        String format = "csv";
+        for (int i = 2; i < parameters.length; i += 2) {
+            String value = parameters[i + 1];
+            switch (parameters[i]) {
+                case "--threads" -> threadCount = Integer.parseInt(value);
+                case "--duration" -> duration = Duration.ofSeconds(Long.parseLong(value));
+                case "--warmup" -> warmup = Duration.ofSeconds(Long.parseLong(value));
+                case "--format" -> format = value;
+                default -> throw new Exception(usage);
+            }
+        }
+        if (threadCount < 1 || duration.isZero() || duration.isNegative() || warmup.isNegative() || !(format.equals("csv") || format.equals("json"))) {
+            throw new Exception(usage);
+        }
+
+        // Run the benchmark and print the results
+        List<Pkcs11Benchmark.Pkcs11BenchmarkResult> results = pkcs11Service.benchmark(slotId, pin, threadCount, duration, warmup);
+        System.out.print(format.equals("json") ? Pkcs11Benchmark.toJson(results) : Pkcs11Benchmark.toCsv(results));
+    }
+
+    private static void handleServe(Pkcs11Service pkcs11Service, String[] parameters) throws Exception {
+        // Check the arguments
+        if (parameters.length != 3) {
+            throw new Exception("Usage: pkcs11-cli --serve <SLOT_ID> <PIN> <SOCKET_FILE>");
+        }
+        long slotId = pkcs11Service.getSlotId(parameters[0]);
+        String pin = parameters[1];
+        Path socketPath = Path.of(parameters[2]);
+
+        // Serve the requests until the process is stopped
+        pkcs11Service.serve(slotId, pin, socketPath);
+    }
+
+    private static void handleTraceReport(String[] parameters) throws Exception {
+        // Check the arguments
+        if (parameters.length != 1) {
+            throw new Exception("Usage: pkcs11-cli --trace-report <TRACE_FILE>");
+        }
+
+        // Replay the trace file
+        Pkcs11TraceReport pkcs11TraceReport = Pkcs11TraceReport.read(Path.of(parameters[0]));
+        long totalLatencyNanos = pkcs11TraceReport.getTotalLatencyNanos();
+
+        // Print the latency breakdown per function, the slowest functions first
+        System.out.println("Function;Calls;Errors;TotalMs;Share;MeanUs;P50Us;P99Us;MaxUs");
+        List<Pkcs11FunctionMetrics> functionMetrics = pkcs11TraceReport.getMetrics().values().stream().sorted(Comparator.comparingLong(Pkcs11FunctionMetrics::totalLatencyNanos).reversed()).toList();
+        for (Pkcs11FunctionMetrics metrics : functionMetrics) {
+            double share = totalLatencyNanos > 0 ? 100.0 * metrics.totalLatencyNanos() / totalLatencyNanos : 0;
+            System.out.println(STR."\{metrics.functionName()};\{metrics.calls()};\{metrics.errors()};\{metrics.totalLatencyNanos() / 1_000_000.0};\{String.format("%.1f%%", share)};\{metrics.getMeanLatencyNanos() / 1000.0};\{metrics.getLatencyPercentileNanos(0.5) / 1000.0};\{metrics.getLatencyPercentileNanos(0.99) / 1000.0};\{metrics.maxLatencyNanos() / 1000.0}");
+        }
+
+        // Print the summary
+        System.out.println(STR."Replayed \{pkcs11TraceReport.getRecordCount()} calls over \{pkcs11TraceReport.getTraceDurationNanos() / 1_000_000.0} ms with \{totalLatencyNanos / 1_000_000.0} ms in the middleware, \{pkcs11TraceReport.getMissingRecordCount()} calls missing");
+    }
+
+    private static void handleClient(String[] parameters) throws Exception {
+        // Check the arguments
+        if (parameters.length < 2) {
+            throw new Exception("Usage: pkcs11-cli --client <SOCKET_FILE> <--sign-pdf|--verify-pdf|--list-certificates> [ARGUMENTS]");
+        }
+        Pkcs11Client pkcs11Client = new Pkcs11Client(Path.of(parameters[0]));
+        String command = parameters[1];
+        String[] arguments = Arrays.copyOfRange(parameters, 2, parameters.length);
+
+        // Send the command with absolute paths, because the daemon has its own working directory
+        List<String> lines = switch (command) {
+            case "--sign-pdf" -> {
+                if (arguments.length != 2) {
+                    throw new Exception("Usage: pkcs11-cli --client <SOCKET_FILE> --sign-pdf <INPUT_FILE> <OUTPUT_FILE>");
+                }
+                yield pkcs11Client.send(Pkcs11Server.SIGN_PDF_COMMAND, new File(arguments[0]).getAbsolutePath(), new File(arguments[1]).getAbsolutePath());
+            }
+            case "--verify-pdf" -> {
+                if (arguments.length != 1) {
+                    throw new Exception("Usage: pkcs11-cli --client <SOCKET_FILE> --verify-pdf <FILE>");
+                }
+                yield pkcs11Client.send(Pkcs11Server.VERIFY_PDF_COMMAND, new File(arguments[0]).getAbsolutePath());
+            }
+            case "--list-certificates" -> pkcs11Client.send(Pkcs11Server.LIST_CERTIFICATES_COMMAND);
+            default -> throw new Exception(STR."Unknown client command \{command}");
+        };
+
+        // Print the response
+        for (String line : lines) {
+            System.out.println(line);
+        }
+    }
+
     private static void handleHelp() {
         System.out.println("===== Available commands =====");
         System.out.println("--list-slots");
@@ -189,12 +356,24 @@ public class Pkcs11Application {
         System.out.println("--unlock <SLOT_ID> <SO_PIN> <NEW_PIN>");
         System.out.println("--list-certificates <SLOT_ID>");
         System.out.println("--sign-pdf <SLOT_ID> <PIN> <INPUT_FILE> <OUTPUT_FILE>");
+        System.out.println("--sign-pdf-batch <SLOT_ID> <PIN> <INPUT_DIR> <OUTPUT_DIR>");
         System.out.println("--verify-pdf <FILE>");
+        System.out.println("--verify-pdf-batch <INPUT_DIR>");
+        System.out.println("--serve <SLOT_ID> <PIN> <SOCKET_FILE> (the socket file is only accessible by the current user)");
+        System.out.println("--bench <SLOT_ID> <PIN> [--threads <COUNT>] [--duration <SECONDS>] [--warmup <SECONDS>] [--format csv|json]");
+        System.out.println("--client <SOCKET_FILE> --sign-pdf <INPUT_FILE> <OUTPUT_FILE>");
+        System.out.println("--client <SOCKET_FILE> --verify-pdf <FILE>");
+        System.out.println("--client <SOCKET_FILE> --list-certificates");
+        System.out.println("--trace-report <TRACE_FILE>");
         System.out.println("--help");
         System.out.println("--version");
         System.out.println();
+        System.out.println("===== Slots =====");
+        System.out.println("<SLOT_ID> is either a slot ID, serial:<TOKEN_SERIAL_NUMBER> or label:<TOKEN_LABEL>");
+        System.out.println();
         System.out.println("===== Environment variables =====");
-        System.out.println("JAVA_CRYPTOKI_NAME: Name of the PKCS11 middleware, by default cryptoki");
+        System.out.println("JAVA_CRYPTOKI_NAME: Name of the PKCS11 middleware, by default cryptoki (softhsm2 plus -Djava.library.path=/usr/lib/softhsm for SoftHSM2)");
+        System.out.println("JAVA_CRYPTOKI_TRACE: Optional trace file to record all PKCS11 calls with redacted PINs and data, see --trace-report");
         System.out.println();
     }
 
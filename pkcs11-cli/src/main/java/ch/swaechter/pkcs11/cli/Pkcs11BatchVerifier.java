@@ -0,0 +1,128 @@
+package ch.swaechter.pkcs11.cli;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import com.itextpdf.kernel.pdf.PdfDocument;
+import com.itextpdf.kernel.pdf.PdfReader;
+import com.itextpdf.signatures.PdfPKCS7;
+import com.itextpdf.signatures.SignatureUtil;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Verify many PDF files on a bounded pool of worker threads. The signatures inside a document are verified in parallel
+ * as well and all documents share one certificate cache. A single file is verified by the same routine, so a document
+ * passes or fails the same way in both cases.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11BatchVerifier {
+
+    private final Pkcs11CertificateCache pkcs11CertificateCache;
+
+    private final int threadCount;
+
+    public Pkcs11BatchVerifier(Pkcs11CertificateCache pkcs11CertificateCache, int threadCount) {
+        this.pkcs11CertificateCache = pkcs11CertificateCache;
+        this.threadCount = threadCount;
+    }
+
+    public List<Pkcs11VerificationResult> verifyPdfFiles(List<File> files) throws Pkcs11Exception {
+        // Use a work-stealing pool, so the per-signature tasks of a document don't block the file workers
+        ForkJoinPool forkJoinPool = new ForkJoinPool(threadCount);
+        try {
+            // Submit a task per file
+            List<ForkJoinTask<Pkcs11VerificationResult>> tasks = new ArrayList<>(files.size());
+            for (File file : files) {
+                tasks.add(forkJoinPool.submit(() -> verifyPdfFileTimed(file)));
+            }
+
+            // Collect the results in the order of the files
+            List<Pkcs11VerificationResult> pkcs11VerificationResults = new ArrayList<>(files.size());
+            for (ForkJoinTask<Pkcs11VerificationResult> task : tasks) {
+                pkcs11VerificationResults.add(task.join());
+            }
+            return pkcs11VerificationResults;
+        } finally {
+            forkJoinPool.shutdownNow();
+        }
+    }
+
+    private Pkcs11VerificationResult verifyPdfFileTimed(File file) {
+        // Verify the file and measure the latency
+        long startTime = System.nanoTime();
+        try {
+            verifyPdfFile(file);
+            return new Pkcs11VerificationResult(file, System.nanoTime() - startTime, null);
+        } catch (Pkcs11Exception exception) {
+            return new Pkcs11VerificationResult(file, System.nanoTime() - startTime, exception.getMessage());
+        }
+    }
+
+    public void verifyPdfFile(File file) throws Pkcs11Exception {
+        // Check the file
+        if (!file.isFile()) {
+            throw new Pkcs11Exception(STR."The file \{file.getAbsolutePath()} does not exist/is not a file.");
+        }
+
+        // Verify the signatures
+        try {
+            verifySignatures(file);
+        } catch (Exception exception) {
+            throw new Pkcs11Exception(STR."Unable to verify PDF or verification failed: \{exception.getMessage()}", exception);
+        }
+    }
+
+    private void verifySignatures(File file) throws Exception {
+        // Read all signatures, this hashes the signed byte ranges and has to happen sequentially on the document
+        List<Callable<Void>> verifications = new ArrayList<>();
+        try (
+            PdfReader pdfReader = Pkcs11Service.createPdfReader(file);
+            PdfDocument pdfDocument = new PdfDocument(pdfReader)
+        ) {
+            // An unsigned document is not valid
+            SignatureUtil signatureUtil = new SignatureUtil(pdfDocument);
+            List<String> signatureNames = signatureUtil.getSignatureNames();
+            if (signatureNames.isEmpty()) {
+                throw new Pkcs11Exception("The document is not signed.");
+            }
+
+            for (String signatureName : signatureNames) {
+                // Read and check the signature coverage
+                PdfPKCS7 pdfPkcs7 = signatureUtil.readSignatureData(signatureName);
+                if (!signatureUtil.signatureCoversWholeDocument(signatureName)) {
+                    throw new Pkcs11Exception(STR."Signature \{signatureName} does not cover the full document.");
+                }
+
+                // Verify the signature value and the signer chain later on
+                verifications.add(() -> {
+                    if (!pdfPkcs7.verifySignatureIntegrityAndAuthenticity()) {
+                        throw new Pkcs11Exception(STR."Signature \{signatureName} is not valid.");
+                    }
+                    pkcs11CertificateCache.verifyChain(pdfPkcs7.getSignCertificateChain());
+                    return null;
+                });
+            }
+        }
+
+        // Verify all signatures of the document in parallel
+        List<ForkJoinTask<Void>> tasks = new ArrayList<>(verifications.size());
+        for (Callable<Void> verification : verifications) {
+            tasks.add(ForkJoinTask.adapt(verification));
+        }
+        for (ForkJoinTask<Void> task : ForkJoinTask.invokeAll(tasks)) {
+            task.join();
+        }
+    }
+
+    public record Pkcs11VerificationResult(File file, long latencyNanos, String error) {
+
+        public boolean isValid() {
+            return error == null;
+        }
+    }
+}
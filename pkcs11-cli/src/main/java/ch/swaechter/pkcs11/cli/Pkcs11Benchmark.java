@@ -0,0 +1,225 @@
+package ch.swaechter.pkcs11.cli;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.Pkcs11Utils;
+import ch.swaechter.pkcs11.library.headers.*;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Session;
+import ch.swaechter.pkcs11.library.objects.Pkcs11SessionPool;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Token;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measure the throughput and latency percentiles of the common token operations. Each operation runs for a warm-up
+ * period, whose results are discarded, and then for the measured duration with the configured number of threads. Every
+ * thread uses its own session, so the results show what the token and the middleware can do in parallel.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11Benchmark {
+
+    private static final int[] DIGEST_PAYLOAD_SIZES = {64, 1024, 64 * 1024, 1024 * 1024};
+
+    private static final int RANDOM_SIZE = 32;
+
+    private static final byte[] MESSAGE = "PKCS11 benchmark message".getBytes();
+
+    private final Pkcs11Token pkcs11Token;
+
+    private final String pin;
+
+    private final int threadCount;
+
+    private final Duration duration;
+
+    private final Duration warmup;
+
+    public Pkcs11Benchmark(Pkcs11Token pkcs11Token, String pin, int threadCount, Duration duration, Duration warmup) {
+        this.pkcs11Token = pkcs11Token;
+        this.pin = pin;
+        this.threadCount = threadCount;
+        this.duration = duration;
+        this.warmup = warmup;
+    }
+
+    public List<Pkcs11BenchmarkResult> run() throws Pkcs11Exception {
+        List<Pkcs11BenchmarkResult> results = new ArrayList<>();
+
+        // Measure the login on a dedicated session before the pool is logged in, because a logout affects all sessions
+        try (Pkcs11Session pkcs11Session = pkcs11Token.openSession(true, true)) {
+            results.add(measure("C_Login", 1, List.of(pkcs11Session), session -> {
+                session.loginUser(CkUserType.CKU_USER, pin);
+                session.logoutUser();
+            }));
+        } catch (Pkcs11Exception exception) {
+            throw exception;
+        } catch (Exception exception) {
+            throw new Pkcs11Exception(STR."Unable to measure the login: \{exception.getMessage()}", exception);
+        }
+
+        // Open a logged in session per thread
+        try (Pkcs11SessionPool pkcs11SessionPool = new Pkcs11SessionPool(pkcs11Token, threadCount, true, CkUserType.CKU_USER, pin)) {
+            List<Pkcs11Session> pkcs11Sessions = new ArrayList<>(threadCount);
+            try {
+                for (int i = 0; i < threadCount; i++) {
+                    pkcs11Sessions.add(pkcs11SessionPool.borrowSession());
+                }
+
+                // Measure the object search and attribute access on the private key
+                List<CkAttributeValue> searchTemplate = List.of(new CkAttributeValue(CkAttribute.CKA_CLASS, CkObjectClass.CKO_PRIVATE_KEY.value));
+                List<Long> privateKeyObjectIds = pkcs11Sessions.getFirst().findObjects(searchTemplate);
+                results.add(measure("C_FindObjects", threadCount, pkcs11Sessions, session -> session.findObjects(searchTemplate)));
+                if (!privateKeyObjectIds.isEmpty()) {
+                    long privateKeyObjectId = privateKeyObjectIds.getFirst();
+                    results.add(measure("C_GetAttributeValue", threadCount, pkcs11Sessions, session -> session.getAttributeValue(privateKeyObjectId, List.of(CkAttribute.CKA_KEY_TYPE))));
+
+                    // Measure the sign mechanisms that fit the key type and are supported by the token
+                    List<CkMechanism> supportedMechanisms = pkcs11Token.getMechanisms();
+                    for (Map.Entry<CkMechanism, byte[]> entry : getSignMechanisms(pkcs11Sessions.getFirst(), privateKeyObjectId).entrySet()) {
+                        if (supportedMechanisms.contains(entry.getKey())) {
+                            results.add(measure(STR."C_Sign \{entry.getKey()}", threadCount, pkcs11Sessions, session -> session.sign(entry.getKey(), privateKeyObjectId, entry.getValue())));
+                        }
+                    }
+                }
+
+                // Measure the digest for each payload size
+                for (int digestPayloadSize : DIGEST_PAYLOAD_SIZES) {
+                    byte[] payload = new byte[digestPayloadSize];
+                    results.add(measure(STR."C_Digest CKM_SHA256 \{digestPayloadSize} bytes", threadCount, pkcs11Sessions, session -> session.digest(CkMechanism.CKM_SHA256, payload)));
+                }
+
+                // Measure the random number generation
+                results.add(measure(STR."C_GenerateRandom \{RANDOM_SIZE} bytes", threadCount, pkcs11Sessions, session -> session.generateRandom(RANDOM_SIZE)));
+                return results;
+            } finally {
+                // Return the sessions, so closing the pool doesn't wait for them
+                for (Pkcs11Session pkcs11Session : pkcs11Sessions) {
+                    pkcs11SessionPool.returnSession(pkcs11Session);
+                }
+            }
+        }
+    }
+
+    private Map<CkMechanism, byte[]> getSignMechanisms(Pkcs11Session pkcs11Session, long privateKeyObjectId) throws Pkcs11Exception {
+        // Get the key type
+        byte[] keyTypeValue = pkcs11Session.getAttributeValue(privateKeyObjectId, List.of(CkAttribute.CKA_KEY_TYPE)).getFirst();
+        ByteBuffer keyTypeByteBuffer = ByteBuffer.wrap(keyTypeValue).order(ByteOrder.nativeOrder());
+        CkKeyType ckKeyType = CkKeyType.valueOf(keyTypeValue.length >= Long.BYTES ? (int) keyTypeByteBuffer.getLong() : keyTypeByteBuffer.getInt());
+
+        // Return the raw and combined mechanisms with a matching input
+        Map<CkMechanism, byte[]> signMechanisms = new LinkedHashMap<>();
+        byte[] digest = new byte[32];
+        if (ckKeyType == CkKeyType.CKK_RSA) {
+            signMechanisms.put(CkMechanism.CKM_RSA_PKCS, Pkcs11Utils.encodeDigestInfo("SHA-256", digest));
+            signMechanisms.put(CkMechanism.CKM_SHA256_RSA_PKCS, MESSAGE);
+            signMechanisms.put(CkMechanism.CKM_SHA512_RSA_PKCS, MESSAGE);
+        } else if (ckKeyType == CkKeyType.CKK_EC) {
+            signMechanisms.put(CkMechanism.CKM_ECDSA, digest);
+            signMechanisms.put(CkMechanism.CKM_ECDSA_SHA256, MESSAGE);
+        }
+        return signMechanisms;
+    }
+
+    private Pkcs11BenchmarkResult measure(String operation, int threads, List<Pkcs11Session> pkcs11Sessions, BenchmarkOperation benchmarkOperation) throws Pkcs11Exception {
+        // Run the operation on all threads until the warm-up and the measurement ended
+        long startTime = System.nanoTime();
+        long measurementStartTime = startTime + warmup.toNanos();
+        long endTime = measurementStartTime + duration.toNanos();
+        List<Future<long[]>> futures = new ArrayList<>(threads);
+        try (ExecutorService executorService = Executors.newFixedThreadPool(threads)) {
+            for (int i = 0; i < threads; i++) {
+                Pkcs11Session pkcs11Session = pkcs11Sessions.get(i);
+                futures.add(executorService.submit(() -> runOperation(pkcs11Session, benchmarkOperation, measurementStartTime, endTime)));
+            }
+
+            // Merge the latencies of all threads
+            long[] latencies = new long[0];
+            for (Future<long[]> future : futures) {
+                long[] threadLatencies = future.get();
+                int offset = latencies.length;
+                latencies = Arrays.copyOf(latencies, offset + threadLatencies.length);
+                System.arraycopy(threadLatencies, 0, latencies, offset, threadLatencies.length);
+            }
+            Arrays.sort(latencies);
+
+            // Calculate the throughput and percentiles
+            double durationSeconds = duration.toNanos() / 1_000_000_000.0;
+            return new Pkcs11BenchmarkResult(
+                operation,
+                threads,
+                latencies.length,
+                latencies.length / durationSeconds,
+                getPercentileMicros(latencies, 0.50),
+                getPercentileMicros(latencies, 0.90),
+                getPercentileMicros(latencies, 0.99),
+                getPercentileMicros(latencies, 0.999),
+                getPercentileMicros(latencies, 1.0)
+            );
+        } catch (Exception exception) {
+            throw new Pkcs11Exception(STR."Unable to measure \{operation}: \{exception.getMessage()}", exception);
+        }
+    }
+
+    private static long[] runOperation(Pkcs11Session pkcs11Session, BenchmarkOperation benchmarkOperation, long measurementStartTime, long endTime) throws Pkcs11Exception {
+        // Run the operation and only record the latencies after the warm-up
+        long[] latencies = new long[1024];
+        int count = 0;
+        while (true) {
+            long operationStartTime = System.nanoTime();
+            if (operationStartTime >= endTime) {
+                return Arrays.copyOf(latencies, count);
+            }
+            benchmarkOperation.run(pkcs11Session);
+            if (operationStartTime >= measurementStartTime) {
+                if (count == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                }
+                latencies[count++] = System.nanoTime() - operationStartTime;
+            }
+        }
+    }
+
+    private static double getPercentileMicros(long[] sortedLatencies, double percentile) {
+        // Use the nearest rank
+        if (sortedLatencies.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sortedLatencies.length) - 1;
+        return sortedLatencies[Math.max(0, index)] / 1000.0;
+    }
+
+    public static String toCsv(List<Pkcs11BenchmarkResult> results) {
+        // Write a header and a line per result
+        StringBuilder stringBuilder = new StringBuilder("operation;threads;operations;throughput_ops;p50_us;p90_us;p99_us;p999_us;max_us\n");
+        for (Pkcs11BenchmarkResult result : results) {
+            stringBuilder.append(STR."\{result.operation()};\{result.threads()};\{result.operations()};\{format(result.throughput())};\{format(result.p50Micros())};\{format(result.p90Micros())};\{format(result.p99Micros())};\{format(result.p999Micros())};\{format(result.maxMicros())}\n");
+        }
+        return stringBuilder.toString();
+    }
+
+    public static String toJson(List<Pkcs11BenchmarkResult> results) {
+        // Write an array with an object per result
+        StringJoiner stringJoiner = new StringJoiner(",\n", "[\n", "\n]\n");
+        for (Pkcs11BenchmarkResult result : results) {
+            stringJoiner.add(STR."  {\"operation\": \"\{result.operation()}\", \"threads\": \{result.threads()}, \"operations\": \{result.operations()}, \"throughput_ops\": \{format(result.throughput())}, \"p50_us\": \{format(result.p50Micros())}, \"p90_us\": \{format(result.p90Micros())}, \"p99_us\": \{format(result.p99Micros())}, \"p999_us\": \{format(result.p999Micros())}, \"max_us\": \{format(result.maxMicros())}}");
+        }
+        return stringJoiner.toString();
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+
+    private interface BenchmarkOperation {
+        void run(Pkcs11Session pkcs11Session) throws Pkcs11Exception;
+    }
+
+    public record Pkcs11BenchmarkResult(String operation, int threads, long operations, double throughput, double p50Micros, double p90Micros, double p99Micros, double p999Micros, double maxMicros) {
+    }
+}
@@ -0,0 +1,69 @@
+package ch.swaechter.pkcs11.cli;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.Pkcs11Utils;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread-safe cache of verified issuer relationships, keyed by the SHA-256 hashes of the DER encoded certificate and
+ * its issuer. The certificates of a signature are already parsed by iText, but checking a certificate signature with
+ * the public key of the issuer is expensive, so documents that share the same signer chains only pay it once.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11CertificateCache {
+
+    private final Map<String, Boolean> verifiedIssuers = new ConcurrentHashMap<>();
+
+    public void verifyChain(Certificate[] chain) throws Pkcs11Exception {
+        try {
+            // Hash all certificates, this is much cheaper than verifying a signature
+            String[] hashes = new String[chain.length];
+            for (int i = 0; i < chain.length; i++) {
+                hashes[i] = getHash(chain[i].getEncoded());
+            }
+
+            // Ensure each certificate is signed by the next one in the chain
+            for (int i = 0; i < chain.length - 1; i++) {
+                X509Certificate certificate = (X509Certificate) chain[i];
+                X509Certificate issuerCertificate = (X509Certificate) chain[i + 1];
+                boolean verified = verifiedIssuers.computeIfAbsent(STR."\{hashes[i]}:\{hashes[i + 1]}", key -> isSignedBy(certificate, issuerCertificate));
+                if (!verified) {
+                    throw new Pkcs11Exception(STR."The certificate \{certificate.getSubjectX500Principal()} is not signed by \{issuerCertificate.getSubjectX500Principal()}");
+                }
+            }
+        } catch (GeneralSecurityException exception) {
+            throw new Pkcs11Exception(STR."Unable to encode certificate: \{exception.getMessage()}", exception);
+        }
+    }
+
+    public int getVerifiedIssuerCount() {
+        return verifiedIssuers.size();
+    }
+
+    private static boolean isSignedBy(X509Certificate certificate, X509Certificate issuerCertificate) {
+        // Verify the certificate signature with the public key of the issuer
+        try {
+            certificate.verify(issuerCertificate.getPublicKey());
+            return true;
+        } catch (GeneralSecurityException exception) {
+            return false;
+        }
+    }
+
+    private static String getHash(byte[] encodedCertificate) throws Pkcs11Exception {
+        // Hash the DER encoded certificate
+        try {
+            return Pkcs11Utils.bytesToHex(MessageDigest.getInstance("SHA-256").digest(encodedCertificate));
+        } catch (NoSuchAlgorithmException exception) {
+            throw new Pkcs11Exception(STR."Unable to hash certificate: \{exception.getMessage()}", exception);
+        }
+    }
+}
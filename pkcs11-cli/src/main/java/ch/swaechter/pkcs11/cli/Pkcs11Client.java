@@ -0,0 +1,61 @@
+package ch.swaechter.pkcs11.cli;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Thin client that sends a single request to a running signing daemon.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11Client {
+
+    private final Path socketPath;
+
+    public Pkcs11Client(Path socketPath) {
+        this.socketPath = socketPath;
+    }
+
+    public List<String> send(String command, String... arguments) throws Exception {
+        // Connect to the daemon
+        try (SocketChannel socketChannel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            socketChannel.connect(UnixDomainSocketAddress.of(socketPath));
+            BufferedReader bufferedReader = new BufferedReader(Channels.newReader(socketChannel, StandardCharsets.UTF_8));
+            PrintWriter printWriter = new PrintWriter(Channels.newWriter(socketChannel, StandardCharsets.UTF_8));
+
+            // Send the request with escaped fields
+            List<String> fields = new ArrayList<>();
+            fields.add(Pkcs11Server.escape(command));
+            for (String argument : arguments) {
+                fields.add(Pkcs11Server.escape(argument));
+            }
+            printWriter.println(String.join(Pkcs11Server.SEPARATOR, fields));
+            printWriter.flush();
+
+            // Read the data lines until the final status line
+            List<String> lines = new ArrayList<>();
+            String line;
+            while ((line = bufferedReader.readLine()) != null) {
+                if (line.startsWith(Pkcs11Server.DATA_RESPONSE + Pkcs11Server.SEPARATOR)) {
+                    lines.add(Pkcs11Server.unescape(line.substring(Pkcs11Server.DATA_RESPONSE.length() + Pkcs11Server.SEPARATOR.length())));
+                } else if (line.equals(Pkcs11Server.OK_RESPONSE)) {
+                    return lines;
+                } else if (line.startsWith(Pkcs11Server.ERROR_RESPONSE + Pkcs11Server.SEPARATOR)) {
+                    throw new Exception(Pkcs11Server.unescape(line.substring(Pkcs11Server.ERROR_RESPONSE.length() + Pkcs11Server.SEPARATOR.length())));
+                } else {
+                    throw new IOException(STR."Unexpected response line \{line}");
+                }
+            }
+            throw new IOException("The connection was closed before the response was complete");
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package ch.swaechter.pkcs11.cli;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.headers.CkUserType;
+import ch.swaechter.pkcs11.library.objects.Pkcs11FailureClass;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Session;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Token;
+import com.itextpdf.kernel.pdf.PdfDictionary;
+import com.itextpdf.kernel.pdf.PdfDocument;
+import com.itextpdf.kernel.pdf.PdfName;
+import com.itextpdf.kernel.pdf.PdfReader;
+import com.itextpdf.signatures.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sign PDF files in two phases. The workers prepare the documents with an empty signature container and hash their
+ * byte range, while the calling thread sends the prepared documents in batches to the token. The signed CMS containers
+ * are then injected into the prepared documents by the workers again. If the token is lost, the prepared documents are
+ * kept and signed once the token is back.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11DeferredSigner {
+
+    private static final int ESTIMATED_SIGNATURE_SIZE = 16384;
+
+    private static final int MAX_BATCH_SIZE = 64;
+
+    private static final int MAX_SIGN_ATTEMPTS = 3;
+
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    private static final long PREPARE_POLL_MILLIS = 1000;
+
+    private static final long TOKEN_POLL_MILLIS = 5000;
+
+    private final Pkcs11Token pkcs11Token;
+
+    private final String pin;
+
+    private final Pkcs11SignerCache pkcs11SignerCache;
+
+    private final int threadCount;
+
+    public Pkcs11DeferredSigner(Pkcs11Token pkcs11Token, String pin, Pkcs11SignerCache pkcs11SignerCache, int threadCount) {
+        this.pkcs11Token = pkcs11Token;
+        this.pin = pin;
+        this.pkcs11SignerCache = pkcs11SignerCache;
+        this.threadCount = threadCount;
+    }
+
+    public List<String> signPdfFiles(List<File> inputFiles, File outputDirectory) throws Pkcs11Exception {
+        // Open the session and login once for all files, a retry might replace the session
+        AtomicReference<Pkcs11Session> sessionReference = new AtomicReference<>(openSession());
+        BlockingQueue<PreparedDocument> preparedDocuments = new LinkedBlockingQueue<>();
+        try (ExecutorService executorService = Executors.newFixedThreadPool(threadCount)) {
+            // Get the certificate chain of the cached signer
+            Pkcs11SignerCache.Pkcs11SignerInfo initialPkcs11SignerInfo = pkcs11SignerCache.getSignerInfo(pkcs11Token, sessionReference.get());
+            Certificate[] chain = initialPkcs11SignerInfo.chain();
+
+            // Prepare all documents in parallel, the prepared documents are handed over to the token via the queue
+            List<Future<?>> preparations = new ArrayList<>(inputFiles.size());
+            for (File inputFile : inputFiles) {
+                File outputFile = new File(outputDirectory, inputFile.getName());
+                preparations.add(executorService.submit(() -> preparedDocuments.add(prepareDocument(inputFile, outputFile, chain))));
+            }
+
+            // Sign the prepared documents in batches while the workers are still preparing the remaining ones
+            List<String> failedFiles = Collections.synchronizedList(new ArrayList<>());
+            List<Future<?>> futures = new ArrayList<>(inputFiles.size());
+            int handledFiles = 0;
+            while (handledFiles < inputFiles.size()) {
+                // Wait for the next prepared document, but stop if a preparation failed unexpectedly
+                PreparedDocument firstPreparedDocument = preparedDocuments.poll(PREPARE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (firstPreparedDocument == null) {
+                    checkPreparations(preparations);
+                    continue;
+                }
+
+                // Take all other ready ones
+                List<PreparedDocument> batch = new ArrayList<>(MAX_BATCH_SIZE);
+                batch.add(firstPreparedDocument);
+                preparedDocuments.drainTo(batch, MAX_BATCH_SIZE - 1);
+                handledFiles += batch.size();
+
+                // Collect the documents that failed during the preparation
+                List<PreparedDocument> signableDocuments = new ArrayList<>(batch.size());
+                for (PreparedDocument preparedDocument : batch) {
+                    if (preparedDocument.exception() != null) {
+                        failedFiles.add(STR."\{preparedDocument.inputFile().getName()} (\{preparedDocument.exception().getMessage()})");
+                        deletePreparedFile(preparedDocument);
+                    } else {
+                        signableDocuments.add(preparedDocument);
+                    }
+                }
+                if (signableDocuments.isEmpty()) {
+                    continue;
+                }
+
+                // Sign the batch on the token, which waits for a lost token, and inject the CMS containers in parallel
+                byte[][] signatures = new byte[signableDocuments.size()][];
+                Pkcs11SignerCache.Pkcs11SignerInfo pkcs11SignerInfo;
+                try {
+                    pkcs11SignerInfo = signBatch(sessionReference, initialPkcs11SignerInfo, signableDocuments, signatures);
+                } catch (Pkcs11Exception exception) {
+                    for (PreparedDocument preparedDocument : signableDocuments) {
+                        failedFiles.add(STR."\{preparedDocument.inputFile().getName()} (\{exception.getMessage()})");
+                        deletePreparedFile(preparedDocument);
+                    }
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw exception;
+                    }
+                    continue;
+                }
+                for (int i = 0; i < signableDocuments.size(); i++) {
+                    PreparedDocument preparedDocument = signableDocuments.get(i);
+                    byte[] signature = signatures[i];
+                    futures.add(executorService.submit(() -> {
+                        try {
+                            injectSignature(preparedDocument, pkcs11SignerInfo, signature);
+                        } catch (Exception exception) {
+                            failedFiles.add(STR."\{preparedDocument.inputFile().getName()} (\{exception.getMessage()})");
+                        }
+                    }));
+                }
+            }
+
+            // Wait until all signatures are injected
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+            // Logout, the files are signed even if the token is gone by now
+            Pkcs11Session pkcs11Session = sessionReference.get();
+            if (pkcs11Session != null) {
+                try {
+                    pkcs11Session.logoutUser();
+                } catch (Pkcs11Exception exception) {
+                    // Ignore
+                }
+            }
+            return failedFiles;
+        } catch (Pkcs11Exception exception) {
+            throw exception;
+        } catch (Exception exception) {
+            throw new Pkcs11Exception(STR."Unable to sign PDF files \{exception.getMessage()}", exception);
+        } finally {
+            // Delete the prepared files of the documents that were not handled anymore
+            for (PreparedDocument preparedDocument : preparedDocuments) {
+                deletePreparedFile(preparedDocument);
+            }
+            Pkcs11Session pkcs11Session = sessionReference.get();
+            if (pkcs11Session != null) {
+                closeSession(pkcs11Session);
+            }
+        }
+    }
+
+    private void checkPreparations(List<Future<?>> preparations) throws ExecutionException, InterruptedException {
+        // A preparation only fails if it could not even hand over its document, so none would arrive anymore
+        for (Future<?> preparation : preparations) {
+            if (preparation.isDone()) {
+                preparation.get();
+            }
+        }
+    }
+
+    private PreparedDocument prepareDocument(File inputFile, File outputFile, Certificate[] chain) {
+        File preparedFile = new File(outputFile.getParentFile(), STR."\{outputFile.getName()}.prepared");
+        try {
+            // Write the document with an empty signature container and hash its byte range
+            PdfSigner pdfSigner = Pkcs11Service.createPdfSigner(inputFile, preparedFile);
+            DigestingSignatureContainer digestingSignatureContainer = new DigestingSignatureContainer();
+            pdfSigner.signExternalContainer(digestingSignatureContainer, ESTIMATED_SIGNATURE_SIZE);
+
+            // Create the authenticated attributes the token has to sign
+            byte[] digest = digestingSignatureContainer.getDigest();
+            PdfPKCS7 pdfPkcs7 = new PdfPKCS7(null, chain, DigestAlgorithms.SHA256, null, new BouncyCastleDigest(), false);
+            byte[] authenticatedAttributes = pdfPkcs7.getAuthenticatedAttributeBytes(digest, PdfSigner.CryptoStandard.CMS, null, null);
+            return new PreparedDocument(inputFile, preparedFile, outputFile, pdfPkcs7, digest, authenticatedAttributes, null);
+        } catch (Exception exception) {
+            return new PreparedDocument(inputFile, preparedFile, outputFile, null, null, null, exception);
+        }
+    }
+
+    private Pkcs11SignerCache.Pkcs11SignerInfo signBatch(AtomicReference<Pkcs11Session> sessionReference, Pkcs11SignerCache.Pkcs11SignerInfo tokenPkcs11SignerInfo, List<PreparedDocument> preparedDocuments, byte[][] signatures) throws Pkcs11Exception {
+        // Get the authenticated attributes of all documents
+        List<ByteBuffer> messages = new ArrayList<>(preparedDocuments.size());
+        for (PreparedDocument preparedDocument : preparedDocuments) {
+            messages.add(ByteBuffer.wrap(preparedDocument.authenticatedAttributes()));
+        }
+
+        // Sign the batch and reopen the session if the session or token was lost
+        for (int attempt = 1; ; attempt++) {
+            try {
+                // Open a new session if the previous one was lost
+                if (sessionReference.get() == null) {
+                    sessionReference.set(openSession());
+                }
+                Pkcs11Session pkcs11Session = sessionReference.get();
+                Pkcs11SignerCache.Pkcs11SignerInfo pkcs11SignerInfo = pkcs11SignerCache.getSignerInfo(pkcs11Token, pkcs11Session);
+                pkcs11Session.signBatch(pkcs11SignerInfo.getSignMechanism(), pkcs11SignerInfo.privateKeyObjectId(), messages, pkcs11SignerInfo.signatureSize(), (index, signature) -> {
+                    signatures[index] = new byte[signature.remaining()];
+                    signature.get(signatures[index]);
+                });
+                return pkcs11SignerInfo;
+            } catch (Pkcs11Exception exception) {
+                // Give up if a retry would fail the same way, e.g. for a wrong PIN
+                Pkcs11FailureClass pkcs11FailureClass = Pkcs11FailureClass.classify(exception);
+                if (pkcs11FailureClass == Pkcs11FailureClass.PERMANENT) {
+                    throw exception;
+                }
+
+                // A lost session or token requires a new session and the object handles of a reinserted token might
+                // have changed as well. The session is opened again on the next attempt, so a failed open is retried
+                if (pkcs11FailureClass != Pkcs11FailureClass.RETRYABLE) {
+                    Pkcs11Session pkcs11Session = sessionReference.getAndSet(null);
+                    if (pkcs11Session != null) {
+                        closeSession(pkcs11Session);
+                    }
+                    pkcs11SignerCache.invalidate(tokenPkcs11SignerInfo);
+                }
+
+                // Retry quickly a few times and then wait for the token to come back, the prepared documents are kept
+                if (attempt == MAX_SIGN_ATTEMPTS) {
+                    System.err.println(STR."The token is unavailable (\{exception.getMessage()}), waiting for it to sign the remaining documents");
+                }
+                try {
+                    Thread.sleep(attempt < MAX_SIGN_ATTEMPTS ? RETRY_DELAY_MILLIS * attempt : TOKEN_POLL_MILLIS);
+                } catch (InterruptedException interruptedException) {
+                    Thread.currentThread().interrupt();
+                    throw new Pkcs11Exception("Interrupted while waiting for the token", interruptedException);
+                }
+            }
+        }
+    }
+
+    private void injectSignature(PreparedDocument preparedDocument, Pkcs11SignerCache.Pkcs11SignerInfo pkcs11SignerInfo, byte[] signature) throws IOException, GeneralSecurityException {
+        try {
+            // Create the CMS container of the signature
+            PdfPKCS7 pdfPkcs7 = preparedDocument.pdfPkcs7();
+            pdfPkcs7.setExternalSignatureValue(pkcs11SignerInfo.encodeSignature(signature), null, pkcs11SignerInfo.getSignatureAlgorithmName());
+            byte[] encodedPkcs7 = pdfPkcs7.getEncodedPKCS7(preparedDocument.digest(), PdfSigner.CryptoStandard.CMS, null, null, null);
+
+            // Inject the CMS container into the prepared document
+            try (
+                PdfReader pdfReader = Pkcs11Service.createPdfReader(preparedDocument.preparedFile());
+                PdfDocument pdfDocument = new PdfDocument(pdfReader);
+                FileOutputStream fileOutputStream = new FileOutputStream(preparedDocument.outputFile())
+            ) {
+                PdfSigner.signDeferred(pdfDocument, Pkcs11Service.SIGNATURE_FIELD_NAME, fileOutputStream, new PreparedSignatureContainer(encodedPkcs7));
+            }
+        } finally {
+            // Delete the prepared document, also if the injection failed
+            deletePreparedFile(preparedDocument);
+        }
+    }
+
+    private Pkcs11Session openSession() throws Pkcs11Exception {
+        // Open a session and login
+        Pkcs11Session pkcs11Session = pkcs11Token.openSession(true, true);
+        try {
+            pkcs11Session.loginUser(CkUserType.CKU_USER, pin);
+            return pkcs11Session;
+        } catch (Pkcs11Exception exception) {
+            closeSession(pkcs11Session);
+            throw exception;
+        }
+    }
+
+    private void deletePreparedFile(PreparedDocument preparedDocument) {
+        // Delete the prepared document and ignore a missing one
+        try {
+            Files.deleteIfExists(preparedDocument.preparedFile().toPath());
+        } catch (IOException exception) {
+            // Ignore
+        }
+    }
+
+    private void closeSession(Pkcs11Session pkcs11Session) {
+        // Close the session and ignore errors of an unavailable token
+        try {
+            pkcs11Session.close();
+        } catch (Exception exception) {
+            // Ignore
+        }
+    }
+
+    private record PreparedDocument(File inputFile, File preparedFile, File outputFile, PdfPKCS7 pdfPkcs7, byte[] digest, byte[] authenticatedAttributes, Exception exception) {
+    }
+
+    private static class DigestingSignatureContainer extends ExternalBlankSignatureContainer {
+
+        private byte[] digest;
+
+        public DigestingSignatureContainer() {
+            super(PdfName.Adobe_PPKLite, PdfName.Adbe_pkcs7_detached);
+        }
+
+        @Override
+        public byte[] sign(InputStream data) throws GeneralSecurityException {
+            // Hash the byte range and leave the signature empty
+            try {
+                digest = DigestAlgorithms.digest(data, MessageDigest.getInstance(DigestAlgorithms.SHA256));
+                return new byte[0];
+            } catch (IOException exception) {
+                throw new GeneralSecurityException(STR."Unable to hash the document: \{exception.getMessage()}", exception);
+            }
+        }
+
+        public byte[] getDigest() {
+            return digest;
+        }
+    }
+
+    private record PreparedSignatureContainer(byte[] encodedPkcs7) implements IExternalSignatureContainer {
+
+        @Override
+        public byte[] sign(InputStream data) {
+            return encodedPkcs7;
+        }
+
+        @Override
+        public void modifySigningDictionary(PdfDictionary signDic) {
+        }
+    }
+}
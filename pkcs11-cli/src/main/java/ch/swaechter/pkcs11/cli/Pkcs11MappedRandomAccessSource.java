@@ -0,0 +1,74 @@
+package ch.swaechter.pkcs11.cli;
+
+import com.itextpdf.io.source.IRandomAccessSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only random access source that maps a whole file into memory. The PDF parser and the byte range hashing read
+ * directly from the page cache, so the heap usage does not grow with the file size. Unlike a mapped byte buffer, the
+ * mapped segment is not limited to 2 GB and the mapping is released deterministically on close.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11MappedRandomAccessSource implements IRandomAccessSource {
+
+    private final Arena arena;
+
+    private final MemorySegment memorySegment;
+
+    private boolean closed;
+
+    public Pkcs11MappedRandomAccessSource(File file) throws IOException {
+        // Map the file, the shared arena allows reads from other threads like the signature verification workers
+        this.arena = Arena.ofShared();
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            this.memorySegment = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size(), arena);
+        } catch (IOException | RuntimeException exception) {
+            arena.close();
+            throw exception;
+        }
+    }
+
+    @Override
+    public int get(long position) {
+        // Return -1 if the position is outside the file
+        if (position < 0 || position >= memorySegment.byteSize()) {
+            return -1;
+        }
+        return memorySegment.get(ValueLayout.JAVA_BYTE, position) & 0xff;
+    }
+
+    @Override
+    public int get(long position, byte[] bytes, int off, int len) {
+        // Return -1 if the position is outside the file
+        if (position < 0 || position >= memorySegment.byteSize()) {
+            return -1;
+        }
+
+        // Copy as many bytes as available
+        int length = (int) Math.min(len, memorySegment.byteSize() - position);
+        MemorySegment.copy(memorySegment, ValueLayout.JAVA_BYTE, position, bytes, off, length);
+        return length;
+    }
+
+    @Override
+    public long length() {
+        return memorySegment.byteSize();
+    }
+
+    @Override
+    public synchronized void close() {
+        // Release the mapping only once, the reader might close its source multiple times
+        if (!closed) {
+            closed = true;
+            arena.close();
+        }
+    }
+}
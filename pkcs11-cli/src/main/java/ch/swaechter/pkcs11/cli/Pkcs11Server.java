@@ -0,0 +1,240 @@
+package ch.swaechter.pkcs11.cli;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Session;
+import ch.swaechter.pkcs11.library.objects.Pkcs11SessionPool;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Token;
+
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long-running signing daemon that keeps the module initialized, the sessions logged in and the key and certificate
+ * chain cached. Requests are received over a Unix domain socket, one request line per connection with tab separated
+ * fields. The response consists of optional DATA lines and a final OK or ERROR line. Backslashes, tabs and line breaks
+ * in the fields, data lines and error messages are escaped and each data line is prefixed, so they can't break the line
+ * protocol or be taken for the final line. The socket is only accessible by its owner.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11Server implements AutoCloseable {
+
+    public static final String SIGN_PDF_COMMAND = "SIGN-PDF";
+
+    public static final String VERIFY_PDF_COMMAND = "VERIFY-PDF";
+
+    public static final String LIST_CERTIFICATES_COMMAND = "LIST-CERTIFICATES";
+
+    public static final String SEPARATOR = "\t";
+
+    public static final String DATA_RESPONSE = "DATA";
+
+    public static final String OK_RESPONSE = "OK";
+
+    public static final String ERROR_RESPONSE = "ERROR";
+
+    private final Pkcs11Service pkcs11Service;
+
+    private final Pkcs11Token pkcs11Token;
+
+    private final Pkcs11SessionPool pkcs11SessionPool;
+
+    private final Pkcs11SignerCache pkcs11SignerCache;
+
+    private final Path socketPath;
+
+    private final ServerSocketChannel serverSocketChannel;
+
+    public Pkcs11Server(Pkcs11Service pkcs11Service, Pkcs11Token pkcs11Token, Pkcs11SessionPool pkcs11SessionPool, Pkcs11SignerCache pkcs11SignerCache, Path socketPath) throws Pkcs11Exception {
+        this.pkcs11Service = pkcs11Service;
+        this.pkcs11Token = pkcs11Token;
+        this.pkcs11SessionPool = pkcs11SessionPool;
+        this.pkcs11SignerCache = pkcs11SignerCache;
+        this.socketPath = socketPath;
+
+        // Look up the private key, the certificate chain and the signature size before accepting requests
+        getSignerInfo();
+
+        // Bind the socket
+        try {
+            Files.deleteIfExists(socketPath);
+            this.serverSocketChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            this.serverSocketChannel.bind(UnixDomainSocketAddress.of(socketPath));
+
+            // Restrict the socket to the owner, because every connection signs with the logged in token
+            Files.setPosixFilePermissions(socketPath, PosixFilePermissions.fromString("rw-------"));
+        } catch (IOException | UnsupportedOperationException exception) {
+            throw new Pkcs11Exception(STR."Unable to bind the socket \{socketPath}: \{exception.getMessage()}", exception);
+        }
+    }
+
+    public void serve() throws Pkcs11Exception {
+        // Handle each connection in its own virtual thread, the token access is limited by the session pool
+        try (ExecutorService executorService = Executors.newVirtualThreadPerTaskExecutor()) {
+            while (serverSocketChannel.isOpen()) {
+                SocketChannel socketChannel = serverSocketChannel.accept();
+                executorService.execute(() -> handleConnection(socketChannel));
+            }
+        } catch (IOException exception) {
+            // Stop silently if the server was closed
+            if (serverSocketChannel.isOpen()) {
+                throw new Pkcs11Exception(STR."Unable to accept connections: \{exception.getMessage()}", exception);
+            }
+        }
+    }
+
+    private void handleConnection(SocketChannel socketChannel) {
+        try (
+            socketChannel;
+            BufferedReader bufferedReader = new BufferedReader(Channels.newReader(socketChannel, StandardCharsets.UTF_8));
+            PrintWriter printWriter = new PrintWriter(Channels.newWriter(socketChannel, StandardCharsets.UTF_8))
+        ) {
+            // Read the request
+            String request = bufferedReader.readLine();
+            if (request == null) {
+                return;
+            }
+
+            // Handle the request and send the response
+            try {
+                String[] fields = request.split(SEPARATOR, -1);
+                for (int i = 0; i < fields.length; i++) {
+                    fields[i] = unescape(fields[i]);
+                }
+                for (String line : handleRequest(fields)) {
+                    printWriter.println(DATA_RESPONSE + SEPARATOR + escape(line));
+                }
+                printWriter.println(OK_RESPONSE);
+            } catch (Exception exception) {
+                printWriter.println(ERROR_RESPONSE + SEPARATOR + escape(String.valueOf(exception.getMessage())));
+            }
+            printWriter.flush();
+        } catch (IOException exception) {
+            System.err.println(STR."Unable to handle the connection: \{exception.getMessage()}");
+        }
+    }
+
+    private List<String> handleRequest(String[] fields) throws Exception {
+        // Handle the commands
+        return switch (fields[0]) {
+            case SIGN_PDF_COMMAND -> {
+                // Check the fields
+                if (fields.length != 3) {
+                    throw new Pkcs11Exception(STR."Usage: \{SIGN_PDF_COMMAND} <INPUT_FILE> <OUTPUT_FILE>");
+                }
+                File inputFile = new File(fields[1]);
+                File outputFile = new File(fields[2]);
+
+                // Sign the PDF file with a pooled session and the cached signer
+                Pkcs11Session pkcs11Session = pkcs11SessionPool.borrowSession();
+                Pkcs11SignerCache.Pkcs11SignerInfo pkcs11SignerInfo = null;
+                try {
+                    pkcs11SignerInfo = pkcs11SignerCache.getSignerInfo(pkcs11Token, pkcs11Session);
+                    pkcs11Service.signPdfFile(new Pkcs11Signature(pkcs11Session, pkcs11SignerInfo), inputFile, outputFile);
+                } catch (Exception exception) {
+                    // Forget the key handle and replace the session if one of them was lost, so the next request
+                    // resolves the signer again on a working session
+                    if (Pkcs11SignerCache.isStale(exception)) {
+                        if (pkcs11SignerInfo != null) {
+                            pkcs11SignerCache.invalidate(pkcs11SignerInfo);
+                        }
+                        try {
+                            pkcs11Session = pkcs11SessionPool.replaceSession(pkcs11Session);
+                        } catch (Pkcs11Exception replaceException) {
+                            exception.addSuppressed(replaceException);
+                        }
+                    }
+                    throw exception;
+                } finally {
+                    pkcs11SessionPool.returnSession(pkcs11Session);
+                }
+                yield List.of();
+            }
+            case VERIFY_PDF_COMMAND -> {
+                // Check the fields
+                if (fields.length != 2) {
+                    throw new Pkcs11Exception(STR."Usage: \{VERIFY_PDF_COMMAND} <FILE>");
+                }
+
+                // Verify the PDF file
+                pkcs11Service.verifyPdfFile(new File(fields[1]));
+                yield List.of();
+            }
+            case LIST_CERTIFICATES_COMMAND -> {
+                // Return the cached certificates
+                yield Arrays.stream(getSignerInfo().chain()).map(certificate -> Pkcs11Application.formatCertificate((X509Certificate) certificate)).toList();
+            }
+            default -> throw new Pkcs11Exception(STR."Unknown command \{fields[0]}");
+        };
+    }
+
+    private Pkcs11SignerCache.Pkcs11SignerInfo getSignerInfo() throws Pkcs11Exception {
+        // Get the cached signer or look it up with a pooled session
+        Pkcs11Session pkcs11Session = pkcs11SessionPool.borrowSession();
+        try {
+            return pkcs11SignerCache.getSignerInfo(pkcs11Token, pkcs11Session);
+        } finally {
+            pkcs11SessionPool.returnSession(pkcs11Session);
+        }
+    }
+
+    public static String escape(String value) {
+        // Escape the separator, the line breaks and the escape character itself
+        StringBuilder stringBuilder = new StringBuilder(value.length());
+        for (char character : value.toCharArray()) {
+            switch (character) {
+                case '\\' -> stringBuilder.append("\\\\");
+                case '\t' -> stringBuilder.append("\\t");
+                case '\n' -> stringBuilder.append("\\n");
+                case '\r' -> stringBuilder.append("\\r");
+                default -> stringBuilder.append(character);
+            }
+        }
+        return stringBuilder.toString();
+    }
+
+    public static String unescape(String value) {
+        // Replace the escape sequences and keep unknown ones as they are
+        StringBuilder stringBuilder = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char character = value.charAt(i);
+            if (character == '\\' && i + 1 < value.length()) {
+                char escapedCharacter = value.charAt(++i);
+                switch (escapedCharacter) {
+                    case 't' -> stringBuilder.append('\t');
+                    case 'n' -> stringBuilder.append('\n');
+                    case 'r' -> stringBuilder.append('\r');
+                    case '\\' -> stringBuilder.append('\\');
+                    default -> stringBuilder.append(character).append(escapedCharacter);
+                }
+            } else {
+                stringBuilder.append(character);
+            }
+        }
+        return stringBuilder.toString();
+    }
+
+    public void stop() throws IOException {
+        // Stop accepting connections and remove the socket
+        serverSocketChannel.close();
+        Files.deleteIfExists(socketPath);
+    }
+
+    @Override
+    public void close() throws IOException {
+        stop();
+    }
+}
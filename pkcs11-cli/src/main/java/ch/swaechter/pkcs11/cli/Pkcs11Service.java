@@ -1,51 +1,101 @@
 package ch.swaechter.pkcs11.cli;
 
 import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.Pkcs11Library;
 import ch.swaechter.pkcs11.library.Pkcs11Module;
+import ch.swaechter.pkcs11.library.decorators.FlightRecorderPkcs11Library;
+import ch.swaechter.pkcs11.library.decorators.TracingPkcs11Library;
 import ch.swaechter.pkcs11.library.headers.CkAttribute;
 import ch.swaechter.pkcs11.library.headers.CkAttributeValue;
 import ch.swaechter.pkcs11.library.headers.CkObjectClass;
 import ch.swaechter.pkcs11.library.headers.CkUserType;
 import ch.swaechter.pkcs11.library.objects.Pkcs11Session;
+import ch.swaechter.pkcs11.library.objects.Pkcs11SessionPool;
 import ch.swaechter.pkcs11.library.objects.Pkcs11Slot;
 import ch.swaechter.pkcs11.library.objects.Pkcs11Token;
 import ch.swaechter.pkcs11.library.objects.Pkcs11TokenInfo;
 import com.itextpdf.forms.fields.properties.SignedAppearanceText;
 import com.itextpdf.forms.form.element.SignatureFieldAppearance;
 import com.itextpdf.kernel.geom.Rectangle;
-import com.itextpdf.kernel.pdf.PdfDocument;
 import com.itextpdf.kernel.pdf.PdfReader;
+import com.itextpdf.kernel.pdf.ReaderProperties;
 import com.itextpdf.kernel.pdf.StampingProperties;
 import com.itextpdf.signatures.*;
 
 import java.io.*;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Optional;
 
 public class Pkcs11Service implements AutoCloseable {
 
+    static final String SIGNATURE_FIELD_NAME = "signature1";
+
     private final Pkcs11Module pkcs11Module;
 
+    private final TracingPkcs11Library tracingPkcs11Library;
+
+    private final Pkcs11SlotDirectory slotDirectory;
+
+    private final Pkcs11BatchVerifier batchVerifier = new Pkcs11BatchVerifier(new Pkcs11CertificateCache(), Runtime.getRuntime().availableProcessors());
+
+    private final Pkcs11SignerCache signerCache = new Pkcs11SignerCache();
+
     public Pkcs11Service(String libraryName) throws Pkcs11Exception {
-        this.pkcs11Module = new Pkcs11Module(libraryName);
-        this.pkcs11Module.initializeModule();
+        this(libraryName, null);
+    }
+
+    public Pkcs11Service(String libraryName, Path traceFile) throws Pkcs11Exception {
+        this(Pkcs11Library.detectPlatform(libraryName), traceFile);
+    }
+
+    public Pkcs11Service(Pkcs11Library platformPkcs11Library, Path traceFile) throws Pkcs11Exception {
+        // Create the module with flight recorder events and trace all calls if requested
+        Pkcs11Library pkcs11Library = new FlightRecorderPkcs11Library(platformPkcs11Library);
+        if (traceFile != null) {
+            try {
+                this.tracingPkcs11Library = new TracingPkcs11Library(pkcs11Library, traceFile);
+            } catch (IOException exception) {
+                throw new Pkcs11Exception(STR."Unable to create the trace file \{traceFile}: \{exception.getMessage()}", exception);
+            }
+            this.pkcs11Module = new Pkcs11Module(tracingPkcs11Library);
+        } else {
+            this.tracingPkcs11Library = null;
+            this.pkcs11Module = new Pkcs11Module(pkcs11Library);
+        }
+
+        // Initialize the module and close the trace file again if that fails
+        try {
+            this.pkcs11Module.initializeModule();
+        } catch (Pkcs11Exception exception) {
+            if (tracingPkcs11Library != null) {
+                try {
+                    tracingPkcs11Library.close();
+                } catch (IOException closeException) {
+                    exception.addSuppressed(closeException);
+                }
+            }
+            throw exception;
+        }
+        this.slotDirectory = new Pkcs11SlotDirectory(pkcs11Module);
     }
 
     public List<Pkcs11Slot> getSlots() throws Pkcs11Exception {
-        return pkcs11Module.getSlots(true);
+        return slotDirectory.getSlots();
+    }
+
+    public long getSlotId(String slotReference) throws Pkcs11Exception {
+        // Resolve a slot ID, token serial number or token label to the current slot ID
+        return slotDirectory.getSlot(slotReference).getSlotId();
     }
 
     private Pkcs11Slot getPkcs11Slot(long slotId) throws Pkcs11Exception {
-        // Get all available slots and find the slot by ID
-        List<Pkcs11Slot> pkcs11Slots = getSlots();
-        Optional<Pkcs11Slot> optionalPkcs11SlotById = pkcs11Slots.stream().filter(pkcs11SlotElement -> pkcs11SlotElement.getSlotId() == slotId).findFirst();
-        if (optionalPkcs11SlotById.isEmpty()) {
-            throw new Pkcs11Exception(STR."Unable to find a slot with ID \{slotId}");
-        }
-        return optionalPkcs11SlotById.get();
+        // Get the slot from the directory
+        return slotDirectory.getSlot(slotId);
     }
 
     public boolean isPinLocked(long slotId) throws Pkcs11Exception {
@@ -165,74 +215,187 @@ public class Pkcs11Service implements AutoCloseable {
         Pkcs11Token pkcs11Token = pkcs11Slot.getToken();
 
         // Open a session
+        Pkcs11SignerCache.Pkcs11SignerInfo pkcs11SignerInfo = null;
         try (Pkcs11Session pkcs11Session = pkcs11Token.openSession(true, true)) {
             // Login
             pkcs11Session.loginUser(CkUserType.CKU_USER, pin);
 
             // Create the PKCS11 signature
-            Pkcs11Signature pkcs11Signature = new Pkcs11Signature(pkcs11Session);
-
-            // Create the PDF reader and signer
-            StampingProperties stampingProperties = new StampingProperties();
-            PdfReader pdfReader = new PdfReader(inputFile);
-            PdfSigner pdfSigner = new PdfSigner(pdfReader, new FileOutputStream(outputFile), stampingProperties);
-
-            // Define the visual signature description
-            SignedAppearanceText signedAppearanceText = new SignedAppearanceText().setReasonLine("PKCS11 Test").setLocationLine("Basel").setSignedBy("Simon Wächter");
-            SignatureFieldAppearance signatureFieldAppearance = new SignatureFieldAppearance("signature1").setContent(signedAppearanceText);
-
-            // Set the signature information
-            pdfSigner.setPageRect(new Rectangle(40, 650, 250, 100));
-            pdfSigner.setSignatureAppearance(signatureFieldAppearance);
-            pdfSigner.setPageNumber(1);
+            pkcs11SignerInfo = signerCache.getSignerInfo(pkcs11Token, pkcs11Session);
+            Pkcs11Signature pkcs11Signature = new Pkcs11Signature(pkcs11Session, pkcs11SignerInfo);
 
             // Sign the document
-            IExternalDigest digest = new BouncyCastleDigest();
-            pdfSigner.signDetached(digest, pkcs11Signature, pkcs11Signature.getChain(), null, null, null, 0, PdfSigner.CryptoStandard.CMS);
+            signPdfFile(pkcs11Signature, inputFile, outputFile);
 
             // Logout
             pkcs11Session.logoutUser();
         } catch (Exception exception) {
+            // Forget the key handle if it might be stale
+            if (pkcs11SignerInfo != null && Pkcs11SignerCache.isStale(exception)) {
+                signerCache.invalidate(pkcs11SignerInfo);
+            }
             throw new Pkcs11Exception(STR."Unable to sign PDF file \{exception.getMessage()}", exception);
         }
     }
 
-    public void verifyPdfFile(File file) throws Pkcs11Exception {
-        // Check the file
-        if (!file.isFile()) {
-            throw new Pkcs11Exception(STR."The file \{file.getAbsolutePath()} does not exist/is not a file.");
+    public int signPdfFiles(long slotId, String pin, File inputDirectory, File outputDirectory) throws Pkcs11Exception {
+        // Check the input and output directory
+        if (!inputDirectory.isDirectory()) {
+            throw new Pkcs11Exception(STR."The input directory \{inputDirectory.getAbsolutePath()} does not exist/is not a directory.");
+        }
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new Pkcs11Exception(STR."The output directory \{outputDirectory.getAbsolutePath()} can't be created.");
+        }
+
+        // Get all PDF files
+        File[] inputFiles = inputDirectory.listFiles(file -> file.isFile() && file.getName().toLowerCase().endsWith(".pdf"));
+        if (inputFiles == null || inputFiles.length == 0) {
+            return 0;
+        }
+        Arrays.sort(inputFiles);
+
+        // Get the slot and token
+        Pkcs11Slot pkcs11Slot = getPkcs11Slot(slotId);
+        Pkcs11Token pkcs11Token = pkcs11Slot.getToken();
+
+        // Sign the files in two phases with one login
+        Pkcs11DeferredSigner pkcs11DeferredSigner = new Pkcs11DeferredSigner(pkcs11Token, pin, signerCache, Runtime.getRuntime().availableProcessors());
+        List<String> failedFiles = pkcs11DeferredSigner.signPdfFiles(Arrays.asList(inputFiles), outputDirectory);
+
+        // Report the failed files
+        if (!failedFiles.isEmpty()) {
+            throw new Pkcs11Exception(STR."Unable to sign \{failedFiles.size()} of \{inputFiles.length} PDF files: \{String.join(", ", failedFiles)}");
+        }
+        return inputFiles.length;
+    }
+
+    void signPdfFile(Pkcs11Signature pkcs11Signature, File inputFile, File outputFile) throws Exception {
+        // Create the PDF signer
+        PdfSigner pdfSigner = createPdfSigner(inputFile, outputFile);
+
+        // Sign the document
+        IExternalDigest digest = new BouncyCastleDigest();
+        pdfSigner.signDetached(digest, pkcs11Signature, pkcs11Signature.getChain(), null, null, null, 0, PdfSigner.CryptoStandard.CMS);
+    }
+
+    static PdfSigner createPdfSigner(File inputFile, File outputFile) throws IOException {
+        // Create the PDF reader and signer, the signed revision is buffered in a temporary file next to the output file instead of on the heap
+        StampingProperties stampingProperties = new StampingProperties();
+        PdfReader pdfReader = createPdfReader(inputFile);
+        File temporaryDirectory = outputFile.getAbsoluteFile().getParentFile();
+        PdfSigner pdfSigner;
+        FileOutputStream fileOutputStream = null;
+        try {
+            fileOutputStream = new FileOutputStream(outputFile);
+            pdfSigner = new PdfSigner(pdfReader, fileOutputStream, temporaryDirectory.getAbsolutePath(), stampingProperties);
+        } catch (IOException | RuntimeException exception) {
+            // Close the reader and its memory mapping, which would otherwise only be released by the signer
+            closeQuietly(exception, pdfReader);
+            if (fileOutputStream != null) {
+                closeQuietly(exception, fileOutputStream);
+            }
+            throw exception;
+        }
+        pdfSigner.setFieldName(SIGNATURE_FIELD_NAME);
+
+        // Define the visual signature description
+        SignedAppearanceText signedAppearanceText = new SignedAppearanceText().setReasonLine("PKCS11 Test").setLocationLine("Basel").setSignedBy("Simon Wächter");
+        SignatureFieldAppearance signatureFieldAppearance = new SignatureFieldAppearance(SIGNATURE_FIELD_NAME).setContent(signedAppearanceText);
+
+        // Set the signature information
+        pdfSigner.setPageRect(new Rectangle(40, 650, 250, 100));
+        pdfSigner.setSignatureAppearance(signatureFieldAppearance);
+        pdfSigner.setPageNumber(1);
+        return pdfSigner;
+    }
+
+    public List<Pkcs11BatchVerifier.Pkcs11VerificationResult> verifyPdfFiles(File inputDirectory) throws Pkcs11Exception {
+        // Check the input directory
+        if (!inputDirectory.isDirectory()) {
+            throw new Pkcs11Exception(STR."The input directory \{inputDirectory.getAbsolutePath()} does not exist/is not a directory.");
         }
 
-        // Verify the signed PDF document
+        // Get all PDF files
+        File[] inputFiles = inputDirectory.listFiles(file -> file.isFile() && file.getName().toLowerCase().endsWith(".pdf"));
+        if (inputFiles == null || inputFiles.length == 0) {
+            return List.of();
+        }
+        Arrays.sort(inputFiles);
+
+        // Verify the files on all cores with a shared certificate cache
+        return batchVerifier.verifyPdfFiles(Arrays.asList(inputFiles));
+    }
+
+    public List<Pkcs11Benchmark.Pkcs11BenchmarkResult> benchmark(long slotId, String pin, int threadCount, Duration duration, Duration warmup) throws Pkcs11Exception {
+        // Get the slot and token
+        Pkcs11Slot pkcs11Slot = getPkcs11Slot(slotId);
+        Pkcs11Token pkcs11Token = pkcs11Slot.getToken();
+
+        // Run the benchmark
+        Pkcs11Benchmark pkcs11Benchmark = new Pkcs11Benchmark(pkcs11Token, pin, threadCount, duration, warmup);
+        return pkcs11Benchmark.run();
+    }
+
+    public void serve(long slotId, String pin, Path socketPath) throws Pkcs11Exception {
+        // Get the slot and token
+        Pkcs11Slot pkcs11Slot = getPkcs11Slot(slotId);
+        Pkcs11Token pkcs11Token = pkcs11Slot.getToken();
+
+        // Open the logged in sessions and serve the requests until the process is stopped
+        int sessionCount = Runtime.getRuntime().availableProcessors();
         try (
-            PdfReader pdfReader = new PdfReader(new FileInputStream(file));
-            PdfDocument pdfDocument = new PdfDocument(pdfReader)
+            Pkcs11SessionPool pkcs11SessionPool = new Pkcs11SessionPool(pkcs11Token, sessionCount, true, CkUserType.CKU_USER, pin);
+            Pkcs11Server pkcs11Server = new Pkcs11Server(this, pkcs11Token, pkcs11SessionPool, signerCache, socketPath)
         ) {
-            // Create the signature utils and get all signature names
-            SignatureUtil signatureUtil = new SignatureUtil(pdfDocument);
-            List<String> signatureNames = signatureUtil.getSignatureNames();
-
-            // Check all signatures
-            for (String signatureName : signatureNames) {
-                // Read the signature
-                PdfPKCS7 pdfPkcs7 = signatureUtil.readSignatureData(signatureName);
-
-                // Check the signature
-                if (!signatureUtil.signatureCoversWholeDocument(signatureName)) {
-                    throw new Pkcs11Exception(STR."Signature \{signatureName} does not cover the full document.");
+            Thread shutdownHook = new Thread(() -> {
+                try {
+                    pkcs11Server.stop();
+                } catch (IOException exception) {
+                    System.err.println(STR."Unable to stop the server: \{exception.getMessage()}");
                 }
-                if (!pdfPkcs7.verifySignatureIntegrityAndAuthenticity()) {
-                    throw new Pkcs11Exception(STR."Signature \{signatureName} is not valid.");
-                }
-            }
+            });
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+            pkcs11Server.serve();
+        } catch (Pkcs11Exception exception) {
+            throw exception;
         } catch (Exception exception) {
-            throw new Pkcs11Exception(STR."Unable to verify PDF or verification failed: \{exception.getMessage()}", exception);
+            throw new Pkcs11Exception(STR."Unable to serve: \{exception.getMessage()}", exception);
+        }
+    }
+
+    private static void closeQuietly(Exception exception, Closeable closeable) {
+        // Close the resource and keep the original exception
+        try {
+            closeable.close();
+        } catch (IOException closeException) {
+            exception.addSuppressed(closeException);
         }
     }
 
+    static PdfReader createPdfReader(File file) throws IOException {
+        // Create a PDF reader that parses and hashes the file directly from the memory mapped file
+        return new PdfReader(new Pkcs11MappedRandomAccessSource(file), new ReaderProperties());
+    }
+
+    public void verifyPdfFile(File file) throws Pkcs11Exception {
+        // Verify the signed PDF document like a batch of files
+        batchVerifier.verifyPdfFile(file);
+    }
+
     @Override
-    public void close() throws Exception {
-        pkcs11Module.finalizeModule();
+    public void close() throws Pkcs11Exception {
+        try {
+            pkcs11Module.finalizeModule();
+        } finally {
+            // The tracer restores the interrupt flag if it is interrupted while draining the trace file
+            if (tracingPkcs11Library != null) {
+                try {
+                    tracingPkcs11Library.close();
+                } catch (IOException exception) {
+                    throw new Pkcs11Exception(STR."Unable to close the trace file: \{exception.getMessage()}", exception);
+                }
+            }
+        }
     }
 
     public static X509Certificate parseCertificate(byte[] certificateValue) throws Pkcs11Exception {
@@ -0,0 +1,215 @@
+package ch.swaechter.pkcs11.cli;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.Pkcs11Utils;
+import ch.swaechter.pkcs11.library.headers.CkAttribute;
+import ch.swaechter.pkcs11.library.headers.CkAttributeValue;
+import ch.swaechter.pkcs11.library.headers.CkKeyType;
+import ch.swaechter.pkcs11.library.headers.CkMechanism;
+import ch.swaechter.pkcs11.library.headers.CkObjectClass;
+import ch.swaechter.pkcs11.library.objects.Pkcs11FailureClass;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Session;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Token;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of the signing key handle, the certificate chain and the exact signature size, keyed by the token serial
+ * number and the CKA_ID of the private key. The state is resolved once per token and reused by all sessions, including
+ * whether the token can sign a host digest with the raw mechanism. A signer has to be invalidated if a call failed
+ * because the session or token was lost, since the key handle might be stale.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11SignerCache {
+
+    private static final String DEFAULT_KEY_ID = "default";
+
+    private final Map<String, Pkcs11SignerInfo> signerInfos = new ConcurrentHashMap<>();
+
+    public Pkcs11SignerInfo getSignerInfo(Pkcs11Token pkcs11Token, Pkcs11Session pkcs11Session) throws Pkcs11Exception {
+        return getSignerInfo(pkcs11Token, pkcs11Session, null);
+    }
+
+    public Pkcs11SignerInfo getSignerInfo(Pkcs11Token pkcs11Token, Pkcs11Session pkcs11Session, byte[] keyId) throws Pkcs11Exception {
+        // Return the cached signer of the token
+        String tokenSerialNumber = pkcs11Token.getTokenInfo().getSerialNumber();
+        String cacheKey = STR."\{tokenSerialNumber}:\{keyId != null ? Pkcs11Utils.bytesToHex(keyId) : DEFAULT_KEY_ID}";
+        Pkcs11SignerInfo pkcs11SignerInfo = signerInfos.get(cacheKey);
+        if (pkcs11SignerInfo != null) {
+            return pkcs11SignerInfo;
+        }
+
+        // Load the signer and cache it under the requested and its real key ID
+        pkcs11SignerInfo = loadSignerInfo(pkcs11Token, tokenSerialNumber, pkcs11Session, keyId);
+        signerInfos.putIfAbsent(STR."\{tokenSerialNumber}:\{Pkcs11Utils.bytesToHex(pkcs11SignerInfo.keyId())}", pkcs11SignerInfo);
+        Pkcs11SignerInfo existingPkcs11SignerInfo = signerInfos.putIfAbsent(cacheKey, pkcs11SignerInfo);
+        return existingPkcs11SignerInfo != null ? existingPkcs11SignerInfo : pkcs11SignerInfo;
+    }
+
+    public void invalidate(Pkcs11SignerInfo pkcs11SignerInfo) {
+        // Remove the signers of the token, the handles of all its keys might be stale
+        signerInfos.values().removeIf(cachedPkcs11SignerInfo -> cachedPkcs11SignerInfo.tokenSerialNumber().equals(pkcs11SignerInfo.tokenSerialNumber()));
+    }
+
+    public void clear() {
+        signerInfos.clear();
+    }
+
+    public static boolean isStale(Throwable throwable) {
+        // Search the failed PKCS11 call in the causes, the signature is usually wrapped by iText and the service
+        Set<Throwable> visitedCauses = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Throwable cause = throwable; cause != null && visitedCauses.add(cause); cause = cause.getCause()) {
+            if (cause instanceof Pkcs11Exception pkcs11Exception && pkcs11Exception.getCkResult() != null) {
+                Pkcs11FailureClass pkcs11FailureClass = Pkcs11FailureClass.classify(pkcs11Exception);
+                return pkcs11FailureClass == Pkcs11FailureClass.SESSION_FATAL || pkcs11FailureClass == Pkcs11FailureClass.TOKEN_FATAL;
+            }
+        }
+        return false;
+    }
+
+    private Pkcs11SignerInfo loadSignerInfo(Pkcs11Token pkcs11Token, String tokenSerialNumber, Pkcs11Session pkcs11Session, byte[] keyId) throws Pkcs11Exception {
+        // Search the private key handle IDs
+        List<CkAttributeValue> privateKeySearchTemplate = List.of(new CkAttributeValue(CkAttribute.CKA_CLASS, CkObjectClass.CKO_PRIVATE_KEY.value));
+        List<Long> privateKeyHandles = pkcs11Session.findObjects(privateKeySearchTemplate);
+
+        // Find the private key by its ID or ensure there is exactly one private key
+        long privateKeyObjectId = -1;
+        byte[] privateKeyId = null;
+        if (keyId == null) {
+            if (privateKeyHandles.size() != 1) {
+                throw new Pkcs11Exception(STR."For signing, exactly 1 private key is required. Found: \{privateKeyHandles.size()}");
+            }
+            privateKeyObjectId = privateKeyHandles.getFirst();
+            privateKeyId = getAttributeValue(pkcs11Session, privateKeyObjectId, CkAttribute.CKA_ID);
+        } else {
+            for (long privateKeyHandle : privateKeyHandles) {
+                if (Arrays.equals(keyId, getAttributeValue(pkcs11Session, privateKeyHandle, CkAttribute.CKA_ID))) {
+                    privateKeyObjectId = privateKeyHandle;
+                    privateKeyId = keyId;
+                    break;
+                }
+            }
+            if (privateKeyId == null) {
+                throw new Pkcs11Exception(STR."Unable to find a private key with ID \{Pkcs11Utils.bytesToHex(keyId)}");
+            }
+        }
+
+        // Get the key type, it determines the sign mechanism
+        byte[] keyTypeValue = getAttributeValue(pkcs11Session, privateKeyObjectId, CkAttribute.CKA_KEY_TYPE);
+        ByteBuffer keyTypeByteBuffer = ByteBuffer.wrap(keyTypeValue).order(ByteOrder.nativeOrder());
+        CkKeyType ckKeyType = CkKeyType.valueOf(keyTypeValue.length >= Long.BYTES ? (int) keyTypeByteBuffer.getLong() : keyTypeByteBuffer.getInt());
+        if (ckKeyType != CkKeyType.CKK_RSA && ckKeyType != CkKeyType.CKK_EC) {
+            throw new Pkcs11Exception(STR."The key type \{ckKeyType} is not supported for signing");
+        }
+
+        // Sign a host digest with the raw mechanism if the token supports it, otherwise let the token hash as well
+        CkMechanism rawSignMechanism = ckKeyType == CkKeyType.CKK_EC ? CkMechanism.CKM_ECDSA : CkMechanism.CKM_RSA_PKCS;
+        if (!pkcs11Token.getMechanisms().contains(rawSignMechanism)) {
+            rawSignMechanism = null;
+        }
+
+        // Search the certificate handle IDs
+        List<CkAttributeValue> certificateSearchTemplate = List.of(new CkAttributeValue(CkAttribute.CKA_CLASS, CkObjectClass.CKO_CERTIFICATE.value));
+        List<Long> certificateHandles = pkcs11Session.findObjects(certificateSearchTemplate);
+
+        // Ensure there are at least three certificates
+        if (certificateHandles.size() < 3) {
+            throw new Pkcs11Exception(STR."At least 3 certificates are required for signing. Found: \{certificateHandles.size()}");
+        }
+
+        // Parse all certificates and put the certificate of the private key first
+        List<Certificate> certificates = new ArrayList<>(certificateHandles.size());
+        X509Certificate signerCertificate = null;
+        for (long certificateHandle : certificateHandles) {
+            X509Certificate certificate = Pkcs11Service.parseCertificate(getAttributeValue(pkcs11Session, certificateHandle, CkAttribute.CKA_VALUE));
+            if (signerCertificate == null && Arrays.equals(privateKeyId, getAttributeValue(pkcs11Session, certificateHandle, CkAttribute.CKA_ID))) {
+                signerCertificate = certificate;
+                certificates.addFirst(certificate);
+            } else {
+                certificates.add(certificate);
+            }
+        }
+
+        // Derive the signature size from the certificate or the modulus of the private key
+        int signatureSize;
+        if (signerCertificate != null) {
+            signatureSize = getSignatureSize(signerCertificate.getPublicKey());
+        } else {
+            byte[] modulus = getAttributeValue(pkcs11Session, privateKeyObjectId, CkAttribute.CKA_MODULUS);
+            if (modulus.length == 0) {
+                throw new Pkcs11Exception("Unable to derive the signature size without a certificate or modulus of the private key");
+            }
+            signatureSize = (new BigInteger(1, modulus).bitLength() + 7) / 8;
+        }
+
+        // Return the signer
+        return new Pkcs11SignerInfo(tokenSerialNumber, privateKeyId, privateKeyObjectId, ckKeyType, rawSignMechanism, certificates.toArray(new Certificate[0]), signatureSize);
+    }
+
+    private static byte[] getAttributeValue(Pkcs11Session pkcs11Session, long objectHandle, CkAttribute ckAttribute) throws Pkcs11Exception {
+        return pkcs11Session.getAttributeValue(objectHandle, List.of(ckAttribute)).getFirst();
+    }
+
+    private static int getSignatureSize(PublicKey publicKey) throws Pkcs11Exception {
+        // An RSA signature is as long as the modulus and an ECDSA signature contains r and s in the size of the field
+        if (publicKey instanceof RSAPublicKey rsaPublicKey) {
+            return (rsaPublicKey.getModulus().bitLength() + 7) / 8;
+        } else if (publicKey instanceof ECPublicKey ecPublicKey) {
+            return 2 * ((ecPublicKey.getParams().getCurve().getField().getFieldSize() + 7) / 8);
+        } else {
+            throw new Pkcs11Exception(STR."The key algorithm \{publicKey.getAlgorithm()} is not supported");
+        }
+    }
+
+    public record Pkcs11SignerInfo(String tokenSerialNumber, byte[] keyId, long privateKeyObjectId, CkKeyType keyType, CkMechanism rawSignMechanism, Certificate[] chain, int signatureSize) {
+
+        public CkMechanism getSignMechanism() {
+            // Sign with SHA-256 and the mechanism of the key type
+            return keyType == CkKeyType.CKK_EC ? CkMechanism.CKM_ECDSA_SHA256 : CkMechanism.CKM_SHA256_RSA_PKCS;
+        }
+
+        public byte[] sign(Pkcs11Session pkcs11Session, byte[] message) throws Pkcs11Exception {
+            // Let the token hash and sign if it doesn't support the raw mechanism
+            if (rawSignMechanism == null) {
+                return pkcs11Session.sign(getSignMechanism(), privateKeyObjectId, message, signatureSize);
+            }
+
+            // Hash on the host and sign the DigestInfo for RSA and the plain digest for ECDSA
+            byte[] digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256").digest(message);
+            } catch (NoSuchAlgorithmException exception) {
+                throw new Pkcs11Exception(STR."Unable to digest the message: \{exception.getMessage()}", exception);
+            }
+            byte[] data = rawSignMechanism == CkMechanism.CKM_RSA_PKCS ? Pkcs11Utils.encodeDigestInfo("SHA-256", digest) : digest;
+            return pkcs11Session.sign(rawSignMechanism, privateKeyObjectId, data, signatureSize);
+        }
+
+        public String getSignatureAlgorithmName() {
+            return keyType == CkKeyType.CKK_EC ? "ECDSA" : "RSA";
+        }
+
+        public byte[] encodeSignature(byte[] signature) {
+            // CMS requires DER encoded ECDSA signatures, the token returns r and s concatenated
+            return keyType == CkKeyType.CKK_EC ? Pkcs11Utils.encodeEcdsaSignature(signature) : signature;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package ch.swaechter.pkcs11.cli;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.Pkcs11Module;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Slot;
+import ch.swaechter.pkcs11.library.objects.Pkcs11TokenInfo;
+
+import java.util.*;
+
+/**
+ * Directory of the slots with a present token, addressable by slot ID, token serial number or token label. The
+ * directory is populated once and only refreshed after a slot event or a lookup miss, so the commands don't have to
+ * enumerate the slots each time. Serial numbers and labels stay stable when a token gets a new slot ID.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11SlotDirectory {
+
+    public static final String SERIAL_NUMBER_PREFIX = "serial:";
+
+    public static final String LABEL_PREFIX = "label:";
+
+    private static final int MAX_DRAINED_SLOT_EVENTS = 64;
+
+    private final Pkcs11Module pkcs11Module;
+
+    private volatile Directory directory;
+
+    private volatile boolean slotEventsSupported = true;
+
+    public Pkcs11SlotDirectory(Pkcs11Module pkcs11Module) {
+        this.pkcs11Module = pkcs11Module;
+    }
+
+    public List<Pkcs11Slot> getSlots() throws Pkcs11Exception {
+        return List.copyOf(getDirectory().slotsById().values());
+    }
+
+    public Pkcs11Slot getSlot(long slotId) throws Pkcs11Exception {
+        return getSlot(directory -> directory.slotsById().get(slotId), STR."Unable to find a slot with ID \{slotId}");
+    }
+
+    public Pkcs11Slot getSlotBySerialNumber(String serialNumber) throws Pkcs11Exception {
+        return getSlot(directory -> directory.slotsBySerialNumber().get(serialNumber.trim()), STR."Unable to find a token with serial number \{serialNumber}");
+    }
+
+    public Pkcs11Slot getSlotByLabel(String label) throws Pkcs11Exception {
+        return getSlot(directory -> directory.slotsByLabel().get(label.trim()), STR."Unable to find a token with label \{label}");
+    }
+
+    public Pkcs11Slot getSlot(String slotReference) throws Pkcs11Exception {
+        // Find the slot by the serial number, the label or the slot ID
+        if (slotReference.startsWith(SERIAL_NUMBER_PREFIX)) {
+            return getSlotBySerialNumber(slotReference.substring(SERIAL_NUMBER_PREFIX.length()));
+        } else if (slotReference.startsWith(LABEL_PREFIX)) {
+            return getSlotByLabel(slotReference.substring(LABEL_PREFIX.length()));
+        } else {
+            try {
+                return getSlot(Long.parseLong(slotReference));
+            } catch (NumberFormatException exception) {
+                throw new Pkcs11Exception(STR."The slot \{slotReference} is neither a slot ID nor prefixed with \{SERIAL_NUMBER_PREFIX} or \{LABEL_PREFIX}", exception);
+            }
+        }
+    }
+
+    public synchronized void refresh() throws Pkcs11Exception {
+        // Discard the pending slot events, the new directory reflects them anyway
+        drainSlotEvents();
+
+        // Get all slots with a token and index them by slot ID, serial number and label
+        Map<Long, Pkcs11Slot> slotsById = new LinkedHashMap<>();
+        Map<String, Pkcs11Slot> slotsBySerialNumber = new HashMap<>();
+        Map<String, Pkcs11Slot> slotsByLabel = new HashMap<>();
+        for (Pkcs11Slot pkcs11Slot : pkcs11Module.getSlots(true)) {
+            Pkcs11TokenInfo pkcs11TokenInfo = pkcs11Slot.getToken().getTokenInfo();
+            slotsById.put(pkcs11Slot.getSlotId(), pkcs11Slot);
+            slotsBySerialNumber.putIfAbsent(pkcs11TokenInfo.getSerialNumber().trim(), pkcs11Slot);
+            slotsByLabel.putIfAbsent(pkcs11TokenInfo.getLabel().trim(), pkcs11Slot);
+        }
+        directory = new Directory(slotsById, slotsBySerialNumber, slotsByLabel);
+    }
+
+    private Pkcs11Slot getSlot(SlotLookup slotLookup, String errorMessage) throws Pkcs11Exception {
+        // Look up the slot and refresh the directory once on a miss
+        Pkcs11Slot pkcs11Slot = slotLookup.find(getDirectory());
+        if (pkcs11Slot == null) {
+            refresh();
+            pkcs11Slot = slotLookup.find(directory);
+        }
+        if (pkcs11Slot == null) {
+            throw new Pkcs11Exception(errorMessage);
+        }
+        return pkcs11Slot;
+    }
+
+    private Directory getDirectory() throws Pkcs11Exception {
+        // Populate the directory on the first access or after a slot event
+        if (directory == null || drainSlotEvents()) {
+            refresh();
+        }
+        return directory;
+    }
+
+    private boolean drainSlotEvents() {
+        // Skip if the module does not support slot events
+        if (!slotEventsSupported) {
+            return false;
+        }
+
+        // Check without blocking whether slot events occurred, bounded in case a module keeps reporting events
+        try {
+            boolean slotEventOccurred = false;
+            for (int i = 0; i < MAX_DRAINED_SLOT_EVENTS && pkcs11Module.waitForSlotEvent(false).isPresent(); i++) {
+                slotEventOccurred = true;
+            }
+            return slotEventOccurred;
+        } catch (Pkcs11Exception exception) {
+            // Rely on lookup misses only
+            slotEventsSupported = false;
+            return false;
+        }
+    }
+
+    private interface SlotLookup {
+        Pkcs11Slot find(Directory directory);
+    }
+
+    private record Directory(Map<Long, Pkcs11Slot> slotsById, Map<String, Pkcs11Slot> slotsBySerialNumber, Map<String, Pkcs11Slot> slotsByLabel) {
+    }
+}
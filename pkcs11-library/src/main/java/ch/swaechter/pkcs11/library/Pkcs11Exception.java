@@ -36,14 +36,15 @@ public class Pkcs11Exception extends Exception {
     }
 
     /**
-     * Create a new PKCS11 exception with a message and the original exception thrower.
+     * Create a new PKCS11 exception with a message and the original exception thrower. If the thrower is a PKCS11
+     * exception itself, its PKCS11 result is taken over so it doesn't get lost while re-throwing.
      *
      * @param message   Exception message
      * @param throwable Original exception thrower
      */
     public Pkcs11Exception(String message, Throwable throwable) {
         super(message, throwable);
-        this.ckResult = null;
+        this.ckResult = throwable instanceof Pkcs11Exception pkcs11Exception ? pkcs11Exception.getCkResult() : null;
     }
 
     /**
@@ -6,10 +6,12 @@ import ch.swaechter.pkcs11.library.platforms.WindowsPkcs11Library;
 
 import java.lang.foreign.*;
 import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Optional;
 
 import static java.lang.foreign.ValueLayout.JAVA_BYTE;
 import static java.lang.foreign.ValueLayout.JAVA_INT;
@@ -64,6 +66,16 @@ public abstract class Pkcs11Library extends Pkcs11Template {
         super(libraryName);
     }
 
+    /**
+     * Create a new PKCS11 library that shares the already loaded PKCS11 middleware of another library. This is used
+     * by decorators that wrap another library.
+     *
+     * @param pkcs11Library Already loaded PKCS11 library
+     */
+    protected Pkcs11Library(Pkcs11Library pkcs11Library) {
+        super(pkcs11Library);
+    }
+
     /**
      * Initializes Cryptoki.
      *
@@ -214,6 +226,42 @@ public abstract class Pkcs11Library extends Pkcs11Template {
         }
     }
 
+    /**
+     * Waits for a slot event like a token insertion or removal to occur. In the non-blocking mode the function returns
+     * immediately and reports whether an event occurred.
+     *
+     * @param block Flag whether to block until an event occurs or to return immediately
+     * @return ID of the slot with the event or empty if no event occurred in the non-blocking mode
+     * @throws Pkcs11Exception Thrown if the function is not supported or the wait fails
+     */
+    public Optional<Long> C_WaitForSlotEvent(boolean block) throws Pkcs11Exception {
+        try (Arena arena = Arena.ofConfined()) {
+            // Define the flags to block or not
+            int flags = block ? 0 : CkConstants.CKF_DONT_BLOCK;
+
+            // Define the function
+            FunctionDescriptor functionDescriptor = FunctionDescriptor.of(JAVA_INT, JAVA_INT, ValueLayout.ADDRESS.withTargetLayout(MemoryLayout.sequenceLayout(JAVA_BYTE)), ValueLayout.ADDRESS);
+            MethodHandle methodHandle = downCallHandle("C_WaitForSlotEvent", functionDescriptor);
+
+            // Allocate the slot ID
+            MemorySegment slotIdMemorySegment = allocateLong(arena);
+
+            // Invoke the function and return empty if there is no event
+            CkResult ckResult = CkResult.valueOf((int) methodHandle.invokeExact(flags, slotIdMemorySegment, MemorySegment.NULL));
+            if (ckResult == CkResult.CKR_NO_EVENT) {
+                return Optional.empty();
+            }
+            if (ckResult != CkResult.CKR_OK) {
+                throw new Pkcs11Exception("C_WaitForSlotEvent failed", ckResult);
+            }
+
+            // Return the slot ID
+            return Optional.of(readLong(slotIdMemorySegment));
+        } catch (Throwable throwable) {
+            throw new Pkcs11Exception("C_WaitForSlotEvent failed: " + throwable.getMessage(), throwable);
+        }
+    }
+
     /**
      * Obtains information about a particular slot.
      *
@@ -354,6 +402,57 @@ public abstract class Pkcs11Library extends Pkcs11Template {
         }
     }
 
+    /**
+     * Obtains a list of mechanism types supported by a token. Vendor specific mechanisms that are not known to the
+     * library are skipped.
+     *
+     * @param slotId ID of the slot
+     * @return Supported mechanisms
+     * @throws Pkcs11Exception Thrown if the slot does not exist or the mechanisms can't be read
+     */
+    public List<CkMechanism> C_GetMechanismList(long slotId) throws Pkcs11Exception {
+        try (Arena arena = Arena.ofConfined()) {
+            // Define the function
+            FunctionDescriptor functionDescriptor = FunctionDescriptor.of(JAVA_INT, JAVA_INT, ValueLayout.ADDRESS.withTargetLayout(MemoryLayout.sequenceLayout(JAVA_BYTE)), ValueLayout.ADDRESS.withTargetLayout(MemoryLayout.sequenceLayout(JAVA_BYTE)));
+            MethodHandle methodHandle = downCallHandle("C_GetMechanismList", functionDescriptor);
+
+            // Allocate a value to hold the number of mechanisms
+            MemorySegment mechanismCountMemorySegment = allocateLong(arena);
+            MemorySegment mechanismsMemorySegment = MemorySegment.NULL;
+
+            // Invoke the function to get the number of mechanisms
+            CkResult ckResult = CkResult.valueOf((int) methodHandle.invokeExact((int) slotId, mechanismsMemorySegment, mechanismCountMemorySegment));
+            if (ckResult != CkResult.CKR_OK) {
+                throw new Pkcs11Exception("C_GetMechanismList failed", ckResult);
+            }
+
+            // Allocate a buffer for the given mechanisms
+            int mechanismCount = (int) readLong(mechanismCountMemorySegment);
+            mechanismsMemorySegment = allocateLongArray(arena, Math.max(mechanismCount, 1));
+
+            // Invoke the function to get the mechanism list
+            ckResult = CkResult.valueOf((int) methodHandle.invokeExact((int) slotId, mechanismsMemorySegment, mechanismCountMemorySegment));
+            if (ckResult != CkResult.CKR_OK) {
+                throw new Pkcs11Exception("C_GetMechanismList failed", ckResult);
+            }
+
+            // Convert the known mechanisms
+            mechanismCount = (int) readLong(mechanismCountMemorySegment);
+            List<CkMechanism> mechanisms = new ArrayList<>(mechanismCount);
+            for (int i = 0; i < mechanismCount; i++) {
+                CkMechanism mechanism = CkMechanism.valueOf((int) readLongFromArray(mechanismsMemorySegment, i));
+                if (mechanism != null) {
+                    mechanisms.add(mechanism);
+                }
+            }
+
+            // Return the mechanisms
+            return mechanisms;
+        } catch (Throwable throwable) {
+            throw new Pkcs11Exception("C_GetMechanismList failed: " + throwable.getMessage(), throwable);
+        }
+    }
+
     /**
      * Initializes the normal user’s PIN.
      *
@@ -970,6 +1069,85 @@ public abstract class Pkcs11Library extends Pkcs11Template {
         }
     }
 
+    /**
+     * Signs a batch of single-part messages with the same mechanism and key. Compared to a C_SignInit/C_Sign pair per
+     * message, the functions are only resolved once and the mechanism struct, the message buffer and the signature
+     * buffer are allocated once and reused for all messages. The signatures are streamed back via the callback.
+     *
+     * @param sessionId         ID of the session
+     * @param mechanism         ID of the mechanism
+     * @param keyHandleId       ID of the key handle
+     * @param messages          Messages to sign, each from its position to its limit. The positions are not modified
+     * @param signatureSize     Size of the signature buffer
+     * @param signatureCallback Callback that receives each signature
+     * @throws Pkcs11Exception Thrown if the session does not exist or a sign operation can't succeed
+     */
+    public void signBatch(long sessionId, CkMechanism mechanism, long keyHandleId, List<ByteBuffer> messages, int signatureSize, Pkcs11SignatureCallback signatureCallback) throws Pkcs11Exception {
+        // Validate the batch once and get the size of the largest message
+        if (signatureSize < 1) {
+            throw new Pkcs11Exception("The signature size has to be at least 1, not " + signatureSize);
+        }
+        int maxMessageSize = 0;
+        for (ByteBuffer message : messages) {
+            if (message == null) {
+                throw new Pkcs11Exception("The batch must not contain null messages");
+            }
+            maxMessageSize = Math.max(maxMessageSize, message.remaining());
+        }
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        // Index of the current message
+        int index = 0;
+
+        try (Arena arena = Arena.ofConfined()) {
+            // Allocate the mechanism once
+            MemorySegment mechanismMemorySegment = arena.allocate(ckMechanismLayout);
+            ckMechanismMechanismHandle.set(mechanismMemorySegment, mechanism.value);
+            ckMechanismPParameterHandle.set(mechanismMemorySegment, MemorySegment.NULL);
+            ckMechanismParameterLenHandle.set(mechanismMemorySegment, 0);
+
+            // Allocate the message and signature buffers once, plus the initial signature length to reset the length
+            MemorySegment messageMemorySegment = arena.allocateArray(JAVA_BYTE, Math.max(maxMessageSize, 1));
+            MemorySegment signedDataMemorySegment = arena.allocateArray(JAVA_BYTE, signatureSize);
+            MemorySegment initialSignedDataLengthMemorySegment = allocateLong(arena, signedDataMemorySegment.byteSize());
+            MemorySegment signedDataLengthMemorySegment = allocateLong(arena);
+
+            // Resolve the functions once
+            FunctionDescriptor signInitFunctionDescriptor = FunctionDescriptor.of(JAVA_INT, JAVA_INT, ValueLayout.ADDRESS.withTargetLayout(MemoryLayout.sequenceLayout(JAVA_BYTE)), JAVA_INT);
+            MethodHandle signInitMethodHandle = downCallHandle("C_SignInit", signInitFunctionDescriptor);
+            FunctionDescriptor signFunctionDescriptor = FunctionDescriptor.of(JAVA_INT, JAVA_INT, ValueLayout.ADDRESS.withTargetLayout(MemoryLayout.sequenceLayout(JAVA_BYTE)), JAVA_INT, ValueLayout.ADDRESS.withTargetLayout(MemoryLayout.sequenceLayout(JAVA_BYTE)), ValueLayout.ADDRESS.withTargetLayout(MemoryLayout.sequenceLayout(JAVA_BYTE)));
+            MethodHandle signMethodHandle = downCallHandle("C_Sign", signFunctionDescriptor);
+
+            for (; index < messages.size(); index++) {
+                // Copy the message into the message buffer
+                MemorySegment sourceMemorySegment = MemorySegment.ofBuffer(messages.get(index));
+                int messageSize = (int) sourceMemorySegment.byteSize();
+                MemorySegment.copy(sourceMemorySegment, 0, messageMemorySegment, 0, messageSize);
+
+                // Initialize the signing, a single-part sign operation always terminates the previous one
+                CkResult ckResult = CkResult.valueOf((int) signInitMethodHandle.invokeExact((int) sessionId, mechanismMemorySegment, (int) keyHandleId));
+                if (ckResult != CkResult.CKR_OK) {
+                    throw new Pkcs11Exception("C_SignInit failed", ckResult);
+                }
+
+                // Reset the signature length and sign the message
+                signedDataLengthMemorySegment.copyFrom(initialSignedDataLengthMemorySegment);
+                ckResult = CkResult.valueOf((int) signMethodHandle.invokeExact((int) sessionId, messageMemorySegment, messageSize, signedDataMemorySegment, signedDataLengthMemorySegment));
+                if (ckResult != CkResult.CKR_OK) {
+                    throw new Pkcs11Exception("C_Sign failed", ckResult);
+                }
+
+                // Pass a view of the signature to the callback
+                int signedMessageLength = (int) readLong(signedDataLengthMemorySegment);
+                signatureCallback.accept(index, signedDataMemorySegment.asSlice(0, signedMessageLength).asByteBuffer().asReadOnlyBuffer());
+            }
+        } catch (Throwable throwable) {
+            throw new Pkcs11Exception("Batch signing failed at message " + index + ": " + throwable.getMessage(), throwable);
+        }
+    }
+
     /**
      * Mixes in additional seed material to the random number generator.
      *
@@ -8,6 +8,7 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 
 /**
  * The PKCS11 module allows an object-oriented interaction with the PKCS11 library/middleware.
@@ -29,7 +30,16 @@ public class Pkcs11Module extends Pkcs11Container implements Closeable {
      */
     public Pkcs11Module(String libraryName) throws Pkcs11Exception {
         // Create the PKCS11 library
-        super(Pkcs11Library.detectPlatform(libraryName));
+        this(Pkcs11Library.detectPlatform(libraryName));
+    }
+
+    /**
+     * Create a new PKCS11 module on top of an already loaded library, e.g. a decorated one.
+     *
+     * @param pkcs11Library Loaded PKCS11 library
+     */
+    public Pkcs11Module(Pkcs11Library pkcs11Library) {
+        super(pkcs11Library);
         this.initialized = false;
     }
 
@@ -152,6 +162,22 @@ public class Pkcs11Module extends Pkcs11Container implements Closeable {
         return new Pkcs11Slot(getPkcs11Library(), slotId);
     }
 
+    /**
+     * Check whether a slot event like a token insertion or removal occurred, optionally blocking until one occurs.
+     *
+     * @param block Flag whether to block until an event occurs or to return immediately
+     * @return Slot with the event or empty if no event occurred in the non-blocking mode
+     * @throws Pkcs11Exception Thrown if slot events are not supported or can't be read
+     */
+    public Optional<Pkcs11Slot> waitForSlotEvent(boolean block) throws Pkcs11Exception {
+        // Ensure is initialized
+        ensureIsInitialized(false);
+
+        // Wait for the event and return the slot
+        Optional<Long> optionalSlotId = getPkcs11Library().C_WaitForSlotEvent(block);
+        return optionalSlotId.map(slotId -> new Pkcs11Slot(getPkcs11Library(), slotId));
+    }
+
     /**
      * The module supports the try-with-resource statement. A caller can create the module via try, initialize it and
      * close will automatically finalize, even when an exception is thrown after the initialization.
@@ -0,0 +1,22 @@
+package ch.swaechter.pkcs11.library;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Callback that receives the signatures of a batch sign operation one by one.
+ *
+ * @author Simon Wächter
+ */
+@FunctionalInterface
+public interface Pkcs11SignatureCallback {
+
+    /**
+     * Accept the signature of a message. The buffer is a read-only view of a native buffer that is reused for the next
+     * signature, so it is only valid during the callback and has to be copied to be kept.
+     *
+     * @param index     Index of the signed message in the batch
+     * @param signature Read-only view of the signature
+     * @throws Pkcs11Exception Thrown to abort the batch
+     */
+    void accept(int index, ByteBuffer signature) throws Pkcs11Exception;
+}
@@ -174,6 +174,53 @@ public abstract class Pkcs11Template {
         this.ckMechanismParameterLenHandle = ckMechanismLayout.varHandle(MemoryLayout.PathElement.groupElement("parameterLen"));
     }
 
+    /**
+     * Create a new template that shares the linker, lookup, group layouts and var handles of an already created
+     * template. This allows a template to wrap another one without loading the PKCS11 middleware a second time.
+     *
+     * @param pkcs11Template Already created template
+     */
+    protected Pkcs11Template(Pkcs11Template pkcs11Template) {
+        // Share the linker and lookup
+        this.linker = pkcs11Template.linker;
+        this.symbolLookup = pkcs11Template.symbolLookup;
+
+        // Share the version layout and handles
+        this.ckVersionLayout = pkcs11Template.ckVersionLayout;
+        this.ckVersionMajorVarHandle = pkcs11Template.ckVersionMajorVarHandle;
+        this.ckVersionMinorHandle = pkcs11Template.ckVersionMinorHandle;
+
+        // Share the info layout and handles
+        this.ckInfoLayout = pkcs11Template.ckInfoLayout;
+        this.ckInfoCryptokiVersionHandle = pkcs11Template.ckInfoCryptokiVersionHandle;
+        this.ckInfoLibraryVersionHandle = pkcs11Template.ckInfoLibraryVersionHandle;
+
+        // Share the slot info layout and handles
+        this.ckSlotInfoLayout = pkcs11Template.ckSlotInfoLayout;
+        this.ckSlotInfoHardwareVersionHandle = pkcs11Template.ckSlotInfoHardwareVersionHandle;
+        this.ckSlotInfoFirmwareVersionHandle = pkcs11Template.ckSlotInfoFirmwareVersionHandle;
+
+        // Share the token info layout and handles
+        this.ckTokenInfoLayout = pkcs11Template.ckTokenInfoLayout;
+        this.ckTokenInfoHardwareVersionHandle = pkcs11Template.ckTokenInfoHardwareVersionHandle;
+        this.ckTokenInfoFirmwareVersionHandle = pkcs11Template.ckTokenInfoFirmwareVersionHandle;
+
+        // Share the session info layout
+        this.ckSessionInfoLayout = pkcs11Template.ckSessionInfoLayout;
+
+        // Share the attribute layout and handles
+        this.ckAttributeLayout = pkcs11Template.ckAttributeLayout;
+        this.ckAttributeTypeHandle = pkcs11Template.ckAttributeTypeHandle;
+        this.ckAttributePValueHandle = pkcs11Template.ckAttributePValueHandle;
+        this.ckAttributeValueLenHandle = pkcs11Template.ckAttributeValueLenHandle;
+
+        // Share the mechanism layout and handles
+        this.ckMechanismLayout = pkcs11Template.ckMechanismLayout;
+        this.ckMechanismMechanismHandle = pkcs11Template.ckMechanismMechanismHandle;
+        this.ckMechanismPParameterHandle = pkcs11Template.ckMechanismPParameterHandle;
+        this.ckMechanismParameterLenHandle = pkcs11Template.ckMechanismParameterLenHandle;
+    }
+
     /**
      * Load the given PKCS11 middleware.
      *
@@ -1,10 +1,15 @@
 package ch.swaechter.pkcs11.library;
 
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Map;
 import java.util.Optional;
 
 /**
@@ -19,6 +24,17 @@ public class Pkcs11Utils {
      */
     private static final DateTimeFormatter UTC_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
 
+    /**
+     * DER encoded DigestInfo prefixes (algorithm identifier plus octet string header) per JDK digest algorithm name.
+     */
+    private static final Map<String, byte[]> DIGEST_INFO_PREFIXES = Map.of(
+        "SHA-1", HexFormat.of().parseHex("3021300906052b0e03021a05000414"),
+        "SHA-224", HexFormat.of().parseHex("302d300d06096086480165030402040500041c"),
+        "SHA-256", HexFormat.of().parseHex("3031300d060960864801650304020105000420"),
+        "SHA-384", HexFormat.of().parseHex("3041300d060960864801650304020205000430"),
+        "SHA-512", HexFormat.of().parseHex("3051300d060960864801650304020305000440")
+    );
+
     /**
      * Private constructor.
      */
@@ -86,6 +102,54 @@ public class Pkcs11Utils {
         return Optional.of(localDateTime.toInstant(ZoneOffset.UTC));
     }
 
+    /**
+     * Wrap a digest in a DER encoded DigestInfo structure like it is required for a raw CKM_RSA_PKCS signature.
+     *
+     * @param digestAlgorithm JDK name of the digest algorithm like SHA-256
+     * @param digest          Digest created with the digest algorithm
+     * @return DER encoded DigestInfo
+     * @throws Pkcs11Exception Thrown if the digest algorithm is not supported or the digest length does not match
+     */
+    public static byte[] encodeDigestInfo(String digestAlgorithm, byte[] digest) throws Pkcs11Exception {
+        // Get the prefix of the digest algorithm
+        byte[] prefix = DIGEST_INFO_PREFIXES.get(digestAlgorithm);
+        if (prefix == null) {
+            throw new Pkcs11Exception("The digest algorithm " + digestAlgorithm + " is not supported");
+        }
+
+        // Ensure the digest length matches the length of the octet string
+        if (digest.length != prefix[prefix.length - 1]) {
+            throw new Pkcs11Exception("A " + digestAlgorithm + " digest has to be " + prefix[prefix.length - 1] + " bytes long, not " + digest.length);
+        }
+
+        // Concatenate the prefix and the digest
+        byte[] digestInfo = Arrays.copyOf(prefix, prefix.length + digest.length);
+        System.arraycopy(digest, 0, digestInfo, prefix.length, digest.length);
+        return digestInfo;
+    }
+
+    /**
+     * Convert a raw PKCS11 ECDSA signature (r and s concatenated) into a DER encoded ECDSA-Sig-Value sequence like it
+     * is created by the JDK providers and required by CMS.
+     *
+     * @param signature Raw ECDSA signature
+     * @return DER encoded signature
+     */
+    public static byte[] encodeEcdsaSignature(byte[] signature) {
+        // Encode both integers
+        int half = signature.length / 2;
+        byte[] r = new BigInteger(1, Arrays.copyOfRange(signature, 0, half)).toByteArray();
+        byte[] s = new BigInteger(1, Arrays.copyOfRange(signature, half, signature.length)).toByteArray();
+        ByteArrayOutputStream integers = new ByteArrayOutputStream();
+        writeDer(integers, 0x02, r);
+        writeDer(integers, 0x02, s);
+
+        // Wrap them in a sequence
+        ByteArrayOutputStream sequence = new ByteArrayOutputStream();
+        writeDer(sequence, 0x30, integers.toByteArray());
+        return sequence.toByteArray();
+    }
+
     /**
      * Convert a byte array to a hexadecimal string.
      *
@@ -103,4 +167,22 @@ public class Pkcs11Utils {
         }
         return hexString.toString().toLowerCase();
     }
+
+    /**
+     * Write a DER element with a definite length.
+     *
+     * @param outputStream Stream to write to
+     * @param tag          Tag of the element
+     * @param value        Value of the element
+     */
+    private static void writeDer(ByteArrayOutputStream outputStream, int tag, byte[] value) {
+        outputStream.write(tag);
+        if (value.length < 0x80) {
+            outputStream.write(value.length);
+        } else {
+            outputStream.write(0x81);
+            outputStream.write(value.length);
+        }
+        outputStream.writeBytes(value);
+    }
 }
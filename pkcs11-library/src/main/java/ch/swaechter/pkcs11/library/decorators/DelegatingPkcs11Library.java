@@ -0,0 +1,480 @@
+package ch.swaechter.pkcs11.library.decorators;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.Pkcs11Library;
+import ch.swaechter.pkcs11.library.Pkcs11SignatureCallback;
+import ch.swaechter.pkcs11.library.headers.*;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.GroupLayout;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Base decorator that forwards all PKCS11 functions to a decorated library. Each function is passed through the
+ * {@link #invoke(String, Object[], Pkcs11Call)} hook, so a decorator only has to override the hook to act on all
+ * functions. The decorator shares the already loaded PKCS11 middleware and the platform specific structs of the
+ * decorated library.
+ *
+ * @author Simon Wächter
+ */
+public abstract class DelegatingPkcs11Library extends Pkcs11Library {
+
+    /**
+     * Decorated library.
+     */
+    private final Pkcs11Library pkcs11Library;
+
+    /**
+     * Create a new decorator for the given library.
+     *
+     * @param pkcs11Library Decorated library
+     */
+    public DelegatingPkcs11Library(Pkcs11Library pkcs11Library) {
+        super(pkcs11Library);
+        this.pkcs11Library = pkcs11Library;
+    }
+
+    /**
+     * Get the decorated library.
+     *
+     * @return Decorated library
+     */
+    public Pkcs11Library getDelegate() {
+        return pkcs11Library;
+    }
+
+    /**
+     * Invoke a PKCS11 function of the decorated library. The default implementation just executes the call.
+     *
+     * @param functionName Name of the PKCS11 function like C_Sign
+     * @param arguments    Arguments of the function
+     * @param pkcs11Call   Call that invokes the function of the decorated library
+     * @param <T>          Type of the result
+     * @return Result of the call
+     * @throws Pkcs11Exception Thrown if the function invocation fails
+     */
+    protected <T> T invoke(String functionName, Object[] arguments, Pkcs11Call<T> pkcs11Call) throws Pkcs11Exception {
+        return pkcs11Call.call();
+    }
+
+    /**
+     * Get the data size of byte arrays, byte buffers and lists of them. The signatures of a batch are passed to a
+     * callback and therefore not counted.
+     *
+     * @param value Argument or result of a call
+     * @return Data size in bytes
+     */
+    protected static long getDataSize(Object value) {
+        return switch (value) {
+            case byte[] data -> data.length;
+            case ByteBuffer byteBuffer -> byteBuffer.remaining();
+            case Object[] values -> {
+                long dataSize = 0;
+                for (Object currentValue : values) {
+                    dataSize += getDataSize(currentValue);
+                }
+                yield dataSize;
+            }
+            case List<?> values -> {
+                long dataSize = 0;
+                for (Object currentValue : values) {
+                    dataSize += getDataSize(currentValue);
+                }
+                yield dataSize;
+            }
+            case null, default -> 0;
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void C_Initialize() throws Pkcs11Exception {
+        invoke("C_Initialize", new Object[]{}, () -> {
+            pkcs11Library.C_Initialize();
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void C_Finalize() throws Pkcs11Exception {
+        invoke("C_Finalize", new Object[]{}, () -> {
+            pkcs11Library.C_Finalize();
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CkInfo C_GetInfo() throws Pkcs11Exception {
+        return invoke("C_GetInfo", new Object[]{}, pkcs11Library::C_GetInfo);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Long> C_GetSlotList(boolean tokenPresent) throws Pkcs11Exception {
+        return invoke("C_GetSlotList", new Object[]{tokenPresent}, () -> pkcs11Library.C_GetSlotList(tokenPresent));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Optional<Long> C_WaitForSlotEvent(boolean block) throws Pkcs11Exception {
+        return invoke("C_WaitForSlotEvent", new Object[]{block}, () -> pkcs11Library.C_WaitForSlotEvent(block));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CkSlotInfo C_GetSlotInfo(long slotId) throws Pkcs11Exception {
+        return invoke("C_GetSlotInfo", new Object[]{slotId}, () -> pkcs11Library.C_GetSlotInfo(slotId));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CkTokenInfo C_GetTokenInfo(long slotId) throws Pkcs11Exception {
+        return invoke("C_GetTokenInfo", new Object[]{slotId}, () -> pkcs11Library.C_GetTokenInfo(slotId));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<CkMechanism> C_GetMechanismList(long slotId) throws Pkcs11Exception {
+        return invoke("C_GetMechanismList", new Object[]{slotId}, () -> pkcs11Library.C_GetMechanismList(slotId));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void C_InitPIN(long sessionId, String newPin) throws Pkcs11Exception {
+        invoke("C_InitPIN", new Object[]{sessionId, newPin}, () -> {
+            pkcs11Library.C_InitPIN(sessionId, newPin);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void C_SetPIN(long sessionId, String currentPin, String newPin) throws Pkcs11Exception {
+        invoke("C_SetPIN", new Object[]{sessionId, currentPin, newPin}, () -> {
+            pkcs11Library.C_SetPIN(sessionId, currentPin, newPin);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long C_OpenSession(long slotId, long flags) throws Pkcs11Exception {
+        return invoke("C_OpenSession", new Object[]{slotId, flags}, () -> pkcs11Library.C_OpenSession(slotId, flags));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void C_CloseSession(long sessionId) throws Pkcs11Exception {
+        invoke("C_CloseSession", new Object[]{sessionId}, () -> {
+            pkcs11Library.C_CloseSession(sessionId);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void C_CloseAllSessions(long slotId) throws Pkcs11Exception {
+        invoke("C_CloseAllSessions", new Object[]{slotId}, () -> {
+            pkcs11Library.C_CloseAllSessions(slotId);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CkSessionInfo C_GetSessionInfo(long sessionId) throws Pkcs11Exception {
+        return invoke("C_GetSessionInfo", new Object[]{sessionId}, () -> pkcs11Library.C_GetSessionInfo(sessionId));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void C_Login(long sessionId, CkUserType ckUserType, String pinOrPuk) throws Pkcs11Exception {
+        invoke("C_Login", new Object[]{sessionId, ckUserType, pinOrPuk}, () -> {
+            pkcs11Library.C_Login(sessionId, ckUserType, pinOrPuk);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void C_Logout(long sessionId) throws Pkcs11Exception {
+        invoke("C_Logout", new Object[]{sessionId}, () -> {
+            pkcs11Library.C_Logout(sessionId);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long C_GetObjectSize(long sessionId, long objectHandleId) throws Pkcs11Exception {
+        return invoke("C_GetObjectSize", new Object[]{sessionId, objectHandleId}, () -> pkcs11Library.C_GetObjectSize(sessionId, objectHandleId));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<byte[]> C_GetAttributeValue(long sessionId, long objectHandleId, List<CkAttribute> attributes) throws Pkcs11Exception {
+        return invoke("C_GetAttributeValue", new Object[]{sessionId, objectHandleId, attributes}, () -> pkcs11Library.C_GetAttributeValue(sessionId, objectHandleId, attributes));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void C_FindObjectsInit(long sessionId, List<CkAttributeValue> searchTemplate) throws Pkcs11Exception {
+        invoke("C_FindObjectsInit", new Object[]{sessionId, searchTemplate}, () -> {
+            pkcs11Library.C_FindObjectsInit(sessionId, searchTemplate);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Long> C_FindObjects(long sessionId, int maxObjects) throws Pkcs11Exception {
+        return invoke("C_FindObjects", new Object[]{sessionId, maxObjects}, () -> pkcs11Library.C_FindObjects(sessionId, maxObjects));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void C_FindObjectsFinal(long sessionId) throws Pkcs11Exception {
+        invoke("C_FindObjectsFinal", new Object[]{sessionId}, () -> {
+            pkcs11Library.C_FindObjectsFinal(sessionId);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void C_DigestInit(long sessionId, CkMechanism mechanism) throws Pkcs11Exception {
+        invoke("C_DigestInit", new Object[]{sessionId, mechanism}, () -> {
+            pkcs11Library.C_DigestInit(sessionId, mechanism);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] C_Digest(long sessionId, byte[] data) throws Pkcs11Exception {
+        return invoke("C_Digest", new Object[]{sessionId, data}, () -> pkcs11Library.C_Digest(sessionId, data));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void C_DigestUpdate(long sessionId, byte[] data) throws Pkcs11Exception {
+        invoke("C_DigestUpdate", new Object[]{sessionId, data}, () -> {
+            pkcs11Library.C_DigestUpdate(sessionId, data);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] C_DigestFinal(long sessionId) throws Pkcs11Exception {
+        return invoke("C_DigestFinal", new Object[]{sessionId}, () -> pkcs11Library.C_DigestFinal(sessionId));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void C_SignInit(long sessionId, CkMechanism mechanism, long keyHandleId) throws Pkcs11Exception {
+        invoke("C_SignInit", new Object[]{sessionId, mechanism, keyHandleId}, () -> {
+            pkcs11Library.C_SignInit(sessionId, mechanism, keyHandleId);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] C_Sign(long sessionId, byte[] message, int signatureSize) throws Pkcs11Exception {
+        return invoke("C_Sign", new Object[]{sessionId, message, signatureSize}, () -> pkcs11Library.C_Sign(sessionId, message, signatureSize));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void signBatch(long sessionId, CkMechanism mechanism, long keyHandleId, List<ByteBuffer> messages, int signatureSize, Pkcs11SignatureCallback signatureCallback) throws Pkcs11Exception {
+        invoke("signBatch", new Object[]{sessionId, mechanism, keyHandleId, messages, signatureSize, signatureCallback}, () -> {
+            pkcs11Library.signBatch(sessionId, mechanism, keyHandleId, messages, signatureSize, signatureCallback);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void C_SeedRandom(long sessionId, byte[] seed) throws Pkcs11Exception {
+        invoke("C_SeedRandom", new Object[]{sessionId, seed}, () -> {
+            pkcs11Library.C_SeedRandom(sessionId, seed);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] C_GenerateRandom(long sessionId, int length) throws Pkcs11Exception {
+        return invoke("C_GenerateRandom", new Object[]{sessionId, length}, () -> pkcs11Library.C_GenerateRandom(sessionId, length));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MemorySegment allocateLong(Arena arena) {
+        return pkcs11Library.allocateLong(arena);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MemorySegment allocateLong(Arena arena, long value) {
+        return pkcs11Library.allocateLong(arena, value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MemorySegment allocateLongArray(Arena arena, int size) {
+        return pkcs11Library.allocateLongArray(arena, size);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long readLong(MemorySegment memorySegment) {
+        return pkcs11Library.readLong(memorySegment);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long readLongFromArray(MemorySegment memorySegment, long index) {
+        return pkcs11Library.readLongFromArray(memorySegment, index);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long readLong(MemorySegment memorySegment, GroupLayout groupLayout, String name) {
+        return pkcs11Library.readLong(memorySegment, groupLayout, name);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected GroupLayout buildCkVersionLayout() {
+        return ckVersionLayout;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected GroupLayout buildCkInfoLayout() {
+        return ckInfoLayout;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected GroupLayout buildCkTokenInfoLayout() {
+        return ckTokenInfoLayout;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected GroupLayout buildCkSlotInfoLayout() {
+        return ckSlotInfoLayout;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected GroupLayout buildCkSessionInfoLayout() {
+        return ckSessionInfoLayout;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected GroupLayout buildCkAttributeLayout() {
+        return ckAttributeLayout;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected GroupLayout buildCkMechanismLayout() {
+        return ckMechanismLayout;
+    }
+}
@@ -0,0 +1,80 @@
+package ch.swaechter.pkcs11.library.decorators;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.Pkcs11Library;
+import ch.swaechter.pkcs11.library.events.Pkcs11CallEvent;
+import ch.swaechter.pkcs11.library.headers.CkMechanism;
+import ch.swaechter.pkcs11.library.headers.CkResult;
+
+import java.util.Set;
+
+/**
+ * Decorator that emits a flight recorder event for every PKCS11 function call. As long as no recording is running or
+ * the event is disabled, a call only checks a flag. With a running recording, the details of a call are only gathered
+ * when it exceeds the event threshold, so slow token operations show up next to the GC and I/O events of the recording.
+ *
+ * @author Simon Wächter
+ */
+public class FlightRecorderPkcs11Library extends DelegatingPkcs11Library {
+
+    /**
+     * Functions whose first argument is a slot ID instead of a session ID.
+     */
+    private static final Set<String> SLOT_FUNCTIONS = Set.of("C_GetSlotInfo", "C_GetTokenInfo", "C_GetMechanismList", "C_OpenSession", "C_CloseAllSessions");
+
+    /**
+     * Create a new flight recorder decorator.
+     *
+     * @param pkcs11Library Decorated library
+     */
+    public FlightRecorderPkcs11Library(Pkcs11Library pkcs11Library) {
+        super(pkcs11Library);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected <T> T invoke(String functionName, Object[] arguments, Pkcs11Call<T> pkcs11Call) throws Pkcs11Exception {
+        // Execute the call without an event if no recording is interested in it
+        Pkcs11CallEvent pkcs11CallEvent = new Pkcs11CallEvent();
+        if (!pkcs11CallEvent.isEnabled()) {
+            return pkcs11Call.call();
+        }
+
+        // Execute the call and remember the outcome
+        pkcs11CallEvent.begin();
+        T result = null;
+        String callResult = null;
+        try {
+            result = pkcs11Call.call();
+            callResult = CkResult.CKR_OK.name();
+            return result;
+        } catch (Pkcs11Exception exception) {
+            callResult = Pkcs11CallEvent.getResult(exception);
+            throw exception;
+        } finally {
+            // Only gather the details for calls above the threshold
+            pkcs11CallEvent.end();
+            if (pkcs11CallEvent.shouldCommit()) {
+                pkcs11CallEvent.function = functionName;
+                if (arguments.length > 0 && arguments[0] instanceof Long id) {
+                    if (SLOT_FUNCTIONS.contains(functionName)) {
+                        pkcs11CallEvent.slotId = id;
+                    } else {
+                        pkcs11CallEvent.sessionId = id;
+                    }
+                }
+                for (Object argument : arguments) {
+                    if (argument instanceof CkMechanism ckMechanism) {
+                        pkcs11CallEvent.mechanism = ckMechanism.name();
+                    }
+                }
+                pkcs11CallEvent.bytesIn = getDataSize(arguments);
+                pkcs11CallEvent.bytesOut = getDataSize(result);
+                pkcs11CallEvent.result = callResult;
+                pkcs11CallEvent.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package ch.swaechter.pkcs11.library.decorators;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.Pkcs11Library;
+import ch.swaechter.pkcs11.library.headers.CkResult;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Decorator that records the call count, the latency histogram, the passed and returned bytes and the return values of
+ * every PKCS11 function. The recording is lock-free with striped counters, so concurrent calls don't contend on the
+ * metrics. Without the decorator there is no overhead at all, and a disabled decorator only checks a flag per call.
+ * The metrics are available as snapshot and can be exposed as MXBean.
+ *
+ * @author Simon Wächter
+ */
+public class MetricsPkcs11Library extends DelegatingPkcs11Library implements Pkcs11MetricsMXBean {
+
+    /**
+     * Domain of the registered MXBeans.
+     */
+    public static final String OBJECT_NAME_DOMAIN = "ch.swaechter.pkcs11";
+
+    /**
+     * Recorders per function name.
+     */
+    private final Map<String, FunctionRecorder> functionRecorders;
+
+    /**
+     * Flag whether the calls are recorded.
+     */
+    private volatile boolean enabled;
+
+    /**
+     * Create a new metrics decorator that records all calls.
+     *
+     * @param pkcs11Library Decorated library
+     */
+    public MetricsPkcs11Library(Pkcs11Library pkcs11Library) {
+        super(pkcs11Library);
+        this.functionRecorders = new ConcurrentHashMap<>();
+        this.enabled = true;
+    }
+
+    /**
+     * Register the decorator as MXBean in the platform MBean server.
+     *
+     * @param name Name to distinguish multiple libraries like the library name
+     * @return Object name of the registered MXBean
+     * @throws Pkcs11Exception Thrown if the MXBean can't be registered
+     */
+    public ObjectName registerMXBean(String name) throws Pkcs11Exception {
+        try {
+            ObjectName objectName = new ObjectName(OBJECT_NAME_DOMAIN + ":type=Metrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException exception) {
+            throw new Pkcs11Exception("Unable to register the metrics MXBean: " + exception.getMessage(), exception);
+        }
+    }
+
+    /**
+     * Unregister a registered MXBean from the platform MBean server.
+     *
+     * @param objectName Object name of the registered MXBean
+     * @throws Pkcs11Exception Thrown if the MXBean can't be unregistered
+     */
+    public void unregisterMXBean(ObjectName objectName) throws Pkcs11Exception {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException exception) {
+            throw new Pkcs11Exception("Unable to unregister the metrics MXBean: " + exception.getMessage(), exception);
+        }
+    }
+
+    /**
+     * Get a snapshot of the metrics of all called functions.
+     *
+     * @return Metrics per function name, sorted by the function name
+     */
+    public Map<String, Pkcs11FunctionMetrics> getMetrics() {
+        Map<String, Pkcs11FunctionMetrics> metrics = new TreeMap<>();
+        functionRecorders.forEach((functionName, functionRecorder) -> metrics.put(functionName, functionRecorder.snapshot(functionName)));
+        return metrics;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reset() {
+        functionRecorders.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> getCallCounts() {
+        return getLongMetrics(Pkcs11FunctionMetrics::calls);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> getErrorCounts() {
+        return getLongMetrics(Pkcs11FunctionMetrics::errors);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> getResultCounts() {
+        Map<String, Long> resultCounts = new TreeMap<>();
+        getMetrics().forEach((functionName, functionMetrics) -> functionMetrics.resultCounts().forEach((ckResult, count) -> resultCounts.put(functionName + " " + ckResult, count)));
+        return resultCounts;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> getBytesIn() {
+        return getLongMetrics(Pkcs11FunctionMetrics::bytesIn);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> getBytesOut() {
+        return getLongMetrics(Pkcs11FunctionMetrics::bytesOut);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Double> getMeanLatencyMicros() {
+        return getDoubleMetrics(functionMetrics -> functionMetrics.getMeanLatencyNanos() / 1000);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Double> getP50LatencyMicros() {
+        return getDoubleMetrics(functionMetrics -> functionMetrics.getLatencyPercentileNanos(0.5) / 1000.0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Double> getP99LatencyMicros() {
+        return getDoubleMetrics(functionMetrics -> functionMetrics.getLatencyPercentileNanos(0.99) / 1000.0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Double> getMaxLatencyMicros() {
+        return getDoubleMetrics(functionMetrics -> functionMetrics.maxLatencyNanos() / 1000.0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected <T> T invoke(String functionName, Object[] arguments, Pkcs11Call<T> pkcs11Call) throws Pkcs11Exception {
+        // Execute the call without recording if disabled
+        if (!enabled) {
+            return pkcs11Call.call();
+        }
+
+        // Execute the call and record its latency, data size and return value
+        FunctionRecorder functionRecorder = functionRecorders.computeIfAbsent(functionName, key -> new FunctionRecorder());
+        long startTime = System.nanoTime();
+        try {
+            T result = pkcs11Call.call();
+            functionRecorder.record(System.nanoTime() - startTime, getDataSize(arguments), getDataSize(result), CkResult.CKR_OK);
+            return result;
+        } catch (Pkcs11Exception exception) {
+            functionRecorder.record(System.nanoTime() - startTime, getDataSize(arguments), 0, exception.getCkResult());
+            throw exception;
+        }
+    }
+
+    /**
+     * Get a long metric of all called functions.
+     *
+     * @param metric Function to get the metric
+     * @return Metric per function name
+     */
+    private Map<String, Long> getLongMetrics(ToLongFunction<Pkcs11FunctionMetrics> metric) {
+        Map<String, Long> metrics = new TreeMap<>();
+        getMetrics().forEach((functionName, functionMetrics) -> metrics.put(functionName, metric.applyAsLong(functionMetrics)));
+        return metrics;
+    }
+
+    /**
+     * Get a double metric of all called functions.
+     *
+     * @param metric Function to get the metric
+     * @return Metric per function name
+     */
+    private Map<String, Double> getDoubleMetrics(ToDoubleFunction<Pkcs11FunctionMetrics> metric) {
+        Map<String, Double> metrics = new TreeMap<>();
+        getMetrics().forEach((functionName, functionMetrics) -> metrics.put(functionName, metric.applyAsDouble(functionMetrics)));
+        return metrics;
+    }
+
+    /**
+     * Lock-free recorder of the calls of a single function, also used to aggregate a trace file.
+     */
+    static class FunctionRecorder {
+
+        /**
+         * Number of calls.
+         */
+        private final LongAdder calls = new LongAdder();
+
+        /**
+         * Number of failed calls.
+         */
+        private final LongAdder errors = new LongAdder();
+
+        /**
+         * Number of calls per return value.
+         */
+        private final Map<CkResult, LongAdder> resultCounts = new ConcurrentHashMap<>();
+
+        /**
+         * Number of bytes passed to the function.
+         */
+        private final LongAdder bytesIn = new LongAdder();
+
+        /**
+         * Number of bytes returned by the function.
+         */
+        private final LongAdder bytesOut = new LongAdder();
+
+        /**
+         * Sum of all latencies.
+         */
+        private final LongAdder totalLatencyNanos = new LongAdder();
+
+        /**
+         * Maximum latency.
+         */
+        private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+
+        /**
+         * Number of calls per latency bucket.
+         */
+        private final LongAdder[] latencyBuckets = new LongAdder[Pkcs11FunctionMetrics.BUCKET_COUNT];
+
+        /**
+         * Create a new recorder with empty buckets.
+         */
+        FunctionRecorder() {
+            for (int i = 0; i < latencyBuckets.length; i++) {
+                latencyBuckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Record a call.
+         *
+         * @param latencyNanos Latency of the call
+         * @param dataIn       Number of bytes passed to the function
+         * @param dataOut      Number of bytes returned by the function
+         * @param ckResult     Return value of the function or null if the call failed without a return value
+         */
+        void record(long latencyNanos, long dataIn, long dataOut, CkResult ckResult) {
+            calls.increment();
+            if (ckResult != CkResult.CKR_OK) {
+                errors.increment();
+            }
+            if (ckResult != null) {
+                resultCounts.computeIfAbsent(ckResult, key -> new LongAdder()).increment();
+            }
+            bytesIn.add(dataIn);
+            bytesOut.add(dataOut);
+            totalLatencyNanos.add(latencyNanos);
+            maxLatencyNanos.accumulate(latencyNanos);
+            latencyBuckets[Pkcs11FunctionMetrics.getBucketIndex(latencyNanos)].increment();
+        }
+
+        /**
+         * Create a snapshot of the recorded calls. Concurrent calls might be partially included.
+         *
+         * @param functionName Name of the function
+         * @return Snapshot of the metrics
+         */
+        Pkcs11FunctionMetrics snapshot(String functionName) {
+            Map<CkResult, Long> resultCountSnapshot = new EnumMap<>(CkResult.class);
+            resultCounts.forEach((ckResult, count) -> resultCountSnapshot.put(ckResult, count.sum()));
+            long[] latencyBucketSnapshot = new long[latencyBuckets.length];
+            for (int i = 0; i < latencyBuckets.length; i++) {
+                latencyBucketSnapshot[i] = latencyBuckets[i].sum();
+            }
+            return new Pkcs11FunctionMetrics(functionName, calls.sum(), errors.sum(), resultCountSnapshot, bytesIn.sum(), bytesOut.sum(), totalLatencyNanos.sum(), maxLatencyNanos.get(), latencyBucketSnapshot);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package ch.swaechter.pkcs11.library.decorators;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.Pkcs11Library;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decorator that keeps virtual threads from pinning their carrier thread during long-running native calls. A downcall
+ * can't unmount a virtual thread, so a token operation that takes hundreds of milliseconds blocks the carrier and
+ * starves the scheduler. Functions with an offload threshold are therefore executed on a bounded pool of platform
+ * threads while the calling virtual thread parks. Calls from platform threads, functions without a threshold and calls
+ * with less data than the threshold stay inline. The offloaded calls wait in a bounded queue, so an overload is
+ * rejected instead of piling up.
+ *
+ * @author Simon Wächter
+ */
+public class OffloadingPkcs11Library extends DelegatingPkcs11Library implements Closeable {
+
+    /**
+     * Data size from which on a digest is considered long-running.
+     */
+    public static final long LARGE_DIGEST_SIZE = 64 * 1024;
+
+    /**
+     * Default number of offloaded calls that can wait for a platform thread.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /**
+     * Minimal data size in bytes per function name from which on the function is offloaded.
+     */
+    private final Map<String, Long> offloadThresholds;
+
+    /**
+     * Bounded pool of platform threads that executes the offloaded calls.
+     */
+    private final ThreadPoolExecutor threadPoolExecutor;
+
+    /**
+     * Number of offloaded calls.
+     */
+    private final LongAdder offloadedCalls;
+
+    /**
+     * Create a new offloading decorator with the default offload thresholds for C_Login, C_Sign, batch signing and
+     * large C_Digest/C_DigestUpdate calls and the default queue capacity.
+     *
+     * @param pkcs11Library   Decorated library
+     * @param platformThreads Maximum number of platform threads that execute offloaded calls
+     */
+    public OffloadingPkcs11Library(Pkcs11Library pkcs11Library, int platformThreads) {
+        this(pkcs11Library, platformThreads, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Create a new offloading decorator with the default offload thresholds for C_Login, C_Sign, batch signing and
+     * large C_Digest/C_DigestUpdate calls.
+     *
+     * @param pkcs11Library   Decorated library
+     * @param platformThreads Maximum number of platform threads that execute offloaded calls
+     * @param queueCapacity   Maximum number of offloaded calls that wait for a platform thread, further calls are
+     *                        rejected
+     */
+    public OffloadingPkcs11Library(Pkcs11Library pkcs11Library, int platformThreads, int queueCapacity) {
+        super(pkcs11Library);
+        this.offloadThresholds = new ConcurrentHashMap<>();
+        this.threadPoolExecutor = new ThreadPoolExecutor(platformThreads, platformThreads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity), createThreadFactory());
+        this.threadPoolExecutor.allowCoreThreadTimeOut(true);
+        this.offloadedCalls = new LongAdder();
+
+        // Offload the known long-running functions
+        offloadThresholds.put("C_Login", 0L);
+        offloadThresholds.put("C_Sign", 0L);
+        offloadThresholds.put("signBatch", 0L);
+        offloadThresholds.put("C_Digest", LARGE_DIGEST_SIZE);
+        offloadThresholds.put("C_DigestUpdate", LARGE_DIGEST_SIZE);
+    }
+
+    /**
+     * Offload the function when the sum of its byte array arguments reaches the threshold. A threshold of 0 offloads
+     * every call of the function.
+     *
+     * @param functionName    Name of the PKCS11 function like C_Sign
+     * @param minimumDataSize Minimal data size in bytes
+     */
+    public void setOffloadThreshold(String functionName, long minimumDataSize) {
+        offloadThresholds.put(functionName, minimumDataSize);
+    }
+
+    /**
+     * Execute the function always inline.
+     *
+     * @param functionName Name of the PKCS11 function like C_Sign
+     */
+    public void removeOffloadThreshold(String functionName) {
+        offloadThresholds.remove(functionName);
+    }
+
+    /**
+     * Get the offload thresholds of all offloaded functions.
+     *
+     * @return Minimal data size in bytes per function name
+     */
+    public Map<String, Long> getOffloadThresholds() {
+        return Map.copyOf(offloadThresholds);
+    }
+
+    /**
+     * Get the number of calls that were offloaded to a platform thread.
+     *
+     * @return Number of offloaded calls
+     */
+    public long getOffloadedCalls() {
+        return offloadedCalls.sum();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected <T> T invoke(String functionName, Object[] arguments, Pkcs11Call<T> pkcs11Call) throws Pkcs11Exception {
+        // Execute short calls and calls from platform threads inline
+        if (!Thread.currentThread().isVirtual() || !isOffloaded(functionName, arguments)) {
+            return pkcs11Call.call();
+        }
+
+        // Execute the call on a platform thread and park the virtual thread until the result is available
+        Future<T> future;
+        try {
+            future = threadPoolExecutor.submit(pkcs11Call::call);
+        } catch (RejectedExecutionException exception) {
+            if (threadPoolExecutor.isShutdown()) {
+                throw new Pkcs11Exception(functionName + " was rejected, because the offloading decorator is closed", exception);
+            }
+            throw new Pkcs11Exception(functionName + " was rejected, because " + threadPoolExecutor.getQueue().size() + " offloaded calls are already waiting for a platform thread", exception);
+        }
+        offloadedCalls.increment();
+        try {
+            return future.get();
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof Pkcs11Exception pkcs11Exception) {
+                throw pkcs11Exception;
+            }
+            throw new Pkcs11Exception(functionName + " failed: " + exception.getCause().getMessage(), exception.getCause());
+        } catch (InterruptedException exception) {
+            // The native call can't be aborted, so only the waiting is interrupted
+            Thread.currentThread().interrupt();
+            throw new Pkcs11Exception("Interrupted while waiting for " + functionName, exception);
+        }
+    }
+
+    /**
+     * The decorator supports the try-with-resource statement. Closing stops the platform threads after the already
+     * offloaded calls are done, the decorated library is not finalized.
+     */
+    @Override
+    public void close() {
+        threadPoolExecutor.shutdown();
+    }
+
+    /**
+     * Check whether the function call reaches the offload threshold.
+     *
+     * @param functionName Name of the PKCS11 function
+     * @param arguments    Arguments of the function
+     * @return Status whether the call is offloaded
+     */
+    private boolean isOffloaded(String functionName, Object[] arguments) {
+        // Check if the function is offloaded at all
+        Long offloadThreshold = offloadThresholds.get(functionName);
+        if (offloadThreshold == null) {
+            return false;
+        }
+
+        // Sum up the data size of the call
+        long dataSize = 0;
+        for (Object argument : arguments) {
+            if (argument instanceof byte[] data) {
+                dataSize += data.length;
+            }
+        }
+        return dataSize >= offloadThreshold;
+    }
+
+    /**
+     * Create a thread factory for named daemon platform threads.
+     *
+     * @return Thread factory
+     */
+    private static ThreadFactory createThreadFactory() {
+        AtomicInteger threadCounter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "pkcs11-offload-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,21 @@
+package ch.swaechter.pkcs11.library.decorators;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+
+/**
+ * Call of a PKCS11 function that is forwarded by a decorator to the decorated library.
+ *
+ * @param <T> Type of the result or Void for functions without a result
+ * @author Simon Wächter
+ */
+@FunctionalInterface
+public interface Pkcs11Call<T> {
+
+    /**
+     * Execute the call.
+     *
+     * @return Result of the call or null for functions without a result
+     * @throws Pkcs11Exception Thrown if the function invocation fails
+     */
+    T call() throws Pkcs11Exception;
+}
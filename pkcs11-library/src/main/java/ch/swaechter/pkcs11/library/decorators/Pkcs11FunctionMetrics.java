@@ -0,0 +1,106 @@
+package ch.swaechter.pkcs11.library.decorators;
+
+import ch.swaechter.pkcs11.library.headers.CkResult;
+
+import java.util.Map;
+
+/**
+ * Snapshot of the call metrics of a PKCS11 function. The latencies are recorded in logarithmic buckets with 8 linear
+ * sub-buckets per power of two, so a percentile is accurate to 12.5 percent regardless of the magnitude.
+ *
+ * @param functionName      Name of the PKCS11 function like C_Sign
+ * @param calls             Number of calls
+ * @param errors            Number of failed calls
+ * @param resultCounts      Number of calls per return value, failures without a return value are not included
+ * @param bytesIn           Number of bytes passed to the function
+ * @param bytesOut          Number of bytes returned by the function
+ * @param totalLatencyNanos Sum of all latencies in nanoseconds
+ * @param maxLatencyNanos   Maximum latency in nanoseconds
+ * @param latencyBuckets    Number of calls per latency bucket
+ * @author Simon Wächter
+ */
+public record Pkcs11FunctionMetrics(String functionName, long calls, long errors, Map<CkResult, Long> resultCounts, long bytesIn, long bytesOut, long totalLatencyNanos, long maxLatencyNanos, long[] latencyBuckets) {
+
+    /**
+     * Number of bits for the linear sub-buckets per power of two.
+     */
+    static final int SUB_BUCKET_BITS = 3;
+
+    /**
+     * Number of linear sub-buckets per power of two.
+     */
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Highest recorded power of two, larger latencies of more than 18 minutes end up in the last bucket.
+     */
+    static final int MAX_EXPONENT = 40;
+
+    /**
+     * Number of latency buckets.
+     */
+    static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    /**
+     * Get the mean latency.
+     *
+     * @return Mean latency in nanoseconds or 0 if the function was not called
+     */
+    public double getMeanLatencyNanos() {
+        return calls > 0 ? (double) totalLatencyNanos / calls : 0;
+    }
+
+    /**
+     * Get the latency percentile as upper bound of the bucket that contains the percentile.
+     *
+     * @param percentile Percentile between 0 and 1 like 0.99
+     * @return Latency percentile in nanoseconds or 0 if the function was not called
+     */
+    public long getLatencyPercentileNanos(double percentile) {
+        // Find the bucket of the nearest rank
+        long recordedCalls = 0;
+        for (long latencyBucket : latencyBuckets) {
+            recordedCalls += latencyBucket;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile * recordedCalls));
+        long count = 0;
+        for (int i = 0; i < latencyBuckets.length; i++) {
+            count += latencyBuckets[i];
+            if (count >= rank) {
+                return Math.min(getBucketUpperBound(i), maxLatencyNanos);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Get the bucket of a latency. Latencies below the sub-bucket count have their own bucket, the others are bucketed
+     * by their power of two and the following bits.
+     *
+     * @param latencyNanos Latency in nanoseconds
+     * @return Index of the bucket
+     */
+    static int getBucketIndex(long latencyNanos) {
+        if (latencyNanos < SUB_BUCKET_COUNT) {
+            return (int) Math.max(0, latencyNanos);
+        }
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(latencyNanos), MAX_EXPONENT);
+        int subBucket = (int) (Math.min(latencyNanos, (1L << (MAX_EXPONENT + 1)) - 1) >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * Get the highest latency of a bucket.
+     *
+     * @param bucketIndex Index of the bucket
+     * @return Highest latency in nanoseconds
+     */
+    static long getBucketUpperBound(int bucketIndex) {
+        if (bucketIndex < SUB_BUCKET_COUNT) {
+            return bucketIndex;
+        }
+        int shift = bucketIndex / SUB_BUCKET_COUNT - 1;
+        long lowerBound = (long) (SUB_BUCKET_COUNT + bucketIndex % SUB_BUCKET_COUNT) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,94 @@
+package ch.swaechter.pkcs11.library.decorators;
+
+import java.util.Map;
+
+/**
+ * JMX view of the call metrics of the PKCS11 functions. All maps are keyed by the function name like C_Sign, except the
+ * result counts that are keyed by the function name and the return value like "C_Sign CKR_DEVICE_ERROR".
+ *
+ * @author Simon Wächter
+ */
+public interface Pkcs11MetricsMXBean {
+
+    /**
+     * Check whether the calls are recorded.
+     *
+     * @return Status whether the calls are recorded
+     */
+    boolean isEnabled();
+
+    /**
+     * Enable or disable the recording of the calls.
+     *
+     * @param enabled Status whether the calls are recorded
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * Reset all metrics.
+     */
+    void reset();
+
+    /**
+     * Get the number of calls per function.
+     *
+     * @return Number of calls per function
+     */
+    Map<String, Long> getCallCounts();
+
+    /**
+     * Get the number of failed calls per function.
+     *
+     * @return Number of failed calls per function
+     */
+    Map<String, Long> getErrorCounts();
+
+    /**
+     * Get the number of calls per function and return value.
+     *
+     * @return Number of calls per function and return value
+     */
+    Map<String, Long> getResultCounts();
+
+    /**
+     * Get the number of bytes passed to each function.
+     *
+     * @return Number of bytes passed to each function
+     */
+    Map<String, Long> getBytesIn();
+
+    /**
+     * Get the number of bytes returned by each function.
+     *
+     * @return Number of bytes returned by each function
+     */
+    Map<String, Long> getBytesOut();
+
+    /**
+     * Get the mean latency in microseconds per function.
+     *
+     * @return Mean latency per function
+     */
+    Map<String, Double> getMeanLatencyMicros();
+
+    /**
+     * Get the median latency in microseconds per function.
+     *
+     * @return Median latency per function
+     */
+    Map<String, Double> getP50LatencyMicros();
+
+    /**
+     * Get the 99th percentile latency in microseconds per function.
+     *
+     * @return 99th percentile latency per function
+     */
+    Map<String, Double> getP99LatencyMicros();
+
+    /**
+     * Get the maximum latency in microseconds per function.
+     *
+     * @return Maximum latency per function
+     */
+    Map<String, Double> getMaxLatencyMicros();
+}
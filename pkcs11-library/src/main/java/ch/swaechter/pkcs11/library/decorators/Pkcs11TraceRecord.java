@@ -0,0 +1,276 @@
+package ch.swaechter.pkcs11.library.decorators;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Traced call of a PKCS11 function. A record is stored as single JSON object per line, so a trace file can be read
+ * with common tools and replayed by the trace report. Sensitive arguments and outputs are already redacted.
+ *
+ * @param sequence       Sequence number of the call in the order the calls were started
+ * @param timestampNanos Start of the call in nanoseconds since the epoch
+ * @param threadName     Name of the calling thread
+ * @param functionName   Name of the PKCS11 function like C_Sign
+ * @param arguments      Redacted arguments of the call
+ * @param output         Redacted output of the call or null if there is no output
+ * @param result         Return value of the function or null if the call failed without a return value
+ * @param bytesIn        Number of bytes passed to the function
+ * @param bytesOut       Number of bytes returned by the function
+ * @param durationNanos  Duration of the call in nanoseconds
+ * @author Simon Wächter
+ */
+public record Pkcs11TraceRecord(long sequence, long timestampNanos, String threadName, String functionName, List<String> arguments, String output, String result, long bytesIn, long bytesOut, long durationNanos) {
+
+    /**
+     * Convert the record to a single line JSON object.
+     *
+     * @return JSON object without a line break
+     */
+    public String toJson() {
+        StringBuilder stringBuilder = new StringBuilder(128);
+        stringBuilder.append("{\"sequence\":").append(sequence);
+        stringBuilder.append(",\"timestampNanos\":").append(timestampNanos);
+        stringBuilder.append(",\"thread\":");
+        appendString(stringBuilder, threadName);
+        stringBuilder.append(",\"function\":");
+        appendString(stringBuilder, functionName);
+        stringBuilder.append(",\"arguments\":[");
+        for (int i = 0; i < arguments.size(); i++) {
+            if (i > 0) {
+                stringBuilder.append(',');
+            }
+            appendString(stringBuilder, arguments.get(i));
+        }
+        stringBuilder.append("],\"output\":");
+        appendString(stringBuilder, output);
+        stringBuilder.append(",\"result\":");
+        appendString(stringBuilder, result);
+        stringBuilder.append(",\"bytesIn\":").append(bytesIn);
+        stringBuilder.append(",\"bytesOut\":").append(bytesOut);
+        stringBuilder.append(",\"durationNanos\":").append(durationNanos);
+        return stringBuilder.append('}').toString();
+    }
+
+    /**
+     * Parse a record from a JSON object written by {@link #toJson()}. Unknown fields are ignored.
+     *
+     * @param json JSON object
+     * @return Parsed record
+     * @throws IllegalArgumentException Thrown if the JSON object is malformed
+     */
+    public static Pkcs11TraceRecord fromJson(String json) {
+        // Parse all fields of the object
+        JsonParser jsonParser = new JsonParser(json);
+        Map<String, Object> fields = new HashMap<>();
+        jsonParser.expect('{');
+        if (!jsonParser.consume('}')) {
+            do {
+                String key = jsonParser.readString();
+                jsonParser.expect(':');
+                fields.put(key, jsonParser.readValue());
+            } while (jsonParser.consume(','));
+            jsonParser.expect('}');
+        }
+
+        // Create the record from the fields
+        List<String> arguments = new ArrayList<>();
+        if (fields.get("arguments") instanceof List<?> values) {
+            for (Object value : values) {
+                arguments.add((String) value);
+            }
+        }
+        return new Pkcs11TraceRecord(
+            getLong(fields, "sequence"),
+            getLong(fields, "timestampNanos"),
+            (String) fields.get("thread"),
+            (String) fields.get("function"),
+            arguments,
+            (String) fields.get("output"),
+            (String) fields.get("result"),
+            getLong(fields, "bytesIn"),
+            getLong(fields, "bytesOut"),
+            getLong(fields, "durationNanos")
+        );
+    }
+
+    /**
+     * Append an escaped JSON string or null.
+     *
+     * @param stringBuilder String builder to append to
+     * @param value         Optional value
+     */
+    private static void appendString(StringBuilder stringBuilder, String value) {
+        if (value == null) {
+            stringBuilder.append("null");
+            return;
+        }
+        stringBuilder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char character = value.charAt(i);
+            switch (character) {
+                case '"' -> stringBuilder.append("\\\"");
+                case '\\' -> stringBuilder.append("\\\\");
+                case '\n' -> stringBuilder.append("\\n");
+                case '\r' -> stringBuilder.append("\\r");
+                case '\t' -> stringBuilder.append("\\t");
+                default -> {
+                    if (character < 0x20) {
+                        stringBuilder.append(String.format("\\u%04x", (int) character));
+                    } else {
+                        stringBuilder.append(character);
+                    }
+                }
+            }
+        }
+        stringBuilder.append('"');
+    }
+
+    /**
+     * Get a numeric field or 0 if the field is missing.
+     *
+     * @param fields Parsed fields
+     * @param key    Name of the field
+     * @return Value of the field
+     */
+    private static long getLong(Map<String, Object> fields, String key) {
+        return fields.get(key) instanceof Long value ? value : 0;
+    }
+
+    /**
+     * Minimal parser for the flat JSON objects of the trace records with strings, integers, null and string arrays.
+     */
+    private static class JsonParser {
+
+        /**
+         * JSON to parse.
+         */
+        private final String json;
+
+        /**
+         * Current position.
+         */
+        private int position;
+
+        /**
+         * Create a new parser.
+         *
+         * @param json JSON to parse
+         */
+        private JsonParser(String json) {
+            this.json = json;
+            this.position = 0;
+        }
+
+        /**
+         * Read a string, integer, null or array value.
+         *
+         * @return Parsed value
+         */
+        private Object readValue() {
+            skipWhitespace();
+            if (position >= json.length()) {
+                throw new IllegalArgumentException("Unexpected end of the trace record");
+            }
+            char character = json.charAt(position);
+            if (character == '"') {
+                return readString();
+            } else if (character == '[') {
+                List<Object> values = new ArrayList<>();
+                expect('[');
+                if (!consume(']')) {
+                    do {
+                        values.add(readValue());
+                    } while (consume(','));
+                    expect(']');
+                }
+                return values;
+            } else if (json.startsWith("null", position)) {
+                position += 4;
+                return null;
+            } else {
+                int start = position;
+                while (position < json.length() && (json.charAt(position) == '-' || Character.isDigit(json.charAt(position)))) {
+                    position++;
+                }
+                try {
+                    return Long.parseLong(json.substring(start, position));
+                } catch (NumberFormatException exception) {
+                    throw new IllegalArgumentException("Invalid value at position " + start + " of the trace record", exception);
+                }
+            }
+        }
+
+        /**
+         * Read an escaped string.
+         *
+         * @return Unescaped string
+         */
+        private String readString() {
+            expect('"');
+            StringBuilder stringBuilder = new StringBuilder();
+            while (position < json.length()) {
+                char character = json.charAt(position++);
+                if (character == '"') {
+                    return stringBuilder.toString();
+                } else if (character == '\\' && position < json.length()) {
+                    char escaped = json.charAt(position++);
+                    switch (escaped) {
+                        case 'n' -> stringBuilder.append('\n');
+                        case 'r' -> stringBuilder.append('\r');
+                        case 't' -> stringBuilder.append('\t');
+                        case 'b' -> stringBuilder.append('\b');
+                        case 'f' -> stringBuilder.append('\f');
+                        case 'u' -> {
+                            if (position + 4 > json.length()) {
+                                throw new IllegalArgumentException("Invalid escape sequence in the trace record");
+                            }
+                            stringBuilder.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+                            position += 4;
+                        }
+                        default -> stringBuilder.append(escaped);
+                    }
+                } else {
+                    stringBuilder.append(character);
+                }
+            }
+            throw new IllegalArgumentException("Unterminated string in the trace record");
+        }
+
+        /**
+         * Consume a character if it is the next non-whitespace character.
+         *
+         * @param character Expected character
+         * @return Status whether the character was consumed
+         */
+        private boolean consume(char character) {
+            skipWhitespace();
+            if (position < json.length() && json.charAt(position) == character) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Consume a character that has to be the next non-whitespace character.
+         *
+         * @param character Expected character
+         */
+        private void expect(char character) {
+            if (!consume(character)) {
+                throw new IllegalArgumentException("Expected '" + character + "' at position " + position + " of the trace record");
+            }
+        }
+
+        /**
+         * Skip all whitespace characters.
+         */
+        private void skipWhitespace() {
+            while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+                position++;
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package ch.swaechter.pkcs11.library.decorators;
+
+import ch.swaechter.pkcs11.library.headers.CkResult;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Report of a replayed trace file that breaks down the latency per PKCS11 function. The records are aggregated into the
+ * same metrics as the ones of the metrics decorator, so a trace taken at a customer can be compared with live metrics.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11TraceReport {
+
+    /**
+     * Metrics per function name, sorted by the function name.
+     */
+    private final Map<String, Pkcs11FunctionMetrics> metrics;
+
+    /**
+     * Number of replayed records.
+     */
+    private final long recordCount;
+
+    /**
+     * Number of records that are missing in the sequence, e.g. because they were dropped.
+     */
+    private final long missingRecordCount;
+
+    /**
+     * Time between the start of the first call and the end of the last call.
+     */
+    private final long traceDurationNanos;
+
+    /**
+     * Create a new trace report.
+     *
+     * @param metrics            Metrics per function name
+     * @param recordCount        Number of replayed records
+     * @param missingRecordCount Number of records that are missing in the sequence
+     * @param traceDurationNanos Time between the start of the first call and the end of the last call
+     */
+    private Pkcs11TraceReport(Map<String, Pkcs11FunctionMetrics> metrics, long recordCount, long missingRecordCount, long traceDurationNanos) {
+        this.metrics = metrics;
+        this.recordCount = recordCount;
+        this.missingRecordCount = missingRecordCount;
+        this.traceDurationNanos = traceDurationNanos;
+    }
+
+    /**
+     * Replay a trace file written by the tracing decorator.
+     *
+     * @param traceFile Trace file with one JSON record per line
+     * @return Report of the trace file
+     * @throws IOException Thrown if the trace file can't be read or contains a malformed record
+     */
+    public static Pkcs11TraceReport read(Path traceFile) throws IOException {
+        Map<String, MetricsPkcs11Library.FunctionRecorder> functionRecorders = new HashMap<>();
+        long recordCount = 0;
+        long minimumSequence = Long.MAX_VALUE;
+        long maximumSequence = Long.MIN_VALUE;
+        long firstStartNanos = Long.MAX_VALUE;
+        long lastEndNanos = Long.MIN_VALUE;
+
+        // Replay all records
+        try (BufferedReader bufferedReader = Files.newBufferedReader(traceFile, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = bufferedReader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+
+                // Parse the record
+                Pkcs11TraceRecord pkcs11TraceRecord;
+                CkResult ckResult;
+                try {
+                    pkcs11TraceRecord = Pkcs11TraceRecord.fromJson(line);
+                    ckResult = pkcs11TraceRecord.result() != null ? CkResult.valueOf(pkcs11TraceRecord.result()) : null;
+                } catch (IllegalArgumentException exception) {
+                    throw new IOException("Invalid trace record on line " + lineNumber + ": " + exception.getMessage(), exception);
+                }
+
+                // Record the call
+                MetricsPkcs11Library.FunctionRecorder functionRecorder = functionRecorders.computeIfAbsent(pkcs11TraceRecord.functionName(), key -> new MetricsPkcs11Library.FunctionRecorder());
+                functionRecorder.record(pkcs11TraceRecord.durationNanos(), pkcs11TraceRecord.bytesIn(), pkcs11TraceRecord.bytesOut(), ckResult);
+                recordCount++;
+                minimumSequence = Math.min(minimumSequence, pkcs11TraceRecord.sequence());
+                maximumSequence = Math.max(maximumSequence, pkcs11TraceRecord.sequence());
+                firstStartNanos = Math.min(firstStartNanos, pkcs11TraceRecord.timestampNanos());
+                lastEndNanos = Math.max(lastEndNanos, pkcs11TraceRecord.timestampNanos() + pkcs11TraceRecord.durationNanos());
+            }
+        }
+
+        // Create the report
+        Map<String, Pkcs11FunctionMetrics> metrics = new TreeMap<>();
+        functionRecorders.forEach((functionName, functionRecorder) -> metrics.put(functionName, functionRecorder.snapshot(functionName)));
+        long missingRecordCount = recordCount > 0 ? maximumSequence - minimumSequence + 1 - recordCount : 0;
+        long traceDurationNanos = recordCount > 0 ? lastEndNanos - firstStartNanos : 0;
+        return new Pkcs11TraceReport(metrics, recordCount, missingRecordCount, traceDurationNanos);
+    }
+
+    /**
+     * Get the metrics of all traced functions.
+     *
+     * @return Metrics per function name, sorted by the function name
+     */
+    public Map<String, Pkcs11FunctionMetrics> getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get the number of replayed records.
+     *
+     * @return Number of records
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Get the number of records that are missing in the sequence, e.g. because the ring buffer was full.
+     *
+     * @return Number of missing records
+     */
+    public long getMissingRecordCount() {
+        return missingRecordCount;
+    }
+
+    /**
+     * Get the time between the start of the first call and the end of the last call.
+     *
+     * @return Duration of the trace in nanoseconds
+     */
+    public long getTraceDurationNanos() {
+        return traceDurationNanos;
+    }
+
+    /**
+     * Get the summed latency of all calls.
+     *
+     * @return Summed latency in nanoseconds
+     */
+    public long getTotalLatencyNanos() {
+        long totalLatencyNanos = 0;
+        for (Pkcs11FunctionMetrics functionMetrics : metrics.values()) {
+            totalLatencyNanos += functionMetrics.totalLatencyNanos();
+        }
+        return totalLatencyNanos;
+    }
+}
@@ -0,0 +1,283 @@
+package ch.swaechter.pkcs11.library.decorators;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.Pkcs11Library;
+import ch.swaechter.pkcs11.library.headers.CkAttributeValue;
+import ch.swaechter.pkcs11.library.headers.CkResult;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decorator that traces every PKCS11 function call like the pkcs11-spy library of OpenSC, but without swapping the
+ * middleware. A trace record contains the arguments, the output, the return value and the duration of a call. PINs and
+ * binary data like messages, signatures and attribute values are redacted to their size, so a trace can be shared with
+ * a vendor. The records are passed to a bounded ring buffer and written as JSON lines by a background thread, so a call
+ * never waits for the file. If the writer can't keep up, new records are dropped and counted instead.
+ *
+ * @author Simon Wächter
+ */
+public class TracingPkcs11Library extends DelegatingPkcs11Library implements Closeable {
+
+    /**
+     * Default number of records the ring buffer can hold.
+     */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    /**
+     * Maximum number of list elements that are traced individually.
+     */
+    private static final int MAX_LIST_ELEMENTS = 16;
+
+    /**
+     * Ring buffer with the pending records.
+     */
+    private final BlockingQueue<Pkcs11TraceRecord> ringBuffer;
+
+    /**
+     * Writer of the trace file.
+     */
+    private final BufferedWriter bufferedWriter;
+
+    /**
+     * Background thread that drains the ring buffer.
+     */
+    private final Thread writerThread;
+
+    /**
+     * Sequence number of the next call.
+     */
+    private final AtomicLong sequence;
+
+    /**
+     * Number of records that were dropped because the ring buffer was full.
+     */
+    private final LongAdder droppedRecords;
+
+    /**
+     * Start of the trace in nanoseconds since the epoch.
+     */
+    private final long startEpochNanos;
+
+    /**
+     * Start of the trace in nanoseconds of the monotonic clock.
+     */
+    private final long startNanoTime;
+
+    /**
+     * Flag whether the trace is closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Error of the background thread that stopped the writing.
+     */
+    private volatile IOException writeException;
+
+    /**
+     * Create a new tracing decorator with the default ring buffer capacity. An existing trace file is overwritten.
+     *
+     * @param pkcs11Library Decorated library
+     * @param traceFile     Trace file with one JSON record per line
+     * @throws IOException Thrown if the trace file can't be created
+     */
+    public TracingPkcs11Library(Pkcs11Library pkcs11Library, Path traceFile) throws IOException {
+        this(pkcs11Library, traceFile, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a new tracing decorator. An existing trace file is overwritten.
+     *
+     * @param pkcs11Library Decorated library
+     * @param traceFile     Trace file with one JSON record per line
+     * @param capacity      Number of records the ring buffer can hold before records are dropped
+     * @throws IOException Thrown if the trace file can't be created
+     */
+    public TracingPkcs11Library(Pkcs11Library pkcs11Library, Path traceFile, int capacity) throws IOException {
+        super(pkcs11Library);
+        this.ringBuffer = new ArrayBlockingQueue<>(capacity);
+        this.bufferedWriter = Files.newBufferedWriter(traceFile, StandardCharsets.UTF_8);
+        this.sequence = new AtomicLong();
+        this.droppedRecords = new LongAdder();
+        Instant now = Instant.now();
+        this.startEpochNanos = now.getEpochSecond() * 1_000_000_000L + now.getNano();
+        this.startNanoTime = System.nanoTime();
+        this.closed = false;
+        this.writerThread = Thread.ofPlatform().name("pkcs11-trace-writer").daemon().start(this::writeRecords);
+    }
+
+    /**
+     * Get the number of records that were dropped because the ring buffer was full.
+     *
+     * @return Number of dropped records
+     */
+    public long getDroppedRecords() {
+        return droppedRecords.sum();
+    }
+
+    /**
+     * Write all pending records and close the trace file. Calls after closing are no longer traced.
+     *
+     * @throws IOException Thrown if the trace file couldn't be written
+     */
+    @Override
+    public void close() throws IOException {
+        // Stop the background thread after it drained the ring buffer
+        closed = true;
+        try {
+            writerThread.join();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing the trace file", exception);
+        }
+
+        // Close the trace file and report a previous write error
+        bufferedWriter.close();
+        if (writeException != null) {
+            throw writeException;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected <T> T invoke(String functionName, Object[] arguments, Pkcs11Call<T> pkcs11Call) throws Pkcs11Exception {
+        // Execute the call without tracing if closed
+        if (closed) {
+            return pkcs11Call.call();
+        }
+
+        // Execute the call and trace its outcome
+        long recordSequence = sequence.getAndIncrement();
+        long startTime = System.nanoTime();
+        try {
+            T result = pkcs11Call.call();
+            trace(recordSequence, startTime, System.nanoTime() - startTime, functionName, arguments, result, CkResult.CKR_OK);
+            return result;
+        } catch (Pkcs11Exception exception) {
+            trace(recordSequence, startTime, System.nanoTime() - startTime, functionName, arguments, null, exception.getCkResult());
+            throw exception;
+        }
+    }
+
+    /**
+     * Create a redacted record of a call and pass it to the ring buffer without blocking.
+     *
+     * @param recordSequence Sequence number of the call
+     * @param startTime      Start of the call in nanoseconds of the monotonic clock
+     * @param durationNanos  Duration of the call
+     * @param functionName   Name of the function
+     * @param arguments      Arguments of the call
+     * @param result         Output of the call or null
+     * @param ckResult       Return value of the function or null if the call failed without a return value
+     */
+    private void trace(long recordSequence, long startTime, long durationNanos, String functionName, Object[] arguments, Object result, CkResult ckResult) {
+        // Redact the arguments and the output
+        List<String> tracedArguments = new ArrayList<>(arguments.length);
+        for (Object argument : arguments) {
+            tracedArguments.add(redact(argument));
+        }
+        String output = result != null ? redact(result) : null;
+
+        // Pass the record to the ring buffer or drop it
+        Pkcs11TraceRecord pkcs11TraceRecord = new Pkcs11TraceRecord(
+            recordSequence,
+            startEpochNanos + (startTime - startNanoTime),
+            Thread.currentThread().getName(),
+            functionName,
+            tracedArguments,
+            output,
+            ckResult != null ? ckResult.name() : null,
+            getDataSize(arguments),
+            getDataSize(result),
+            durationNanos
+        );
+        if (!ringBuffer.offer(pkcs11TraceRecord)) {
+            droppedRecords.increment();
+        }
+    }
+
+    /**
+     * Convert an argument or an output to its redacted trace representation. Strings are only passed as PIN, so they
+     * are always redacted. Binary data is reduced to its size and long lists to their element count.
+     *
+     * @param value Value to redact
+     * @return Redacted trace representation
+     */
+    private static String redact(Object value) {
+        return switch (value) {
+            case null -> "null";
+            case String ignored -> "***";
+            case byte[] data -> "byte[" + data.length + "]";
+            case ByteBuffer byteBuffer -> "ByteBuffer[" + byteBuffer.remaining() + "]";
+            case Enum<?> enumValue -> enumValue.name();
+            case Number number -> number.toString();
+            case Boolean bool -> bool.toString();
+            case CkAttributeValue ckAttributeValue -> ckAttributeValue.type().name() + "=" + (ckAttributeValue.pValue() != null ? ckAttributeValue.pValue() : "null");
+            case List<?> values -> {
+                if (values.size() > MAX_LIST_ELEMENTS) {
+                    yield "List[" + values.size() + "]";
+                }
+                List<String> redactedValues = new ArrayList<>(values.size());
+                for (Object currentValue : values) {
+                    redactedValues.add(redact(currentValue));
+                }
+                yield redactedValues.toString();
+            }
+            default -> value.getClass().getSimpleName();
+        };
+    }
+
+    /**
+     * Drain the ring buffer to the trace file until the trace is closed. The file is flushed as soon as the ring buffer
+     * is empty, so a trace is complete up to the last idle moment in case the process is killed.
+     */
+    private void writeRecords() {
+        List<Pkcs11TraceRecord> pkcs11TraceRecords = new ArrayList<>();
+        try {
+            while (true) {
+                // Wait for the next record
+                Pkcs11TraceRecord pkcs11TraceRecord = ringBuffer.poll(100, TimeUnit.MILLISECONDS);
+                if (pkcs11TraceRecord == null) {
+                    if (closed && ringBuffer.isEmpty()) {
+                        bufferedWriter.flush();
+                        return;
+                    }
+                    continue;
+                }
+
+                // Write the record and all other pending records
+                pkcs11TraceRecords.add(pkcs11TraceRecord);
+                ringBuffer.drainTo(pkcs11TraceRecords);
+                for (Pkcs11TraceRecord currentTraceRecord : pkcs11TraceRecords) {
+                    bufferedWriter.write(currentTraceRecord.toJson());
+                    bufferedWriter.newLine();
+                }
+                pkcs11TraceRecords.clear();
+                if (ringBuffer.isEmpty()) {
+                    bufferedWriter.flush();
+                }
+            }
+        } catch (IOException exception) {
+            // Stop tracing, the error is reported on closing
+            writeException = exception;
+            closed = true;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package ch.swaechter.pkcs11.library.events;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import jdk.jfr.*;
+
+/**
+ * Flight recorder event of a PKCS11 function call. The event is only committed for calls that take longer than the
+ * threshold, so it can stay enabled in production and reveal slow token operations after the fact. The threshold can
+ * be changed via the recording settings, e.g. ch.swaechter.pkcs11.Call#threshold=0 ms to record all calls.
+ *
+ * @author Simon Wächter
+ */
+@Name("ch.swaechter.pkcs11.Call")
+@Label("PKCS11 Call")
+@Category({"PKCS11"})
+@Description("Call of a PKCS11 function of the middleware")
+@Threshold("10 ms")
+public class Pkcs11CallEvent extends Event {
+
+    /**
+     * Name of the function like C_Sign.
+     */
+    @Label("Function")
+    public String function;
+
+    /**
+     * ID of the slot or -1 if the function is not called for a slot.
+     */
+    @Label("Slot ID")
+    public long slotId = -1;
+
+    /**
+     * ID of the session or -1 if the function is not called for a session.
+     */
+    @Label("Session ID")
+    public long sessionId = -1;
+
+    /**
+     * Mechanism of the function or null if the function has no mechanism.
+     */
+    @Label("Mechanism")
+    public String mechanism;
+
+    /**
+     * Number of bytes passed to the function.
+     */
+    @Label("Bytes In")
+    @DataAmount
+    public long bytesIn;
+
+    /**
+     * Number of bytes returned by the function.
+     */
+    @Label("Bytes Out")
+    @DataAmount
+    public long bytesOut;
+
+    /**
+     * Return value of the function or the exception message if the call failed without a return value.
+     */
+    @Label("Result")
+    public String result;
+
+    /**
+     * Get the result of a failed call for an event.
+     *
+     * @param exception Exception of the failed call
+     * @return Return value of the function or the exception message if the call failed without a return value
+     */
+    public static String getResult(Pkcs11Exception exception) {
+        return exception.getCkResult() != null ? exception.getCkResult().name() : exception.getMessage();
+    }
+}
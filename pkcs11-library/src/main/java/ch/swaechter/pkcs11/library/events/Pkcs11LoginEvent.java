@@ -0,0 +1,39 @@
+package ch.swaechter.pkcs11.library.events;
+
+import jdk.jfr.*;
+
+/**
+ * Flight recorder event of a login or logout. The PIN is never recorded.
+ *
+ * @author Simon Wächter
+ */
+@Name("ch.swaechter.pkcs11.Login")
+@Label("PKCS11 Login")
+@Category({"PKCS11"})
+@Description("Login or logout of a user")
+public class Pkcs11LoginEvent extends Event {
+
+    /**
+     * Action like Login or Logout.
+     */
+    @Label("Action")
+    public String action;
+
+    /**
+     * ID of the session.
+     */
+    @Label("Session ID")
+    public long sessionId;
+
+    /**
+     * Type of the user or null for a logout.
+     */
+    @Label("User Type")
+    public String userType;
+
+    /**
+     * Return value of the function or the exception message if the call failed without a return value.
+     */
+    @Label("Result")
+    public String result;
+}
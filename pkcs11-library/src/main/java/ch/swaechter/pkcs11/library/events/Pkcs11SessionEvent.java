@@ -0,0 +1,45 @@
+package ch.swaechter.pkcs11.library.events;
+
+import jdk.jfr.*;
+
+/**
+ * Flight recorder event of a session that is opened or closed.
+ *
+ * @author Simon Wächter
+ */
+@Name("ch.swaechter.pkcs11.Session")
+@Label("PKCS11 Session")
+@Category({"PKCS11"})
+@Description("Session that is opened or closed")
+public class Pkcs11SessionEvent extends Event {
+
+    /**
+     * Action like Open or Close.
+     */
+    @Label("Action")
+    public String action;
+
+    /**
+     * ID of the slot or -1 if unknown.
+     */
+    @Label("Slot ID")
+    public long slotId = -1;
+
+    /**
+     * ID of the session or -1 if the session could not be opened.
+     */
+    @Label("Session ID")
+    public long sessionId = -1;
+
+    /**
+     * Flag whether the session is read/write.
+     */
+    @Label("Read/Write")
+    public boolean readWrite;
+
+    /**
+     * Return value of the function or the exception message if the call failed without a return value.
+     */
+    @Label("Result")
+    public String result;
+}
@@ -12,6 +12,11 @@ public class CkConstants {
      */
     public static final int CKF_ARRAY_ATTRIBUTE = 0x40000000;
 
+    /**
+     * The CKF_DONT_BLOCK flag makes C_WaitForSlotEvent return immediately if no slot event occurred.
+     */
+    public static final int CKF_DONT_BLOCK = 0x00000001;
+
     /**
      * Private constructor
      */
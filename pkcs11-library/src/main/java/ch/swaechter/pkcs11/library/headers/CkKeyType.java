@@ -0,0 +1,81 @@
+package ch.swaechter.pkcs11.library.headers;
+
+/**
+ * Define a key type.
+ *
+ * @author Simon Wächter
+ */
+public enum CkKeyType {
+
+    CKK_RSA(0x00000000),
+    CKK_DSA(0x00000001),
+    CKK_DH(0x00000002),
+    CKK_EC(0x00000003),
+    CKK_X9_42_DH(0x00000004),
+    CKK_KEA(0x00000005),
+    CKK_GENERIC_SECRET(0x00000010),
+    CKK_RC2(0x00000011),
+    CKK_RC4(0x00000012),
+    CKK_DES(0x00000013),
+    CKK_DES2(0x00000014),
+    CKK_DES3(0x00000015),
+    CKK_CAST(0x00000016),
+    CKK_CAST3(0x00000017),
+    CKK_CAST128(0x00000018),
+    CKK_RC5(0x00000019),
+    CKK_IDEA(0x0000001A),
+    CKK_SKIPJACK(0x0000001B),
+    CKK_BATON(0x0000001C),
+    CKK_JUNIPER(0x0000001D),
+    CKK_CDMF(0x0000001E),
+    CKK_AES(0x0000001F),
+    CKK_BLOWFISH(0x00000020),
+    CKK_TWOFISH(0x00000021),
+    CKK_SECURID(0x00000022),
+    CKK_HOTP(0x00000023),
+    CKK_ACTI(0x00000024),
+    CKK_CAMELLIA(0x00000025),
+    CKK_ARIA(0x00000026),
+    CKK_MD5_HMAC(0x00000027),
+    CKK_SHA_1_HMAC(0x00000028),
+    CKK_RIPEMD128_HMAC(0x00000029),
+    CKK_RIPEMD160_HMAC(0x0000002A),
+    CKK_SHA256_HMAC(0x0000002B),
+    CKK_SHA384_HMAC(0x0000002C),
+    CKK_SHA512_HMAC(0x0000002D),
+    CKK_SHA224_HMAC(0x0000002E),
+    CKK_SEED(0x0000002F),
+    CKK_GOSTR3410(0x00000030),
+    CKK_GOSTR3411(0x00000031),
+    CKK_GOST28147(0x00000032),
+    CKK_VENDOR_DEFINED(0x80000000);
+
+    /**
+     * Key type value.
+     */
+    public final int value;
+
+    /**
+     * Define a new key type.
+     *
+     * @param value Key type value
+     */
+    CkKeyType(int value) {
+        this.value = value;
+    }
+
+    /**
+     * Get the enum by value.
+     *
+     * @param value Value of the enum
+     * @return Matching enum
+     */
+    public static CkKeyType valueOf(int value) {
+        for (CkKeyType ckKeyType : values()) {
+            if (ckKeyType.value == value) {
+                return ckKeyType;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,334 @@
+package ch.swaechter.pkcs11.library.objects;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission control for the work on a single token. Every admitted request holds one session, and the number of
+ * sessions is derived from the session limits of the token, so the token never answers with CKR_SESSION_COUNT. Sessions
+ * that the application already opened and a configurable reserve for administrative use are kept free. Excess requests
+ * wait in a bounded queue up to a timeout, so an overload makes the latency grow instead of failing requests. Requests
+ * beyond the queue length are rejected right away.
+ * <p>
+ * The sessions are opened on demand and reused. The login state is shared between all sessions of an application, so
+ * a login with any session of the token before executing a request makes the sessions authenticated.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11AdmissionController implements Closeable {
+
+    /**
+     * Value of a session limit if the token does not limit the sessions.
+     */
+    private static final long CK_EFFECTIVELY_INFINITE = 0;
+
+    /**
+     * Value of a session limit if the token can't provide the information, in both the 32 and 64 bit representation.
+     */
+    private static final long CK_UNAVAILABLE_INFORMATION_32 = 0xFFFFFFFFL;
+
+    /**
+     * Token of the admitted requests.
+     */
+    private final Pkcs11Token pkcs11Token;
+
+    /**
+     * Flag whether the sessions are read/write or read-only.
+     */
+    private final boolean rwSession;
+
+    /**
+     * Number of permits.
+     */
+    private final int permits;
+
+    /**
+     * Permits for the sessions.
+     */
+    private final Semaphore semaphore;
+
+    /**
+     * Maximum number of waiting requests.
+     */
+    private final int maxQueueLength;
+
+    /**
+     * Default time a request waits for a permit.
+     */
+    private final Duration defaultTimeout;
+
+    /**
+     * Opened sessions that are currently not in use.
+     */
+    private final Queue<Pkcs11Session> idlePkcs11Sessions;
+
+    /**
+     * Number of waiting requests.
+     */
+    private final AtomicInteger queueLength;
+
+    /**
+     * Highest number of waiting requests.
+     */
+    private final LongAccumulator maxQueueLengthSeen;
+
+    /**
+     * Number of admitted requests.
+     */
+    private final LongAdder admitted;
+
+    /**
+     * Number of rejected requests.
+     */
+    private final LongAdder rejected;
+
+    /**
+     * Number of timed out requests.
+     */
+    private final LongAdder timedOut;
+
+    /**
+     * Summed waiting time of all admitted requests.
+     */
+    private final LongAdder totalWaitNanos;
+
+    /**
+     * Longest waiting time of an admitted request.
+     */
+    private final LongAccumulator maxWaitNanos;
+
+    /**
+     * Flag whether the admission control is closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Create a new admission control and derive the permits from the current token info.
+     *
+     * @param pkcs11Token     Token of the admitted requests
+     * @param rwSession       Flag whether the sessions are read/write or read-only
+     * @param reservedPermits Number of sessions that are kept free for administrative use
+     * @param fallbackPermits Number of permits if the token does not limit the sessions or can't provide the limit
+     * @param maxQueueLength  Maximum number of requests waiting for a permit, further requests are rejected
+     * @param defaultTimeout  Default time a request waits for a permit
+     * @throws Pkcs11Exception Thrown if the token info can't be read
+     */
+    public Pkcs11AdmissionController(Pkcs11Token pkcs11Token, boolean rwSession, int reservedPermits, int fallbackPermits, int maxQueueLength, Duration defaultTimeout) throws Pkcs11Exception {
+        this.pkcs11Token = pkcs11Token;
+        this.rwSession = rwSession;
+        this.permits = derivePermits(pkcs11Token.getTokenInfo(), rwSession, reservedPermits, fallbackPermits);
+        this.semaphore = new Semaphore(permits, true);
+        this.maxQueueLength = maxQueueLength;
+        this.defaultTimeout = defaultTimeout;
+        this.idlePkcs11Sessions = new ConcurrentLinkedQueue<>();
+        this.queueLength = new AtomicInteger();
+        this.maxQueueLengthSeen = new LongAccumulator(Math::max, 0);
+        this.admitted = new LongAdder();
+        this.rejected = new LongAdder();
+        this.timedOut = new LongAdder();
+        this.totalWaitNanos = new LongAdder();
+        this.maxWaitNanos = new LongAccumulator(Math::max, 0);
+        this.closed = false;
+    }
+
+    /**
+     * Derive the number of permits from the session limits of a token. The sessions the application already opened
+     * and the reserved sessions are subtracted from the limit. Read/write sessions are limited by both the read/write
+     * and the overall session limit. At least one permit is granted, so requests are never starved.
+     *
+     * @param pkcs11TokenInfo Token info with the session limits
+     * @param rwSession       Flag whether the sessions are read/write or read-only
+     * @param reservedPermits Number of sessions that are kept free for administrative use
+     * @param fallbackPermits Number of permits if the token does not limit the sessions or can't provide the limit
+     * @return Number of permits
+     */
+    public static int derivePermits(Pkcs11TokenInfo pkcs11TokenInfo, boolean rwSession, int reservedPermits, int fallbackPermits) {
+        long availableSessions = getAvailableSessions(pkcs11TokenInfo.getMaxSessionCount(), pkcs11TokenInfo.getSessionCount());
+        if (rwSession) {
+            availableSessions = Math.min(availableSessions, getAvailableSessions(pkcs11TokenInfo.getMaxRwSessionCount(), pkcs11TokenInfo.getRwSessionCount()));
+        }
+        if (availableSessions == Long.MAX_VALUE) {
+            return Math.max(1, fallbackPermits);
+        }
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, availableSessions - reservedPermits));
+    }
+
+    /**
+     * Get the number of permits, i.e. the number of sessions that can be open at the same time.
+     *
+     * @return Number of permits
+     */
+    public int getPermits() {
+        return permits;
+    }
+
+    /**
+     * Get a snapshot of the admission metrics.
+     *
+     * @return Admission metrics
+     */
+    public Pkcs11AdmissionMetrics getMetrics() {
+        return new Pkcs11AdmissionMetrics(permits, semaphore.availablePermits(), queueLength.get(), (int) maxQueueLengthSeen.get(), admitted.sum(), rejected.sum(), timedOut.sum(), totalWaitNanos.sum(), maxWaitNanos.get());
+    }
+
+    /**
+     * Execute the function with a session once the request is admitted within the default timeout.
+     *
+     * @param pkcs11SessionFunction Function to execute
+     * @param <T>                   Type of the result
+     * @return Result of the function
+     * @throws Pkcs11Exception Thrown if the request is rejected, times out or the function fails
+     */
+    public <T> T execute(Pkcs11SessionFunction<T> pkcs11SessionFunction) throws Pkcs11Exception {
+        return execute(pkcs11SessionFunction, defaultTimeout);
+    }
+
+    /**
+     * Execute the function with a session once the request is admitted within the timeout. The session is reused by
+     * further requests, unless it got lost while executing the function.
+     *
+     * @param pkcs11SessionFunction Function to execute
+     * @param timeout               Time the request waits for a permit
+     * @param <T>                   Type of the result
+     * @return Result of the function
+     * @throws Pkcs11Exception Thrown if the request is rejected, times out or the function fails
+     */
+    public <T> T execute(Pkcs11SessionFunction<T> pkcs11SessionFunction, Duration timeout) throws Pkcs11Exception {
+        // Wait for the admission
+        acquirePermit(timeout);
+
+        // Execute the function with an idle or new session
+        Pkcs11Session pkcs11Session = idlePkcs11Sessions.poll();
+        boolean reusable = true;
+        try {
+            if (pkcs11Session == null) {
+                pkcs11Session = pkcs11Token.openSession(rwSession, true);
+            }
+            return pkcs11SessionFunction.apply(pkcs11Session);
+        } catch (Pkcs11Exception exception) {
+            Pkcs11FailureClass pkcs11FailureClass = Pkcs11FailureClass.classify(exception);
+            reusable = pkcs11FailureClass != Pkcs11FailureClass.SESSION_FATAL && pkcs11FailureClass != Pkcs11FailureClass.TOKEN_FATAL;
+            throw exception;
+        } finally {
+            // Keep the session for the next request or close it and release the permit
+            if (pkcs11Session != null) {
+                if (reusable && !closed) {
+                    idlePkcs11Sessions.offer(pkcs11Session);
+                } else {
+                    pkcs11Session.closeQuietly();
+                }
+            }
+            semaphore.release();
+        }
+    }
+
+    /**
+     * The admission control supports the try-with-resource statement. Closing rejects further requests, wakes up the
+     * waiting requests and waits at most one minute for the running requests before it closes the idle sessions.
+     * Sessions of requests that are still running afterward are closed once the requests complete.
+     */
+    @Override
+    public void close() {
+        // Ignore if the admission control is closed
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        // Add a permit that is passed from one waiting request to the next, each of them rejects itself
+        semaphore.release();
+
+        // Wait until the running requests returned their permits, then pass them on to late waiting requests
+        try {
+            if (semaphore.tryAcquire(permits + 1, 1, TimeUnit.MINUTES)) {
+                semaphore.release(permits + 1);
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Close the idle sessions
+        Pkcs11Session pkcs11Session;
+        while ((pkcs11Session = idlePkcs11Sessions.poll()) != null) {
+            pkcs11Session.closeQuietly();
+        }
+    }
+
+    /**
+     * Acquire a permit in the order of arrival or reject the request if the queue is full.
+     *
+     * @param timeout Time the request waits for a permit
+     * @throws Pkcs11Exception Thrown if the admission is closed, the queue is full, the timeout elapsed or the thread
+     *                         was interrupted
+     */
+    private void acquirePermit(Duration timeout) throws Pkcs11Exception {
+        // Ensure the admission control is open
+        if (closed) {
+            throw new Pkcs11Exception("The admission control for slot " + pkcs11Token.getSlotId() + " is closed");
+        }
+
+        // Take a free permit, unless other requests are already waiting for one
+        long startTime = System.nanoTime();
+        try {
+            if (!semaphore.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+                // Reject the request if the queue is full
+                int currentQueueLength = queueLength.incrementAndGet();
+                if (currentQueueLength > maxQueueLength) {
+                    queueLength.decrementAndGet();
+                    rejected.increment();
+                    throw new Pkcs11Exception("The request for slot " + pkcs11Token.getSlotId() + " was rejected, because " + maxQueueLength + " requests are already waiting for " + permits + " sessions");
+                }
+                maxQueueLengthSeen.accumulate(currentQueueLength);
+
+                // Wait for a permit
+                try {
+                    if (!semaphore.tryAcquire(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+                        timedOut.increment();
+                        throw new Pkcs11Exception("The request for slot " + pkcs11Token.getSlotId() + " did not get one of the " + permits + " sessions within " + timeout.toMillis() + " ms");
+                    }
+                } finally {
+                    queueLength.decrementAndGet();
+                }
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new Pkcs11Exception("Interrupted while waiting for a session", exception);
+        }
+
+        // Pass the permit on if the admission control was closed while waiting
+        if (closed) {
+            semaphore.release();
+            throw new Pkcs11Exception("The admission control for slot " + pkcs11Token.getSlotId() + " is closed");
+        }
+
+        // Record the admission
+        long waitNanos = System.nanoTime() - startTime;
+        admitted.increment();
+        totalWaitNanos.add(waitNanos);
+        maxWaitNanos.accumulate(waitNanos);
+    }
+
+    /**
+     * Get the number of sessions that can still be opened.
+     *
+     * @param maxSessionCount Session limit of the token
+     * @param sessionCount    Number of sessions the application already opened
+     * @return Number of sessions or Long.MAX_VALUE if the sessions are not limited or the limit is unknown
+     */
+    private static long getAvailableSessions(long maxSessionCount, long sessionCount) {
+        if (maxSessionCount == CK_EFFECTIVELY_INFINITE || maxSessionCount < 0 || maxSessionCount == CK_UNAVAILABLE_INFORMATION_32) {
+            return Long.MAX_VALUE;
+        }
+        boolean sessionCountKnown = sessionCount >= 0 && sessionCount != CK_UNAVAILABLE_INFORMATION_32;
+        return maxSessionCount - (sessionCountKnown ? sessionCount : 0);
+    }
+}
@@ -0,0 +1,46 @@
+package ch.swaechter.pkcs11.library.objects;
+
+/**
+ * Snapshot of the admission control of a token.
+ *
+ * @param permits          Number of sessions that can be open at the same time
+ * @param availablePermits Number of sessions that can be opened right now
+ * @param queueLength      Number of requests waiting for a permit
+ * @param maxQueueLength   Highest number of requests that waited for a permit at the same time
+ * @param admitted         Number of admitted requests
+ * @param rejected         Number of requests rejected because the queue was full
+ * @param timedOut         Number of requests that did not get a permit within their timeout
+ * @param totalWaitNanos   Summed waiting time of all admitted requests in nanoseconds
+ * @param maxWaitNanos     Longest waiting time of an admitted request in nanoseconds
+ * @author Simon Wächter
+ */
+public record Pkcs11AdmissionMetrics(
+
+    int permits,
+
+    int availablePermits,
+
+    int queueLength,
+
+    int maxQueueLength,
+
+    long admitted,
+
+    long rejected,
+
+    long timedOut,
+
+    long totalWaitNanos,
+
+    long maxWaitNanos
+) {
+
+    /**
+     * Get the mean waiting time of the admitted requests.
+     *
+     * @return Mean waiting time in nanoseconds or 0 if no request was admitted
+     */
+    public double getMeanWaitNanos() {
+        return admitted > 0 ? (double) totalWaitNanos / admitted : 0;
+    }
+}
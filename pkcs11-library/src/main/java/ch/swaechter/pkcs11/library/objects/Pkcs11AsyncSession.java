@@ -0,0 +1,158 @@
+package ch.swaechter.pkcs11.library.objects;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.headers.CkAttributeValue;
+import ch.swaechter.pkcs11.library.headers.CkMechanism;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous facade for the blocking session operations of a single token. Each operation is submitted to a
+ * dedicated executor of the token and returns a future right away. The executor has one thread per pooled session,
+ * so as many operations as there are sessions are in flight at once and further submissions are queued.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11AsyncSession implements Closeable {
+
+    /**
+     * Session pool that provides the sessions.
+     */
+    private final Pkcs11SessionPool pkcs11SessionPool;
+
+    /**
+     * Dedicated executor of the token.
+     */
+    private final ExecutorService executorService;
+
+    /**
+     * Create a new asynchronous session on top of the session pool. The asynchronous session takes over the pool and
+     * closes it as well.
+     *
+     * @param pkcs11SessionPool Session pool that provides the sessions
+     */
+    public Pkcs11AsyncSession(Pkcs11SessionPool pkcs11SessionPool) {
+        this.pkcs11SessionPool = pkcs11SessionPool;
+        this.executorService = Executors.newFixedThreadPool(pkcs11SessionPool.getSessionCount(), createThreadFactory(pkcs11SessionPool.getSlotId()));
+    }
+
+    /**
+     * Get the underlying session pool.
+     *
+     * @return Session pool
+     */
+    public Pkcs11SessionPool getSessionPool() {
+        return pkcs11SessionPool;
+    }
+
+    /**
+     * Sign the message in a single part with the given mechanism and private key.
+     *
+     * @param mechanism Sign mechanism like CKM_SHA256_RSA_PKCS
+     * @param keyHandle ID of the private key object
+     * @param message   Message to sign
+     * @return Future with the signature of the message
+     */
+    public CompletableFuture<byte[]> sign(CkMechanism mechanism, long keyHandle, byte[] message) {
+        return submit(pkcs11Session -> pkcs11Session.sign(mechanism, keyHandle, message));
+    }
+
+    /**
+     * Digest the data in a single part with the given mechanism.
+     *
+     * @param mechanism Digest mechanism like CKM_SHA256
+     * @param data      Data to digest
+     * @return Future with the digested data
+     */
+    public CompletableFuture<byte[]> digest(CkMechanism mechanism, byte[] data) {
+        return submit(pkcs11Session -> pkcs11Session.digest(mechanism, data));
+    }
+
+    /**
+     * Generate random data for the given length.
+     *
+     * @param length Length of the random data
+     * @return Future with the random data
+     */
+    public CompletableFuture<byte[]> generateRandom(int length) {
+        return submit(pkcs11Session -> pkcs11Session.generateRandom(length));
+    }
+
+    /**
+     * Find all objects for the given search template.
+     *
+     * @param searchTemplate Search template
+     * @return Future with all matching and found objects
+     */
+    public CompletableFuture<List<Long>> findObjects(List<CkAttributeValue> searchTemplate) {
+        return submit(pkcs11Session -> pkcs11Session.findObjects(searchTemplate));
+    }
+
+    /**
+     * Submit a custom function that is executed with a pooled session. A failed function completes the future
+     * exceptionally with a completion exception that wraps the PKCS11 exception. After the asynchronous session was
+     * closed, the returned future is already completed exceptionally.
+     *
+     * @param pkcs11SessionFunction Function to execute
+     * @param <T>                   Type of the result
+     * @return Future with the result of the function
+     */
+    public <T> CompletableFuture<T> submit(Pkcs11SessionFunction<T> pkcs11SessionFunction) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return pkcs11SessionPool.execute(pkcs11SessionFunction);
+                } catch (Exception exception) {
+                    throw new CompletionException(exception);
+                }
+            }, executorService);
+        } catch (RejectedExecutionException exception) {
+            return CompletableFuture.failedFuture(new Pkcs11Exception("The asynchronous session for slot " + pkcs11SessionPool.getSlotId() + " is closed", exception));
+        }
+    }
+
+    /**
+     * The asynchronous session supports the try-with-resource statement. Closing will finish all already submitted
+     * operations before the executor is stopped and the session pool closed.
+     */
+    @Override
+    public void close() {
+        // Stop accepting new operations and wait for the submitted ones
+        executorService.shutdown();
+        try {
+            if (!executorService.awaitTermination(1, TimeUnit.MINUTES)) {
+                executorService.shutdownNow();
+            }
+        } catch (InterruptedException exception) {
+            executorService.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        // Close the session pool
+        pkcs11SessionPool.close();
+    }
+
+    /**
+     * Create a thread factory for named daemon threads of the given slot.
+     *
+     * @param slotId ID of the slot
+     * @return Thread factory
+     */
+    private static ThreadFactory createThreadFactory(long slotId) {
+        AtomicInteger threadCounter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "pkcs11-slot-" + slotId + "-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
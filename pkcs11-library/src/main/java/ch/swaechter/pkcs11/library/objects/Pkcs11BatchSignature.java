@@ -0,0 +1,25 @@
+package ch.swaechter.pkcs11.library.objects;
+
+import java.util.List;
+
+/**
+ * Signature of a document in a signed batch. The token signed only the Merkle root of the batch, the inclusion proof
+ * links the document digest to that root.
+ *
+ * @param rootSignature Signature of the Merkle root of the batch
+ * @param leafIndex     Index of the document in the batch
+ * @param treeSize      Number of documents in the batch
+ * @param proof         Sibling hashes from the leaf up to the root
+ * @author Simon Wächter
+ */
+public record Pkcs11BatchSignature(
+
+    byte[] rootSignature,
+
+    int leafIndex,
+
+    int treeSize,
+
+    List<byte[]> proof
+) {
+}
@@ -0,0 +1,315 @@
+package ch.swaechter.pkcs11.library.objects;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.headers.CkMechanism;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Batch signer that covers many documents with a single token signature. The document digests are collected over a
+ * short time window, a Merkle tree is built over them on the host and the token signs only the root. Each document
+ * gets the root signature and its inclusion proof, which can be checked with {@link Pkcs11MerkleVerifier}. This way a
+ * slow token that manages only a few signatures per second signs thousands of documents per second, at the cost of
+ * the time window as additional latency.
+ * <p>
+ * The number of waiting documents is bounded, so a submitter blocks while the token falls behind instead of piling up
+ * documents. The batch signer uses the session from its own thread, so the session must not be used by anyone else
+ * until the batch signer is closed.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11BatchSigner implements Closeable {
+
+    /**
+     * Default number of full batches that can wait for the token.
+     */
+    public static final int DEFAULT_PENDING_BATCHES = 4;
+
+    /**
+     * Session that signs the roots.
+     */
+    private final Pkcs11Session pkcs11Session;
+
+    /**
+     * Sign mechanism like CKM_SHA256_RSA_PKCS.
+     */
+    private final CkMechanism mechanism;
+
+    /**
+     * ID of the private key object.
+     */
+    private final long keyHandle;
+
+    /**
+     * Time window in which the documents of a batch are collected.
+     */
+    private final Duration batchWindow;
+
+    /**
+     * Maximum number of documents in a batch.
+     */
+    private final int maxBatchSize;
+
+    /**
+     * Documents that wait for their batch.
+     */
+    private final BlockingQueue<PendingDocument> pendingDocuments;
+
+    /**
+     * Thread that collects and signs the batches.
+     */
+    private final Thread signerThread;
+
+    /**
+     * Number of signed batches.
+     */
+    private final LongAdder batchCount;
+
+    /**
+     * Number of signed documents.
+     */
+    private final LongAdder documentCount;
+
+    /**
+     * Flag whether the batch signer is closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Create a new batch signer and start collecting documents. Up to four full batches can wait for the token.
+     *
+     * @param pkcs11Session Session that signs the roots
+     * @param mechanism     Sign mechanism like CKM_SHA256_RSA_PKCS
+     * @param keyHandle     ID of the private key object
+     * @param batchWindow   Time window in which the documents of a batch are collected, starting with the first one
+     * @param maxBatchSize  Maximum number of documents in a batch, a full batch is signed right away
+     */
+    public Pkcs11BatchSigner(Pkcs11Session pkcs11Session, CkMechanism mechanism, long keyHandle, Duration batchWindow, int maxBatchSize) {
+        this(pkcs11Session, mechanism, keyHandle, batchWindow, maxBatchSize, DEFAULT_PENDING_BATCHES * maxBatchSize);
+    }
+
+    /**
+     * Create a new batch signer and start collecting documents.
+     *
+     * @param pkcs11Session       Session that signs the roots
+     * @param mechanism           Sign mechanism like CKM_SHA256_RSA_PKCS
+     * @param keyHandle           ID of the private key object
+     * @param batchWindow         Time window in which the documents of a batch are collected, starting with the first one
+     * @param maxBatchSize        Maximum number of documents in a batch, a full batch is signed right away
+     * @param maxPendingDocuments Maximum number of documents that wait for their batch, further submitters block
+     */
+    public Pkcs11BatchSigner(Pkcs11Session pkcs11Session, CkMechanism mechanism, long keyHandle, Duration batchWindow, int maxBatchSize, int maxPendingDocuments) {
+        this.pkcs11Session = pkcs11Session;
+        this.mechanism = mechanism;
+        this.keyHandle = keyHandle;
+        this.batchWindow = batchWindow;
+        this.maxBatchSize = maxBatchSize;
+        this.pendingDocuments = new LinkedBlockingQueue<>(maxPendingDocuments);
+        this.batchCount = new LongAdder();
+        this.documentCount = new LongAdder();
+        this.closed = false;
+        this.signerThread = new Thread(this::runSigner, "pkcs11-batch-signer-" + pkcs11Session.getSessionId());
+        this.signerThread.setDaemon(true);
+        this.signerThread.start();
+    }
+
+    /**
+     * Submit the digest of a document for the next batch. The call blocks while the maximum number of documents is
+     * already waiting.
+     *
+     * @param documentDigest Digest of the document
+     * @return Future with the signature of the document
+     */
+    public CompletableFuture<Pkcs11BatchSignature> submit(byte[] documentDigest) {
+        CompletableFuture<Pkcs11BatchSignature> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new Pkcs11Exception("The batch signer is closed"));
+            return future;
+        }
+
+        // Wait for space in the queue
+        PendingDocument pendingDocument = new PendingDocument(documentDigest.clone(), future);
+        try {
+            pendingDocuments.put(pendingDocument);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(new Pkcs11Exception("Interrupted while waiting for space in the batch queue", exception));
+            return future;
+        }
+
+        // Take the document back if the batch signer was closed in the meantime, nobody might pick it up anymore
+        if (closed && pendingDocuments.remove(pendingDocument)) {
+            future.completeExceptionally(new Pkcs11Exception("The batch signer is closed"));
+        }
+        return future;
+    }
+
+    /**
+     * Submit the digest of a document for the next batch and wait for its signature.
+     *
+     * @param documentDigest Digest of the document
+     * @return Signature of the document
+     * @throws Pkcs11Exception Thrown if the batch could not be signed or the thread was interrupted
+     */
+    public Pkcs11BatchSignature sign(byte[] documentDigest) throws Pkcs11Exception {
+        try {
+            return submit(documentDigest).get();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new Pkcs11Exception("Interrupted while waiting for the batch signature", exception);
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof Pkcs11Exception pkcs11Exception) {
+                throw pkcs11Exception;
+            }
+            throw new Pkcs11Exception("Unable to sign the batch: " + exception.getCause().getMessage(), exception.getCause());
+        }
+    }
+
+    /**
+     * Get the number of signed batches, i.e. the number of token signatures.
+     *
+     * @return Number of signed batches
+     */
+    public long getBatchCount() {
+        return batchCount.sum();
+    }
+
+    /**
+     * Get the number of signed documents.
+     *
+     * @return Number of signed documents
+     */
+    public long getDocumentCount() {
+        return documentCount.sum();
+    }
+
+    /**
+     * The batch signer supports the try-with-resource statement. Closing signs the already submitted documents and
+     * stops the signer thread. The session is not closed.
+     */
+    @Override
+    public void close() {
+        // Stop accepting documents and let the signer thread finish the pending ones
+        closed = true;
+        try {
+            signerThread.join();
+        } catch (InterruptedException exception) {
+            signerThread.interrupt();
+            Thread.currentThread().interrupt();
+        }
+
+        // Fail documents that were submitted while closing
+        failPendingDocuments();
+    }
+
+    /**
+     * Collect and sign batches until the batch signer is closed and all pending documents are signed.
+     */
+    private void runSigner() {
+        try {
+            collectAndSignBatches();
+        } finally {
+            // Reject further documents and fail the waiting ones, also if the thread ends unexpectedly
+            closed = true;
+            failPendingDocuments();
+        }
+    }
+
+    /**
+     * Collect and sign the batches.
+     */
+    private void collectAndSignBatches() {
+        boolean interrupted = false;
+        while (!interrupted && (!closed || !pendingDocuments.isEmpty())) {
+            List<PendingDocument> batch = new ArrayList<>();
+            try {
+                // Wait for the first document of the batch
+                PendingDocument firstDocument = pendingDocuments.poll(100, TimeUnit.MILLISECONDS);
+                if (firstDocument == null) {
+                    continue;
+                }
+                batch.add(firstDocument);
+
+                // Collect further documents until the window elapsed or the batch is full
+                long deadline = System.nanoTime() + batchWindow.toNanos();
+                while (batch.size() < maxBatchSize) {
+                    long remainingNanos = deadline - System.nanoTime();
+                    PendingDocument pendingDocument = closed ? pendingDocuments.poll() : pendingDocuments.poll(remainingNanos, TimeUnit.NANOSECONDS);
+                    if (pendingDocument == null) {
+                        break;
+                    }
+                    batch.add(pendingDocument);
+                }
+            } catch (InterruptedException exception) {
+                // Sign the collected documents and leave the rest to the close method
+                interrupted = true;
+            }
+            signBatch(batch);
+        }
+    }
+
+    /**
+     * Fail the documents that still wait for their batch.
+     */
+    private void failPendingDocuments() {
+        PendingDocument pendingDocument;
+        while ((pendingDocument = pendingDocuments.poll()) != null) {
+            pendingDocument.future().completeExceptionally(new Pkcs11Exception("The batch signer is closed"));
+        }
+    }
+
+    /**
+     * Build the Merkle tree of the batch, sign its root and complete the documents.
+     *
+     * @param batch Documents of the batch
+     */
+    private void signBatch(List<PendingDocument> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            // Build the tree and sign the root with the token
+            List<byte[]> documentDigests = new ArrayList<>(batch.size());
+            for (PendingDocument pendingDocument : batch) {
+                documentDigests.add(pendingDocument.documentDigest());
+            }
+            Pkcs11MerkleTree pkcs11MerkleTree = new Pkcs11MerkleTree(documentDigests);
+            byte[] rootSignature = pkcs11Session.sign(mechanism, keyHandle, pkcs11MerkleTree.getRoot());
+            batchCount.increment();
+            documentCount.add(batch.size());
+
+            // Complete each document with the root signature and its proof
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).future().complete(new Pkcs11BatchSignature(rootSignature, i, batch.size(), pkcs11MerkleTree.getProof(i)));
+            }
+        } catch (Throwable throwable) {
+            // Also complete the documents for errors, otherwise their submitters would wait forever
+            for (PendingDocument pendingDocument : batch) {
+                pendingDocument.future().completeExceptionally(throwable);
+            }
+        }
+    }
+
+    /**
+     * Document that waits for its batch.
+     *
+     * @param documentDigest Digest of the document
+     * @param future         Future of the document signature
+     */
+    private record PendingDocument(
+
+        byte[] documentDigest,
+
+        CompletableFuture<Pkcs11BatchSignature> future
+    ) {
+    }
+}
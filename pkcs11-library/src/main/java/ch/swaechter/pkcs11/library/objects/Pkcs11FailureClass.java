@@ -0,0 +1,61 @@
+package ch.swaechter.pkcs11.library.objects;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.headers.CkResult;
+
+/**
+ * Class of a failed PKCS11 call that determines how to recover from it.
+ *
+ * @author Simon Wächter
+ */
+public enum Pkcs11FailureClass {
+
+    /**
+     * The call failed temporarily, e.g. because the token ran out of memory or sessions, and can be retried as it is.
+     */
+    RETRYABLE,
+
+    /**
+     * The session or its state is gone, e.g. because the middleware was reset. The call can be retried with a new,
+     * logged in session and re-resolved object handles.
+     */
+    SESSION_FATAL,
+
+    /**
+     * The token is gone, e.g. because it was yanked. The call can be retried with a new session once the token is back.
+     */
+    TOKEN_FATAL,
+
+    /**
+     * The call failed because of its arguments or the token state, e.g. a wrong PIN, and fails again on a retry.
+     */
+    PERMANENT;
+
+    /**
+     * Classify a return value.
+     *
+     * @param ckResult Return value of the function or null if the call failed without a return value
+     * @return Class of the failure
+     */
+    public static Pkcs11FailureClass classify(CkResult ckResult) {
+        if (ckResult == null) {
+            return PERMANENT;
+        }
+        return switch (ckResult) {
+            case CKR_HOST_MEMORY, CKR_DEVICE_MEMORY, CKR_SESSION_COUNT, CKR_FUNCTION_CANCELED, CKR_CANT_LOCK -> RETRYABLE;
+            case CKR_SESSION_HANDLE_INVALID, CKR_SESSION_CLOSED, CKR_USER_NOT_LOGGED_IN, CKR_OPERATION_ACTIVE, CKR_OPERATION_NOT_INITIALIZED, CKR_OBJECT_HANDLE_INVALID, CKR_KEY_HANDLE_INVALID -> SESSION_FATAL;
+            case CKR_DEVICE_ERROR, CKR_DEVICE_REMOVED, CKR_TOKEN_NOT_PRESENT, CKR_TOKEN_NOT_RECOGNIZED, CKR_SLOT_ID_INVALID -> TOKEN_FATAL;
+            default -> PERMANENT;
+        };
+    }
+
+    /**
+     * Classify a failed call.
+     *
+     * @param pkcs11Exception Exception of the failed call
+     * @return Class of the failure
+     */
+    public static Pkcs11FailureClass classify(Pkcs11Exception pkcs11Exception) {
+        return classify(pkcs11Exception.getCkResult());
+    }
+}
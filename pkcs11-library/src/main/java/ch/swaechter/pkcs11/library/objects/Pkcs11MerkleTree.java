@@ -0,0 +1,192 @@
+package ch.swaechter.pkcs11.library.objects;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * SHA-256 Merkle tree over document digests with the layout of RFC 9162. Leaves and inner nodes are hashed with a
+ * different prefix, so a leaf can't be passed off as an inner node. An odd node at the end of a level is promoted to
+ * the next level unchanged instead of being paired with itself, so the inclusion proof of a document contains
+ * at most log2(n) hashes.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11MerkleTree {
+
+    /**
+     * Hash algorithm of the tree.
+     */
+    public static final String HASH_ALGORITHM = "SHA-256";
+
+    /**
+     * Prefix of a leaf hash.
+     */
+    private static final byte LEAF_PREFIX = 0x00;
+
+    /**
+     * Prefix of an inner node hash.
+     */
+    private static final byte NODE_PREFIX = 0x01;
+
+    /**
+     * Levels of the tree, starting with the leaves and ending with the root.
+     */
+    private final List<byte[][]> levels;
+
+    /**
+     * Create a new Merkle tree over the document digests.
+     *
+     * @param documentDigests Document digests in the order of the leaves
+     */
+    public Pkcs11MerkleTree(List<byte[]> documentDigests) {
+        if (documentDigests.isEmpty()) {
+            throw new IllegalArgumentException("A Merkle tree requires at least one document");
+        }
+
+        // Hash the leaves
+        MessageDigest messageDigest = createMessageDigest();
+        byte[][] level = new byte[documentDigests.size()][];
+        for (int i = 0; i < level.length; i++) {
+            level[i] = hashLeaf(messageDigest, documentDigests.get(i));
+        }
+
+        // Hash the pairs of each level and promote an odd node until only the root is left
+        this.levels = new ArrayList<>();
+        levels.add(level);
+        while (level.length > 1) {
+            byte[][] parentLevel = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < level.length / 2; i++) {
+                parentLevel[i] = hashNode(messageDigest, level[2 * i], level[2 * i + 1]);
+            }
+            if (level.length % 2 == 1) {
+                parentLevel[parentLevel.length - 1] = level[level.length - 1];
+            }
+            levels.add(parentLevel);
+            level = parentLevel;
+        }
+    }
+
+    /**
+     * Get the number of leaves.
+     *
+     * @return Number of leaves
+     */
+    public int getSize() {
+        return levels.getFirst().length;
+    }
+
+    /**
+     * Get the root hash of the tree.
+     *
+     * @return Root hash
+     */
+    public byte[] getRoot() {
+        return levels.getLast()[0].clone();
+    }
+
+    /**
+     * Get the inclusion proof of a leaf, i.e. the sibling hashes from the leaf up to the root.
+     *
+     * @param leafIndex Index of the leaf
+     * @return Sibling hashes in bottom-up order
+     */
+    public List<byte[]> getProof(int leafIndex) {
+        if (leafIndex < 0 || leafIndex >= getSize()) {
+            throw new IndexOutOfBoundsException("Leaf " + leafIndex + " is not part of a tree with " + getSize() + " leaves");
+        }
+
+        // Collect the sibling of each level, a promoted node has none
+        List<byte[]> proof = new ArrayList<>();
+        int index = leafIndex;
+        for (int i = 0; i < levels.size() - 1; i++) {
+            byte[][] level = levels.get(i);
+            int siblingIndex = index ^ 1;
+            if (siblingIndex < level.length) {
+                proof.add(level[siblingIndex].clone());
+            }
+            index /= 2;
+        }
+        return Collections.unmodifiableList(proof);
+    }
+
+    /**
+     * Compute the root hash from a document digest and its inclusion proof. The algorithm follows RFC 9162 section
+     * 2.1.3.2 and rejects proofs that are too short or too long for the tree size.
+     *
+     * @param documentDigest Digest of the document
+     * @param leafIndex      Index of the leaf
+     * @param treeSize       Number of leaves
+     * @param proof          Sibling hashes in bottom-up order
+     * @return Root hash or null if the proof does not match the leaf index and the tree size
+     */
+    public static byte[] computeRoot(byte[] documentDigest, int leafIndex, int treeSize, List<byte[]> proof) {
+        if (leafIndex < 0 || leafIndex >= treeSize) {
+            return null;
+        }
+
+        // Walk up the tree, the last node of a level has no sibling if it was promoted
+        MessageDigest messageDigest = createMessageDigest();
+        byte[] hash = hashLeaf(messageDigest, documentDigest);
+        int index = leafIndex;
+        int lastIndex = treeSize - 1;
+        for (byte[] sibling : proof) {
+            if (lastIndex == 0) {
+                return null;
+            }
+            if (index % 2 == 1 || index == lastIndex) {
+                hash = hashNode(messageDigest, sibling, hash);
+                while (index % 2 == 0 && index != 0) {
+                    index /= 2;
+                    lastIndex /= 2;
+                }
+            } else {
+                hash = hashNode(messageDigest, hash, sibling);
+            }
+            index /= 2;
+            lastIndex /= 2;
+        }
+        return lastIndex == 0 ? hash : null;
+    }
+
+    /**
+     * Hash a leaf.
+     *
+     * @param messageDigest  Message digest to use
+     * @param documentDigest Digest of the document
+     * @return Leaf hash
+     */
+    private static byte[] hashLeaf(MessageDigest messageDigest, byte[] documentDigest) {
+        messageDigest.update(LEAF_PREFIX);
+        return messageDigest.digest(documentDigest);
+    }
+
+    /**
+     * Hash an inner node.
+     *
+     * @param messageDigest Message digest to use
+     * @param left          Left child hash
+     * @param right         Right child hash
+     * @return Node hash
+     */
+    private static byte[] hashNode(MessageDigest messageDigest, byte[] left, byte[] right) {
+        messageDigest.update(NODE_PREFIX);
+        messageDigest.update(left);
+        return messageDigest.digest(right);
+    }
+
+    /**
+     * Create a message digest for the hash algorithm, which every Java platform has to support.
+     *
+     * @return Message digest
+     */
+    private static MessageDigest createMessageDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException("The hash algorithm " + HASH_ALGORITHM + " is not available", exception);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package ch.swaechter.pkcs11.library.objects;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+
+/**
+ * Verifier for the Merkle signatures of a batch signer. It does not need a token, the public key or the certificate of the
+ * signing key is enough.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11MerkleVerifier {
+
+    /**
+     * Private constructor.
+     */
+    private Pkcs11MerkleVerifier() {
+        throw new RuntimeException("Invalid constructor call");
+    }
+
+    /**
+     * Verify that the document digest is part of a batch whose Merkle root was signed with the key.
+     *
+     * @param publicKey            Public key of the signing key
+     * @param signatureAlgorithm   JCA signature algorithm that matches the sign mechanism, like SHA256withRSA for
+     *                             CKM_SHA256_RSA_PKCS
+     * @param documentDigest       Digest of the document that was passed to the batch signer
+     * @param pkcs11BatchSignature Signature of the document
+     * @return Status whether the proof and the root signature are valid
+     * @throws GeneralSecurityException Thrown if the signature algorithm is not available or the key does not fit
+     */
+    public static boolean verify(PublicKey publicKey, String signatureAlgorithm, byte[] documentDigest, Pkcs11BatchSignature pkcs11BatchSignature) throws GeneralSecurityException {
+        // Compute the root from the proof
+        byte[] root = Pkcs11MerkleTree.computeRoot(documentDigest, pkcs11BatchSignature.leafIndex(), pkcs11BatchSignature.treeSize(), pkcs11BatchSignature.proof());
+        if (root == null) {
+            return false;
+        }
+
+        // Verify the root signature
+        Signature signature = Signature.getInstance(signatureAlgorithm);
+        signature.initVerify(publicKey);
+        signature.update(root);
+        return signature.verify(pkcs11BatchSignature.rootSignature());
+    }
+}
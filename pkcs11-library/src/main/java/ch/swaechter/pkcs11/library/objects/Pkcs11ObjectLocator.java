@@ -0,0 +1,44 @@
+package ch.swaechter.pkcs11.library.objects;
+
+import ch.swaechter.pkcs11.library.headers.CkObjectClass;
+
+/**
+ * Stable reference to a token object by its class and CKA_ID or CKA_LABEL. Unlike an object handle, the reference
+ * stays valid after the session is reopened or the token is reinserted.
+ *
+ * @param objectClass Class of the object like CKO_PRIVATE_KEY
+ * @param id          CKA_ID of the object or null to match by the label
+ * @param label       CKA_LABEL of the object or null to match by the ID
+ * @author Simon Wächter
+ */
+public record Pkcs11ObjectLocator(
+
+    CkObjectClass objectClass,
+
+    byte[] id,
+
+    String label
+) {
+
+    /**
+     * Create a reference to an object by its CKA_ID.
+     *
+     * @param objectClass Class of the object like CKO_PRIVATE_KEY
+     * @param id          CKA_ID of the object
+     * @return Reference to the object
+     */
+    public static Pkcs11ObjectLocator byId(CkObjectClass objectClass, byte[] id) {
+        return new Pkcs11ObjectLocator(objectClass, id.clone(), null);
+    }
+
+    /**
+     * Create a reference to an object by its CKA_LABEL.
+     *
+     * @param objectClass Class of the object like CKO_PRIVATE_KEY
+     * @param label       CKA_LABEL of the object
+     * @return Reference to the object
+     */
+    public static Pkcs11ObjectLocator byLabel(CkObjectClass objectClass, String label) {
+        return new Pkcs11ObjectLocator(objectClass, null, label);
+    }
+}
@@ -0,0 +1,360 @@
+package ch.swaechter.pkcs11.library.objects;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.Pkcs11Utils;
+import ch.swaechter.pkcs11.library.headers.CkAttribute;
+import ch.swaechter.pkcs11.library.headers.CkAttributeValue;
+import ch.swaechter.pkcs11.library.headers.CkMechanism;
+import ch.swaechter.pkcs11.library.headers.CkResult;
+import ch.swaechter.pkcs11.library.headers.CkUserType;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Session that survives a yanked token or a reset middleware. A failed call is classified: Retryable failures are
+ * retried as they are. On a session-fatal failure the session is reopened, the user logged in again and the object
+ * handles re-resolved before the call is retried right away. On a token-fatal failure the same happens once the token
+ * is back. Retries are bounded and backed off exponentially, except for the first retry after a session-fatal failure,
+ * so a middleware reset only costs one extra round-trip. Only idempotent operations are offered, because a failed
+ * operation might already have been executed by the token.
+ * <p>
+ * Objects are referenced by a stable locator instead of a handle, because handles are not valid in a new session. The
+ * PIN is kept in memory for the re-login. Like a session, a resilient session must only be used by one thread at a time.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11ResilientSession implements Closeable {
+
+    /**
+     * Default number of attempts of a call.
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+    /**
+     * Default backoff before the second attempt.
+     */
+    public static final Duration DEFAULT_INITIAL_BACKOFF = Duration.ofMillis(50);
+
+    /**
+     * Default maximum backoff between two attempts.
+     */
+    public static final Duration DEFAULT_MAX_BACKOFF = Duration.ofSeconds(2);
+
+    /**
+     * Token of the session.
+     */
+    private final Pkcs11Token pkcs11Token;
+
+    /**
+     * Flag whether the session is read/write or read-only.
+     */
+    private final boolean rwSession;
+
+    /**
+     * Type of the user or null to skip the login.
+     */
+    private final CkUserType ckUserType;
+
+    /**
+     * PIN/PUK or null in case the token has a protected authentication path.
+     */
+    private final String pinOrPuk;
+
+    /**
+     * Maximum number of attempts of a call.
+     */
+    private final int maxAttempts;
+
+    /**
+     * Backoff before the second attempt.
+     */
+    private final Duration initialBackoff;
+
+    /**
+     * Maximum backoff between two attempts.
+     */
+    private final Duration maxBackoff;
+
+    /**
+     * Resolved object handles of the current session.
+     */
+    private final Map<Pkcs11ObjectLocator, Long> objectHandles;
+
+    /**
+     * Current session or null if the session has to be rebuilt.
+     */
+    private Pkcs11Session pkcs11Session;
+
+    /**
+     * Number of rebuilt sessions.
+     */
+    private long rebuildCount;
+
+    /**
+     * Number of retried calls.
+     */
+    private long retryCount;
+
+    /**
+     * Create a new resilient session with the default retry policy and open the session.
+     *
+     * @param pkcs11Token Token to open the session for
+     * @param rwSession   Flag whether the session is read/write or read-only
+     * @param ckUserType  Type of the user or null to skip the login
+     * @param pinOrPuk    PIN/PUK or null in case the token has a protected authentication path
+     * @throws Pkcs11Exception Thrown if the session can't be opened or the login fails
+     */
+    public Pkcs11ResilientSession(Pkcs11Token pkcs11Token, boolean rwSession, CkUserType ckUserType, String pinOrPuk) throws Pkcs11Exception {
+        this(pkcs11Token, rwSession, ckUserType, pinOrPuk, DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF, DEFAULT_MAX_BACKOFF);
+    }
+
+    /**
+     * Create a new resilient session and open the session.
+     *
+     * @param pkcs11Token    Token to open the session for
+     * @param rwSession      Flag whether the session is read/write or read-only
+     * @param ckUserType     Type of the user or null to skip the login
+     * @param pinOrPuk       PIN/PUK or null in case the token has a protected authentication path
+     * @param maxAttempts    Maximum number of attempts of a call
+     * @param initialBackoff Backoff before the second attempt, doubled for each further attempt
+     * @param maxBackoff     Maximum backoff between two attempts
+     * @throws Pkcs11Exception Thrown if the session can't be opened or the login fails
+     */
+    public Pkcs11ResilientSession(Pkcs11Token pkcs11Token, boolean rwSession, CkUserType ckUserType, String pinOrPuk, int maxAttempts, Duration initialBackoff, Duration maxBackoff) throws Pkcs11Exception {
+        this.pkcs11Token = pkcs11Token;
+        this.rwSession = rwSession;
+        this.ckUserType = ckUserType;
+        this.pinOrPuk = pinOrPuk;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.objectHandles = new HashMap<>();
+
+        // Check the attempts
+        if (maxAttempts < 1) {
+            throw new Pkcs11Exception("The maximum number of attempts has to be at least 1, not " + maxAttempts);
+        }
+
+        // Open the session right away, so a wrong PIN is reported immediately
+        ensureSession();
+    }
+
+    /**
+     * Get the number of times the session was rebuilt.
+     *
+     * @return Number of rebuilt sessions
+     */
+    public long getRebuildCount() {
+        return rebuildCount;
+    }
+
+    /**
+     * Get the number of retried calls.
+     *
+     * @return Number of retries
+     */
+    public long getRetryCount() {
+        return retryCount;
+    }
+
+    /**
+     * Get the session info of the current session.
+     *
+     * @return Session info
+     * @throws Pkcs11Exception Thrown if the session info can't be read after all attempts
+     */
+    public Pkcs11SessionInfo getSessionInfo() throws Pkcs11Exception {
+        return execute(Pkcs11Session::getSessionInfo);
+    }
+
+    /**
+     * Find all objects for the given search template. The handles are only valid until the session is rebuilt.
+     *
+     * @param searchTemplate Search template
+     * @return All matching and found objects
+     * @throws Pkcs11Exception Thrown if the search fails after all attempts
+     */
+    public List<Long> findObjects(List<CkAttributeValue> searchTemplate) throws Pkcs11Exception {
+        return execute(pkcs11Session -> pkcs11Session.findObjects(searchTemplate));
+    }
+
+    /**
+     * Get the attribute values of an object.
+     *
+     * @param pkcs11ObjectLocator Reference to the object
+     * @param attributes          Attributes to read
+     * @return Attribute values
+     * @throws Pkcs11Exception Thrown if the object does not exist or the values can't be read after all attempts
+     */
+    public List<byte[]> getAttributeValue(Pkcs11ObjectLocator pkcs11ObjectLocator, List<CkAttribute> attributes) throws Pkcs11Exception {
+        return execute(pkcs11Session -> pkcs11Session.getAttributeValue(getObjectHandle(pkcs11ObjectLocator), attributes));
+    }
+
+    /**
+     * Digest the data in a single part with the given mechanism.
+     *
+     * @param mechanism Digest mechanism like CKM_SHA256
+     * @param data      Data to digest
+     * @return Digested data
+     * @throws Pkcs11Exception Thrown if the digest operation fails after all attempts
+     */
+    public byte[] digest(CkMechanism mechanism, byte[] data) throws Pkcs11Exception {
+        return execute(pkcs11Session -> pkcs11Session.digest(mechanism, data));
+    }
+
+    /**
+     * Sign the message in a single part with the given mechanism and private key.
+     *
+     * @param mechanism  Sign mechanism like CKM_SHA256_RSA_PKCS
+     * @param keyLocator Reference to the private key
+     * @param message    Message to sign
+     * @return Signature of the message
+     * @throws Pkcs11Exception Thrown if the key does not exist or the sign operation fails after all attempts
+     */
+    public byte[] sign(CkMechanism mechanism, Pkcs11ObjectLocator keyLocator, byte[] message) throws Pkcs11Exception {
+        return execute(pkcs11Session -> pkcs11Session.sign(mechanism, getObjectHandle(keyLocator), message));
+    }
+
+    /**
+     * Generate random data for the given length.
+     *
+     * @param length Length of the random data
+     * @return Random data
+     * @throws Pkcs11Exception Thrown if the random data can't be generated after all attempts
+     */
+    public byte[] generateRandom(int length) throws Pkcs11Exception {
+        return execute(pkcs11Session -> pkcs11Session.generateRandom(length));
+    }
+
+    /**
+     * Execute a custom function with the current session and retry it after rebuilding the session if required. The
+     * function has to be idempotent and has to resolve object handles via {@link #getObjectHandle(Pkcs11ObjectLocator)}
+     * within the function, because the handles of a previous session are not valid anymore.
+     *
+     * @param pkcs11SessionFunction Idempotent function to execute
+     * @param <T>                   Type of the result
+     * @return Result of the function
+     * @throws Pkcs11Exception Thrown if the function fails permanently or after all attempts
+     */
+    public <T> T execute(Pkcs11SessionFunction<T> pkcs11SessionFunction) throws Pkcs11Exception {
+        long backoffNanos = initialBackoff.toNanos();
+        for (int attempt = 1; ; attempt++) {
+            Pkcs11FailureClass pkcs11FailureClass;
+            try {
+                // Execute the function with a valid session
+                return pkcs11SessionFunction.apply(ensureSession());
+            } catch (Pkcs11Exception exception) {
+                // Give up on permanent failures or after the last attempt
+                pkcs11FailureClass = Pkcs11FailureClass.classify(exception);
+                if (pkcs11FailureClass == Pkcs11FailureClass.PERMANENT || attempt >= maxAttempts) {
+                    throw exception;
+                }
+            }
+
+            // Drop the session, so it is rebuilt with the next attempt
+            if (pkcs11FailureClass != Pkcs11FailureClass.RETRYABLE) {
+                invalidateSession();
+            }
+
+            // Back off, except for the first retry of a lost session that can be rebuilt right away
+            retryCount++;
+            if (pkcs11FailureClass != Pkcs11FailureClass.SESSION_FATAL || attempt > 1) {
+                try {
+                    Thread.sleep(Duration.ofNanos(backoffNanos));
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                    throw new Pkcs11Exception("Interrupted while waiting for the retry", exception);
+                }
+                backoffNanos = Math.min(backoffNanos * 2, maxBackoff.toNanos());
+            }
+        }
+    }
+
+    /**
+     * Get the handle of an object in the current session. The handle is resolved once per session.
+     *
+     * @param pkcs11ObjectLocator Reference to the object
+     * @return Handle of the object
+     * @throws Pkcs11Exception Thrown if the object does not exist or can't be searched
+     */
+    public long getObjectHandle(Pkcs11ObjectLocator pkcs11ObjectLocator) throws Pkcs11Exception {
+        // Use the already resolved handle
+        Long objectHandle = objectHandles.get(pkcs11ObjectLocator);
+        if (objectHandle != null) {
+            return objectHandle;
+        }
+
+        // Search the objects of the class and match them by the ID or label
+        Pkcs11Session currentPkcs11Session = ensureSession();
+        CkAttribute ckAttribute = pkcs11ObjectLocator.id() != null ? CkAttribute.CKA_ID : CkAttribute.CKA_LABEL;
+        byte[] expectedValue = pkcs11ObjectLocator.id() != null ? pkcs11ObjectLocator.id() : pkcs11ObjectLocator.label().getBytes(StandardCharsets.UTF_8);
+        List<CkAttributeValue> searchTemplate = List.of(new CkAttributeValue(CkAttribute.CKA_CLASS, pkcs11ObjectLocator.objectClass().value));
+        for (long currentObjectHandle : currentPkcs11Session.findObjects(searchTemplate)) {
+            if (Arrays.equals(expectedValue, currentPkcs11Session.getAttributeValue(currentObjectHandle, List.of(ckAttribute)).getFirst())) {
+                objectHandles.put(pkcs11ObjectLocator, currentObjectHandle);
+                return currentObjectHandle;
+            }
+        }
+        throw new Pkcs11Exception("Unable to find the " + pkcs11ObjectLocator.objectClass() + " object with the " + ckAttribute + " " + (pkcs11ObjectLocator.id() != null ? Pkcs11Utils.bytesToHex(pkcs11ObjectLocator.id()) : pkcs11ObjectLocator.label()));
+    }
+
+    /**
+     * The resilient session supports the try-with-resource statement. Closing will close the current session.
+     */
+    @Override
+    public void close() throws IOException {
+        Pkcs11Session currentPkcs11Session = pkcs11Session;
+        pkcs11Session = null;
+        objectHandles.clear();
+        if (currentPkcs11Session != null) {
+            currentPkcs11Session.close();
+        }
+    }
+
+    /**
+     * Get the current session or open and log in a new one.
+     *
+     * @return Valid session
+     * @throws Pkcs11Exception Thrown if the session can't be opened or the login fails
+     */
+    private Pkcs11Session ensureSession() throws Pkcs11Exception {
+        // Use the current session
+        if (pkcs11Session != null) {
+            return pkcs11Session;
+        }
+
+        // Open a new session and log in, the login might still be active from another session of the application
+        Pkcs11Session newPkcs11Session = pkcs11Token.openSession(rwSession, true);
+        if (ckUserType != null) {
+            try {
+                newPkcs11Session.loginUser(ckUserType, pinOrPuk);
+            } catch (Pkcs11Exception exception) {
+                if (exception.getCkResult() != CkResult.CKR_USER_ALREADY_LOGGED_IN) {
+                    newPkcs11Session.closeQuietly();
+                    throw exception;
+                }
+            }
+        }
+        pkcs11Session = newPkcs11Session;
+        return newPkcs11Session;
+    }
+
+    /**
+     * Drop the current session and its object handles.
+     */
+    private void invalidateSession() {
+        if (pkcs11Session != null) {
+            pkcs11Session.closeQuietly();
+            pkcs11Session = null;
+            rebuildCount++;
+        }
+        objectHandles.clear();
+    }
+}
@@ -0,0 +1,31 @@
+package ch.swaechter.pkcs11.library.objects;
+
+/**
+ * Snapshot of a token in the signing router.
+ *
+ * @param slotId           ID of the slot
+ * @param drained          Flag whether the token was drained because it disappeared or failed
+ * @param outstanding      Number of signatures in flight
+ * @param ewmaLatencyNanos Exponentially weighted moving average of the sign latency in nanoseconds
+ * @param signatures       Number of created signatures
+ * @param errors           Number of failed signatures
+ * @param recoveries       Number of lost sessions that were replaced
+ * @author Simon Wächter
+ */
+public record Pkcs11RoutedTokenStatus(
+
+    long slotId,
+
+    boolean drained,
+
+    int outstanding,
+
+    double ewmaLatencyNanos,
+
+    long signatures,
+
+    long errors,
+
+    long recoveries
+) {
+}
@@ -0,0 +1,20 @@
+package ch.swaechter.pkcs11.library.objects;
+
+/**
+ * Strategy of the signing router to pick a token for the next signature.
+ *
+ * @author Simon Wächter
+ */
+public enum Pkcs11RoutingStrategy {
+
+    /**
+     * Pick the token with the fewest signatures in flight. Works best for tokens of the same model.
+     */
+    LEAST_OUTSTANDING,
+
+    /**
+     * Pick the token with the lowest expected completion time, i.e. the moving average of its latency multiplied by
+     * the signatures in flight. Works best for tokens of different models or on hubs of different speed.
+     */
+    EWMA_LATENCY
+}
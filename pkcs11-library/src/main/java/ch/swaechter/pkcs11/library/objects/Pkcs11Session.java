@@ -3,15 +3,26 @@ package ch.swaechter.pkcs11.library.objects;
 import ch.swaechter.pkcs11.library.Pkcs11Container;
 import ch.swaechter.pkcs11.library.Pkcs11Exception;
 import ch.swaechter.pkcs11.library.Pkcs11Library;
+import ch.swaechter.pkcs11.library.Pkcs11SignatureCallback;
+import ch.swaechter.pkcs11.library.Pkcs11Utils;
+import ch.swaechter.pkcs11.library.events.Pkcs11CallEvent;
+import ch.swaechter.pkcs11.library.events.Pkcs11LoginEvent;
+import ch.swaechter.pkcs11.library.events.Pkcs11SessionEvent;
 import ch.swaechter.pkcs11.library.headers.CkAttribute;
 import ch.swaechter.pkcs11.library.headers.CkAttributeValue;
+import ch.swaechter.pkcs11.library.headers.CkMechanism;
+import ch.swaechter.pkcs11.library.headers.CkResult;
 import ch.swaechter.pkcs11.library.headers.CkSessionInfo;
 import ch.swaechter.pkcs11.library.headers.CkUserType;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Object that represents a slot in the PKCS11 middleware.
@@ -25,6 +36,11 @@ public class Pkcs11Session extends Pkcs11Container implements Closeable {
      */
     private final long sessionId;
 
+    /**
+     * Lazy loaded mechanisms that are supported by the token of the session.
+     */
+    private volatile Set<CkMechanism> supportedMechanisms;
+
     /**
      * Create a new PKCS11 session object.
      *
@@ -67,8 +83,27 @@ public class Pkcs11Session extends Pkcs11Container implements Closeable {
      * @throws Pkcs11Exception Thrown for an error during login
      */
     public void loginUser(CkUserType ckUserType, String pinOrPuk) throws Pkcs11Exception {
-        // Login the user
-        getPkcs11Library().C_Login(sessionId, ckUserType, pinOrPuk);
+        // Login the user and record the login without the PIN
+        Pkcs11LoginEvent pkcs11LoginEvent = new Pkcs11LoginEvent();
+        pkcs11LoginEvent.begin();
+        String callResult = null;
+        try {
+            getPkcs11Library().C_Login(sessionId, ckUserType, pinOrPuk);
+            callResult = CkResult.CKR_OK.name();
+        } catch (Pkcs11Exception exception) {
+            callResult = Pkcs11CallEvent.getResult(exception);
+            throw exception;
+        } finally {
+            // Only fill the event if a recording is interested in it
+            pkcs11LoginEvent.end();
+            if (pkcs11LoginEvent.shouldCommit()) {
+                pkcs11LoginEvent.action = "Login";
+                pkcs11LoginEvent.sessionId = sessionId;
+                pkcs11LoginEvent.userType = ckUserType.name();
+                pkcs11LoginEvent.result = callResult;
+                pkcs11LoginEvent.commit();
+            }
+        }
     }
 
     /**
@@ -77,8 +112,26 @@ public class Pkcs11Session extends Pkcs11Container implements Closeable {
      * @throws Pkcs11Exception Thrown for an error during logout
      */
     public void logoutUser() throws Pkcs11Exception {
-        // Logout the user
-        getPkcs11Library().C_Logout(sessionId);
+        // Logout the user and record the logout
+        Pkcs11LoginEvent pkcs11LoginEvent = new Pkcs11LoginEvent();
+        pkcs11LoginEvent.begin();
+        String callResult = null;
+        try {
+            getPkcs11Library().C_Logout(sessionId);
+            callResult = CkResult.CKR_OK.name();
+        } catch (Pkcs11Exception exception) {
+            callResult = Pkcs11CallEvent.getResult(exception);
+            throw exception;
+        } finally {
+            // Only fill the event if a recording is interested in it
+            pkcs11LoginEvent.end();
+            if (pkcs11LoginEvent.shouldCommit()) {
+                pkcs11LoginEvent.action = "Logout";
+                pkcs11LoginEvent.sessionId = sessionId;
+                pkcs11LoginEvent.result = callResult;
+                pkcs11LoginEvent.commit();
+            }
+        }
     }
 
     /**
@@ -171,6 +224,160 @@ public class Pkcs11Session extends Pkcs11Container implements Closeable {
         return getPkcs11Library().C_GetAttributeValue(sessionId, objectId, attributes);
     }
 
+    /**
+     * Digest the data in a single part with the given mechanism.
+     *
+     * @param mechanism Digest mechanism like CKM_SHA256
+     * @param data      Data to digest
+     * @return Digested data
+     * @throws Pkcs11Exception Thrown if the digest operation fails
+     */
+    public byte[] digest(CkMechanism mechanism, byte[] data) throws Pkcs11Exception {
+        // Initialize the digest operation and digest the data
+        getPkcs11Library().C_DigestInit(sessionId, mechanism);
+        return getPkcs11Library().C_Digest(sessionId, data);
+    }
+
+    /**
+     * Initialize a multi-part digest operation with the given mechanism.
+     *
+     * @param mechanism Digest mechanism like CKM_SHA256
+     * @throws Pkcs11Exception Thrown if the digest operation can't be initialized
+     */
+    public void digestInit(CkMechanism mechanism) throws Pkcs11Exception {
+        getPkcs11Library().C_DigestInit(sessionId, mechanism);
+    }
+
+    /**
+     * Continue a multi-part digest operation with the next part of the data.
+     *
+     * @param data Part of the data to digest
+     * @throws Pkcs11Exception Thrown if the digest operation fails
+     */
+    public void digestUpdate(byte[] data) throws Pkcs11Exception {
+        getPkcs11Library().C_DigestUpdate(sessionId, data);
+    }
+
+    /**
+     * Finish a multi-part digest operation.
+     *
+     * @return Digested data
+     * @throws Pkcs11Exception Thrown if the digest operation fails
+     */
+    public byte[] digestFinal() throws Pkcs11Exception {
+        return getPkcs11Library().C_DigestFinal(sessionId);
+    }
+
+    /**
+     * Sign the message in a single part with the given mechanism and private key.
+     *
+     * @param mechanism Sign mechanism like CKM_SHA256_RSA_PKCS
+     * @param keyHandle ID of the private key object
+     * @param message   Message to sign
+     * @return Signature of the message
+     * @throws Pkcs11Exception Thrown if the sign operation fails
+     */
+    public byte[] sign(CkMechanism mechanism, long keyHandle, byte[] message) throws Pkcs11Exception {
+        return sign(mechanism, keyHandle, message, 8000);
+    }
+
+    /**
+     * Sign the message in a single part with the given mechanism and private key.
+     *
+     * @param mechanism     Sign mechanism like CKM_SHA256_RSA_PKCS
+     * @param keyHandle     ID of the private key object
+     * @param message       Message to sign
+     * @param signatureSize Size of the signature buffer
+     * @return Signature of the message
+     * @throws Pkcs11Exception Thrown if the sign operation fails
+     */
+    public byte[] sign(CkMechanism mechanism, long keyHandle, byte[] message, int signatureSize) throws Pkcs11Exception {
+        // Initialize the sign operation and sign the message
+        getPkcs11Library().C_SignInit(sessionId, mechanism, keyHandle);
+        return getPkcs11Library().C_Sign(sessionId, message, signatureSize);
+    }
+
+    /**
+     * Sign the message with the given combined hash-and-sign mechanism, but create the digest on the host. The digest
+     * is wrapped in a DigestInfo for RSA and signed with raw CKM_RSA_PKCS, or signed as it is with raw CKM_ECDSA. This
+     * way the token only has to process a few bytes instead of the whole message. The resulting signature is the same
+     * as the one of the combined mechanism. If the token does not support the raw mechanism or the mechanism has no
+     * host-side equivalent, the message is signed by the token with the combined mechanism.
+     *
+     * @param mechanism Combined sign mechanism like CKM_SHA256_RSA_PKCS or CKM_ECDSA_SHA256
+     * @param keyHandle ID of the private key object
+     * @param message   Message to sign
+     * @return Signature of the message
+     * @throws Pkcs11Exception Thrown if the sign operation fails
+     */
+    public byte[] signWithHostDigest(CkMechanism mechanism, long keyHandle, byte[] message) throws Pkcs11Exception {
+        return signWithHostDigest(mechanism, keyHandle, message, 8000);
+    }
+
+    /**
+     * Sign the message with the given combined hash-and-sign mechanism, but create the digest on the host. See
+     * {@link #signWithHostDigest(CkMechanism, long, byte[])} for the details.
+     *
+     * @param mechanism     Combined sign mechanism like CKM_SHA256_RSA_PKCS or CKM_ECDSA_SHA256
+     * @param keyHandle     ID of the private key object
+     * @param message       Message to sign
+     * @param signatureSize Size of the signature buffer
+     * @return Signature of the message
+     * @throws Pkcs11Exception Thrown if the sign operation fails
+     */
+    public byte[] signWithHostDigest(CkMechanism mechanism, long keyHandle, byte[] message, int signatureSize) throws Pkcs11Exception {
+        // Get the host digest algorithm and the raw mechanism
+        String digestAlgorithm = getDigestAlgorithm(mechanism);
+        CkMechanism rawMechanism = getRawMechanism(mechanism);
+
+        // Let the token hash the message if there is no host-side equivalent
+        if (digestAlgorithm == null || rawMechanism == null || !getSupportedMechanisms().contains(rawMechanism)) {
+            return sign(mechanism, keyHandle, message, signatureSize);
+        }
+
+        // Digest the message on the host
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance(digestAlgorithm).digest(message);
+        } catch (NoSuchAlgorithmException exception) {
+            throw new Pkcs11Exception("Unable to digest the message: " + exception.getMessage(), exception);
+        }
+
+        // Sign the DigestInfo for RSA and the plain digest for ECDSA
+        byte[] data = rawMechanism == CkMechanism.CKM_RSA_PKCS ? Pkcs11Utils.encodeDigestInfo(digestAlgorithm, digest) : digest;
+        return sign(rawMechanism, keyHandle, data, signatureSize);
+    }
+
+    /**
+     * Sign a batch of messages with the given mechanism and private key. The signatures are streamed back via the
+     * callback in the order of the messages.
+     *
+     * @param mechanism         Sign mechanism like CKM_SHA256_RSA_PKCS
+     * @param keyHandle         ID of the private key object
+     * @param messages          Messages to sign, each from its position to its limit
+     * @param signatureCallback Callback that receives a short-lived view of each signature
+     * @throws Pkcs11Exception Thrown if a sign operation fails
+     */
+    public void signBatch(CkMechanism mechanism, long keyHandle, List<ByteBuffer> messages, Pkcs11SignatureCallback signatureCallback) throws Pkcs11Exception {
+        signBatch(mechanism, keyHandle, messages, 8000, signatureCallback);
+    }
+
+    /**
+     * Sign a batch of messages with the given mechanism and private key. The signatures are streamed back via the
+     * callback in the order of the messages.
+     *
+     * @param mechanism         Sign mechanism like CKM_SHA256_RSA_PKCS
+     * @param keyHandle         ID of the private key object
+     * @param messages          Messages to sign, each from its position to its limit
+     * @param signatureSize     Size of the signature buffer
+     * @param signatureCallback Callback that receives a short-lived view of each signature
+     * @throws Pkcs11Exception Thrown if a sign operation fails
+     */
+    public void signBatch(CkMechanism mechanism, long keyHandle, List<ByteBuffer> messages, int signatureSize, Pkcs11SignatureCallback signatureCallback) throws Pkcs11Exception {
+        // Sign all messages
+        getPkcs11Library().signBatch(sessionId, mechanism, keyHandle, messages, signatureSize, signatureCallback);
+    }
+
     /**
      * Mix in additional seed material to the random number generator.
      *
@@ -194,17 +401,88 @@ public class Pkcs11Session extends Pkcs11Container implements Closeable {
         return getPkcs11Library().C_GenerateRandom(sessionId, length);
     }
 
+    /**
+     * Get the mechanisms that are supported by the token of the session. The list is only read once per session.
+     *
+     * @return Supported mechanisms
+     * @throws Pkcs11Exception Thrown if the session info or the mechanisms can't be read
+     */
+    private Set<CkMechanism> getSupportedMechanisms() throws Pkcs11Exception {
+        if (supportedMechanisms == null) {
+            long slotId = getSessionInfo().getSlotId();
+            supportedMechanisms = Set.copyOf(getPkcs11Library().C_GetMechanismList(slotId));
+        }
+        return supportedMechanisms;
+    }
+
+    /**
+     * Get the JDK digest algorithm of a combined hash-and-sign mechanism.
+     *
+     * @param mechanism Combined sign mechanism
+     * @return JDK name of the digest algorithm or null if the mechanism is not a supported combined mechanism
+     */
+    private static String getDigestAlgorithm(CkMechanism mechanism) {
+        return switch (mechanism) {
+            case CKM_SHA1_RSA_PKCS, CKM_ECDSA_SHA1 -> "SHA-1";
+            case CKM_SHA224_RSA_PKCS, CKM_ECDSA_SHA224 -> "SHA-224";
+            case CKM_SHA256_RSA_PKCS, CKM_ECDSA_SHA256 -> "SHA-256";
+            case CKM_SHA384_RSA_PKCS, CKM_ECDSA_SHA384 -> "SHA-384";
+            case CKM_SHA512_RSA_PKCS, CKM_ECDSA_SHA512 -> "SHA-512";
+            default -> null;
+        };
+    }
+
+    /**
+     * Get the raw sign mechanism of a combined hash-and-sign mechanism.
+     *
+     * @param mechanism Combined sign mechanism
+     * @return Raw sign mechanism or null if the mechanism is not a supported combined mechanism
+     */
+    private static CkMechanism getRawMechanism(CkMechanism mechanism) {
+        return switch (mechanism) {
+            case CKM_SHA1_RSA_PKCS, CKM_SHA224_RSA_PKCS, CKM_SHA256_RSA_PKCS, CKM_SHA384_RSA_PKCS, CKM_SHA512_RSA_PKCS -> CkMechanism.CKM_RSA_PKCS;
+            case CKM_ECDSA_SHA1, CKM_ECDSA_SHA224, CKM_ECDSA_SHA256, CKM_ECDSA_SHA384, CKM_ECDSA_SHA512 -> CkMechanism.CKM_ECDSA;
+            default -> null;
+        };
+    }
+
+    /**
+     * Close the session and ignore errors. This is meant for sessions that are discarded after a failure, where the
+     * session or the whole token might already be gone.
+     */
+    public void closeQuietly() {
+        try {
+            close();
+        } catch (IOException exception) {
+            // Ignore, the session might already be gone
+        }
+    }
+
     /**
      * The session supports the try-with-resource statement. A caller can create the session via try and close will
      * automatically close the session, even when an exception is thrown after opening it.
      */
     @Override
     public void close() throws IOException {
+        // Close the session and record it
+        Pkcs11SessionEvent pkcs11SessionEvent = new Pkcs11SessionEvent();
+        pkcs11SessionEvent.begin();
+        String callResult = null;
         try {
-            // Close the session
             getPkcs11Library().C_CloseSession(sessionId);
+            callResult = CkResult.CKR_OK.name();
         } catch (Pkcs11Exception exception) {
+            callResult = Pkcs11CallEvent.getResult(exception);
             throw new IOException(exception.getMessage(), exception);
+        } finally {
+            // Only fill the event if a recording is interested in it
+            pkcs11SessionEvent.end();
+            if (pkcs11SessionEvent.shouldCommit()) {
+                pkcs11SessionEvent.action = "Close";
+                pkcs11SessionEvent.sessionId = sessionId;
+                pkcs11SessionEvent.result = callResult;
+                pkcs11SessionEvent.commit();
+            }
         }
     }
 }
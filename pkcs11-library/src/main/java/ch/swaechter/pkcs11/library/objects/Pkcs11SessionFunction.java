@@ -0,0 +1,22 @@
+package ch.swaechter.pkcs11.library.objects;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+
+/**
+ * Function that is executed with a borrowed session, e.g. from a session pool.
+ *
+ * @param <T> Type of the result
+ * @author Simon Wächter
+ */
+@FunctionalInterface
+public interface Pkcs11SessionFunction<T> {
+
+    /**
+     * Execute the function with the given session.
+     *
+     * @param pkcs11Session Session to work with
+     * @return Result of the function
+     * @throws Pkcs11Exception Thrown if the function fails
+     */
+    T apply(Pkcs11Session pkcs11Session) throws Pkcs11Exception;
+}
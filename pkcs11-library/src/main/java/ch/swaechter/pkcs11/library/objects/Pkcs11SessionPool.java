@@ -0,0 +1,385 @@
+package ch.swaechter.pkcs11.library.objects;
+
+import ch.swaechter.pkcs11.library.Pkcs11Container;
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.headers.CkResult;
+import ch.swaechter.pkcs11.library.headers.CkUserType;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of opened sessions for a single token. A session can only be used by one thread at a time, so the pool hands
+ * out each session exclusively and takes it back afterward. The login state in PKCS11 is shared between all
+ * sessions of an application, so a single login makes all pooled sessions authenticated.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11SessionPool extends Pkcs11Container implements Closeable {
+
+    /**
+     * Token of the sessions.
+     */
+    private final Pkcs11Token pkcs11Token;
+
+    /**
+     * Flag whether the sessions are read/write or read-only.
+     */
+    private final boolean rwSession;
+
+    /**
+     * Type of the user or null if the sessions are not logged in.
+     */
+    private final CkUserType ckUserType;
+
+    /**
+     * PIN/PUK or null in case the token has a protected authentication path.
+     */
+    private final String pinOrPuk;
+
+    /**
+     * All sessions of the pool.
+     */
+    private final List<Pkcs11Session> pkcs11Sessions;
+
+    /**
+     * Sessions that are currently not in use.
+     */
+    private final Deque<Pkcs11Session> idlePkcs11Sessions;
+
+    /**
+     * Lock that guards the idle sessions, the borrowed session count and the closed flag.
+     */
+    private final ReentrantLock lock;
+
+    /**
+     * Condition that is signalled when a session is returned or the pool gets closed.
+     */
+    private final Condition sessionAvailable;
+
+    /**
+     * Condition that is signalled when the last borrowed session is returned.
+     */
+    private final Condition allSessionsReturned;
+
+    /**
+     * Number of sessions that are currently borrowed.
+     */
+    private int borrowedSessionCount;
+
+    /**
+     * Flag whether the pool is closed.
+     */
+    private boolean closed;
+
+    /**
+     * Create a new session pool without logging in.
+     *
+     * @param pkcs11Token  Token to open the sessions for
+     * @param sessionCount Number of sessions to open
+     * @param rwSession    Flag whether the sessions are read/write or read-only
+     * @throws Pkcs11Exception Thrown if the sessions can't be opened
+     */
+    public Pkcs11SessionPool(Pkcs11Token pkcs11Token, int sessionCount, boolean rwSession) throws Pkcs11Exception {
+        this(pkcs11Token, sessionCount, rwSession, null, null);
+    }
+
+    /**
+     * Create a new session pool and log in the user, so all sessions are pre-authenticated.
+     *
+     * @param pkcs11Token  Token to open the sessions for
+     * @param sessionCount Number of sessions to open
+     * @param rwSession    Flag whether the sessions are read/write or read-only
+     * @param ckUserType   Type of the user or null to skip the login
+     * @param pinOrPuk     PIN/PUK or null in case the token has a protected authentication path
+     * @throws Pkcs11Exception Thrown if the sessions can't be opened or the login fails
+     */
+    public Pkcs11SessionPool(Pkcs11Token pkcs11Token, int sessionCount, boolean rwSession, CkUserType ckUserType, String pinOrPuk) throws Pkcs11Exception {
+        super(pkcs11Token.getPkcs11Library());
+        this.pkcs11Token = pkcs11Token;
+        this.rwSession = rwSession;
+        this.ckUserType = ckUserType;
+        this.pinOrPuk = pinOrPuk;
+
+        // Check the session count
+        if (sessionCount < 1) {
+            throw new Pkcs11Exception("The session count has to be at least 1, not " + sessionCount);
+        }
+
+        // Open all sessions
+        List<Pkcs11Session> openedPkcs11Sessions = new ArrayList<>(sessionCount);
+        try {
+            for (int i = 0; i < sessionCount; i++) {
+                openedPkcs11Sessions.add(pkcs11Token.openSession(rwSession, true));
+            }
+
+            // Log in once, the login state is shared by all sessions
+            if (ckUserType != null) {
+                login(openedPkcs11Sessions.getFirst(), ckUserType, pinOrPuk);
+            }
+        } catch (Pkcs11Exception exception) {
+            // Close the already opened sessions
+            closeSessions(openedPkcs11Sessions);
+            throw exception;
+        }
+
+        // Make all sessions available
+        this.pkcs11Sessions = openedPkcs11Sessions;
+        this.idlePkcs11Sessions = new ArrayDeque<>(openedPkcs11Sessions);
+        this.lock = new ReentrantLock();
+        this.sessionAvailable = lock.newCondition();
+        this.allSessionsReturned = lock.newCondition();
+        this.borrowedSessionCount = 0;
+        this.closed = false;
+    }
+
+    /**
+     * Get the token of the sessions, e.g. to open a dedicated session next to the pooled ones.
+     *
+     * @return Token of the sessions
+     */
+    public Pkcs11Token getToken() {
+        return pkcs11Token;
+    }
+
+    /**
+     * Get the slot ID.
+     *
+     * @return ID of the slot
+     */
+    public long getSlotId() {
+        return pkcs11Token.getSlotId();
+    }
+
+    /**
+     * Get the number of sessions in the pool.
+     *
+     * @return Number of sessions
+     */
+    public int getSessionCount() {
+        lock.lock();
+        try {
+            return pkcs11Sessions.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of sessions that are currently not in use.
+     *
+     * @return Number of idle sessions
+     */
+    public int getIdleSessionCount() {
+        lock.lock();
+        try {
+            return idlePkcs11Sessions.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Borrow a session exclusively. The call blocks until a session is available. The session has to be returned
+     * via {@link #returnSession(Pkcs11Session)} afterward.
+     *
+     * @return Borrowed session
+     * @throws Pkcs11Exception Thrown if the pool is closed or the thread was interrupted
+     */
+    public Pkcs11Session borrowSession() throws Pkcs11Exception {
+        try {
+            lock.lockInterruptibly();
+            try {
+                // Wait for the next free session, closing the pool wakes up all waiting threads
+                while (!closed && idlePkcs11Sessions.isEmpty()) {
+                    sessionAvailable.await();
+                }
+                ensureIsOpen();
+                borrowedSessionCount++;
+                return idlePkcs11Sessions.poll();
+            } finally {
+                lock.unlock();
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new Pkcs11Exception("Interrupted while waiting for a session", exception);
+        }
+    }
+
+    /**
+     * Return a previously borrowed session to the pool. A session that is returned after the pool got closed is
+     * closed right away.
+     *
+     * @param pkcs11Session Borrowed session
+     */
+    public void returnSession(Pkcs11Session pkcs11Session) {
+        // Make the session available again if the pool is open
+        lock.lock();
+        try {
+            if (!closed) {
+                borrowedSessionCount--;
+                idlePkcs11Sessions.offer(pkcs11Session);
+                sessionAvailable.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // Close the session outside the lock and only then let the closing thread continue
+        closeSessions(List.of(pkcs11Session));
+        lock.lock();
+        try {
+            borrowedSessionCount--;
+            if (borrowedSessionCount == 0) {
+                allSessionsReturned.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replace a borrowed session that is no longer usable, e.g. after CKR_SESSION_HANDLE_INVALID, with a newly opened
+     * session. The new session is logged in again if the pool logged in, because the login state might have been lost
+     * together with the session. The broken session is closed and the new session counts as borrowed instead, so it
+     * has to be returned as usual.
+     *
+     * @param pkcs11Session Borrowed session that is no longer usable
+     * @return New borrowed session
+     * @throws Pkcs11Exception Thrown if the new session can't be opened or logged in, the broken session stays borrowed
+     */
+    public Pkcs11Session replaceSession(Pkcs11Session pkcs11Session) throws Pkcs11Exception {
+        // Open and log in the new session
+        Pkcs11Session newPkcs11Session = pkcs11Token.openSession(rwSession, true);
+        try {
+            if (ckUserType != null) {
+                login(newPkcs11Session, ckUserType, pinOrPuk);
+            }
+        } catch (Pkcs11Exception exception) {
+            newPkcs11Session.closeQuietly();
+            throw exception;
+        }
+
+        // Swap the sessions
+        lock.lock();
+        try {
+            int index = pkcs11Sessions.indexOf(pkcs11Session);
+            if (index < 0) {
+                newPkcs11Session.closeQuietly();
+                throw new Pkcs11Exception("The session " + pkcs11Session.getSessionId() + " is not part of the session pool for slot " + getSlotId());
+            }
+            pkcs11Sessions.set(index, newPkcs11Session);
+        } finally {
+            lock.unlock();
+        }
+
+        // Close the broken session
+        pkcs11Session.closeQuietly();
+        return newPkcs11Session;
+    }
+
+    /**
+     * Borrow a session, execute the function with it and return the session afterward.
+     *
+     * @param pkcs11SessionFunction Function to execute
+     * @param <T>                   Type of the result
+     * @return Result of the function
+     * @throws Pkcs11Exception Thrown if no session can be borrowed or the function fails
+     */
+    public <T> T execute(Pkcs11SessionFunction<T> pkcs11SessionFunction) throws Pkcs11Exception {
+        Pkcs11Session pkcs11Session = borrowSession();
+        try {
+            return pkcs11SessionFunction.apply(pkcs11Session);
+        } finally {
+            returnSession(pkcs11Session);
+        }
+    }
+
+    /**
+     * The pool supports the try-with-resource statement. Closing the pool rejects further borrows and closes the idle
+     * sessions. Borrowed sessions are closed by their threads once they are returned, so each session is closed exactly
+     * once and never while it is in use. At most one minute is waited for the borrowed sessions.
+     */
+    @Override
+    public void close() {
+        List<Pkcs11Session> idleSessions;
+        lock.lock();
+        try {
+            // Ignore if the pool is closed
+            if (closed) {
+                return;
+            }
+
+            // Mark as closed, wake up the waiting threads and take the idle sessions
+            closed = true;
+            sessionAvailable.signalAll();
+            idleSessions = new ArrayList<>(idlePkcs11Sessions);
+            idlePkcs11Sessions.clear();
+        } finally {
+            lock.unlock();
+        }
+
+        // Close the idle sessions
+        closeSessions(idleSessions);
+
+        // Wait for the borrowed sessions, they are closed by the returning threads even if the wait times out
+        lock.lock();
+        try {
+            long remainingNanos = TimeUnit.MINUTES.toNanos(1);
+            while (borrowedSessionCount > 0 && remainingNanos > 0) {
+                remainingNanos = allSessionsReturned.awaitNanos(remainingNanos);
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ensure the pool was not closed.
+     *
+     * @throws Pkcs11Exception Thrown if the pool is closed
+     */
+    private void ensureIsOpen() throws Pkcs11Exception {
+        if (closed) {
+            throw new Pkcs11Exception("The session pool for slot " + getSlotId() + " is closed");
+        }
+    }
+
+    /**
+     * Log in the user and ignore a user that is already logged in by another session of the application.
+     *
+     * @param pkcs11Session Session to log in
+     * @param ckUserType    Type of the user
+     * @param pinOrPuk      PIN/PUK or null in case the token has a protected authentication path
+     * @throws Pkcs11Exception Thrown if the login fails
+     */
+    private static void login(Pkcs11Session pkcs11Session, CkUserType ckUserType, String pinOrPuk) throws Pkcs11Exception {
+        try {
+            pkcs11Session.loginUser(ckUserType, pinOrPuk);
+        } catch (Pkcs11Exception exception) {
+            if (exception.getCkResult() != CkResult.CKR_USER_ALREADY_LOGGED_IN) {
+                throw exception;
+            }
+        }
+    }
+
+    /**
+     * Close all given sessions and ignore errors, so all sessions get a chance to be closed.
+     *
+     * @param pkcs11Sessions Sessions to close
+     */
+    private static void closeSessions(List<Pkcs11Session> pkcs11Sessions) {
+        for (Pkcs11Session pkcs11Session : pkcs11Sessions) {
+            pkcs11Session.closeQuietly();
+        }
+    }
+}
@@ -0,0 +1,496 @@
+package ch.swaechter.pkcs11.library.objects;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.Pkcs11Utils;
+import ch.swaechter.pkcs11.library.headers.CkAttribute;
+import ch.swaechter.pkcs11.library.headers.CkAttributeValue;
+import ch.swaechter.pkcs11.library.headers.CkMechanism;
+import ch.swaechter.pkcs11.library.headers.CkObjectClass;
+import ch.swaechter.pkcs11.library.headers.CkUserType;
+
+import java.io.Closeable;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Router that spreads signatures over a group of tokens holding the same key, e.g. a cloned key or several tokens of
+ * the same CA. Each token gets its own pool of logged in sessions, so the signing capacity grows with every token. The
+ * key is matched by its CKA_ID on every token. A signature is dispatched to the token with the least outstanding work
+ * or the lowest expected latency. A lost session is replaced and the key is looked up again by its CKA_ID, so a token
+ * that only lost its sessions keeps signing. A token that disappears is drained and the signature is retried on the
+ * remaining tokens. With a token prober, unavailable tokens are skipped and degraded tokens are only used
+ * if no healthy token is left. A drained token is re-admitted once the prober reports it healthy again, without a
+ * prober it can be re-admitted by adding it again.
+ *
+ * @author Simon Wächter
+ */
+public final class Pkcs11SigningRouter implements Closeable {
+
+    /**
+     * Weight of the latest latency in the moving average.
+     */
+    private static final double EWMA_ALPHA = 0.2;
+
+    /**
+     * CKA_ID of the key on all tokens.
+     */
+    private final byte[] keyId;
+
+    /**
+     * Number of sessions per token.
+     */
+    private final int sessionsPerToken;
+
+    /**
+     * PIN of the user or null in case the tokens have a protected authentication path.
+     */
+    private final String pin;
+
+    /**
+     * Strategy to pick a token.
+     */
+    private final Pkcs11RoutingStrategy pkcs11RoutingStrategy;
+
+    /**
+     * Optional prober that reports the health of the tokens.
+     */
+    private final Pkcs11TokenProber pkcs11TokenProber;
+
+    /**
+     * All tokens of the router, including the drained ones.
+     */
+    private final List<RoutedToken> routedTokens;
+
+    /**
+     * Rotating start index to spread ties over the tokens.
+     */
+    private final AtomicInteger nextIndex;
+
+    /**
+     * Create a new router and log in on all tokens.
+     *
+     * @param pkcs11Tokens          Tokens that hold the same key
+     * @param keyId                 CKA_ID of the private key on all tokens
+     * @param sessionsPerToken      Number of sessions per token, which limits the signatures in flight per token
+     * @param pin                   PIN of the user or null in case the tokens have a protected authentication path
+     * @param pkcs11RoutingStrategy Strategy to pick a token
+     * @param pkcs11TokenProber     Optional prober that reports the health of the tokens
+     * @throws Pkcs11Exception Thrown if a token can't be logged in or does not hold the key
+     */
+    public Pkcs11SigningRouter(List<Pkcs11Token> pkcs11Tokens, byte[] keyId, int sessionsPerToken, String pin, Pkcs11RoutingStrategy pkcs11RoutingStrategy, Pkcs11TokenProber pkcs11TokenProber) throws Pkcs11Exception {
+        this.keyId = keyId.clone();
+        this.sessionsPerToken = sessionsPerToken;
+        this.pin = pin;
+        this.pkcs11RoutingStrategy = pkcs11RoutingStrategy;
+        this.pkcs11TokenProber = pkcs11TokenProber;
+        this.routedTokens = new CopyOnWriteArrayList<>();
+        this.nextIndex = new AtomicInteger();
+
+        // Add all tokens and close the already added ones on failure
+        try {
+            for (Pkcs11Token pkcs11Token : pkcs11Tokens) {
+                addToken(pkcs11Token);
+            }
+        } catch (Pkcs11Exception exception) {
+            close();
+            throw exception;
+        }
+    }
+
+    /**
+     * Add a token, e.g. after it was plugged in or to re-admit a drained token. An already added token of the same slot
+     * is replaced.
+     *
+     * @param pkcs11Token Token that holds the key
+     * @throws Pkcs11Exception Thrown if the token can't be logged in or does not hold the key
+     */
+    public void addToken(Pkcs11Token pkcs11Token) throws Pkcs11Exception {
+        // Open the logged in sessions and find the key
+        Pkcs11SessionPool pkcs11SessionPool = new Pkcs11SessionPool(pkcs11Token, sessionsPerToken, false, CkUserType.CKU_USER, pin);
+        long keyHandle;
+        try {
+            keyHandle = pkcs11SessionPool.execute(this::findKeyHandle);
+        } catch (Pkcs11Exception exception) {
+            pkcs11SessionPool.close();
+            throw exception;
+        }
+
+        // Replace the previous token of the slot
+        RoutedToken routedToken = new RoutedToken(pkcs11Token, pkcs11SessionPool, keyHandle);
+        for (RoutedToken previousRoutedToken : routedTokens) {
+            if (previousRoutedToken.pkcs11SessionPool.getSlotId() == pkcs11Token.getSlotId()) {
+                routedTokens.remove(previousRoutedToken);
+                previousRoutedToken.drain();
+            }
+        }
+        routedTokens.add(routedToken);
+    }
+
+    /**
+     * Remove a token and close its sessions in the background. Signatures in flight on the token can still finish.
+     *
+     * @param slotId ID of the slot
+     */
+    public void removeToken(long slotId) {
+        for (RoutedToken routedToken : routedTokens) {
+            if (routedToken.pkcs11SessionPool.getSlotId() == slotId) {
+                routedTokens.remove(routedToken);
+                routedToken.drain();
+            }
+        }
+    }
+
+    /**
+     * Sign the message in a single part on the best token. A lost session is replaced once and the message is signed
+     * again on the same token. If the session can't be recovered, the message is signed by another token. If the token
+     * disappears, it is drained and the message is signed by another token.
+     *
+     * @param mechanism Sign mechanism like CKM_SHA256_RSA_PKCS
+     * @param message   Message to sign
+     * @return Signature of the message
+     * @throws Pkcs11Exception Thrown if no token is available or the sign operation fails
+     */
+    public byte[] sign(CkMechanism mechanism, byte[] message) throws Pkcs11Exception {
+        readmitRecoveredTokens();
+        List<RoutedToken> failedRoutedTokens = new ArrayList<>();
+        Pkcs11Exception lastException = null;
+        while (true) {
+            // Pick the next token
+            RoutedToken routedToken = pickToken(failedRoutedTokens);
+            if (routedToken == null) {
+                throw lastException != null ? lastException : new Pkcs11Exception("No token with the key " + Pkcs11Utils.bytesToHex(keyId) + " is available");
+            }
+
+            // Sign the message and retry on another token if the token is gone or its session can't be recovered
+            routedToken.outstanding.incrementAndGet();
+            long startTime = System.nanoTime();
+            try {
+                byte[] signature = signWithToken(routedToken, mechanism, message);
+                routedToken.recordLatency(System.nanoTime() - startTime);
+                routedToken.signatures.increment();
+                return signature;
+            } catch (Pkcs11Exception exception) {
+                routedToken.errors.increment();
+                Pkcs11FailureClass pkcs11FailureClass = Pkcs11FailureClass.classify(exception);
+                if (pkcs11FailureClass == Pkcs11FailureClass.TOKEN_FATAL) {
+                    routedToken.drain();
+                } else if (!routedToken.drained && pkcs11FailureClass != Pkcs11FailureClass.SESSION_FATAL) {
+                    throw exception;
+                }
+                failedRoutedTokens.add(routedToken);
+                lastException = exception;
+            } finally {
+                routedToken.outstanding.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Get the number of tokens that are not drained.
+     *
+     * @return Number of active tokens
+     */
+    public int getActiveTokenCount() {
+        int activeTokenCount = 0;
+        for (RoutedToken routedToken : routedTokens) {
+            activeTokenCount += routedToken.drained ? 0 : 1;
+        }
+        return activeTokenCount;
+    }
+
+    /**
+     * Get the number of signatures created by all tokens.
+     *
+     * @return Number of signatures
+     */
+    public long getSignatureCount() {
+        long signatureCount = 0;
+        for (RoutedToken routedToken : routedTokens) {
+            signatureCount += routedToken.signatures.sum();
+        }
+        return signatureCount;
+    }
+
+    /**
+     * Get the status of all tokens, including the drained ones.
+     *
+     * @return Status of all tokens
+     */
+    public List<Pkcs11RoutedTokenStatus> getStatuses() {
+        List<Pkcs11RoutedTokenStatus> pkcs11RoutedTokenStatuses = new ArrayList<>();
+        for (RoutedToken routedToken : routedTokens) {
+            pkcs11RoutedTokenStatuses.add(new Pkcs11RoutedTokenStatus(routedToken.pkcs11SessionPool.getSlotId(), routedToken.drained, routedToken.outstanding.get(), routedToken.ewmaLatencyNanos, routedToken.signatures.sum(), routedToken.errors.sum(), routedToken.recoveries.sum()));
+        }
+        return pkcs11RoutedTokenStatuses;
+    }
+
+    /**
+     * The router supports the try-with-resource statement. Closing the router will close the sessions of all tokens
+     * and waits for the signatures in flight.
+     */
+    @Override
+    public void close() {
+        for (RoutedToken routedToken : routedTokens) {
+            routedToken.stopRouting();
+            routedToken.pkcs11SessionPool.close();
+        }
+        routedTokens.clear();
+    }
+
+    /**
+     * Sign the message with a session of the token. If the session is lost, e.g. because the token was reset or the
+     * key handle became invalid, the session is replaced, the key is looked up again and the message is signed once
+     * more.
+     *
+     * @param routedToken Token to sign with
+     * @param mechanism   Sign mechanism
+     * @param message     Message to sign
+     * @return Signature of the message
+     * @throws Pkcs11Exception Thrown if the sign operation fails or the session can't be recovered
+     */
+    private byte[] signWithToken(RoutedToken routedToken, CkMechanism mechanism, byte[] message) throws Pkcs11Exception {
+        Pkcs11Session pkcs11Session = routedToken.pkcs11SessionPool.borrowSession();
+        try {
+            try {
+                return pkcs11Session.sign(mechanism, routedToken.keyHandle, message);
+            } catch (Pkcs11Exception exception) {
+                if (Pkcs11FailureClass.classify(exception) != Pkcs11FailureClass.SESSION_FATAL) {
+                    throw exception;
+                }
+            }
+
+            // Replace the lost session, find the key again and retry
+            pkcs11Session = routedToken.pkcs11SessionPool.replaceSession(pkcs11Session);
+            routedToken.keyHandle = findKeyHandle(pkcs11Session);
+            routedToken.recoveries.increment();
+            return pkcs11Session.sign(mechanism, routedToken.keyHandle, message);
+        } finally {
+            routedToken.pkcs11SessionPool.returnSession(pkcs11Session);
+        }
+    }
+
+    /**
+     * Find the private key by its CKA_ID.
+     *
+     * @param pkcs11Session Session to search with
+     * @return Handle of the private key
+     * @throws Pkcs11Exception Thrown if the token does not hold the key
+     */
+    private long findKeyHandle(Pkcs11Session pkcs11Session) throws Pkcs11Exception {
+        List<CkAttributeValue> searchTemplate = List.of(new CkAttributeValue(CkAttribute.CKA_CLASS, CkObjectClass.CKO_PRIVATE_KEY.value));
+        for (long keyHandle : pkcs11Session.findObjects(searchTemplate)) {
+            if (Arrays.equals(keyId, pkcs11Session.getAttributeValue(keyHandle, List.of(CkAttribute.CKA_ID)).getFirst())) {
+                return keyHandle;
+            }
+        }
+        throw new Pkcs11Exception("Unable to find a private key with ID " + Pkcs11Utils.bytesToHex(keyId));
+    }
+
+    /**
+     * Re-admit the drained tokens that the prober reported healthy after they were drained. Only one thread re-admits
+     * a token, the others keep routing to the remaining tokens in the meantime.
+     */
+    private void readmitRecoveredTokens() {
+        if (pkcs11TokenProber == null) {
+            return;
+        }
+        for (RoutedToken routedToken : routedTokens) {
+            if (!routedToken.drained || !isRecovered(routedToken) || !routedToken.readmitting.compareAndSet(false, true)) {
+                continue;
+            }
+            try {
+                addToken(routedToken.pkcs11Token);
+            } catch (Pkcs11Exception exception) {
+                // Keep the token drained until the next successful probe
+                routedToken.drainedAt = Instant.now();
+            } finally {
+                routedToken.readmitting.set(false);
+            }
+        }
+    }
+
+    /**
+     * Check whether a probe completed successfully after the token was drained.
+     *
+     * @param routedToken Drained token
+     * @return Status whether the token recovered
+     */
+    private boolean isRecovered(RoutedToken routedToken) {
+        Optional<Pkcs11TokenStatus> pkcs11TokenStatus = pkcs11TokenProber.getStatus(routedToken.pkcs11SessionPool.getSlotId());
+        if (pkcs11TokenStatus.isEmpty() || pkcs11TokenStatus.get().health() != Pkcs11TokenHealth.HEALTHY || pkcs11TokenStatus.get().lastProbe() == null) {
+            return false;
+        }
+        return pkcs11TokenStatus.get().consecutiveFailures() == 0 && pkcs11TokenStatus.get().lastProbe().isAfter(routedToken.drainedAt);
+    }
+
+    /**
+     * Pick the token with the lowest load. Healthy tokens are preferred over degraded ones and unavailable, drained or
+     * already failed tokens are skipped.
+     *
+     * @param failedRoutedTokens Tokens that already failed to sign the message
+     * @return Picked token or null if no token is available
+     */
+    private RoutedToken pickToken(List<RoutedToken> failedRoutedTokens) {
+        List<RoutedToken> currentRoutedTokens = List.copyOf(routedTokens);
+        int tokenCount = currentRoutedTokens.size();
+        int startIndex = tokenCount > 0 ? Math.floorMod(nextIndex.getAndIncrement(), tokenCount) : 0;
+        double medianLatencyNanos = getMedianLatency(currentRoutedTokens);
+        RoutedToken pickedToken = null;
+        boolean pickedHealthy = false;
+        double pickedLoad = Double.MAX_VALUE;
+        for (int i = 0; i < tokenCount; i++) {
+            // Skip drained and unavailable tokens
+            RoutedToken routedToken = currentRoutedTokens.get((startIndex + i) % tokenCount);
+            Pkcs11TokenHealth health = pkcs11TokenProber != null ? pkcs11TokenProber.getHealth(routedToken.pkcs11SessionPool.getSlotId()) : Pkcs11TokenHealth.HEALTHY;
+            if (routedToken.drained || health == Pkcs11TokenHealth.UNAVAILABLE || failedRoutedTokens.contains(routedToken)) {
+                continue;
+            }
+
+            // Take the token if it is healthier or has a lower load
+            boolean healthy = health == Pkcs11TokenHealth.HEALTHY;
+            double load = switch (pkcs11RoutingStrategy) {
+                case LEAST_OUTSTANDING -> routedToken.outstanding.get();
+                case EWMA_LATENCY -> (routedToken.ewmaLatencyNanos > 0 ? routedToken.ewmaLatencyNanos : medianLatencyNanos) * (routedToken.outstanding.get() + 1);
+            };
+            if (pickedToken == null || (healthy && !pickedHealthy) || (healthy == pickedHealthy && load < pickedLoad)) {
+                pickedToken = routedToken;
+                pickedHealthy = healthy;
+                pickedLoad = load;
+            }
+        }
+        return pickedToken;
+    }
+
+    /**
+     * Get the median of the moving averages of the tokens that already signed. A token without a measurement is
+     * assumed to be as fast as the median, so it neither gets all signatures nor none at all.
+     *
+     * @param currentRoutedTokens Tokens of the router
+     * @return Median latency or 0 if no token signed yet
+     */
+    private static double getMedianLatency(List<RoutedToken> currentRoutedTokens) {
+        double[] latencies = currentRoutedTokens.stream().mapToDouble(routedToken -> routedToken.ewmaLatencyNanos).filter(latency -> latency > 0).sorted().toArray();
+        if (latencies.length == 0) {
+            return 0;
+        }
+        int middle = latencies.length / 2;
+        return latencies.length % 2 == 1 ? latencies[middle] : (latencies[middle - 1] + latencies[middle]) / 2;
+    }
+
+    /**
+     * Token of the router with its sessions and load.
+     */
+    private static class RoutedToken {
+
+        /**
+         * Token that holds the key.
+         */
+        private final Pkcs11Token pkcs11Token;
+
+        /**
+         * Logged in sessions of the token.
+         */
+        private final Pkcs11SessionPool pkcs11SessionPool;
+
+        /**
+         * Handle of the private key on the token, which is looked up again after a lost session.
+         */
+        private volatile long keyHandle;
+
+        /**
+         * Number of signatures in flight.
+         */
+        private final AtomicInteger outstanding;
+
+        /**
+         * Number of created signatures.
+         */
+        private final LongAdder signatures;
+
+        /**
+         * Number of failed signatures.
+         */
+        private final LongAdder errors;
+
+        /**
+         * Number of replaced sessions.
+         */
+        private final LongAdder recoveries;
+
+        /**
+         * Exponentially weighted moving average of the sign latency.
+         */
+        private volatile double ewmaLatencyNanos;
+
+        /**
+         * Flag whether the token is drained.
+         */
+        private volatile boolean drained;
+
+        /**
+         * Point in time the token was drained or its re-admission failed.
+         */
+        private volatile Instant drainedAt;
+
+        /**
+         * Flag whether a thread is re-admitting the token.
+         */
+        private final AtomicBoolean readmitting;
+
+        /**
+         * Create a new routed token.
+         *
+         * @param pkcs11Token       Token that holds the key
+         * @param pkcs11SessionPool Logged in sessions of the token
+         * @param keyHandle         Handle of the private key on the token
+         */
+        private RoutedToken(Pkcs11Token pkcs11Token, Pkcs11SessionPool pkcs11SessionPool, long keyHandle) {
+            this.pkcs11Token = pkcs11Token;
+            this.pkcs11SessionPool = pkcs11SessionPool;
+            this.keyHandle = keyHandle;
+            this.outstanding = new AtomicInteger();
+            this.signatures = new LongAdder();
+            this.errors = new LongAdder();
+            this.recoveries = new LongAdder();
+            this.ewmaLatencyNanos = 0;
+            this.drained = false;
+            this.drainedAt = Instant.MIN;
+            this.readmitting = new AtomicBoolean();
+        }
+
+        /**
+         * Add a latency to the moving average. The first latency initializes the average.
+         *
+         * @param latencyNanos Latency of the signature
+         */
+        private synchronized void recordLatency(long latencyNanos) {
+            ewmaLatencyNanos = ewmaLatencyNanos == 0 ? latencyNanos : ewmaLatencyNanos + EWMA_ALPHA * (latencyNanos - ewmaLatencyNanos);
+        }
+
+        /**
+         * Stop routing to the token and close its sessions in the background. Closing the pool waits for the
+         * signatures in flight on the token, so the calling thread fails over right away instead.
+         */
+        private void drain() {
+            stopRouting();
+            Thread.ofVirtual().name("pkcs11-drain-slot-" + pkcs11SessionPool.getSlotId()).start(pkcs11SessionPool::close);
+        }
+
+        /**
+         * Stop routing to the token.
+         */
+        private void stopRouting() {
+            if (!drained) {
+                drainedAt = Instant.now();
+            }
+            drained = true;
+        }
+    }
+}
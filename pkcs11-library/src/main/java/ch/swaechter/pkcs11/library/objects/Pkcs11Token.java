@@ -3,9 +3,15 @@ package ch.swaechter.pkcs11.library.objects;
 import ch.swaechter.pkcs11.library.Pkcs11Container;
 import ch.swaechter.pkcs11.library.Pkcs11Exception;
 import ch.swaechter.pkcs11.library.Pkcs11Library;
+import ch.swaechter.pkcs11.library.events.Pkcs11CallEvent;
+import ch.swaechter.pkcs11.library.events.Pkcs11SessionEvent;
+import ch.swaechter.pkcs11.library.headers.CkMechanism;
+import ch.swaechter.pkcs11.library.headers.CkResult;
 import ch.swaechter.pkcs11.library.headers.CkSessionInfoFlag;
 import ch.swaechter.pkcs11.library.headers.CkTokenInfo;
 
+import java.util.List;
+
 /**
  * Object that represents a token in the PKCS11 middleware.
  *
@@ -52,6 +58,17 @@ public class Pkcs11Token extends Pkcs11Container {
         return new Pkcs11TokenInfo(ckTokenInfo);
     }
 
+    /**
+     * Get the mechanisms that are supported by the token.
+     *
+     * @return Supported mechanisms
+     * @throws Pkcs11Exception Thrown if the token is not present or the mechanisms can't be read
+     */
+    public List<CkMechanism> getMechanisms() throws Pkcs11Exception {
+        // Get the mechanisms
+        return getPkcs11Library().C_GetMechanismList(slotId);
+    }
+
     /**
      * Open a new PKCS11 session in the PKCS11 middleware.
      *
@@ -66,11 +83,32 @@ public class Pkcs11Token extends Pkcs11Container {
         flags |= rwSession ? CkSessionInfoFlag.CKF_RW_SESSION.value : 0L;
         flags |= serialSession ? CkSessionInfoFlag.CKF_SERIAL_SESSION.value : 0L;
 
-        // Open a new session
-        long sessionId = getPkcs11Library().C_OpenSession(slotId, flags);
+        // Open a new session and record it
+        Pkcs11SessionEvent pkcs11SessionEvent = new Pkcs11SessionEvent();
+        pkcs11SessionEvent.begin();
+        long sessionId = -1L;
+        String callResult = null;
+        try {
+            sessionId = getPkcs11Library().C_OpenSession(slotId, flags);
+            callResult = CkResult.CKR_OK.name();
 
-        // Return the session
-        return new Pkcs11Session(getPkcs11Library(), sessionId);
+            // Return the session
+            return new Pkcs11Session(getPkcs11Library(), sessionId);
+        } catch (Pkcs11Exception exception) {
+            callResult = Pkcs11CallEvent.getResult(exception);
+            throw exception;
+        } finally {
+            // Only fill the event if a recording is interested in it
+            pkcs11SessionEvent.end();
+            if (pkcs11SessionEvent.shouldCommit()) {
+                pkcs11SessionEvent.action = "Open";
+                pkcs11SessionEvent.slotId = slotId;
+                pkcs11SessionEvent.sessionId = sessionId;
+                pkcs11SessionEvent.readWrite = rwSession;
+                pkcs11SessionEvent.result = callResult;
+                pkcs11SessionEvent.commit();
+            }
+        }
     }
 
     /**
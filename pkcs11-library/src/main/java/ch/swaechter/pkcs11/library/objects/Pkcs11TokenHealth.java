@@ -0,0 +1,24 @@
+package ch.swaechter.pkcs11.library.objects;
+
+/**
+ * Health of a token as determined by the token prober.
+ *
+ * @author Simon Wächter
+ */
+public enum Pkcs11TokenHealth {
+
+    /**
+     * The canary succeeds within the latency SLO.
+     */
+    HEALTHY,
+
+    /**
+     * The canary succeeds, but the rolling latency exceeds the SLO, e.g. because of a slow USB hub.
+     */
+    DEGRADED,
+
+    /**
+     * The canary fails or hangs, e.g. because the token was removed or the middleware stopped responding.
+     */
+    UNAVAILABLE
+}
@@ -0,0 +1,422 @@
+package ch.swaechter.pkcs11.library.objects;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.headers.CkMechanism;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background prober that periodically runs a cheap canary operation on each registered token and tracks the rolling
+ * canary latency. A token is healthy as long as the 90th percentile of the last probes is within the latency SLO,
+ * degraded if it exceeds the SLO and unavailable if the last probe failed or hangs longer than the timeout. Routing and
+ * pooling code can check the health before sending work to a token, so a slow token is detected before the requests of
+ * the users time out.
+ * <p>
+ * Each token is probed by its own thread with its own read-only session, so a hanging middleware call only blocks the
+ * probe of that token and is reported as unavailable while it hangs.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11TokenProber implements Closeable {
+
+    /**
+     * Number of probes in the rolling latency window.
+     */
+    public static final int WINDOW_SIZE = 32;
+
+    /**
+     * Length of the random data generated by the random canary.
+     */
+    private static final int RANDOM_CANARY_LENGTH = 16;
+
+    /**
+     * Message signed by the sign canary.
+     */
+    private static final byte[] SIGN_CANARY_MESSAGE = new byte[32];
+
+    /**
+     * Probes per slot ID.
+     */
+    private final Map<Long, TokenProbe> tokenProbes;
+
+    /**
+     * Scheduler that starts the probes.
+     */
+    private final ScheduledExecutorService scheduledExecutorService;
+
+    /**
+     * Latency SLO in nanoseconds.
+     */
+    private final long sloLatencyNanos;
+
+    /**
+     * Time in nanoseconds after which a probe that has not completed marks the token unavailable.
+     */
+    private final long timeoutNanos;
+
+    /**
+     * Create a new prober and start probing all tokens that are added afterward.
+     *
+     * @param interval   Interval between two probes of a token
+     * @param sloLatency Latency SLO the rolling 90th percentile of the canary has to meet
+     * @param timeout    Time after which a probe that has not completed marks the token unavailable
+     */
+    public Pkcs11TokenProber(Duration interval, Duration sloLatency, Duration timeout) {
+        this.tokenProbes = new ConcurrentHashMap<>();
+        this.sloLatencyNanos = sloLatency.toNanos();
+        this.timeoutNanos = timeout.toNanos();
+        this.scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("pkcs11-prober").daemon().factory());
+        this.scheduledExecutorService.scheduleWithFixedDelay(this::probeTokens, 0, interval.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Get a canary that reads the session info. It is the cheapest canary, but some middlewares answer it without
+     * talking to the token.
+     *
+     * @return Session info canary
+     */
+    public static Pkcs11SessionFunction<?> getSessionInfoCanary() {
+        return Pkcs11Session::getSessionInfo;
+    }
+
+    /**
+     * Get a canary that generates 16 bytes of random data on the token.
+     *
+     * @return Random canary
+     */
+    public static Pkcs11SessionFunction<?> getRandomCanary() {
+        return pkcs11Session -> pkcs11Session.generateRandom(RANDOM_CANARY_LENGTH);
+    }
+
+    /**
+     * Get a canary that signs a constant message with a dedicated key. It covers the full signing path, but the user
+     * has to be logged in by the application.
+     *
+     * @param mechanism Sign mechanism like CKM_SHA256_RSA_PKCS
+     * @param keyHandle ID of the dedicated private key object
+     * @return Sign canary
+     */
+    public static Pkcs11SessionFunction<?> getSignCanary(CkMechanism mechanism, long keyHandle) {
+        return pkcs11Session -> pkcs11Session.sign(mechanism, keyHandle, SIGN_CANARY_MESSAGE);
+    }
+
+    /**
+     * Start probing a token. An already probed token of the same slot is replaced.
+     *
+     * @param pkcs11Token Token to probe
+     * @param canary      Canary that is executed with the session of the prober
+     */
+    public void addToken(Pkcs11Token pkcs11Token, Pkcs11SessionFunction<?> canary) {
+        TokenProbe previousTokenProbe = tokenProbes.put(pkcs11Token.getSlotId(), new TokenProbe(pkcs11Token, canary));
+        if (previousTokenProbe != null) {
+            previousTokenProbe.close();
+        }
+    }
+
+    /**
+     * Stop probing a token.
+     *
+     * @param slotId ID of the slot
+     */
+    public void removeToken(long slotId) {
+        TokenProbe tokenProbe = tokenProbes.remove(slotId);
+        if (tokenProbe != null) {
+            tokenProbe.close();
+        }
+    }
+
+    /**
+     * Get the health of a token. Tokens that are not probed are reported as healthy, so routing code works the same
+     * with and without probing.
+     *
+     * @param slotId ID of the slot
+     * @return Health of the token
+     */
+    public Pkcs11TokenHealth getHealth(long slotId) {
+        TokenProbe tokenProbe = tokenProbes.get(slotId);
+        return tokenProbe != null ? tokenProbe.health : Pkcs11TokenHealth.HEALTHY;
+    }
+
+    /**
+     * Get the status of a probed token.
+     *
+     * @param slotId ID of the slot
+     * @return Status of the token or empty if the token is not probed
+     */
+    public Optional<Pkcs11TokenStatus> getStatus(long slotId) {
+        TokenProbe tokenProbe = tokenProbes.get(slotId);
+        return tokenProbe != null ? Optional.of(tokenProbe.getStatus()) : Optional.empty();
+    }
+
+    /**
+     * Get the status of all probed tokens.
+     *
+     * @return Status of all tokens, sorted by the slot ID
+     */
+    public List<Pkcs11TokenStatus> getStatuses() {
+        List<Pkcs11TokenStatus> pkcs11TokenStatuses = new ArrayList<>();
+        for (TokenProbe tokenProbe : tokenProbes.values()) {
+            pkcs11TokenStatuses.add(tokenProbe.getStatus());
+        }
+        pkcs11TokenStatuses.sort(Comparator.comparingLong(Pkcs11TokenStatus::slotId));
+        return pkcs11TokenStatuses;
+    }
+
+    /**
+     * The prober supports the try-with-resource statement. Closing stops the probing and closes the sessions of the
+     * prober once the running probes are completed.
+     */
+    @Override
+    public void close() {
+        scheduledExecutorService.shutdownNow();
+        for (Long slotId : List.copyOf(tokenProbes.keySet())) {
+            removeToken(slotId);
+        }
+    }
+
+    /**
+     * Start a probe of all tokens that are not probed right now and check the running probes for the timeout.
+     */
+    private void probeTokens() {
+        for (TokenProbe tokenProbe : tokenProbes.values()) {
+            tokenProbe.startProbe();
+        }
+    }
+
+    /**
+     * Probe of a single token with its own thread, session and latency window.
+     */
+    private class TokenProbe {
+
+        /**
+         * Probed token.
+         */
+        private final Pkcs11Token pkcs11Token;
+
+        /**
+         * Canary that is executed with the session of the prober.
+         */
+        private final Pkcs11SessionFunction<?> canary;
+
+        /**
+         * Dedicated thread of the token.
+         */
+        private final ExecutorService executorService;
+
+        /**
+         * Latencies of the last successful probes as ring.
+         */
+        private final long[] latencies;
+
+        /**
+         * Number of latencies in the ring.
+         */
+        private int latencyCount;
+
+        /**
+         * Index of the next latency in the ring.
+         */
+        private int nextLatencyIndex;
+
+        /**
+         * Number of failed or hanging probes in a row.
+         */
+        private int consecutiveFailures;
+
+        /**
+         * Message of the last failure or null if the last probe succeeded.
+         */
+        private String lastError;
+
+        /**
+         * End of the last probe or null if no probe completed yet.
+         */
+        private Instant lastProbe;
+
+        /**
+         * Current health of the token, optimistically healthy until the first probe completed.
+         */
+        private volatile Pkcs11TokenHealth health;
+
+        /**
+         * Flag whether a probe is running.
+         */
+        private volatile boolean probing;
+
+        /**
+         * Start of the running probe.
+         */
+        private volatile long probeStartTime;
+
+        /**
+         * Flag whether the running probe was already reported as hanging.
+         */
+        private boolean hangReported;
+
+        /**
+         * Session of the prober, only accessed by the dedicated thread.
+         */
+        private Pkcs11Session pkcs11Session;
+
+        /**
+         * Create a new probe.
+         *
+         * @param pkcs11Token Token to probe
+         * @param canary      Canary that is executed with the session of the prober
+         */
+        private TokenProbe(Pkcs11Token pkcs11Token, Pkcs11SessionFunction<?> canary) {
+            this.pkcs11Token = pkcs11Token;
+            this.canary = canary;
+            this.executorService = Executors.newSingleThreadExecutor(Thread.ofPlatform().name("pkcs11-prober-slot-" + pkcs11Token.getSlotId()).daemon().factory());
+            this.latencies = new long[WINDOW_SIZE];
+            this.health = Pkcs11TokenHealth.HEALTHY;
+            this.probing = false;
+        }
+
+        /**
+         * Start a probe on the dedicated thread or check the running probe for the timeout.
+         */
+        private void startProbe() {
+            // Mark the token unavailable if the running probe hangs
+            if (probing) {
+                if (System.nanoTime() - probeStartTime > timeoutNanos) {
+                    recordHang();
+                }
+                return;
+            }
+
+            // Start the next probe
+            probing = true;
+            probeStartTime = System.nanoTime();
+            try {
+                executorService.execute(this::probe);
+            } catch (RuntimeException exception) {
+                // The probe was removed in the meantime
+                probing = false;
+            }
+        }
+
+        /**
+         * Execute the canary with the session of the prober and record the outcome.
+         */
+        private void probe() {
+            try {
+                // Open the session after a failure or for the first probe
+                if (pkcs11Session == null) {
+                    pkcs11Session = pkcs11Token.openSession(false, true);
+                }
+
+                // Execute the canary
+                long startTime = System.nanoTime();
+                canary.apply(pkcs11Session);
+                recordSuccess(System.nanoTime() - startTime);
+            } catch (Pkcs11Exception | RuntimeException exception) {
+                // Reopen the session with the next probe, e.g. when the token was removed and reinserted
+                recordFailure(exception.getMessage());
+                closeSession();
+            } finally {
+                probing = false;
+            }
+        }
+
+        /**
+         * Record a successful probe and classify the token by the rolling latency.
+         *
+         * @param latencyNanos Latency of the canary
+         */
+        private synchronized void recordSuccess(long latencyNanos) {
+            latencies[nextLatencyIndex] = latencyNanos;
+            nextLatencyIndex = (nextLatencyIndex + 1) % latencies.length;
+            latencyCount = Math.min(latencyCount + 1, latencies.length);
+            consecutiveFailures = 0;
+            lastError = null;
+            lastProbe = Instant.now();
+            hangReported = false;
+            health = getLatencyPercentile(0.9) > sloLatencyNanos ? Pkcs11TokenHealth.DEGRADED : Pkcs11TokenHealth.HEALTHY;
+        }
+
+        /**
+         * Record a failed probe and mark the token unavailable.
+         *
+         * @param message Message of the failure
+         */
+        private synchronized void recordFailure(String message) {
+            if (!hangReported) {
+                consecutiveFailures++;
+            }
+            lastError = message;
+            lastProbe = Instant.now();
+            hangReported = false;
+            health = Pkcs11TokenHealth.UNAVAILABLE;
+        }
+
+        /**
+         * Record a hanging probe once and mark the token unavailable.
+         */
+        private synchronized void recordHang() {
+            if (hangReported) {
+                return;
+            }
+            consecutiveFailures++;
+            lastError = "The canary did not complete within " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms";
+            hangReported = true;
+            health = Pkcs11TokenHealth.UNAVAILABLE;
+        }
+
+        /**
+         * Get a snapshot of the status.
+         *
+         * @return Status of the token
+         */
+        private synchronized Pkcs11TokenStatus getStatus() {
+            return new Pkcs11TokenStatus(pkcs11Token.getSlotId(), health, getLatencyPercentile(0.5), getLatencyPercentile(0.9), getLatencyPercentile(0.99), consecutiveFailures, lastError, lastProbe);
+        }
+
+        /**
+         * Get a nearest rank percentile of the latency window.
+         *
+         * @param percentile Percentile between 0 and 1 like 0.99
+         * @return Latency percentile in nanoseconds or 0 without successful probe
+         */
+        private long getLatencyPercentile(double percentile) {
+            if (latencyCount == 0) {
+                return 0;
+            }
+            long[] sortedLatencies = Arrays.copyOf(latencies, latencyCount);
+            Arrays.sort(sortedLatencies);
+            int rank = Math.max(1, (int) Math.ceil(percentile * latencyCount));
+            return sortedLatencies[rank - 1];
+        }
+
+        /**
+         * Close the session of the prober and ignore errors, the session might already be gone.
+         */
+        private void closeSession() {
+            if (pkcs11Session != null) {
+                pkcs11Session.closeQuietly();
+                pkcs11Session = null;
+            }
+        }
+
+        /**
+         * Stop the probe and close the session once the running probe is completed.
+         */
+        private void close() {
+            executorService.execute(this::closeSession);
+            executorService.shutdown();
+        }
+    }
+}
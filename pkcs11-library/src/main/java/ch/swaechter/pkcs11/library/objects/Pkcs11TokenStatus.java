@@ -0,0 +1,36 @@
+package ch.swaechter.pkcs11.library.objects;
+
+import java.time.Instant;
+
+/**
+ * Snapshot of the probed health of a token.
+ *
+ * @param slotId              ID of the slot
+ * @param health              Current health of the token
+ * @param p50LatencyNanos     Rolling median of the canary latency in nanoseconds or 0 without successful probe
+ * @param p90LatencyNanos     Rolling 90th percentile of the canary latency in nanoseconds or 0 without successful probe
+ * @param p99LatencyNanos     Rolling 99th percentile of the canary latency in nanoseconds or 0 without successful probe
+ * @param consecutiveFailures Number of failed or hanging probes in a row
+ * @param lastError           Message of the last failure or null if the last probe succeeded
+ * @param lastProbe           End of the last probe or null if no probe completed yet
+ * @author Simon Wächter
+ */
+public record Pkcs11TokenStatus(
+
+    long slotId,
+
+    Pkcs11TokenHealth health,
+
+    long p50LatencyNanos,
+
+    long p90LatencyNanos,
+
+    long p99LatencyNanos,
+
+    int consecutiveFailures,
+
+    String lastError,
+
+    Instant lastProbe
+) {
+}
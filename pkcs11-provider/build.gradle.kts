@@ -0,0 +1,4 @@
+dependencies {
+    // Project
+    implementation(project(":pkcs11-library"))
+}
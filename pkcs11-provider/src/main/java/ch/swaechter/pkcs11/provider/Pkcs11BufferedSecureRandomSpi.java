@@ -0,0 +1,75 @@
+package ch.swaechter.pkcs11.provider;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+
+import java.io.Serial;
+import java.security.ProviderException;
+import java.security.SecureRandomSpi;
+
+/**
+ * Secure random that serves small requests from the shared random buffer of the provider instead of calling the token
+ * for each request.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11BufferedSecureRandomSpi extends SecureRandomSpi {
+
+    /**
+     * Serial version UID.
+     */
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Provider of the secure random.
+     */
+    private final transient Pkcs11Provider pkcs11Provider;
+
+    /**
+     * Create a new buffered secure random.
+     *
+     * @param pkcs11Provider Provider of the secure random
+     */
+    public Pkcs11BufferedSecureRandomSpi(Pkcs11Provider pkcs11Provider) {
+        this.pkcs11Provider = pkcs11Provider;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void engineSetSeed(byte[] seed) {
+        try {
+            pkcs11Provider.getRandomBuffer().setSeed(seed);
+        } catch (Pkcs11Exception exception) {
+            throw new ProviderException("Unable to seed: " + exception.getMessage(), exception);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void engineNextBytes(byte[] bytes) {
+        try {
+            pkcs11Provider.getRandomBuffer().nextBytes(bytes);
+        } catch (Pkcs11Exception exception) {
+            throw new ProviderException("Unable to generate random data: " + exception.getMessage(), exception);
+        }
+    }
+
+    /**
+     * Seed material is never taken from the shared buffer, but generated by the token directly.
+     *
+     * @param numBytes Number of seed bytes
+     * @return Seed bytes
+     */
+    @Override
+    protected byte[] engineGenerateSeed(int numBytes) {
+        try {
+            return numBytes > 0 ? pkcs11Provider.getRandomBuffer().generateRandom(numBytes) : new byte[0];
+        } catch (Pkcs11Exception exception) {
+            throw new ProviderException("Unable to generate seed data: " + exception.getMessage(), exception);
+        }
+    }
+}
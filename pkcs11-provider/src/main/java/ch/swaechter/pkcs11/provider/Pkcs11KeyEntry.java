@@ -0,0 +1,21 @@
+package ch.swaechter.pkcs11.provider;
+
+import java.security.cert.X509Certificate;
+
+/**
+ * Define a private key on the token together with its certificate chain.
+ *
+ * @param alias            Alias of the entry
+ * @param privateKey       Reference to the private key
+ * @param certificateChain Certificate chain that starts with the certificate of the key or an empty chain
+ * @author Simon Wächter
+ */
+public record Pkcs11KeyEntry(
+
+    String alias,
+
+    Pkcs11PrivateKey privateKey,
+
+    X509Certificate[] certificateChain
+) {
+}
@@ -0,0 +1,214 @@
+package ch.swaechter.pkcs11.provider;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.Key;
+import java.security.KeyStoreException;
+import java.security.KeyStoreSpi;
+import java.security.ProviderException;
+import java.security.cert.Certificate;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.Map;
+
+/**
+ * Read-only key store with the private keys of the token and their certificate chains. The keys are references to the
+ * token objects and can only be used with the signatures of the same provider.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11KeyStoreSpi extends KeyStoreSpi {
+
+    /**
+     * Provider of the key store.
+     */
+    private final Pkcs11Provider pkcs11Provider;
+
+    /**
+     * Create a new key store.
+     *
+     * @param pkcs11Provider Provider of the key store
+     */
+    public Pkcs11KeyStoreSpi(Pkcs11Provider pkcs11Provider) {
+        this.pkcs11Provider = pkcs11Provider;
+    }
+
+    /**
+     * Load the key store. The stream and password are ignored, because the sessions of the provider are already
+     * authenticated. Loading drops the cached objects, so objects that were changed on the token are read again.
+     *
+     * @param stream   Ignored stream
+     * @param password Ignored password
+     * @throws IOException Thrown if the objects can't be read from the token
+     */
+    @Override
+    public void engineLoad(InputStream stream, char[] password) throws IOException {
+        try {
+            pkcs11Provider.getObjectCache().refresh();
+            pkcs11Provider.getObjectCache().getKeyEntries();
+        } catch (Pkcs11Exception exception) {
+            throw new IOException("Unable to load the key store: " + exception.getMessage(), exception);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Key engineGetKey(String alias, char[] password) {
+        Pkcs11KeyEntry pkcs11KeyEntry = getKeyEntries().get(alias);
+        return pkcs11KeyEntry != null ? pkcs11KeyEntry.privateKey() : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Certificate[] engineGetCertificateChain(String alias) {
+        Pkcs11KeyEntry pkcs11KeyEntry = getKeyEntries().get(alias);
+        return pkcs11KeyEntry != null && pkcs11KeyEntry.certificateChain().length > 0 ? pkcs11KeyEntry.certificateChain().clone() : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Certificate engineGetCertificate(String alias) {
+        Certificate[] certificateChain = engineGetCertificateChain(alias);
+        return certificateChain != null ? certificateChain[0] : null;
+    }
+
+    /**
+     * The token does not provide a creation date.
+     *
+     * @param alias Alias of the entry
+     * @return Always null
+     */
+    @Override
+    public Date engineGetCreationDate(String alias) {
+        return null;
+    }
+
+    /**
+     * The key store is read-only.
+     *
+     * @throws KeyStoreException Always thrown
+     */
+    @Override
+    public void engineSetKeyEntry(String alias, Key key, char[] password, Certificate[] chain) throws KeyStoreException {
+        throw new KeyStoreException("The PKCS11 key store is read-only");
+    }
+
+    /**
+     * The key store is read-only.
+     *
+     * @throws KeyStoreException Always thrown
+     */
+    @Override
+    public void engineSetKeyEntry(String alias, byte[] key, Certificate[] chain) throws KeyStoreException {
+        throw new KeyStoreException("The PKCS11 key store is read-only");
+    }
+
+    /**
+     * The key store is read-only.
+     *
+     * @throws KeyStoreException Always thrown
+     */
+    @Override
+    public void engineSetCertificateEntry(String alias, Certificate certificate) throws KeyStoreException {
+        throw new KeyStoreException("The PKCS11 key store is read-only");
+    }
+
+    /**
+     * The key store is read-only.
+     *
+     * @throws KeyStoreException Always thrown
+     */
+    @Override
+    public void engineDeleteEntry(String alias) throws KeyStoreException {
+        throw new KeyStoreException("The PKCS11 key store is read-only");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Enumeration<String> engineAliases() {
+        return Collections.enumeration(getKeyEntries().keySet());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean engineContainsAlias(String alias) {
+        return getKeyEntries().containsKey(alias);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int engineSize() {
+        return getKeyEntries().size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean engineIsKeyEntry(String alias) {
+        return getKeyEntries().containsKey(alias);
+    }
+
+    /**
+     * The key store only contains key entries.
+     *
+     * @param alias Alias of the entry
+     * @return Always false
+     */
+    @Override
+    public boolean engineIsCertificateEntry(String alias) {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String engineGetCertificateAlias(Certificate certificate) {
+        for (Pkcs11KeyEntry pkcs11KeyEntry : getKeyEntries().values()) {
+            if (pkcs11KeyEntry.certificateChain().length > 0 && pkcs11KeyEntry.certificateChain()[0].equals(certificate)) {
+                return pkcs11KeyEntry.alias();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The key store is read-only and lives on the token.
+     *
+     * @throws IOException Always thrown
+     */
+    @Override
+    public void engineStore(OutputStream stream, char[] password) throws IOException {
+        throw new IOException("The PKCS11 key store is read-only");
+    }
+
+    /**
+     * Get the cached key entries.
+     *
+     * @return Key entries by alias
+     */
+    private Map<String, Pkcs11KeyEntry> getKeyEntries() {
+        try {
+            return pkcs11Provider.getObjectCache().getKeyEntries();
+        } catch (Pkcs11Exception exception) {
+            throw new ProviderException("Unable to read the key store: " + exception.getMessage(), exception);
+        }
+    }
+}
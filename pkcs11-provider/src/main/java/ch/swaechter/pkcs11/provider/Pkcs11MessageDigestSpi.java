@@ -0,0 +1,225 @@
+package ch.swaechter.pkcs11.provider;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.headers.CkMechanism;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Session;
+
+import java.lang.ref.Cleaner;
+import java.security.MessageDigestSpi;
+import java.security.ProviderException;
+import java.util.Arrays;
+
+/**
+ * Message digest that is calculated by the token. The data is collected on the host in chunks. Data that fits into a
+ * single chunk is digested in a single part, so a pooled session is only borrowed for one call. Once the first chunk is
+ * full, a dedicated session is opened, the digest operation is initialized and every full chunk is passed to the token
+ * right away, so the host never holds more than one chunk. The dedicated session is not taken from the pool, because a
+ * digest that is dropped without completing it would hold its session forever. It is closed when the digest is
+ * completed or reset, or by a cleaner once the dropped digest became unreachable.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11MessageDigestSpi extends MessageDigestSpi {
+
+    /**
+     * Size of a chunk that is passed to the token at once.
+     */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Cleaner that closes the dedicated sessions of dropped digests.
+     */
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /**
+     * Provider of the message digest.
+     */
+    private final Pkcs11Provider pkcs11Provider;
+
+    /**
+     * Digest mechanism like CKM_SHA256.
+     */
+    private final CkMechanism mechanism;
+
+    /**
+     * Length of the digest in bytes.
+     */
+    private final int digestLength;
+
+    /**
+     * Chunk with the collected data, which grows up to the chunk size.
+     */
+    private byte[] chunk;
+
+    /**
+     * Number of collected bytes in the chunk.
+     */
+    private int chunkLength;
+
+    /**
+     * Dedicated session of a multi-part digest operation or null if the data still fits into a single chunk.
+     */
+    private Pkcs11Session pkcs11Session;
+
+    /**
+     * Registration that closes the dedicated session exactly once or null if there is no dedicated session.
+     */
+    private Cleaner.Cleanable cleanable;
+
+    /**
+     * Create a new message digest.
+     *
+     * @param pkcs11Provider Provider of the message digest
+     * @param mechanism      Digest mechanism like CKM_SHA256
+     * @param digestLength   Length of the digest in bytes
+     */
+    public Pkcs11MessageDigestSpi(Pkcs11Provider pkcs11Provider, CkMechanism mechanism, int digestLength) {
+        this.pkcs11Provider = pkcs11Provider;
+        this.mechanism = mechanism;
+        this.digestLength = digestLength;
+        this.chunk = new byte[256];
+        this.chunkLength = 0;
+        this.pkcs11Session = null;
+        this.cleanable = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected int engineGetDigestLength() {
+        return digestLength;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void engineUpdate(byte input) {
+        ensureChunkCapacity(chunkLength + 1);
+        chunk[chunkLength++] = input;
+        if (chunkLength == CHUNK_SIZE) {
+            updateChunk();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        // Fill the chunk and pass every full chunk to the token
+        while (len > 0) {
+            int copyLength = Math.min(len, CHUNK_SIZE - chunkLength);
+            ensureChunkCapacity(chunkLength + copyLength);
+            System.arraycopy(input, offset, chunk, chunkLength, copyLength);
+            chunkLength += copyLength;
+            offset += copyLength;
+            len -= copyLength;
+            if (chunkLength == CHUNK_SIZE) {
+                updateChunk();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected byte[] engineDigest() {
+        byte[] data = Arrays.copyOf(chunk, chunkLength);
+        chunkLength = 0;
+
+        // Digest the data in a single part if it fits into one chunk
+        if (pkcs11Session == null) {
+            try {
+                return pkcs11Provider.getSessionPool().execute(pkcs11Session -> pkcs11Session.digest(mechanism, data));
+            } catch (Pkcs11Exception exception) {
+                throw new ProviderException("Unable to digest: " + exception.getMessage(), exception);
+            }
+        }
+
+        // Pass the remaining data and finish the multi-part operation
+        try {
+            if (data.length > 0) {
+                pkcs11Session.digestUpdate(data);
+            }
+            return pkcs11Session.digestFinal();
+        } catch (Pkcs11Exception exception) {
+            throw new ProviderException("Unable to digest: " + exception.getMessage(), exception);
+        } finally {
+            closeSession();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void engineReset() {
+        chunkLength = 0;
+        if (pkcs11Session != null) {
+            // Closing the session terminates the active operation, PKCS11 does not offer another way to cancel it
+            closeSession();
+        }
+    }
+
+    /**
+     * Pass the full chunk to the token and start the multi-part operation on a dedicated session with the first chunk.
+     */
+    private void updateChunk() {
+        byte[] data = Arrays.copyOf(chunk, chunkLength);
+        chunkLength = 0;
+        try {
+            if (pkcs11Session == null) {
+                pkcs11Session = pkcs11Provider.getSessionPool().getToken().openSession(false, true);
+                cleanable = CLEANER.register(this, new SessionCloser(pkcs11Session));
+                pkcs11Session.digestInit(mechanism);
+            }
+            pkcs11Session.digestUpdate(data);
+        } catch (Pkcs11Exception exception) {
+            // The operation is terminated by the failure
+            if (pkcs11Session != null) {
+                closeSession();
+            }
+            throw new ProviderException("Unable to digest: " + exception.getMessage(), exception);
+        }
+    }
+
+    /**
+     * Grow the chunk, so small digests don't allocate a full chunk.
+     *
+     * @param capacity Required capacity up to the chunk size
+     */
+    private void ensureChunkCapacity(int capacity) {
+        if (capacity > chunk.length) {
+            chunk = Arrays.copyOf(chunk, Math.min(CHUNK_SIZE, Math.max(capacity, chunk.length * 2)));
+        }
+    }
+
+    /**
+     * Close the dedicated session of the multi-part operation.
+     */
+    private void closeSession() {
+        cleanable.clean();
+        cleanable = null;
+        pkcs11Session = null;
+    }
+
+    /**
+     * Action that closes a dedicated session. It must not reference the digest, otherwise the digest would never
+     * become unreachable.
+     *
+     * @param pkcs11Session Dedicated session to close
+     */
+    private record SessionCloser(Pkcs11Session pkcs11Session) implements Runnable {
+
+        /**
+         * Close the session and ignore a session that is already gone.
+         */
+        @Override
+        public void run() {
+            pkcs11Session.closeQuietly();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package ch.swaechter.pkcs11.provider;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.Pkcs11Utils;
+import ch.swaechter.pkcs11.library.headers.CkAttribute;
+import ch.swaechter.pkcs11.library.headers.CkAttributeValue;
+import ch.swaechter.pkcs11.library.headers.CkKeyType;
+import ch.swaechter.pkcs11.library.headers.CkObjectClass;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Session;
+import ch.swaechter.pkcs11.library.objects.Pkcs11SessionPool;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.*;
+
+/**
+ * Cache for the key and certificate objects of a token. Searching objects and reading their attributes needs several
+ * round trips to the token, so the objects are only read once and the object handles are reused afterward.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11ObjectCache {
+
+    /**
+     * Session pool to read the objects.
+     */
+    private final Pkcs11SessionPool pkcs11SessionPool;
+
+    /**
+     * Lazy loaded key entries by alias.
+     */
+    private volatile Map<String, Pkcs11KeyEntry> keyEntries;
+
+    /**
+     * Create a new object cache.
+     *
+     * @param pkcs11SessionPool Session pool to read the objects
+     */
+    public Pkcs11ObjectCache(Pkcs11SessionPool pkcs11SessionPool) {
+        this.pkcs11SessionPool = pkcs11SessionPool;
+    }
+
+    /**
+     * Get all key entries. The entries are read from the token on the first access.
+     *
+     * @return Key entries by alias in the order of the token
+     * @throws Pkcs11Exception Thrown if the objects can't be read
+     */
+    public Map<String, Pkcs11KeyEntry> getKeyEntries() throws Pkcs11Exception {
+        Map<String, Pkcs11KeyEntry> currentKeyEntries = keyEntries;
+        if (currentKeyEntries == null) {
+            synchronized (this) {
+                currentKeyEntries = keyEntries;
+                if (currentKeyEntries == null) {
+                    currentKeyEntries = pkcs11SessionPool.execute(Pkcs11ObjectCache::loadKeyEntries);
+                    keyEntries = currentKeyEntries;
+                }
+            }
+        }
+        return currentKeyEntries;
+    }
+
+    /**
+     * Drop the cached entries, so they are read again on the next access.
+     */
+    public void refresh() {
+        keyEntries = null;
+    }
+
+    /**
+     * Read all private keys and certificates and build the key entries.
+     *
+     * @param pkcs11Session Session to read the objects
+     * @return Key entries by alias
+     * @throws Pkcs11Exception Thrown if the objects can't be read
+     */
+    private static Map<String, Pkcs11KeyEntry> loadKeyEntries(Pkcs11Session pkcs11Session) throws Pkcs11Exception {
+        // Read all certificates with their ID
+        List<byte[]> certificateIds = new ArrayList<>();
+        List<X509Certificate> certificates = new ArrayList<>();
+        for (long certificateObjectId : findObjects(pkcs11Session, CkObjectClass.CKO_CERTIFICATE)) {
+            certificateIds.add(getAttribute(pkcs11Session, certificateObjectId, CkAttribute.CKA_ID));
+            certificates.add(parseCertificate(getAttribute(pkcs11Session, certificateObjectId, CkAttribute.CKA_VALUE)));
+        }
+
+        // Read all private keys and match them with their certificate by ID
+        Map<String, Pkcs11KeyEntry> keyEntries = new LinkedHashMap<>();
+        for (long privateKeyObjectId : findObjects(pkcs11Session, CkObjectClass.CKO_PRIVATE_KEY)) {
+            // Read the attributes
+            byte[] id = getAttribute(pkcs11Session, privateKeyObjectId, CkAttribute.CKA_ID);
+            String label = new String(getAttribute(pkcs11Session, privateKeyObjectId, CkAttribute.CKA_LABEL), StandardCharsets.UTF_8).trim();
+            CkKeyType ckKeyType = CkKeyType.valueOf((int) readUnsignedLong(getAttribute(pkcs11Session, privateKeyObjectId, CkAttribute.CKA_KEY_TYPE)));
+
+            // Only keep the supported key types
+            String algorithm = ckKeyType == CkKeyType.CKK_RSA ? "RSA" : ckKeyType == CkKeyType.CKK_EC ? "EC" : null;
+            if (algorithm == null) {
+                continue;
+            }
+
+            // Build a unique alias from the label or the ID
+            String alias = !label.isEmpty() ? label : id.length > 0 ? Pkcs11Utils.bytesToHex(id) : String.valueOf(privateKeyObjectId);
+            if (keyEntries.containsKey(alias)) {
+                alias = alias + "-" + privateKeyObjectId;
+            }
+
+            // Find the matching certificate and build the chain
+            X509Certificate[] certificateChain = new X509Certificate[0];
+            for (int i = 0; i < certificates.size(); i++) {
+                if (id.length > 0 && Arrays.equals(id, certificateIds.get(i))) {
+                    certificateChain = buildCertificateChain(certificates.get(i), certificates);
+                    break;
+                }
+            }
+
+            // Add the entry
+            keyEntries.put(alias, new Pkcs11KeyEntry(alias, new Pkcs11PrivateKey(alias, privateKeyObjectId, algorithm), certificateChain));
+        }
+        return Collections.unmodifiableMap(keyEntries);
+    }
+
+    /**
+     * Build the certificate chain by following the issuers until a self-signed certificate or an unknown issuer.
+     *
+     * @param certificate  Certificate at the start of the chain
+     * @param certificates All available certificates
+     * @return Certificate chain
+     */
+    private static X509Certificate[] buildCertificateChain(X509Certificate certificate, List<X509Certificate> certificates) {
+        List<X509Certificate> certificateChain = new ArrayList<>();
+        certificateChain.add(certificate);
+        X509Certificate currentCertificate = certificate;
+        while (certificateChain.size() <= certificates.size() && !currentCertificate.getIssuerX500Principal().equals(currentCertificate.getSubjectX500Principal())) {
+            // Find the issuer
+            X509Certificate issuerCertificate = null;
+            for (X509Certificate otherCertificate : certificates) {
+                if (otherCertificate.getSubjectX500Principal().equals(currentCertificate.getIssuerX500Principal())) {
+                    issuerCertificate = otherCertificate;
+                    break;
+                }
+            }
+            if (issuerCertificate == null) {
+                break;
+            }
+            certificateChain.add(issuerCertificate);
+            currentCertificate = issuerCertificate;
+        }
+        return certificateChain.toArray(new X509Certificate[0]);
+    }
+
+    /**
+     * Find all objects of the given class.
+     *
+     * @param pkcs11Session Session to find the objects
+     * @param ckObjectClass Class of the objects
+     * @return Found object IDs
+     * @throws Pkcs11Exception Thrown if the objects can't be found
+     */
+    private static List<Long> findObjects(Pkcs11Session pkcs11Session, CkObjectClass ckObjectClass) throws Pkcs11Exception {
+        return pkcs11Session.findObjects(List.of(new CkAttributeValue(CkAttribute.CKA_CLASS, ckObjectClass.value)));
+    }
+
+    /**
+     * Read a single attribute of an object.
+     *
+     * @param pkcs11Session Session to read the attribute
+     * @param objectId      ID of the object
+     * @param ckAttribute   Attribute to read
+     * @return Attribute value
+     * @throws Pkcs11Exception Thrown if the attribute can't be read
+     */
+    private static byte[] getAttribute(Pkcs11Session pkcs11Session, long objectId, CkAttribute ckAttribute) throws Pkcs11Exception {
+        return pkcs11Session.getAttributeValue(objectId, List.of(ckAttribute)).getFirst();
+    }
+
+    /**
+     * Read a platform specific CK_ULONG attribute value.
+     *
+     * @param value Attribute value with 4 or 8 bytes
+     * @return Read value
+     */
+    private static long readUnsignedLong(byte[] value) {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(value).order(ByteOrder.nativeOrder());
+        return value.length >= Long.BYTES ? byteBuffer.getLong() : Integer.toUnsignedLong(byteBuffer.getInt());
+    }
+
+    /**
+     * Parse a DER encoded X.509 certificate.
+     *
+     * @param value DER encoded certificate
+     * @return Parsed certificate
+     * @throws Pkcs11Exception Thrown if the certificate can't be parsed
+     */
+    private static X509Certificate parseCertificate(byte[] value) throws Pkcs11Exception {
+        try {
+            CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+            return (X509Certificate) certificateFactory.generateCertificate(new ByteArrayInputStream(value));
+        } catch (CertificateException exception) {
+            throw new Pkcs11Exception("Unable to parse the certificate: " + exception.getMessage(), exception);
+        }
+    }
+}
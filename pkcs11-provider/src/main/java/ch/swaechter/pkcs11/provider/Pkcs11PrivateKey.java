@@ -0,0 +1,92 @@
+package ch.swaechter.pkcs11.provider;
+
+import java.io.Serial;
+import java.security.PrivateKey;
+
+/**
+ * Reference to a private key that never leaves the token. The key can only be used for signing via the provider.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11PrivateKey implements PrivateKey {
+
+    /**
+     * Serial version UID.
+     */
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Alias of the key.
+     */
+    private final String alias;
+
+    /**
+     * ID of the private key object.
+     */
+    private final long objectId;
+
+    /**
+     * Algorithm of the key like RSA or EC.
+     */
+    private final String algorithm;
+
+    /**
+     * Create a new private key reference.
+     *
+     * @param alias     Alias of the key
+     * @param objectId  ID of the private key object
+     * @param algorithm Algorithm of the key like RSA or EC
+     */
+    public Pkcs11PrivateKey(String alias, long objectId, String algorithm) {
+        this.alias = alias;
+        this.objectId = objectId;
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Get the alias of the key.
+     *
+     * @return Alias of the key
+     */
+    public String getAlias() {
+        return alias;
+    }
+
+    /**
+     * Get the ID of the private key object.
+     *
+     * @return ID of the private key object
+     */
+    public long getObjectId() {
+        return objectId;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * The key is not extractable, so there is no format.
+     *
+     * @return Always null
+     */
+    @Override
+    public String getFormat() {
+        return null;
+    }
+
+    /**
+     * The key is not extractable, so there is no encoding.
+     *
+     * @return Always null
+     */
+    @Override
+    public byte[] getEncoded() {
+        return null;
+    }
+}
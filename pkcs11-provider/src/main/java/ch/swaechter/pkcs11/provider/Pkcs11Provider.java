@@ -0,0 +1,212 @@
+package ch.swaechter.pkcs11.provider;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.Pkcs11Library;
+import ch.swaechter.pkcs11.library.headers.CkMechanism;
+import ch.swaechter.pkcs11.library.headers.CkUserType;
+import ch.swaechter.pkcs11.library.objects.Pkcs11SessionPool;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Token;
+
+import java.io.Closeable;
+import java.io.Serial;
+import java.security.Provider;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * JCA provider for a single token. All operations share a pool of pre-authenticated sessions and a cache of the key
+ * and certificate objects, so an operation neither opens a session nor searches objects. The provider offers:
+ * <ul>
+ *     <li>KeyStore PKCS11 with the private keys and their certificate chains</li>
+ *     <li>Signature SHAxxxwithRSA and SHAxxxwithECDSA, hashed on the host and signed by the token</li>
+ *     <li>MessageDigest SHA-1, SHA-224, SHA-256, SHA-384 and SHA-512 digested by the token</li>
+ *     <li>SecureRandom PKCS11 from the random number generator of the token</li>
+ *     <li>SecureRandom PKCS11Buffered from a shared buffer that is refilled by the token in the background</li>
+ * </ul>
+ *
+ * @author Simon Wächter
+ */
+public final class Pkcs11Provider extends Provider implements Closeable {
+
+    /**
+     * Serial version UID.
+     */
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Name of the provider.
+     */
+    public static final String PROVIDER_NAME = "Pkcs11";
+
+    /**
+     * Session pool with the pre-authenticated sessions.
+     */
+    private final transient Pkcs11SessionPool pkcs11SessionPool;
+
+    /**
+     * Cache for the key and certificate objects.
+     */
+    private final transient Pkcs11ObjectCache pkcs11ObjectCache;
+
+    /**
+     * Lock for the lazy created random buffer.
+     */
+    private final transient Object randomBufferLock;
+
+    /**
+     * Lazy created random buffer.
+     */
+    private transient Pkcs11RandomBuffer pkcs11RandomBuffer;
+
+    /**
+     * Create a new provider, open a session pool for the token and log in the user.
+     *
+     * @param pkcs11Token  Token to use
+     * @param sessionCount Number of pooled sessions
+     * @param pin          PIN of the user or null in case the token has a protected authentication path
+     * @throws Pkcs11Exception Thrown if the sessions can't be opened or the login fails
+     */
+    public Pkcs11Provider(Pkcs11Token pkcs11Token, int sessionCount, String pin) throws Pkcs11Exception {
+        this(new Pkcs11SessionPool(pkcs11Token, sessionCount, false, CkUserType.CKU_USER, pin));
+    }
+
+    /**
+     * Create a new provider on top of an existing session pool. The provider takes over the pool and closes it as well.
+     *
+     * @param pkcs11SessionPool Session pool with pre-authenticated sessions
+     */
+    public Pkcs11Provider(Pkcs11SessionPool pkcs11SessionPool) {
+        super(PROVIDER_NAME, Pkcs11Library.getVersion(), "PKCS11 provider for slot " + pkcs11SessionPool.getSlotId());
+        this.pkcs11SessionPool = pkcs11SessionPool;
+        this.pkcs11ObjectCache = new Pkcs11ObjectCache(pkcs11SessionPool);
+        this.randomBufferLock = new Object();
+
+        // Register the key store
+        putService("KeyStore", "PKCS11", () -> new Pkcs11KeyStoreSpi(this));
+
+        // Register the signatures
+        for (String digestAlgorithm : List.of("SHA-1", "SHA-224", "SHA-256", "SHA-384", "SHA-512")) {
+            String digestName = digestAlgorithm.replace("-", "");
+            putService("Signature", digestName + "withRSA", () -> new Pkcs11SignatureSpi(this, digestAlgorithm, "RSA"));
+            putService("Signature", digestName + "withECDSA", () -> new Pkcs11SignatureSpi(this, digestAlgorithm, "EC"));
+        }
+
+        // Register the message digests
+        putService("MessageDigest", "SHA-1", () -> new Pkcs11MessageDigestSpi(this, CkMechanism.CKM_SHA_1, 20));
+        putService("MessageDigest", "SHA-224", () -> new Pkcs11MessageDigestSpi(this, CkMechanism.CKM_SHA224, 28));
+        putService("MessageDigest", "SHA-256", () -> new Pkcs11MessageDigestSpi(this, CkMechanism.CKM_SHA256, 32));
+        putService("MessageDigest", "SHA-384", () -> new Pkcs11MessageDigestSpi(this, CkMechanism.CKM_SHA384, 48));
+        putService("MessageDigest", "SHA-512", () -> new Pkcs11MessageDigestSpi(this, CkMechanism.CKM_SHA512, 64));
+
+        // Register the random number generators, they only delegate to the thread safe session pool and random buffer
+        putService("SecureRandom", "PKCS11", true, () -> new Pkcs11SecureRandomSpi(this));
+        putService("SecureRandom", "PKCS11Buffered", true, () -> new Pkcs11BufferedSecureRandomSpi(this));
+    }
+
+    /**
+     * Get the session pool with the pre-authenticated sessions.
+     *
+     * @return Session pool
+     */
+    public Pkcs11SessionPool getSessionPool() {
+        return pkcs11SessionPool;
+    }
+
+    /**
+     * Get the cache for the key and certificate objects.
+     *
+     * @return Object cache
+     */
+    public Pkcs11ObjectCache getObjectCache() {
+        return pkcs11ObjectCache;
+    }
+
+    /**
+     * Get the shared random buffer. The buffer is created with the default configuration on the first access.
+     *
+     * @return Random buffer
+     * @throws Pkcs11Exception Thrown if the random buffer can't be filled initially
+     */
+    public Pkcs11RandomBuffer getRandomBuffer() throws Pkcs11Exception {
+        synchronized (randomBufferLock) {
+            if (pkcs11RandomBuffer == null) {
+                pkcs11RandomBuffer = new Pkcs11RandomBuffer(pkcs11SessionPool);
+            }
+            return pkcs11RandomBuffer;
+        }
+    }
+
+    /**
+     * The provider supports the try-with-resource statement. Closing the provider closes the random buffer and the
+     * session pool.
+     */
+    @Override
+    public void close() {
+        synchronized (randomBufferLock) {
+            if (pkcs11RandomBuffer != null) {
+                pkcs11RandomBuffer.close();
+            }
+        }
+        pkcs11SessionPool.close();
+    }
+
+    /**
+     * Register a service whose implementation is created by the given supplier.
+     *
+     * @param type      Type of the service like Signature
+     * @param algorithm Algorithm of the service like SHA256withRSA
+     * @param supplier  Supplier that creates the implementation
+     */
+    private void putService(String type, String algorithm, Supplier<Object> supplier) {
+        putService(type, algorithm, false, supplier);
+    }
+
+    /**
+     * Register a service whose implementation is created by the given supplier.
+     *
+     * @param type       Type of the service like SecureRandom
+     * @param algorithm  Algorithm of the service like PKCS11
+     * @param threadSafe Flag whether a single implementation can be used by multiple threads concurrently
+     * @param supplier   Supplier that creates the implementation
+     */
+    private void putService(String type, String algorithm, boolean threadSafe, Supplier<Object> supplier) {
+        Map<String, String> attributes = threadSafe ? Map.of("ThreadSafe", "true") : null;
+        putService(new Pkcs11ProviderService(this, type, algorithm, attributes, supplier));
+    }
+
+    /**
+     * Service that creates its implementation via supplier instead of reflection, so the implementation can access the
+     * provider.
+     */
+    private static class Pkcs11ProviderService extends Service {
+
+        /**
+         * Supplier that creates the implementation.
+         */
+        private final Supplier<Object> supplier;
+
+        /**
+         * Create a new service.
+         *
+         * @param provider   Provider of the service
+         * @param type       Type of the service
+         * @param algorithm  Algorithm of the service
+         * @param attributes Attributes of the service or null
+         * @param supplier   Supplier that creates the implementation
+         */
+        private Pkcs11ProviderService(Provider provider, String type, String algorithm, Map<String, String> attributes, Supplier<Object> supplier) {
+            super(provider, type, algorithm, supplier.getClass().getName(), null, attributes);
+            this.supplier = supplier;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Object newInstance(Object constructorParameter) {
+            return supplier.get();
+        }
+    }
+}
@@ -0,0 +1,518 @@
+package ch.swaechter.pkcs11.provider;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.headers.CkResult;
+import ch.swaechter.pkcs11.library.objects.Pkcs11SessionPool;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Buffer for random data of the token, so small random requests don't need a native round trip each. The buffer is
+ * split into stripes to reduce contention, a thread prefers the stripe of its thread ID and falls over to the next
+ * free stripe. Each stripe is double-buffered with two off-heap buffers: requests are served from the active buffer
+ * while the standby buffer is refilled in the background as soon as the active buffer drops below the low-water mark.
+ * Served bytes are wiped from the buffer right away. Requests that are larger than a quarter of the buffer or that
+ * can't be served because a refill failed go to the token directly.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11RandomBuffer implements Closeable {
+
+    /**
+     * Default size of a stripe buffer in bytes.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 4096;
+
+    /**
+     * Default interval of served bytes after which the token random number generator is reseeded.
+     */
+    public static final long DEFAULT_RESEED_INTERVAL = 1024 * 1024;
+
+    /**
+     * Maximal time to wait for a running refill before a request goes to the token directly.
+     */
+    private static final long MAX_REFILL_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Maximal time to wait for the running refills when the random buffer is closed.
+     */
+    private static final long MAX_CLOSE_WAIT_SECONDS = 10;
+
+    /**
+     * Zeros to wipe served bytes, as large as a stripe buffer.
+     */
+    private final byte[] zeros;
+
+    /**
+     * Session pool to generate the random data.
+     */
+    private final Pkcs11SessionPool pkcs11SessionPool;
+
+    /**
+     * Stripes with the buffers.
+     */
+    private final Stripe[] stripes;
+
+    /**
+     * Size of a stripe buffer in bytes.
+     */
+    private final int bufferSize;
+
+    /**
+     * Number of remaining bytes in the active buffer from which on the standby buffer is refilled.
+     */
+    private final int lowWaterMark;
+
+    /**
+     * Maximal size of a request that is served from the buffer.
+     */
+    private final int maxBufferedRequestSize;
+
+    /**
+     * Interval of served bytes after which the token random number generator is reseeded or 0 to never reseed.
+     */
+    private final long reseedInterval;
+
+    /**
+     * Host random number generator that provides the seed material.
+     */
+    private final SecureRandom seedSecureRandom;
+
+    /**
+     * Executor that refills the standby buffers.
+     */
+    private final ExecutorService refillExecutorService;
+
+    /**
+     * Number of served bytes since the last reseed.
+     */
+    private final AtomicLong bytesSinceReseed;
+
+    /**
+     * Flag whether the token accepts seed material.
+     */
+    private volatile boolean seedingSupported;
+
+    /**
+     * Metric counters.
+     */
+    private final LongAdder servedBytes, bufferedRequests, directRequests, refills, refillFailures, reseeds, refillLatencyNanos;
+
+    /**
+     * Metric values of the refill latency.
+     */
+    private final AtomicLong lastRefillLatencyNanos, maxRefillLatencyNanos;
+
+    /**
+     * Create a new random buffer with one stripe per processor (up to 8), 4 KiB buffers, a low-water mark of half the
+     * buffer and a reseed interval of 1 MiB.
+     *
+     * @param pkcs11SessionPool Session pool to generate the random data
+     * @throws Pkcs11Exception Thrown if the buffers can't be filled initially
+     */
+    public Pkcs11RandomBuffer(Pkcs11SessionPool pkcs11SessionPool) throws Pkcs11Exception {
+        this(pkcs11SessionPool, Math.min(Runtime.getRuntime().availableProcessors(), 8), DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_SIZE / 2, DEFAULT_RESEED_INTERVAL);
+    }
+
+    /**
+     * Create a new random buffer and fill the active buffer of each stripe.
+     *
+     * @param pkcs11SessionPool Session pool to generate the random data
+     * @param stripeCount       Number of stripes
+     * @param bufferSize        Size of a stripe buffer in bytes
+     * @param lowWaterMark      Number of remaining bytes in the active buffer from which on the standby buffer is refilled
+     * @param reseedInterval    Interval of served bytes after which the token is reseeded with host seed material or 0
+     * @throws Pkcs11Exception Thrown if the configuration is invalid or the buffers can't be filled initially
+     */
+    public Pkcs11RandomBuffer(Pkcs11SessionPool pkcs11SessionPool, int stripeCount, int bufferSize, int lowWaterMark, long reseedInterval) throws Pkcs11Exception {
+        // Check the configuration
+        if (stripeCount < 1 || bufferSize < 64 || lowWaterMark < 0 || lowWaterMark > bufferSize || reseedInterval < 0) {
+            throw new Pkcs11Exception("Invalid random buffer configuration: " + stripeCount + " stripes, " + bufferSize + " bytes buffer size, " + lowWaterMark + " bytes low-water mark, " + reseedInterval + " bytes reseed interval");
+        }
+
+        // Set the configuration
+        this.pkcs11SessionPool = pkcs11SessionPool;
+        this.bufferSize = bufferSize;
+        this.zeros = new byte[bufferSize];
+        this.lowWaterMark = lowWaterMark;
+        this.maxBufferedRequestSize = bufferSize / 4;
+        this.reseedInterval = reseedInterval;
+        this.seedSecureRandom = new SecureRandom();
+        this.bytesSinceReseed = new AtomicLong();
+        this.seedingSupported = true;
+
+        // Create the metrics
+        this.servedBytes = new LongAdder();
+        this.bufferedRequests = new LongAdder();
+        this.directRequests = new LongAdder();
+        this.refills = new LongAdder();
+        this.refillFailures = new LongAdder();
+        this.reseeds = new LongAdder();
+        this.refillLatencyNanos = new LongAdder();
+        this.lastRefillLatencyNanos = new AtomicLong();
+        this.maxRefillLatencyNanos = new AtomicLong();
+
+        // Create the refill threads, more threads than sessions would only wait for a session
+        this.refillExecutorService = Executors.newFixedThreadPool(Math.min(stripeCount, pkcs11SessionPool.getSessionCount()), createThreadFactory());
+
+        // Create and fill the stripes, the refill threads are stopped if the token fails
+        this.stripes = new Stripe[stripeCount];
+        try {
+            for (int i = 0; i < stripeCount; i++) {
+                Stripe stripe = new Stripe(bufferSize);
+                byte[] random = generateRandom(bufferSize);
+                stripe.activeBuffer.clear().put(random).flip();
+                Arrays.fill(random, (byte) 0);
+                stripes[i] = stripe;
+            }
+        } catch (Pkcs11Exception exception) {
+            refillExecutorService.shutdownNow();
+            throw exception;
+        }
+    }
+
+    /**
+     * Fill the given array with random bytes.
+     *
+     * @param bytes Array to fill
+     * @throws Pkcs11Exception Thrown if random data has to be generated directly and the generation fails
+     */
+    public void nextBytes(byte[] bytes) throws Pkcs11Exception {
+        // Skip empty requests
+        if (bytes.length == 0) {
+            return;
+        }
+
+        // Serve small requests from the buffer
+        int copied = 0;
+        if (bytes.length <= maxBufferedRequestSize) {
+            copied = serve(acquireStripe(), bytes);
+            if (copied == bytes.length) {
+                bufferedRequests.increment();
+            }
+        }
+
+        // Generate the remaining bytes directly
+        if (copied < bytes.length) {
+            byte[] random = generateRandom(bytes.length - copied);
+            System.arraycopy(random, 0, bytes, copied, random.length);
+            Arrays.fill(random, (byte) 0);
+            directRequests.increment();
+        }
+
+        // Count the served bytes
+        servedBytes.add(bytes.length);
+        bytesSinceReseed.addAndGet(bytes.length);
+    }
+
+    /**
+     * Generate random bytes directly by the token without the buffer, e.g. for seed material.
+     *
+     * @param length Number of random bytes
+     * @return Random bytes
+     * @throws Pkcs11Exception Thrown if the random data can't be generated
+     */
+    public final byte[] generateRandom(int length) throws Pkcs11Exception {
+        return pkcs11SessionPool.execute(pkcs11Session -> pkcs11Session.generateRandom(length));
+    }
+
+    /**
+     * Mix the seed material into the token random number generator. Tokens that don't accept a seed ignore it.
+     *
+     * @param seed Additional seed material
+     * @throws Pkcs11Exception Thrown if the token can't be seeded
+     */
+    public void setSeed(byte[] seed) throws Pkcs11Exception {
+        // Ignore the seed if the token does not accept it
+        if (!seedingSupported) {
+            return;
+        }
+
+        try {
+            pkcs11SessionPool.execute(pkcs11Session -> {
+                pkcs11Session.seedRandom(seed);
+                return null;
+            });
+            reseeds.increment();
+        } catch (Pkcs11Exception exception) {
+            if (exception.getCkResult() != CkResult.CKR_RANDOM_SEED_NOT_SUPPORTED) {
+                throw exception;
+            }
+            seedingSupported = false;
+        }
+    }
+
+    /**
+     * Get a snapshot of the metrics.
+     *
+     * @return Metrics snapshot
+     */
+    public Pkcs11RandomBufferMetrics getMetrics() {
+        long refillCount = refills.sum();
+        double averageRefillLatencyNanos = refillCount > 0 ? (double) refillLatencyNanos.sum() / refillCount : 0;
+        return new Pkcs11RandomBufferMetrics(servedBytes.sum(), bufferedRequests.sum(), directRequests.sum(), refillCount, refillFailures.sum(), reseeds.sum(), lastRefillLatencyNanos.get(), maxRefillLatencyNanos.get(), averageRefillLatencyNanos);
+    }
+
+    /**
+     * The random buffer supports the try-with-resource statement. Closing stops the refills, waits for the running
+     * ones and wipes all buffers. The session pool is not closed.
+     */
+    @Override
+    public void close() {
+        // Stop the refills and wait for the running ones, otherwise they could fill a buffer after it was wiped
+        refillExecutorService.shutdownNow();
+        try {
+            refillExecutorService.awaitTermination(MAX_CLOSE_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Wipe the buffers
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                stripe.activeBuffer.put(0, zeros);
+                stripe.standbyBuffer.put(0, zeros);
+                stripe.activeBuffer.limit(0);
+                stripe.standbyReady = false;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Acquire the lock of a stripe. The stripe of the current thread is preferred, if it's busy, the other stripes are
+     * tried before waiting for the preferred one.
+     *
+     * @return Locked stripe
+     */
+    private Stripe acquireStripe() {
+        // Try the preferred stripe and the next ones without waiting
+        int preferredIndex = (int) (Thread.currentThread().threadId() % stripes.length);
+        for (int i = 0; i < stripes.length; i++) {
+            Stripe stripe = stripes[(preferredIndex + i) % stripes.length];
+            if (stripe.lock.tryLock()) {
+                return stripe;
+            }
+        }
+
+        // Wait for the preferred stripe
+        Stripe stripe = stripes[preferredIndex];
+        stripe.lock.lock();
+        return stripe;
+    }
+
+    /**
+     * Serve random bytes from the locked stripe, swap the buffers if the active one is exhausted and schedule a
+     * refill if required. The stripe is unlocked afterward.
+     *
+     * @param stripe Locked stripe
+     * @param bytes  Array to fill
+     * @return Number of copied bytes, that might be less than requested if the buffers are exhausted
+     */
+    private int serve(Stripe stripe, byte[] bytes) {
+        try {
+            int copied = 0;
+            while (copied < bytes.length) {
+                // Swap to the standby buffer if the active one is exhausted, a running refill is awaited because it
+                // serves many requests while a direct request only serves one
+                if (!stripe.activeBuffer.hasRemaining()) {
+                    if (!awaitRefill(stripe)) {
+                        break;
+                    }
+                    if (stripe.activeBuffer.hasRemaining()) {
+                        continue;
+                    }
+                    ByteBuffer exhaustedBuffer = stripe.activeBuffer;
+                    stripe.activeBuffer = stripe.standbyBuffer;
+                    stripe.standbyBuffer = exhaustedBuffer;
+                    stripe.standbyReady = false;
+                }
+
+                // Copy and wipe the random bytes
+                int position = stripe.activeBuffer.position();
+                int length = Math.min(stripe.activeBuffer.remaining(), bytes.length - copied);
+                stripe.activeBuffer.get(bytes, copied, length);
+                stripe.activeBuffer.put(position, zeros, 0, length);
+                copied += length;
+            }
+
+            // Refill the standby buffer in the background once the active one drops below the low-water mark
+            if (stripe.activeBuffer.remaining() < lowWaterMark) {
+                scheduleRefill(stripe);
+            }
+            return copied;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Schedule a refill of the standby buffer of the locked stripe unless it's filled or a refill is already pending.
+     *
+     * @param stripe Locked stripe
+     */
+    private void scheduleRefill(Stripe stripe) {
+        if (!stripe.standbyReady && !stripe.refillPending) {
+            stripe.refillPending = true;
+            try {
+                refillExecutorService.execute(() -> refill(stripe));
+            } catch (RejectedExecutionException exception) {
+                stripe.refillPending = false;
+            }
+        }
+    }
+
+    /**
+     * Wait until the exhausted locked stripe can serve again, either because the standby buffer was refilled or
+     * another waiting thread already swapped the buffers. The lock is released while waiting.
+     *
+     * @param stripe Locked stripe
+     * @return Status whether the stripe can serve again
+     */
+    private boolean awaitRefill(Stripe stripe) {
+        try {
+            long remainingNanos = MAX_REFILL_WAIT_NANOS;
+            while (!stripe.activeBuffer.hasRemaining() && !stripe.standbyReady && remainingNanos > 0) {
+                // Ensure a refill is running
+                scheduleRefill(stripe);
+                if (!stripe.refillPending) {
+                    break;
+                }
+                remainingNanos = stripe.refilled.awaitNanos(remainingNanos);
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        return stripe.activeBuffer.hasRemaining() || stripe.standbyReady;
+    }
+
+    /**
+     * Refill the standby buffer of the stripe and reseed the token beforehand if the reseed interval is reached.
+     *
+     * @param stripe Stripe to refill
+     */
+    private void refill(Stripe stripe) {
+        byte[] random = null;
+        try {
+            // Reseed the token with host seed material
+            if (reseedInterval > 0 && bytesSinceReseed.get() >= reseedInterval) {
+                bytesSinceReseed.set(0);
+                byte[] seed = new byte[32];
+                seedSecureRandom.nextBytes(seed);
+                setSeed(seed);
+            }
+
+            // Generate the random data and measure the latency
+            long startTime = System.nanoTime();
+            random = generateRandom(bufferSize);
+            long latency = System.nanoTime() - startTime;
+            refills.increment();
+            refillLatencyNanos.add(latency);
+            lastRefillLatencyNanos.set(latency);
+            maxRefillLatencyNanos.accumulateAndGet(latency, Math::max);
+
+            // Fill the standby buffer
+            stripe.lock.lock();
+            try {
+                stripe.standbyBuffer.clear().put(random).flip();
+                stripe.standbyReady = true;
+                stripe.refilled.signalAll();
+            } finally {
+                stripe.lock.unlock();
+            }
+        } catch (Pkcs11Exception exception) {
+            refillFailures.increment();
+        } finally {
+            // Wipe the heap copy and allow the next refill
+            if (random != null) {
+                Arrays.fill(random, (byte) 0);
+            }
+            stripe.lock.lock();
+            try {
+                stripe.refillPending = false;
+                stripe.refilled.signalAll();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Create a thread factory for named daemon refill threads.
+     *
+     * @return Thread factory
+     */
+    private static ThreadFactory createThreadFactory() {
+        AtomicInteger threadCounter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "pkcs11-random-refill-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Stripe with an active and a standby buffer that are guarded by the lock of the stripe.
+     */
+    private static class Stripe {
+
+        /**
+         * Lock that guards the buffers and flags.
+         */
+        private final ReentrantLock lock;
+
+        /**
+         * Condition that is signaled after a refill.
+         */
+        private final Condition refilled;
+
+        /**
+         * Buffer that serves the requests.
+         */
+        private ByteBuffer activeBuffer;
+
+        /**
+         * Buffer that is refilled in the background.
+         */
+        private ByteBuffer standbyBuffer;
+
+        /**
+         * Flag whether the standby buffer is filled.
+         */
+        private boolean standbyReady;
+
+        /**
+         * Flag whether a refill of the standby buffer is scheduled or running.
+         */
+        private boolean refillPending;
+
+        /**
+         * Create a new stripe with two empty off-heap buffers.
+         *
+         * @param bufferSize Size of a buffer in bytes
+         */
+        private Stripe(int bufferSize) {
+            this.lock = new ReentrantLock();
+            this.refilled = lock.newCondition();
+            this.activeBuffer = ByteBuffer.allocateDirect(bufferSize).limit(0);
+            this.standbyBuffer = ByteBuffer.allocateDirect(bufferSize);
+            this.standbyReady = false;
+            this.refillPending = false;
+        }
+    }
+}
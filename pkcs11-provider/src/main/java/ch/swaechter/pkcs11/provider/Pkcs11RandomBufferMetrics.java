@@ -0,0 +1,37 @@
+package ch.swaechter.pkcs11.provider;
+
+/**
+ * Define a snapshot of the random buffer metrics.
+ *
+ * @param servedBytes               Number of random bytes served to callers
+ * @param bufferedRequests          Number of requests that were served from the buffer
+ * @param directRequests            Number of requests or request parts that had to go to the token directly
+ * @param refills                   Number of successful buffer refills
+ * @param refillFailures            Number of failed buffer refills
+ * @param reseeds                   Number of reseeds of the token random number generator
+ * @param lastRefillLatencyNanos    Latency of the last refill in nanoseconds
+ * @param maxRefillLatencyNanos     Maximal latency of a refill in nanoseconds
+ * @param averageRefillLatencyNanos Average latency of a refill in nanoseconds
+ * @author Simon Wächter
+ */
+public record Pkcs11RandomBufferMetrics(
+
+    long servedBytes,
+
+    long bufferedRequests,
+
+    long directRequests,
+
+    long refills,
+
+    long refillFailures,
+
+    long reseeds,
+
+    long lastRefillLatencyNanos,
+
+    long maxRefillLatencyNanos,
+
+    double averageRefillLatencyNanos
+) {
+}
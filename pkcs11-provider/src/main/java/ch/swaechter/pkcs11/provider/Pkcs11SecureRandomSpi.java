@@ -0,0 +1,81 @@
+package ch.swaechter.pkcs11.provider;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.headers.CkResult;
+
+import java.io.Serial;
+import java.security.ProviderException;
+import java.security.SecureRandomSpi;
+
+/**
+ * Secure random that is generated by the random number generator of the token.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11SecureRandomSpi extends SecureRandomSpi {
+
+    /**
+     * Serial version UID.
+     */
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Provider of the secure random.
+     */
+    private final transient Pkcs11Provider pkcs11Provider;
+
+    /**
+     * Create a new secure random.
+     *
+     * @param pkcs11Provider Provider of the secure random
+     */
+    public Pkcs11SecureRandomSpi(Pkcs11Provider pkcs11Provider) {
+        this.pkcs11Provider = pkcs11Provider;
+    }
+
+    /**
+     * Mix the seed into the random number generator of the token. Tokens that don't accept a seed ignore it.
+     *
+     * @param seed Additional seed material
+     */
+    @Override
+    protected void engineSetSeed(byte[] seed) {
+        try {
+            pkcs11Provider.getSessionPool().execute(pkcs11Session -> {
+                pkcs11Session.seedRandom(seed);
+                return null;
+            });
+        } catch (Pkcs11Exception exception) {
+            if (exception.getCkResult() != CkResult.CKR_RANDOM_SEED_NOT_SUPPORTED) {
+                throw new ProviderException("Unable to seed: " + exception.getMessage(), exception);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void engineNextBytes(byte[] bytes) {
+        byte[] random = engineGenerateSeed(bytes.length);
+        System.arraycopy(random, 0, bytes, 0, bytes.length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected byte[] engineGenerateSeed(int numBytes) {
+        // Skip the token for empty requests
+        if (numBytes == 0) {
+            return new byte[0];
+        }
+
+        try {
+            return pkcs11Provider.getSessionPool().execute(pkcs11Session -> pkcs11Session.generateRandom(numBytes));
+        } catch (Pkcs11Exception exception) {
+            throw new ProviderException("Unable to generate random data: " + exception.getMessage(), exception);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package ch.swaechter.pkcs11.provider;
+
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.Pkcs11Utils;
+import ch.swaechter.pkcs11.library.headers.CkMechanism;
+
+import java.security.*;
+
+/**
+ * Signature that digests the data on the host and lets the token sign the digest with raw CKM_RSA_PKCS or CKM_ECDSA.
+ * The signatures are the same as the ones of the JDK providers, ECDSA signatures are DER encoded as well. Verifying
+ * requires a public key and is left to the software providers.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11SignatureSpi extends SignatureSpi {
+
+    /**
+     * Provider of the signature.
+     */
+    private final Pkcs11Provider pkcs11Provider;
+
+    /**
+     * JDK name of the digest algorithm like SHA-256.
+     */
+    private final String digestAlgorithm;
+
+    /**
+     * Algorithm of the key like RSA or EC.
+     */
+    private final String keyAlgorithm;
+
+    /**
+     * Host digest of the data.
+     */
+    private final MessageDigest messageDigest;
+
+    /**
+     * Private key for signing.
+     */
+    private Pkcs11PrivateKey pkcs11PrivateKey;
+
+    /**
+     * Create a new signature.
+     *
+     * @param pkcs11Provider  Provider of the signature
+     * @param digestAlgorithm JDK name of the digest algorithm like SHA-256
+     * @param keyAlgorithm    Algorithm of the key like RSA or EC
+     */
+    public Pkcs11SignatureSpi(Pkcs11Provider pkcs11Provider, String digestAlgorithm, String keyAlgorithm) {
+        this.pkcs11Provider = pkcs11Provider;
+        this.digestAlgorithm = digestAlgorithm;
+        this.keyAlgorithm = keyAlgorithm;
+        try {
+            this.messageDigest = MessageDigest.getInstance(digestAlgorithm);
+        } catch (NoSuchAlgorithmException exception) {
+            throw new ProviderException("The digest algorithm " + digestAlgorithm + " is not available", exception);
+        }
+    }
+
+    /**
+     * Verifying is not supported, because the token only holds the private key.
+     *
+     * @param publicKey Public key
+     * @throws InvalidKeyException Always thrown, so the JCA can fall back to another provider
+     */
+    @Override
+    protected void engineInitVerify(PublicKey publicKey) throws InvalidKeyException {
+        throw new InvalidKeyException("The PKCS11 provider only supports signing, use a software provider for verifying");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void engineInitSign(PrivateKey privateKey) throws InvalidKeyException {
+        // Ensure the key is a matching token key
+        if (!(privateKey instanceof Pkcs11PrivateKey key)) {
+            throw new InvalidKeyException("Only keys from the PKCS11 key store are supported");
+        }
+        if (!key.getAlgorithm().equals(keyAlgorithm)) {
+            throw new InvalidKeyException("A " + keyAlgorithm + " key is required, not a " + key.getAlgorithm() + " key");
+        }
+
+        // Start a new signature
+        this.pkcs11PrivateKey = key;
+        messageDigest.reset();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void engineUpdate(byte b) {
+        messageDigest.update(b);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void engineUpdate(byte[] b, int off, int len) {
+        messageDigest.update(b, off, len);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected byte[] engineSign() throws SignatureException {
+        // Ensure the signature was initialized
+        if (pkcs11PrivateKey == null) {
+            throw new SignatureException("The signature was not initialized for signing");
+        }
+
+        try {
+            // Finish the digest and prepare the data for the raw mechanism
+            byte[] digest = messageDigest.digest();
+            boolean rsa = keyAlgorithm.equals("RSA");
+            byte[] data = rsa ? Pkcs11Utils.encodeDigestInfo(digestAlgorithm, digest) : digest;
+            CkMechanism mechanism = rsa ? CkMechanism.CKM_RSA_PKCS : CkMechanism.CKM_ECDSA;
+
+            // Sign the data with a pooled session
+            long objectId = pkcs11PrivateKey.getObjectId();
+            byte[] signature = pkcs11Provider.getSessionPool().execute(pkcs11Session -> pkcs11Session.sign(mechanism, objectId, data));
+            return rsa ? signature : Pkcs11Utils.encodeEcdsaSignature(signature);
+        } catch (Pkcs11Exception exception) {
+            throw new SignatureException("Unable to sign: " + exception.getMessage(), exception);
+        }
+    }
+
+    /**
+     * Verifying is not supported.
+     *
+     * @param sigBytes Signature
+     * @return Never returns
+     * @throws SignatureException Always thrown
+     */
+    @Override
+    protected boolean engineVerify(byte[] sigBytes) throws SignatureException {
+        throw new SignatureException("The PKCS11 provider only supports signing");
+    }
+
+    /**
+     * Parameters are not supported.
+     *
+     * @param param Name of the parameter
+     * @param value Value of the parameter
+     * @throws InvalidParameterException Always thrown
+     */
+    @Override
+    @Deprecated
+    protected void engineSetParameter(String param, Object value) throws InvalidParameterException {
+        throw new InvalidParameterException("Parameters are not supported");
+    }
+
+    /**
+     * Parameters are not supported.
+     *
+     * @param param Name of the parameter
+     * @return Never returns
+     * @throws InvalidParameterException Always thrown
+     */
+    @Override
+    @Deprecated
+    protected Object engineGetParameter(String param) throws InvalidParameterException {
+        throw new InvalidParameterException("Parameters are not supported");
+    }
+}
@@ -1,10 +1,19 @@
+plugins {
+    `java-test-fixtures`
+}
+
 dependencies {
     // Project
     testImplementation(project(":pkcs11-cli"))
     testImplementation(project(":pkcs11-library"))
+    testImplementation(project(":pkcs11-provider"))
+
+    // Test fixtures, the SoftHSM2 harness is shared with the benchmarks
+    testFixturesApi(project(":pkcs11-library"))
 
     // Testing (General)
     testImplementation(libraries.junit.api)
     testImplementation(libraries.junit.engine)
+    testImplementation(libraries.junit.params)
     testRuntimeOnly(libraries.junit.engine)
 }
@@ -0,0 +1,52 @@
+package ch.swaechter.pkcs11.cli;
+
+import ch.swaechter.pkcs11.Pkcs11SoftHsm;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Smoke test of the benchmark runner against a SoftHSM2 token.
+ *
+ * @author Simon Wächter
+ */
+@EnabledIf("ch.swaechter.pkcs11.Pkcs11SoftHsm#isAvailable")
+public class Pkcs11BenchmarkTest {
+
+    @Test
+    public void testBenchmark() throws Exception {
+        // Create the harness with a token and a key
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("benchmark");
+            pkcs11SoftHsm.importKeyPair("benchmark", "key", new byte[]{0x01}, "RSA");
+
+            // Run a short benchmark with two threads
+            try (Pkcs11Service pkcs11Service = new Pkcs11Service(pkcs11SoftHsm.createLibrary(), null)) {
+                long slotId = pkcs11Service.getSlotId(Pkcs11SlotDirectory.LABEL_PREFIX + "benchmark");
+                List<Pkcs11Benchmark.Pkcs11BenchmarkResult> results = pkcs11Service.benchmark(slotId, Pkcs11SoftHsm.USER_PIN, 2, Duration.ofMillis(100), Duration.ofMillis(20));
+
+                // All operations of an RSA key were measured
+                List<String> operations = results.stream().map(Pkcs11Benchmark.Pkcs11BenchmarkResult::operation).toList();
+                assertEquals("C_Login", operations.getFirst());
+                assertTrue(operations.containsAll(List.of("C_FindObjects", "C_GetAttributeValue", "C_Sign CKM_RSA_PKCS", "C_Sign CKM_SHA256_RSA_PKCS", "C_GenerateRandom 32 bytes")));
+                assertEquals(4, operations.stream().filter(operation -> operation.startsWith("C_Digest")).count());
+
+                // Each operation ran and its percentiles are ordered
+                for (Pkcs11Benchmark.Pkcs11BenchmarkResult result : results) {
+                    assertEquals(result.operation().equals("C_Login") ? 1 : 2, result.threads());
+                    assertTrue(result.operations() > 0, result.operation());
+                    assertTrue(result.throughput() > 0, result.operation());
+                    assertTrue(result.p50Micros() <= result.p90Micros() && result.p90Micros() <= result.p99Micros() && result.p99Micros() <= result.p999Micros() && result.p999Micros() <= result.maxMicros(), result.operation());
+                }
+
+                // Export the results with a line per result
+                assertEquals(results.size() + 1, Pkcs11Benchmark.toCsv(results).lines().count());
+                assertEquals(results.size() + 2, Pkcs11Benchmark.toJson(results).lines().count());
+            }
+        }
+    }
+}
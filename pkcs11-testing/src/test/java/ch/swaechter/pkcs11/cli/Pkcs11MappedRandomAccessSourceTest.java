@@ -0,0 +1,70 @@
+package ch.swaechter.pkcs11.cli;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the single byte and range reads of the memory mapped random access source.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11MappedRandomAccessSourceTest {
+
+    @Test
+    public void testRead() throws Exception {
+        // Create a file with the byte values 0 to 255 and then 0 to 43
+        Path file = Files.createTempFile("pkcs11-mapped", ".bin");
+        byte[] content = new byte[300];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        Files.write(file, content);
+
+        try {
+            Pkcs11MappedRandomAccessSource pkcs11MappedRandomAccessSource = new Pkcs11MappedRandomAccessSource(file.toFile());
+            assertEquals(300, pkcs11MappedRandomAccessSource.length());
+
+            // Read single bytes as unsigned values and -1 outside the file
+            assertEquals(0, pkcs11MappedRandomAccessSource.get(0));
+            assertEquals(255, pkcs11MappedRandomAccessSource.get(255));
+            assertEquals(43, pkcs11MappedRandomAccessSource.get(299));
+            assertEquals(-1, pkcs11MappedRandomAccessSource.get(300));
+            assertEquals(-1, pkcs11MappedRandomAccessSource.get(-1));
+
+            // Read a range into an offset of the array
+            byte[] bytes = new byte[16];
+            assertEquals(10, pkcs11MappedRandomAccessSource.get(100, bytes, 3, 10));
+            assertEquals(0, bytes[2]);
+            assertEquals(100, bytes[3]);
+            assertEquals(109, bytes[12]);
+            assertEquals(0, bytes[13]);
+
+            // Read a range that exceeds the end of the file and one outside the file
+            bytes = new byte[16];
+            assertEquals(5, pkcs11MappedRandomAccessSource.get(295, bytes, 0, 16));
+            assertEquals(39, bytes[0]);
+            assertEquals(43, bytes[4]);
+            assertEquals(0, bytes[5]);
+            assertEquals(-1, pkcs11MappedRandomAccessSource.get(300, bytes, 0, 16));
+
+            // Close the source multiple times, the mapping is released and can't be read anymore
+            pkcs11MappedRandomAccessSource.close();
+            pkcs11MappedRandomAccessSource.close();
+            assertThrows(IllegalStateException.class, () -> pkcs11MappedRandomAccessSource.get(0));
+
+            // Map an empty file
+            Files.write(file, new byte[0]);
+            Pkcs11MappedRandomAccessSource emptyPkcs11MappedRandomAccessSource = new Pkcs11MappedRandomAccessSource(file.toFile());
+            assertEquals(0, emptyPkcs11MappedRandomAccessSource.length());
+            assertEquals(-1, emptyPkcs11MappedRandomAccessSource.get(0));
+            assertEquals(-1, emptyPkcs11MappedRandomAccessSource.get(0, bytes, 0, 16));
+            emptyPkcs11MappedRandomAccessSource.close();
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
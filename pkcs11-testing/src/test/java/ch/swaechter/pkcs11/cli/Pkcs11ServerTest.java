@@ -0,0 +1,153 @@
+package ch.swaechter.pkcs11.cli;
+
+import ch.swaechter.pkcs11.Pkcs11SoftHsm;
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.headers.CkUserType;
+import ch.swaechter.pkcs11.library.objects.Pkcs11SessionPool;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Token;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the line protocol, the socket permissions, a client/server round trip and the recovery from a lost session of the signing daemon
+ * against a SoftHSM2 token.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11ServerTest {
+
+    @Test
+    public void testEscaping() {
+        // Escape the separator, the line breaks and the escape character
+        String value = "C:\\Documents\\Tab\there\nand\r\nthere";
+        String escapedValue = Pkcs11Server.escape(value);
+        assertFalse(escapedValue.contains("\t") || escapedValue.contains("\n") || escapedValue.contains("\r"));
+        assertEquals(value, Pkcs11Server.unescape(escapedValue));
+
+        // Plain values stay the same
+        assertEquals("/tmp/Document.pdf", Pkcs11Server.escape("/tmp/Document.pdf"));
+        assertEquals("/tmp/Document.pdf", Pkcs11Server.unescape("/tmp/Document.pdf"));
+    }
+
+    @Test
+    public void testDataLines() throws Exception {
+        // Answer a single request with data lines that look like the final lines
+        Path directory = Files.createTempDirectory("pkcs11-client");
+        Path socketPath = directory.resolve("pkcs11.sock");
+        try (ServerSocketChannel serverSocketChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            serverSocketChannel.bind(UnixDomainSocketAddress.of(socketPath));
+            CompletableFuture<Void> answering = CompletableFuture.runAsync(() -> {
+                try (
+                    SocketChannel socketChannel = serverSocketChannel.accept();
+                    BufferedReader bufferedReader = new BufferedReader(Channels.newReader(socketChannel, StandardCharsets.UTF_8));
+                    PrintWriter printWriter = new PrintWriter(Channels.newWriter(socketChannel, StandardCharsets.UTF_8))
+                ) {
+                    bufferedReader.readLine();
+                    printWriter.println(STR."\{Pkcs11Server.DATA_RESPONSE}\{Pkcs11Server.SEPARATOR}\{Pkcs11Server.OK_RESPONSE}");
+                    printWriter.println(STR."\{Pkcs11Server.DATA_RESPONSE}\{Pkcs11Server.SEPARATOR}\{Pkcs11Server.ERROR_RESPONSE}\\t");
+                    printWriter.println(Pkcs11Server.OK_RESPONSE);
+                    printWriter.flush();
+                } catch (IOException exception) {
+                    throw new UncheckedIOException(exception);
+                }
+            });
+
+            // The data lines are returned and only the unprefixed line ends the response
+            List<String> lines = new Pkcs11Client(socketPath).send(Pkcs11Server.LIST_CERTIFICATES_COMMAND);
+            assertEquals(List.of(Pkcs11Server.OK_RESPONSE, STR."\{Pkcs11Server.ERROR_RESPONSE}\t"), lines);
+            answering.get(5, TimeUnit.SECONDS);
+        } finally {
+            Files.deleteIfExists(socketPath);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    @Test
+    @EnabledIf("ch.swaechter.pkcs11.Pkcs11SoftHsm#isAvailable")
+    public void testRoundTrip() throws Exception {
+        // Create the harness with a token and a key
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("server");
+            X509Certificate[] certificates = pkcs11SoftHsm.importKeyPair("server", "key", new byte[]{0x01}, "RSA");
+
+            // Create the service and get the token
+            try (Pkcs11Service pkcs11Service = new Pkcs11Service(pkcs11SoftHsm.createLibrary(), null)) {
+                long slotId = pkcs11Service.getSlotId(Pkcs11SlotDirectory.LABEL_PREFIX + "server");
+                Pkcs11Token pkcs11Token = pkcs11Service.getSlots().stream().filter(pkcs11Slot -> pkcs11Slot.getSlotId() == slotId).findFirst().orElseThrow().getToken();
+
+                // Start the server on a temporary socket
+                Path directory = Files.createTempDirectory("pkcs11-server");
+                Path socketPath = directory.resolve("pkcs11.sock");
+                try (
+                    Pkcs11SessionPool pkcs11SessionPool = new Pkcs11SessionPool(pkcs11Token, 1, true, CkUserType.CKU_USER, Pkcs11SoftHsm.USER_PIN);
+                    Pkcs11Server pkcs11Server = new Pkcs11Server(pkcs11Service, pkcs11Token, pkcs11SessionPool, new Pkcs11SignerCache(), socketPath)
+                ) {
+                    CompletableFuture<Void> serving = CompletableFuture.runAsync(() -> serve(pkcs11Server));
+                    Pkcs11Client pkcs11Client = new Pkcs11Client(socketPath);
+
+                    // Only the owner can connect to the socket
+                    assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(socketPath));
+
+                    // List the cached certificates
+                    List<String> lines = pkcs11Client.send(Pkcs11Server.LIST_CERTIFICATES_COMMAND);
+                    assertEquals(certificates.length, lines.size());
+                    assertEquals(Pkcs11Application.formatCertificate(certificates[0]), lines.getFirst());
+
+                    // Sign and verify a PDF file
+                    File inputFile = new File("src/test/resources/Document.pdf");
+                    File outputFile = directory.resolve("Document_Signed.pdf").toFile();
+                    assertTrue(pkcs11Client.send(Pkcs11Server.SIGN_PDF_COMMAND, inputFile.getAbsolutePath(), outputFile.getAbsolutePath()).isEmpty());
+                    assertTrue(pkcs11Client.send(Pkcs11Server.VERIFY_PDF_COMMAND, outputFile.getAbsolutePath()).isEmpty());
+                    pkcs11Service.verifyPdfFile(outputFile);
+
+                    // Let the pooled session disappear like after a middleware reset, the failed request replaces
+                    // the session and invalidates the signer, so the next request succeeds
+                    pkcs11Token.closeAllSessions();
+                    assertThrows(Exception.class, () -> pkcs11Client.send(Pkcs11Server.SIGN_PDF_COMMAND, inputFile.getAbsolutePath(), outputFile.getAbsolutePath()));
+                    assertTrue(pkcs11Client.send(Pkcs11Server.SIGN_PDF_COMMAND, inputFile.getAbsolutePath(), outputFile.getAbsolutePath()).isEmpty());
+                    pkcs11Service.verifyPdfFile(outputFile);
+
+                    // Tabs and line breaks in the file name and error message don't break the protocol
+                    File missingFile = directory.resolve("Missing\tDocument\n.pdf").toFile();
+                    Exception exception = assertThrows(Exception.class, () -> pkcs11Client.send(Pkcs11Server.VERIFY_PDF_COMMAND, missingFile.getAbsolutePath()));
+                    assertEquals(STR."The file \{missingFile.getAbsolutePath()} does not exist/is not a file.", exception.getMessage());
+                    assertThrows(Exception.class, () -> pkcs11Client.send("UNKNOWN"));
+                    assertEquals(certificates.length, pkcs11Client.send(Pkcs11Server.LIST_CERTIFICATES_COMMAND).size());
+
+                    // Stop the server
+                    pkcs11Server.stop();
+                    serving.get(5, TimeUnit.SECONDS);
+                    assertFalse(Files.exists(socketPath));
+                } finally {
+                    Files.deleteIfExists(directory.resolve("Document_Signed.pdf"));
+                    Files.deleteIfExists(directory);
+                }
+            }
+        }
+    }
+
+    private static void serve(Pkcs11Server pkcs11Server) {
+        try {
+            pkcs11Server.serve();
+        } catch (Pkcs11Exception exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+}
@@ -1,38 +1,167 @@
 package ch.swaechter.pkcs11.cli;
 
-import ch.swaechter.pkcs11.Pkcs11TestTemplate;
+import ch.swaechter.pkcs11.Pkcs11SoftHsm;
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.objects.Pkcs11TokenInfo;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
 import java.util.List;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
- * Test the PKCS11 service of the CLI application.
+ * Test the PKCS11 service of the CLI application against a SoftHSM2 token.
  *
  * @author Simon Wächter
  */
+@EnabledIf("ch.swaechter.pkcs11.Pkcs11SoftHsm#isAvailable")
 public class Pkcs11ServiceTest {
 
     @Test
     public void testPdfSigning() throws Exception {
-        // Create the service
-        try (Pkcs11Service pkcs11Service = new Pkcs11Service(Pkcs11TestTemplate.LIBRARY_NAME)) {
-            // List the certificates
-            List<X509Certificate> certificates = pkcs11Service.getCertificates(Pkcs11TestTemplate.PKCS_SLOT_ID);
-            assertFalse(certificates.isEmpty());
+        // Create the harness with a token and a key
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("signing");
+            X509Certificate[] chain = pkcs11SoftHsm.importKeyPair("signing", "key", new byte[]{0x01}, "RSA");
 
-            // Define the files
-            File inputFile = new File("src/test/resources/Document.pdf");
-            File outputFile = new File("src/test/resources/Document_Signed.pdf");
+            // Create the service
+            try (Pkcs11Service pkcs11Service = new Pkcs11Service(pkcs11SoftHsm.createLibrary(), null)) {
+                long slotId = pkcs11Service.getSlotId(Pkcs11SlotDirectory.LABEL_PREFIX + "signing");
 
-            // Sign the PDF file
-            pkcs11Service.signPdfFile(Pkcs11TestTemplate.PKCS_SLOT_ID, Pkcs11TestTemplate.PKCS11_TOKEN_PIN, inputFile, outputFile);
+                // List the certificates
+                List<X509Certificate> certificates = pkcs11Service.getCertificates(slotId);
+                assertEquals(chain.length, certificates.size());
+                assertTrue(certificates.contains(chain[0]));
 
-            // Verify the PDF file
-            pkcs11Service.verifyPdfFile(outputFile);
+                // Define the files
+                File inputFile = new File("src/test/resources/Document.pdf");
+                Path directory = Files.createTempDirectory("pkcs11-signing");
+                File outputFile = directory.resolve("Document_Signed.pdf").toFile();
+
+                // Sign the PDF file
+                pkcs11Service.signPdfFile(slotId, Pkcs11SoftHsm.USER_PIN, inputFile, outputFile);
+
+                // Verify the PDF file
+                pkcs11Service.verifyPdfFile(outputFile);
+
+                // Delete the document
+                Files.delete(outputFile.toPath());
+                Files.delete(directory);
+            }
+        }
+    }
+
+    @Test
+    public void testSlotDirectory() throws Exception {
+        // Create the harness with a token
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("directory");
+
+            // Create the service
+            try (Pkcs11Service pkcs11Service = new Pkcs11Service(pkcs11SoftHsm.createLibrary(), null)) {
+                // Get the serial number and label of the token, SoftHSM2 assigns a random slot ID
+                long slotId = pkcs11Service.getSlotId(Pkcs11SlotDirectory.LABEL_PREFIX + "directory");
+                Pkcs11TokenInfo pkcs11TokenInfo = pkcs11Service.getSlots().stream().filter(pkcs11Slot -> pkcs11Slot.getSlotId() == slotId).findFirst().orElseThrow().getToken().getTokenInfo();
+
+                // Address the slot by its ID, serial number and label
+                assertEquals(slotId, pkcs11Service.getSlotId(String.valueOf(slotId)));
+                assertEquals(slotId, pkcs11Service.getSlotId(Pkcs11SlotDirectory.SERIAL_NUMBER_PREFIX + pkcs11TokenInfo.getSerialNumber()));
+                assertEquals(slotId, pkcs11Service.getSlotId(Pkcs11SlotDirectory.LABEL_PREFIX + pkcs11TokenInfo.getLabel()));
+
+                // Ensure unknown slots are reported
+                assertThrows(Pkcs11Exception.class, () -> pkcs11Service.getSlotId(Pkcs11SlotDirectory.SERIAL_NUMBER_PREFIX + "UNKNOWN"));
+                assertThrows(Pkcs11Exception.class, () -> pkcs11Service.getSlotId("UNKNOWN"));
+            }
+        }
+    }
+
+    @Test
+    public void testPdfBatchSigning() throws Exception {
+        // Create the harness with a token and a key
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("batch");
+            pkcs11SoftHsm.importKeyPair("batch", "key", new byte[]{0x01}, "RSA");
+
+            // Create the service
+            try (Pkcs11Service pkcs11Service = new Pkcs11Service(pkcs11SoftHsm.createLibrary(), null)) {
+                long slotId = pkcs11Service.getSlotId(Pkcs11SlotDirectory.LABEL_PREFIX + "batch");
+
+                // Create the input directory with several documents
+                Path inputDirectory = Files.createTempDirectory("pkcs11-input");
+                Path outputDirectory = Files.createTempDirectory("pkcs11-output");
+                for (int i = 0; i < 10; i++) {
+                    Files.copy(Path.of("src/test/resources/Document.pdf"), inputDirectory.resolve(STR."Document_\{i}.pdf"));
+                }
+
+                // Sign all PDF files with one login
+                int signedFiles = pkcs11Service.signPdfFiles(slotId, Pkcs11SoftHsm.USER_PIN, inputDirectory.toFile(), outputDirectory.toFile());
+                assertEquals(10, signedFiles);
+
+                // Verify the PDF files and ensure no prepared files are left
+                for (int i = 0; i < 10; i++) {
+                    pkcs11Service.verifyPdfFile(outputDirectory.resolve(STR."Document_\{i}.pdf").toFile());
+                    assertFalse(Files.exists(outputDirectory.resolve(STR."Document_\{i}.pdf.prepared")));
+                }
+
+                // Verify the PDF files in parallel
+                List<Pkcs11BatchVerifier.Pkcs11VerificationResult> results = pkcs11Service.verifyPdfFiles(outputDirectory.toFile());
+                assertEquals(10, results.size());
+                assertTrue(results.stream().allMatch(Pkcs11BatchVerifier.Pkcs11VerificationResult::isValid));
+            }
+        }
+    }
+
+    @Test
+    public void testPdfVerification() throws Exception {
+        // Create the harness with a token and a key
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("verification");
+            pkcs11SoftHsm.importKeyPair("verification", "key", new byte[]{0x01}, "RSA");
+
+            // Create the service and sign a document
+            try (Pkcs11Service pkcs11Service = new Pkcs11Service(pkcs11SoftHsm.createLibrary(), null)) {
+                long slotId = pkcs11Service.getSlotId(Pkcs11SlotDirectory.LABEL_PREFIX + "verification");
+                Path directory = Files.createTempDirectory("pkcs11-verification");
+                Path signedFile = directory.resolve("Signed.pdf");
+                pkcs11Service.signPdfFile(slotId, Pkcs11SoftHsm.USER_PIN, new File("src/test/resources/Document.pdf"), signedFile.toFile());
+
+                // Create an unsigned, a modified and an extended copy
+                Files.copy(Path.of("src/test/resources/Document.pdf"), directory.resolve("Unsigned.pdf"));
+                byte[] signedDocument = Files.readAllBytes(signedFile);
+                byte[] modifiedDocument = signedDocument.clone();
+                modifiedDocument[10] ^= 0x01;
+                Files.write(directory.resolve("Modified.pdf"), modifiedDocument);
+                byte[] extendedDocument = Arrays.copyOf(signedDocument, signedDocument.length + 8);
+                System.arraycopy("%Append\n".getBytes(StandardCharsets.US_ASCII), 0, extendedDocument, signedDocument.length, 8);
+                Files.write(directory.resolve("Extended.pdf"), extendedDocument);
+
+                // Only the signed document passes the single file verification
+                pkcs11Service.verifyPdfFile(signedFile.toFile());
+                for (String fileName : List.of("Unsigned.pdf", "Modified.pdf", "Extended.pdf")) {
+                    assertThrows(Pkcs11Exception.class, () -> pkcs11Service.verifyPdfFile(directory.resolve(fileName).toFile()));
+                }
+
+                // The batch verification comes to the same results
+                List<Pkcs11BatchVerifier.Pkcs11VerificationResult> results = pkcs11Service.verifyPdfFiles(directory.toFile());
+                assertEquals(List.of("Extended.pdf", "Modified.pdf", "Signed.pdf", "Unsigned.pdf"), results.stream().map(result -> result.file().getName()).toList());
+                assertEquals(List.of(false, false, true, false), results.stream().map(Pkcs11BatchVerifier.Pkcs11VerificationResult::isValid).toList());
+
+                // Delete the documents
+                for (String fileName : List.of("Signed.pdf", "Unsigned.pdf", "Modified.pdf", "Extended.pdf")) {
+                    Files.delete(directory.resolve(fileName));
+                }
+                Files.delete(directory);
+            }
         }
     }
 }
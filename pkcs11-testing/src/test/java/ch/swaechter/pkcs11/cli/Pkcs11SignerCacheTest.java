@@ -0,0 +1,82 @@
+package ch.swaechter.pkcs11.cli;
+
+import ch.swaechter.pkcs11.Pkcs11SoftHsm;
+import ch.swaechter.pkcs11.library.Pkcs11Exception;
+import ch.swaechter.pkcs11.library.Pkcs11Module;
+import ch.swaechter.pkcs11.library.headers.CkKeyType;
+import ch.swaechter.pkcs11.library.headers.CkMechanism;
+import ch.swaechter.pkcs11.library.headers.CkResult;
+import ch.swaechter.pkcs11.library.headers.CkUserType;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Session;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Token;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+import java.security.GeneralSecurityException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the lookup and the invalidation of the signer cache.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11SignerCacheTest {
+
+    @Test
+    public void testIsStale() {
+        // A lost key handle is found behind the signature and the service exception
+        Pkcs11Exception keyHandleException = new Pkcs11Exception("C_SignInit failed", CkResult.CKR_KEY_HANDLE_INVALID);
+        assertTrue(Pkcs11SignerCache.isStale(new Pkcs11Exception("Unable to sign PDF file", new GeneralSecurityException("Unable to sign", keyHandleException))));
+        assertTrue(Pkcs11SignerCache.isStale(new Pkcs11Exception("C_Sign failed", CkResult.CKR_SESSION_HANDLE_INVALID)));
+        assertTrue(Pkcs11SignerCache.isStale(new Pkcs11Exception("C_SignInit failed", CkResult.CKR_DEVICE_REMOVED)));
+
+        // Permanent and unrelated failures keep the signer
+        assertFalse(Pkcs11SignerCache.isStale(new Pkcs11Exception("C_Login failed", CkResult.CKR_PIN_INCORRECT)));
+        assertFalse(Pkcs11SignerCache.isStale(new Pkcs11Exception("The document is not signed.")));
+        assertFalse(Pkcs11SignerCache.isStale(new IllegalStateException("Unrelated")));
+
+        // Cyclic causes don't loop forever
+        Exception firstException = new Exception("First");
+        Exception secondException = new Exception("Second", firstException);
+        firstException.initCause(secondException);
+        assertFalse(Pkcs11SignerCache.isStale(firstException));
+    }
+
+    @Test
+    @EnabledIf("ch.swaechter.pkcs11.Pkcs11SoftHsm#isAvailable")
+    public void testInvalidate() throws Exception {
+        // Create the harness with a token and a key
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("cache");
+            pkcs11SoftHsm.importKeyPair("cache", "key", new byte[]{0x01}, "RSA");
+
+            // Create the PKCS11 module and get the token
+            try (Pkcs11Module pkcs11Module = pkcs11SoftHsm.createModule()) {
+                pkcs11Module.initializeModule();
+                Pkcs11Token pkcs11Token = Pkcs11SoftHsm.getSlot(pkcs11Module, "cache").getToken();
+
+                try (Pkcs11Session pkcs11Session = pkcs11Token.openSession(true, true)) {
+                    pkcs11Session.loginUser(CkUserType.CKU_USER, Pkcs11SoftHsm.USER_PIN);
+
+                    // The signer is resolved once and shared for the default and the real key ID
+                    Pkcs11SignerCache pkcs11SignerCache = new Pkcs11SignerCache();
+                    Pkcs11SignerCache.Pkcs11SignerInfo pkcs11SignerInfo = pkcs11SignerCache.getSignerInfo(pkcs11Token, pkcs11Session);
+                    assertEquals(CkKeyType.CKK_RSA, pkcs11SignerInfo.keyType());
+                    assertEquals(CkMechanism.CKM_RSA_PKCS, pkcs11SignerInfo.rawSignMechanism());
+                    assertSame(pkcs11SignerInfo, pkcs11SignerCache.getSignerInfo(pkcs11Token, pkcs11Session));
+                    assertSame(pkcs11SignerInfo, pkcs11SignerCache.getSignerInfo(pkcs11Token, pkcs11Session, new byte[]{0x01}));
+
+                    // An invalidated signer is resolved again
+                    pkcs11SignerCache.invalidate(pkcs11SignerInfo);
+                    Pkcs11SignerCache.Pkcs11SignerInfo reloadedPkcs11SignerInfo = pkcs11SignerCache.getSignerInfo(pkcs11Token, pkcs11Session, new byte[]{0x01});
+                    assertNotSame(pkcs11SignerInfo, reloadedPkcs11SignerInfo);
+                    assertEquals(pkcs11SignerInfo.privateKeyObjectId(), reloadedPkcs11SignerInfo.privateKeyObjectId());
+                    assertEquals(pkcs11SignerInfo.signatureSize(), reloadedPkcs11SignerInfo.signatureSize());
+
+                    pkcs11Session.logoutUser();
+                }
+            }
+        }
+    }
+}
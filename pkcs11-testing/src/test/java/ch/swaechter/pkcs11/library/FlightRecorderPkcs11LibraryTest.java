@@ -0,0 +1,91 @@
+package ch.swaechter.pkcs11.library;
+
+import ch.swaechter.pkcs11.Pkcs11SoftHsm;
+import ch.swaechter.pkcs11.library.decorators.FlightRecorderPkcs11Library;
+import ch.swaechter.pkcs11.library.headers.CkMechanism;
+import ch.swaechter.pkcs11.library.headers.CkUserType;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Session;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Token;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the flight recorder events against a SoftHSM2 token.
+ *
+ * @author Simon Wächter
+ */
+@EnabledIf("ch.swaechter.pkcs11.Pkcs11SoftHsm#isAvailable")
+public class FlightRecorderPkcs11LibraryTest {
+
+    @Test
+    public void testEvents() throws Exception {
+        // Create the harness with a token
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("events");
+
+            // Create the PKCS11 module on top of the flight recorder decorator
+            try (Pkcs11Module pkcs11Module = new Pkcs11Module(new FlightRecorderPkcs11Library(pkcs11SoftHsm.createLibrary()))) {
+                // Initialize the module and get the token
+                pkcs11Module.initializeModule();
+                Pkcs11Token pkcs11Token = Pkcs11SoftHsm.getSlot(pkcs11Module, "events").getToken();
+
+                // Record all calls without a threshold
+                Path recordingFile = Files.createTempFile("pkcs11", ".jfr");
+                try (Recording recording = new Recording()) {
+                    recording.enable("ch.swaechter.pkcs11.Call").withThreshold(Duration.ZERO);
+                    recording.enable("ch.swaechter.pkcs11.Session");
+                    recording.enable("ch.swaechter.pkcs11.Login");
+                    recording.start();
+
+                    // Open a session, fail a login, login and digest some data
+                    try (Pkcs11Session pkcs11Session = pkcs11Token.openSession(true, true)) {
+                        assertThrows(Pkcs11Exception.class, () -> pkcs11Session.loginUser(CkUserType.CKU_USER, "0000"));
+                        pkcs11Session.loginUser(CkUserType.CKU_USER, Pkcs11SoftHsm.USER_PIN);
+                        pkcs11Session.digest(CkMechanism.CKM_SHA256, new byte[1024]);
+                        pkcs11Session.logoutUser();
+                    }
+
+                    // Stop the recording
+                    recording.stop();
+                    recording.dump(recordingFile);
+                }
+
+                // Check the events
+                try {
+                    List<RecordedEvent> recordedEvents = RecordingFile.readAllEvents(recordingFile);
+                    RecordedEvent digestEvent = findEvent(recordedEvents, "ch.swaechter.pkcs11.Call", "function", "C_Digest");
+                    assertEquals(1024, digestEvent.getLong("bytesIn"));
+                    assertEquals(32, digestEvent.getLong("bytesOut"));
+                    assertEquals("CKR_OK", digestEvent.getString("result"));
+                    assertEquals("CKM_SHA256", findEvent(recordedEvents, "ch.swaechter.pkcs11.Call", "function", "C_DigestInit").getString("mechanism"));
+                    assertEquals("CKR_PIN_INCORRECT", findEvent(recordedEvents, "ch.swaechter.pkcs11.Login", "result", "CKR_PIN_INCORRECT").getString("result"));
+                    assertNotNull(findEvent(recordedEvents, "ch.swaechter.pkcs11.Login", "action", "Logout"));
+                    RecordedEvent openEvent = findEvent(recordedEvents, "ch.swaechter.pkcs11.Session", "action", "Open");
+                    assertEquals(pkcs11Token.getSlotId(), openEvent.getLong("slotId"));
+                    assertEquals(openEvent.getLong("sessionId"), findEvent(recordedEvents, "ch.swaechter.pkcs11.Session", "action", "Close").getLong("sessionId"));
+                } finally {
+                    Files.delete(recordingFile);
+                }
+            }
+        }
+    }
+
+    private static RecordedEvent findEvent(List<RecordedEvent> recordedEvents, String eventName, String fieldName, String value) {
+        for (RecordedEvent recordedEvent : recordedEvents) {
+            if (recordedEvent.getEventType().getName().equals(eventName) && value.equals(recordedEvent.getString(fieldName))) {
+                return recordedEvent;
+            }
+        }
+        throw new AssertionError("Unable to find the event " + eventName + " with " + fieldName + "=" + value);
+    }
+}
@@ -0,0 +1,89 @@
+package ch.swaechter.pkcs11.library;
+
+import ch.swaechter.pkcs11.Pkcs11SoftHsm;
+import ch.swaechter.pkcs11.library.decorators.MetricsPkcs11Library;
+import ch.swaechter.pkcs11.library.decorators.Pkcs11FunctionMetrics;
+import ch.swaechter.pkcs11.library.headers.CkMechanism;
+import ch.swaechter.pkcs11.library.headers.CkResult;
+import ch.swaechter.pkcs11.library.headers.CkUserType;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Session;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Token;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the metrics decorator against a SoftHSM2 token.
+ *
+ * @author Simon Wächter
+ */
+@EnabledIf("ch.swaechter.pkcs11.Pkcs11SoftHsm#isAvailable")
+public class MetricsPkcs11LibraryTest {
+
+    @Test
+    public void testMetrics() throws Exception {
+        // Create the harness with a token
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("metrics");
+
+            // Create the PKCS11 module on top of the metrics decorator
+            MetricsPkcs11Library metricsPkcs11Library = new MetricsPkcs11Library(pkcs11SoftHsm.createLibrary());
+            try (Pkcs11Module pkcs11Module = new Pkcs11Module(metricsPkcs11Library)) {
+                // Initialize the module and get the token
+                pkcs11Module.initializeModule();
+                Pkcs11Token pkcs11Token = Pkcs11SoftHsm.getSlot(pkcs11Module, "metrics").getToken();
+
+                // Fail a login, login and digest some data
+                try (Pkcs11Session pkcs11Session = pkcs11Token.openSession(true, true)) {
+                    Pkcs11Exception pkcs11Exception = assertThrows(Pkcs11Exception.class, () -> pkcs11Session.loginUser(CkUserType.CKU_USER, "0000"));
+                    assertEquals(CkResult.CKR_PIN_INCORRECT, pkcs11Exception.getCkResult());
+                    pkcs11Session.loginUser(CkUserType.CKU_USER, Pkcs11SoftHsm.USER_PIN);
+                    for (int i = 0; i < 100; i++) {
+                        pkcs11Session.digest(CkMechanism.CKM_SHA256, new byte[1024]);
+                    }
+                    pkcs11Session.logoutUser();
+                }
+
+                // Check the login metrics
+                Map<String, Pkcs11FunctionMetrics> metrics = metricsPkcs11Library.getMetrics();
+                Pkcs11FunctionMetrics loginMetrics = metrics.get("C_Login");
+                assertEquals(2, loginMetrics.calls());
+                assertEquals(1, loginMetrics.errors());
+                assertEquals(1L, loginMetrics.resultCounts().get(CkResult.CKR_OK));
+                assertEquals(1L, loginMetrics.resultCounts().get(CkResult.CKR_PIN_INCORRECT));
+
+                // Check the digest metrics
+                Pkcs11FunctionMetrics digestMetrics = metrics.get("C_Digest");
+                assertEquals(100, digestMetrics.calls());
+                assertEquals(0, digestMetrics.errors());
+                assertEquals(100 * 1024, digestMetrics.bytesIn());
+                assertEquals(100 * 32, digestMetrics.bytesOut());
+                assertTrue(digestMetrics.getLatencyPercentileNanos(0.5) > 0);
+                assertTrue(digestMetrics.getLatencyPercentileNanos(0.5) <= digestMetrics.getLatencyPercentileNanos(0.99));
+                assertTrue(digestMetrics.getLatencyPercentileNanos(0.99) <= digestMetrics.maxLatencyNanos());
+
+                // Read the metrics via JMX
+                MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+                ObjectName objectName = metricsPkcs11Library.registerMXBean("softhsm2");
+                try {
+                    assertTrue(mBeanServer.isRegistered(objectName));
+                    assertEquals(true, mBeanServer.getAttribute(objectName, "Enabled"));
+                    assertNotNull(mBeanServer.getAttribute(objectName, "CallCounts"));
+                } finally {
+                    metricsPkcs11Library.unregisterMXBean(objectName);
+                }
+
+                // Disable the recording
+                metricsPkcs11Library.setEnabled(false);
+                pkcs11Token.getTokenInfo();
+                assertEquals(metrics.get("C_GetTokenInfo").calls(), metricsPkcs11Library.getMetrics().get("C_GetTokenInfo").calls());
+            }
+        }
+    }
+}
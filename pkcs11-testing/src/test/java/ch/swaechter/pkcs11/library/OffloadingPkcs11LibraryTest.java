@@ -0,0 +1,248 @@
+package ch.swaechter.pkcs11.library;
+
+import ch.swaechter.pkcs11.Pkcs11SoftHsm;
+import ch.swaechter.pkcs11.library.decorators.DelegatingPkcs11Library;
+import ch.swaechter.pkcs11.library.decorators.OffloadingPkcs11Library;
+import ch.swaechter.pkcs11.library.decorators.Pkcs11Call;
+import ch.swaechter.pkcs11.library.headers.CkAttribute;
+import ch.swaechter.pkcs11.library.headers.CkAttributeValue;
+import ch.swaechter.pkcs11.library.headers.CkMechanism;
+import ch.swaechter.pkcs11.library.headers.CkObjectClass;
+import ch.swaechter.pkcs11.library.headers.CkUserType;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Session;
+import ch.swaechter.pkcs11.library.objects.Pkcs11SessionPool;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Token;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Load test for the offloading decorator with many virtual threads against a SoftHSM2 token.
+ *
+ * @author Simon Wächter
+ */
+@EnabledIf("ch.swaechter.pkcs11.Pkcs11SoftHsm#isAvailable")
+public class OffloadingPkcs11LibraryTest {
+
+    @Test
+    public void testVirtualThreadLoad() throws Exception {
+        // Create the harness with a token and a key
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("offloading");
+            X509Certificate certificate = pkcs11SoftHsm.importKeyPair("offloading", "key", new byte[]{0x01}, "RSA")[0];
+
+            // Record on which kind of thread the native sign calls are executed
+            ThreadRecordingPkcs11Library threadRecordingPkcs11Library = new ThreadRecordingPkcs11Library(pkcs11SoftHsm.createLibrary());
+
+            // Create the PKCS11 module on top of the offloading decorator
+            try (OffloadingPkcs11Library offloadingPkcs11Library = new OffloadingPkcs11Library(threadRecordingPkcs11Library, 4);
+                 Pkcs11Module pkcs11Module = new Pkcs11Module(offloadingPkcs11Library)) {
+                // Initialize the module, get the token and create a pool with pre-authenticated sessions
+                pkcs11Module.initializeModule();
+                Pkcs11Token pkcs11Token = Pkcs11SoftHsm.getSlot(pkcs11Module, "offloading").getToken();
+                try (Pkcs11SessionPool pkcs11SessionPool = new Pkcs11SessionPool(pkcs11Token, 4, true, CkUserType.CKU_USER, Pkcs11SoftHsm.USER_PIN)) {
+                    // Find the private key
+                    List<CkAttributeValue> privateKeyCkAttributeValues = List.of(new CkAttributeValue(CkAttribute.CKA_CLASS, CkObjectClass.CKO_PRIVATE_KEY.value));
+                    List<Long> privateKeyObjectIds = pkcs11SessionPool.execute(pkcs11Session -> pkcs11Session.findObjects(privateKeyCkAttributeValues));
+                    assertEquals(1, privateKeyObjectIds.size());
+                    long privateKeyObjectId = privateKeyObjectIds.getFirst();
+
+                    // Measure how late a sleeping virtual thread wakes up while the token is under load
+                    AtomicBoolean running = new AtomicBoolean(true);
+                    AtomicLong maximumDelay = new AtomicLong();
+                    Thread heartbeatThread = Thread.ofVirtual().start(() -> {
+                        while (running.get()) {
+                            long startTime = System.nanoTime();
+                            try {
+                                Thread.sleep(10);
+                            } catch (InterruptedException exception) {
+                                return;
+                            }
+                            long delay = (System.nanoTime() - startTime) / 1_000_000 - 10;
+                            maximumDelay.accumulateAndGet(delay, Math::max);
+                        }
+                    });
+
+                    // Sign with far more virtual threads than there are carrier threads
+                    int threadCount = Runtime.getRuntime().availableProcessors() * 8;
+                    byte[] message = "PKCS11".getBytes(StandardCharsets.US_ASCII);
+                    List<Future<byte[]>> futures = new ArrayList<>();
+                    try (ExecutorService executorService = Executors.newVirtualThreadPerTaskExecutor()) {
+                        for (int i = 0; i < threadCount; i++) {
+                            futures.add(executorService.submit(() -> pkcs11SessionPool.execute(pkcs11Session -> pkcs11Session.sign(CkMechanism.CKM_SHA256_RSA_PKCS, privateKeyObjectId, message))));
+                        }
+                        for (Future<byte[]> future : futures) {
+                            assertTrue(Pkcs11SoftHsm.verify("SHA256withRSA", certificate, message, future.get()));
+                        }
+                    }
+
+                    // Stop the heartbeat
+                    running.set(false);
+                    heartbeatThread.join();
+
+                    // Ensure all signatures were made on platform threads and the scheduler stayed responsive
+                    assertEquals(threadCount, offloadingPkcs11Library.getOffloadedCalls());
+                    assertEquals(threadCount, threadRecordingPkcs11Library.platformThreadCalls.sum());
+                    assertEquals(0, threadRecordingPkcs11Library.virtualThreadCalls.sum());
+                    assertTrue(maximumDelay.get() < 100, "Heartbeat was delayed by " + maximumDelay.get() + " ms");
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testInlineCalls() throws Exception {
+        // Create the harness with a token
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("offloading");
+
+            // Create the PKCS11 module on top of the offloading decorator
+            try (OffloadingPkcs11Library offloadingPkcs11Library = new OffloadingPkcs11Library(pkcs11SoftHsm.createLibrary(), 2);
+                 Pkcs11Module pkcs11Module = new Pkcs11Module(offloadingPkcs11Library)) {
+                // Initialize the module and get the token
+                pkcs11Module.initializeModule();
+                offloadingPkcs11Library.removeOffloadThreshold("C_Login");
+                Pkcs11Token pkcs11Token = Pkcs11SoftHsm.getSlot(pkcs11Module, "offloading").getToken();
+                try (Pkcs11SessionPool pkcs11SessionPool = new Pkcs11SessionPool(pkcs11Token, 1, false)) {
+                    // Small digests and random data stay inline, even on virtual threads
+                    Thread thread = Thread.ofVirtual().start(() -> {
+                        try {
+                            pkcs11SessionPool.execute(pkcs11Session -> pkcs11Session.digest(CkMechanism.CKM_SHA256, new byte[1024]));
+                            pkcs11SessionPool.execute(pkcs11Session -> pkcs11Session.generateRandom(32));
+                        } catch (Pkcs11Exception exception) {
+                            throw new RuntimeException(exception);
+                        }
+                    });
+                    thread.join();
+                    assertEquals(0, offloadingPkcs11Library.getOffloadedCalls());
+                    assertFalse(offloadingPkcs11Library.getOffloadThresholds().containsKey("C_Login"));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRejection() throws Exception {
+        // Create the harness with a token
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("offloading");
+
+            // Create the PKCS11 module on top of an offloading decorator with one platform thread and one queued call
+            BlockingPkcs11Library blockingPkcs11Library = new BlockingPkcs11Library(pkcs11SoftHsm.createLibrary());
+            try (OffloadingPkcs11Library offloadingPkcs11Library = new OffloadingPkcs11Library(blockingPkcs11Library, 1, 1);
+                 Pkcs11Module pkcs11Module = new Pkcs11Module(offloadingPkcs11Library)) {
+                pkcs11Module.initializeModule();
+                offloadingPkcs11Library.setOffloadThreshold("C_GenerateRandom", 0);
+                Pkcs11Token pkcs11Token = Pkcs11SoftHsm.getSlot(pkcs11Module, "offloading").getToken();
+                try (Pkcs11Session pkcs11Session1 = pkcs11Token.openSession(false, true);
+                     Pkcs11Session pkcs11Session2 = pkcs11Token.openSession(false, true);
+                     Pkcs11Session pkcs11Session3 = pkcs11Token.openSession(false, true);
+                     ExecutorService executorService = Executors.newVirtualThreadPerTaskExecutor()) {
+                    // Occupy the platform thread and the queue
+                    Future<byte[]> runningFuture = executorService.submit(() -> pkcs11Session1.generateRandom(16));
+                    blockingPkcs11Library.startedLatch.await();
+                    Future<byte[]> queuedFuture = executorService.submit(() -> pkcs11Session2.generateRandom(16));
+                    while (offloadingPkcs11Library.getOffloadedCalls() < 2) {
+                        Thread.sleep(1);
+                    }
+
+                    // Further calls are rejected instead of piling up
+                    Future<byte[]> rejectedFuture = executorService.submit(() -> pkcs11Session3.generateRandom(16));
+                    Exception exception = assertThrows(Exception.class, rejectedFuture::get);
+                    assertInstanceOf(Pkcs11Exception.class, exception.getCause());
+
+                    // The running and queued calls complete
+                    blockingPkcs11Library.releaseLatch.countDown();
+                    assertEquals(16, runningFuture.get().length);
+                    assertEquals(16, queuedFuture.get().length);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decorator that blocks the first random call until it is released.
+     */
+    private static class BlockingPkcs11Library extends DelegatingPkcs11Library {
+
+        /**
+         * Latch that is counted down when the first random call started.
+         */
+        private final CountDownLatch startedLatch = new CountDownLatch(1);
+
+        /**
+         * Latch that releases the random calls.
+         */
+        private final CountDownLatch releaseLatch = new CountDownLatch(1);
+
+        /**
+         * {@inheritDoc}
+         */
+        public BlockingPkcs11Library(Pkcs11Library pkcs11Library) {
+            super(pkcs11Library);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected <T> T invoke(String functionName, Object[] arguments, Pkcs11Call<T> pkcs11Call) throws Pkcs11Exception {
+            if (functionName.equals("C_GenerateRandom")) {
+                startedLatch.countDown();
+                try {
+                    releaseLatch.await();
+                } catch (InterruptedException exception) {
+                    throw new Pkcs11Exception("Interrupted while blocking", exception);
+                }
+            }
+            return pkcs11Call.call();
+        }
+    }
+
+    /**
+     * Decorator that counts the sign calls per thread kind.
+     */
+    private static class ThreadRecordingPkcs11Library extends DelegatingPkcs11Library {
+
+        /**
+         * Number of sign calls on platform threads.
+         */
+        private final LongAdder platformThreadCalls = new LongAdder();
+
+        /**
+         * Number of sign calls on virtual threads.
+         */
+        private final LongAdder virtualThreadCalls = new LongAdder();
+
+        /**
+         * {@inheritDoc}
+         */
+        public ThreadRecordingPkcs11Library(Pkcs11Library pkcs11Library) {
+            super(pkcs11Library);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected <T> T invoke(String functionName, Object[] arguments, Pkcs11Call<T> pkcs11Call) throws Pkcs11Exception {
+            if (functionName.equals("C_Sign")) {
+                (Thread.currentThread().isVirtual() ? virtualThreadCalls : platformThreadCalls).increment();
+            }
+            return pkcs11Call.call();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package ch.swaechter.pkcs11.library;
+
+import ch.swaechter.pkcs11.Pkcs11SoftHsm;
+import ch.swaechter.pkcs11.library.headers.CkTokenInfo;
+import ch.swaechter.pkcs11.library.headers.CkVersion;
+import ch.swaechter.pkcs11.library.objects.Pkcs11AdmissionController;
+import ch.swaechter.pkcs11.library.objects.Pkcs11AdmissionMetrics;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Token;
+import ch.swaechter.pkcs11.library.objects.Pkcs11TokenInfo;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the permit derivation and the admission control against a SoftHSM2 token.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11AdmissionControllerTest {
+
+    @Test
+    public void testPermits() {
+        // Limited sessions minus the open and reserved ones
+        assertEquals(7, Pkcs11AdmissionController.derivePermits(createTokenInfo(10L, 1L, 0L, 0L), false, 2, 4));
+        assertEquals(3, Pkcs11AdmissionController.derivePermits(createTokenInfo(10L, 1L, 4L, 0L), true, 1, 4));
+
+        // Unlimited or unknown sessions use the fallback
+        assertEquals(4, Pkcs11AdmissionController.derivePermits(createTokenInfo(0L, 1L, 0L, 0L), false, 2, 4));
+        assertEquals(4, Pkcs11AdmissionController.derivePermits(createTokenInfo(-1L, -1L, -1L, -1L), true, 2, 4));
+        assertEquals(4, Pkcs11AdmissionController.derivePermits(createTokenInfo(0xFFFFFFFFL, 0xFFFFFFFFL, 0L, 0L), false, 2, 4));
+
+        // At least one permit is granted
+        assertEquals(1, Pkcs11AdmissionController.derivePermits(createTokenInfo(2L, 2L, 0L, 0L), false, 1, 4));
+    }
+
+    @Test
+    @EnabledIf("ch.swaechter.pkcs11.Pkcs11SoftHsm#isAvailable")
+    public void testAdmission() throws Exception {
+        // Create the harness with a token
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("admission");
+
+            // Create the PKCS11 module and get the token
+            try (Pkcs11Module pkcs11Module = pkcs11SoftHsm.createModule()) {
+                pkcs11Module.initializeModule();
+                Pkcs11Token pkcs11Token = Pkcs11SoftHsm.getSlot(pkcs11Module, "admission").getToken();
+
+                // SoftHSM2 does not limit the sessions, so the fallback applies
+                try (Pkcs11AdmissionController pkcs11AdmissionController = new Pkcs11AdmissionController(pkcs11Token, false, 1, 2, 1, Duration.ofMillis(100))) {
+                    assertEquals(2, pkcs11AdmissionController.getPermits());
+
+                    // Occupy both sessions
+                    CountDownLatch startedLatch = new CountDownLatch(2);
+                    CountDownLatch releaseLatch = new CountDownLatch(1);
+                    try (ExecutorService executorService = Executors.newFixedThreadPool(3)) {
+                        List<Future<byte[]>> futures = new ArrayList<>();
+                        for (int i = 0; i < 2; i++) {
+                            futures.add(executorService.submit(() -> pkcs11AdmissionController.execute(pkcs11Session -> {
+                                startedLatch.countDown();
+                                await(releaseLatch);
+                                return pkcs11Session.generateRandom(16);
+                            })));
+                        }
+                        startedLatch.await();
+
+                        // One request waits in the queue, so the next one is rejected
+                        CountDownLatch queuedLatch = new CountDownLatch(1);
+                        Future<?> waitingFuture = executorService.submit(() -> {
+                            queuedLatch.countDown();
+                            return pkcs11AdmissionController.execute(pkcs11Session -> pkcs11Session.generateRandom(16), Duration.ofSeconds(2));
+                        });
+                        queuedLatch.await();
+                        while (pkcs11AdmissionController.getMetrics().queueLength() == 0) {
+                            Thread.onSpinWait();
+                        }
+                        assertThrows(Pkcs11Exception.class, () -> pkcs11AdmissionController.execute(pkcs11Session -> pkcs11Session.generateRandom(16)));
+
+                        // Release the sessions, so all admitted requests complete
+                        releaseLatch.countDown();
+                        for (Future<byte[]> future : futures) {
+                            assertEquals(16, future.get().length);
+                        }
+                        waitingFuture.get();
+                    }
+
+                    // Without any free session the request times out
+                    pkcs11AdmissionController.execute(outerSession -> pkcs11AdmissionController.execute(innerSession -> {
+                        assertThrows(Pkcs11Exception.class, () -> pkcs11AdmissionController.execute(pkcs11Session -> pkcs11Session.generateRandom(16), Duration.ofMillis(10)));
+                        return null;
+                    }));
+
+                    // Check the metrics
+                    Pkcs11AdmissionMetrics pkcs11AdmissionMetrics = pkcs11AdmissionController.getMetrics();
+                    assertEquals(2, pkcs11AdmissionMetrics.availablePermits());
+                    assertEquals(0, pkcs11AdmissionMetrics.queueLength());
+                    assertEquals(1, pkcs11AdmissionMetrics.maxQueueLength());
+                    assertEquals(5, pkcs11AdmissionMetrics.admitted());
+                    assertEquals(1, pkcs11AdmissionMetrics.rejected());
+                    assertEquals(1, pkcs11AdmissionMetrics.timedOut());
+                }
+            }
+        }
+    }
+
+    @Test
+    @EnabledIf("ch.swaechter.pkcs11.Pkcs11SoftHsm#isAvailable")
+    public void testClose() throws Exception {
+        // Create the harness with a token
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("admission");
+
+            // Create the PKCS11 module and get the token
+            try (Pkcs11Module pkcs11Module = pkcs11SoftHsm.createModule()) {
+                pkcs11Module.initializeModule();
+                Pkcs11Token pkcs11Token = Pkcs11SoftHsm.getSlot(pkcs11Module, "admission").getToken();
+                Pkcs11AdmissionController pkcs11AdmissionController = new Pkcs11AdmissionController(pkcs11Token, false, 1, 1, 4, Duration.ofMinutes(1));
+
+                // Occupy the session and let a second request wait
+                CountDownLatch startedLatch = new CountDownLatch(1);
+                CountDownLatch releaseLatch = new CountDownLatch(1);
+                try (ExecutorService executorService = Executors.newCachedThreadPool()) {
+                    Future<byte[]> runningFuture = executorService.submit(() -> pkcs11AdmissionController.execute(pkcs11Session -> {
+                        startedLatch.countDown();
+                        await(releaseLatch);
+                        return pkcs11Session.generateRandom(16);
+                    }));
+                    startedLatch.await();
+                    Future<byte[]> waitingFuture = executorService.submit(() -> pkcs11AdmissionController.execute(pkcs11Session -> pkcs11Session.generateRandom(16)));
+                    while (pkcs11AdmissionController.getMetrics().queueLength() == 0) {
+                        Thread.onSpinWait();
+                    }
+
+                    // Closing wakes up the waiting request right away, but waits for the running one
+                    Future<?> closingFuture = executorService.submit(pkcs11AdmissionController::close);
+                    ExecutionException executionException = assertThrows(ExecutionException.class, () -> waitingFuture.get(5, TimeUnit.SECONDS));
+                    assertInstanceOf(Pkcs11Exception.class, executionException.getCause());
+                    assertThrows(TimeoutException.class, () -> closingFuture.get(200, TimeUnit.MILLISECONDS));
+
+                    // The running request completes and further requests are rejected
+                    releaseLatch.countDown();
+                    assertEquals(16, runningFuture.get().length);
+                    closingFuture.get(5, TimeUnit.SECONDS);
+                    assertThrows(Pkcs11Exception.class, () -> pkcs11AdmissionController.execute(pkcs11Session -> pkcs11Session.generateRandom(16)));
+                }
+            }
+        }
+    }
+
+    private static void await(CountDownLatch countDownLatch) throws Pkcs11Exception {
+        try {
+            countDownLatch.await();
+        } catch (InterruptedException exception) {
+            throw new Pkcs11Exception("Interrupted while waiting", exception);
+        }
+    }
+
+    private static Pkcs11TokenInfo createTokenInfo(Long maxSessionCount, Long sessionCount, Long maxRwSessionCount, Long rwSessionCount) {
+        CkVersion ckVersion = new CkVersion((byte) 1, (byte) 0);
+        return new Pkcs11TokenInfo(new CkTokenInfo("Token", "Manufacturer", "Model", "Serial", 0L, maxSessionCount, sessionCount, maxRwSessionCount, rwSessionCount, 8L, 4L, 0L, 0L, 0L, 0L, ckVersion, ckVersion, ""));
+    }
+}
@@ -0,0 +1,82 @@
+package ch.swaechter.pkcs11.library;
+
+import ch.swaechter.pkcs11.Pkcs11SoftHsm;
+import ch.swaechter.pkcs11.library.headers.CkAttribute;
+import ch.swaechter.pkcs11.library.headers.CkAttributeValue;
+import ch.swaechter.pkcs11.library.headers.CkMechanism;
+import ch.swaechter.pkcs11.library.headers.CkObjectClass;
+import ch.swaechter.pkcs11.library.headers.CkUserType;
+import ch.swaechter.pkcs11.library.objects.Pkcs11AsyncSession;
+import ch.swaechter.pkcs11.library.objects.Pkcs11SessionPool;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Token;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the asynchronous session against a SoftHSM2 token.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11AsyncSessionTest {
+
+    @Test
+    @EnabledIf("ch.swaechter.pkcs11.Pkcs11SoftHsm#isAvailable")
+    public void testAsyncOperations() throws Exception {
+        // Create the harness with a token and a key
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("async");
+            X509Certificate certificate = pkcs11SoftHsm.importKeyPair("async", "key", new byte[]{0x01}, "RSA")[0];
+
+            // Create the PKCS11 module and get the token
+            try (Pkcs11Module pkcs11Module = pkcs11SoftHsm.createModule()) {
+                pkcs11Module.initializeModule();
+                Pkcs11Token pkcs11Token = Pkcs11SoftHsm.getSlot(pkcs11Module, "async").getToken();
+
+                // Create the pool with pre-authenticated sessions and the asynchronous session on top of it
+                Pkcs11SessionPool pkcs11SessionPool = new Pkcs11SessionPool(pkcs11Token, 4, true, CkUserType.CKU_USER, Pkcs11SoftHsm.USER_PIN);
+                Pkcs11AsyncSession pkcs11AsyncSession = new Pkcs11AsyncSession(pkcs11SessionPool);
+                try (pkcs11AsyncSession) {
+                    // Submit more random requests than there are sessions
+                    List<CompletableFuture<byte[]>> randomFutures = new ArrayList<>();
+                    for (int i = 0; i < 16; i++) {
+                        randomFutures.add(pkcs11AsyncSession.generateRandom(32));
+                    }
+                    for (CompletableFuture<byte[]> randomFuture : randomFutures) {
+                        assertEquals(32, randomFuture.join().length);
+                    }
+
+                    // Digest data and compare it with the JDK digest
+                    byte[] data = "PKCS11".getBytes(StandardCharsets.US_ASCII);
+                    byte[] digest = pkcs11AsyncSession.digest(CkMechanism.CKM_SHA256, data).join();
+                    assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(data), digest);
+
+                    // Find the private key, sign with it and verify the signature with the certificate
+                    List<CkAttributeValue> privateKeyCkAttributeValues = List.of(new CkAttributeValue(CkAttribute.CKA_CLASS, CkObjectClass.CKO_PRIVATE_KEY.value));
+                    List<Long> privateKeyObjectIds = pkcs11AsyncSession.findObjects(privateKeyCkAttributeValues).join();
+                    assertEquals(1, privateKeyObjectIds.size());
+                    byte[] signature = pkcs11AsyncSession.sign(CkMechanism.CKM_SHA256_RSA_PKCS, privateKeyObjectIds.getFirst(), data).join();
+                    assertTrue(Pkcs11SoftHsm.verify("SHA256withRSA", certificate, data, signature));
+                }
+
+                // Ensure the pool is closed together with the asynchronous session
+                assertThrows(Pkcs11Exception.class, pkcs11SessionPool::borrowSession);
+
+                // Operations submitted after the close fail right away instead of throwing
+                CompletableFuture<byte[]> rejectedFuture = pkcs11AsyncSession.generateRandom(32);
+                assertTrue(rejectedFuture.isCompletedExceptionally());
+                ExecutionException executionException = assertThrows(ExecutionException.class, rejectedFuture::get);
+                assertInstanceOf(Pkcs11Exception.class, executionException.getCause());
+            }
+        }
+    }
+}
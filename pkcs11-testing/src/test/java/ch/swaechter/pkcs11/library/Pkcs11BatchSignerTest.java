@@ -0,0 +1,124 @@
+package ch.swaechter.pkcs11.library;
+
+import ch.swaechter.pkcs11.Pkcs11SoftHsm;
+import ch.swaechter.pkcs11.library.headers.CkAttribute;
+import ch.swaechter.pkcs11.library.headers.CkAttributeValue;
+import ch.swaechter.pkcs11.library.headers.CkMechanism;
+import ch.swaechter.pkcs11.library.headers.CkObjectClass;
+import ch.swaechter.pkcs11.library.headers.CkUserType;
+import ch.swaechter.pkcs11.library.objects.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the Merkle tree, the Merkle verifier and the batch signer against a SoftHSM2 token.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11BatchSignerTest {
+
+    @Test
+    public void testMerkleTree() throws Exception {
+        // Verify every proof of trees with full and partial levels
+        for (int treeSize = 1; treeSize <= 70; treeSize++) {
+            List<byte[]> documentDigests = createDocumentDigests(treeSize);
+            Pkcs11MerkleTree pkcs11MerkleTree = new Pkcs11MerkleTree(documentDigests);
+            assertEquals(treeSize, pkcs11MerkleTree.getSize());
+            for (int leafIndex = 0; leafIndex < treeSize; leafIndex++) {
+                List<byte[]> proof = pkcs11MerkleTree.getProof(leafIndex);
+                assertTrue(proof.size() <= 32 - Integer.numberOfLeadingZeros(treeSize - 1));
+                assertArrayEquals(pkcs11MerkleTree.getRoot(), Pkcs11MerkleTree.computeRoot(documentDigests.get(leafIndex), leafIndex, treeSize, proof));
+            }
+        }
+
+        // A proof does not fit a different document, leaf index or tree size
+        List<byte[]> documentDigests = createDocumentDigests(5);
+        Pkcs11MerkleTree pkcs11MerkleTree = new Pkcs11MerkleTree(documentDigests);
+        List<byte[]> proof = pkcs11MerkleTree.getProof(2);
+        assertFalse(MessageDigest.isEqual(pkcs11MerkleTree.getRoot(), Pkcs11MerkleTree.computeRoot(documentDigests.get(3), 2, 5, proof)));
+        assertFalse(MessageDigest.isEqual(pkcs11MerkleTree.getRoot(), Pkcs11MerkleTree.computeRoot(documentDigests.get(2), 3, 5, proof)));
+        assertNull(Pkcs11MerkleTree.computeRoot(documentDigests.get(2), 2, 3, proof));
+        assertNull(Pkcs11MerkleTree.computeRoot(documentDigests.get(2), 5, 5, proof));
+        assertThrows(IndexOutOfBoundsException.class, () -> pkcs11MerkleTree.getProof(5));
+        assertThrows(IllegalArgumentException.class, () -> new Pkcs11MerkleTree(List.of()));
+    }
+
+    @Test
+    public void testVerifier() throws Exception {
+        // Sign the root of a tree with a software key
+        KeyPair keyPair = KeyPairGenerator.getInstance("EC").generateKeyPair();
+        List<byte[]> documentDigests = createDocumentDigests(9);
+        Pkcs11MerkleTree pkcs11MerkleTree = new Pkcs11MerkleTree(documentDigests);
+        Signature signer = Signature.getInstance("SHA256withECDSA");
+        signer.initSign(keyPair.getPrivate());
+        signer.update(pkcs11MerkleTree.getRoot());
+        byte[] rootSignature = signer.sign();
+
+        // Every document verifies, but not with a foreign digest or key
+        for (int leafIndex = 0; leafIndex < documentDigests.size(); leafIndex++) {
+            Pkcs11BatchSignature pkcs11BatchSignature = new Pkcs11BatchSignature(rootSignature, leafIndex, documentDigests.size(), pkcs11MerkleTree.getProof(leafIndex));
+            assertTrue(Pkcs11MerkleVerifier.verify(keyPair.getPublic(), "SHA256withECDSA", documentDigests.get(leafIndex), pkcs11BatchSignature));
+        }
+        Pkcs11BatchSignature pkcs11BatchSignature = new Pkcs11BatchSignature(rootSignature, 0, documentDigests.size(), pkcs11MerkleTree.getProof(0));
+        assertFalse(Pkcs11MerkleVerifier.verify(keyPair.getPublic(), "SHA256withECDSA", documentDigests.get(1), pkcs11BatchSignature));
+        assertFalse(Pkcs11MerkleVerifier.verify(KeyPairGenerator.getInstance("EC").generateKeyPair().getPublic(), "SHA256withECDSA", documentDigests.getFirst(), pkcs11BatchSignature));
+    }
+
+    @Test
+    @EnabledIf("ch.swaechter.pkcs11.Pkcs11SoftHsm#isAvailable")
+    public void testBatchSigner() throws Exception {
+        // Create the harness with a token and a key
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("batch");
+            X509Certificate certificate = pkcs11SoftHsm.importKeyPair("batch", "key", new byte[]{0x01}, "RSA")[0];
+
+            // Create the PKCS11 module, log in and find the key
+            try (Pkcs11Module pkcs11Module = pkcs11SoftHsm.createModule()) {
+                pkcs11Module.initializeModule();
+                Pkcs11Token pkcs11Token = Pkcs11SoftHsm.getSlot(pkcs11Module, "batch").getToken();
+                try (Pkcs11Session pkcs11Session = pkcs11Token.openSession(false, true)) {
+                    pkcs11Session.loginUser(CkUserType.CKU_USER, Pkcs11SoftHsm.USER_PIN);
+                    long keyHandle = pkcs11Session.findObjects(List.of(new CkAttributeValue(CkAttribute.CKA_CLASS, CkObjectClass.CKO_PRIVATE_KEY.value))).getFirst();
+
+                    // Submit many documents, they share a few token signatures
+                    List<byte[]> documentDigests = createDocumentDigests(1000);
+                    try (Pkcs11BatchSigner pkcs11BatchSigner = new Pkcs11BatchSigner(pkcs11Session, CkMechanism.CKM_SHA256_RSA_PKCS, keyHandle, Duration.ofMillis(50), 256)) {
+                        List<CompletableFuture<Pkcs11BatchSignature>> futures = new ArrayList<>();
+                        for (byte[] documentDigest : documentDigests) {
+                            futures.add(pkcs11BatchSigner.submit(documentDigest));
+                        }
+                        for (int i = 0; i < documentDigests.size(); i++) {
+                            Pkcs11BatchSignature pkcs11BatchSignature = futures.get(i).get();
+                            assertTrue(pkcs11BatchSignature.treeSize() <= 256);
+                            assertTrue(Pkcs11MerkleVerifier.verify(certificate.getPublicKey(), "SHA256withRSA", documentDigests.get(i), pkcs11BatchSignature));
+                        }
+                        assertTrue(Pkcs11MerkleVerifier.verify(certificate.getPublicKey(), "SHA256withRSA", documentDigests.getFirst(), pkcs11BatchSigner.sign(documentDigests.getFirst())));
+                        assertEquals(1001, pkcs11BatchSigner.getDocumentCount());
+                        assertTrue(pkcs11BatchSigner.getBatchCount() >= 5 && pkcs11BatchSigner.getBatchCount() < 100);
+                    }
+                }
+            }
+        }
+    }
+
+    private static List<byte[]> createDocumentDigests(int count) throws Exception {
+        List<byte[]> documentDigests = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            documentDigests.add(MessageDigest.getInstance("SHA-256").digest(("Document " + i).getBytes(StandardCharsets.UTF_8)));
+        }
+        return documentDigests;
+    }
+}
@@ -1,13 +1,16 @@
 package ch.swaechter.pkcs11.library;
 
-import ch.swaechter.pkcs11.Pkcs11TestTemplate;
+import ch.swaechter.pkcs11.Pkcs11SoftHsm;
 import ch.swaechter.pkcs11.library.headers.*;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -15,28 +18,51 @@ import java.util.List;
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
- * Test the PKCS11 library.
+ * Test the PKCS11 library against a SoftHSM2 token with an RSA key and a certificate chain of three certificates.
  *
  * @author Simon Wächter
  */
+@EnabledIf("ch.swaechter.pkcs11.Pkcs11SoftHsm#isAvailable")
 public class Pkcs11LibraryTest {
 
+    private static final String TOKEN_LABEL = "library";
+
+    private static Pkcs11SoftHsm pkcs11SoftHsm;
+
+    private static X509Certificate[] certificates;
+
     private static Pkcs11Library pkcs11Library;
 
+    private static long slotId;
+
     @BeforeAll
-    public static void initializePkcs11LowLevel() throws Pkcs11Exception {
+    public static void initializePkcs11LowLevel() throws Exception {
+        // Create the harness with a token and a key
+        pkcs11SoftHsm = new Pkcs11SoftHsm();
+        pkcs11SoftHsm.initializeToken(TOKEN_LABEL);
+        certificates = pkcs11SoftHsm.importKeyPair(TOKEN_LABEL, "key", new byte[]{0x01}, "RSA");
+
         // Create the client
-        pkcs11Library = Pkcs11Library.detectPlatform(Pkcs11TestTemplate.LIBRARY_NAME);
-        //pkcs11Library = Pkcs11Library.detectPlatform("softhsm2-x64");
+        pkcs11Library = pkcs11SoftHsm.createLibrary();
 
         // Initialize the PKCS11 middleware
         pkcs11Library.C_Initialize();
+
+        // Find the slot of the token, SoftHSM2 assigns a random slot ID
+        for (long tokenSlotId : pkcs11Library.C_GetSlotList(true)) {
+            if (pkcs11Library.C_GetTokenInfo(tokenSlotId).label().trim().equals(TOKEN_LABEL)) {
+                slotId = tokenSlotId;
+            }
+        }
     }
 
     @AfterAll
-    public static void finalizePkcs11LowLevel() throws Pkcs11Exception {
+    public static void finalizePkcs11LowLevel() throws Exception {
         // Finalize the PKCS11 middleware
         pkcs11Library.C_Finalize();
+
+        // Remove the token
+        pkcs11SoftHsm.close();
     }
 
     @Test
@@ -47,30 +73,27 @@ public class Pkcs11LibraryTest {
         // Check the information
         CkVersion cryptokiVersion = ckInfo.cryptokiVersion();
         assertNotNull(cryptokiVersion);
-        assertEquals(2, cryptokiVersion.major());
-        assertEquals(20, cryptokiVersion.minor());
-        assertEquals("SafeNet, Inc.                   ", ckInfo.manufacturerId());
+        assertTrue(cryptokiVersion.major() >= 2);
+        assertEquals("SoftHSM                         ", ckInfo.manufacturerId());
         assertEquals(0, ckInfo.flags());
-        assertEquals("SafeNet eToken PKCS#11          ", ckInfo.libraryDescription());
+        assertEquals("Implementation of PKCS11        ", ckInfo.libraryDescription());
         CkVersion libraryVersion = ckInfo.libraryVersion();
-        assertEquals(10, libraryVersion.major());
-        assertTrue(libraryVersion.minor() == 7 || libraryVersion.minor() == 8);
+        assertEquals(2, libraryVersion.major());
     }
 
     @Test
     public void testGetSlotList() throws Pkcs11Exception {
-        // Get the slot list
+        // Get the slot list with the slot of the token and the free slot for the next token
         List<Long> slotIds = pkcs11Library.C_GetSlotList(true);
-        assertEquals(1, slotIds.size());
-        assertEquals(0, slotIds.getFirst());
+        assertEquals(2, slotIds.size());
+        assertTrue(slotIds.contains(slotId));
     }
 
     @Test
     public void testGetSlotInfo() throws Pkcs11Exception {
         // Get the slot list
         List<Long> slotIds = pkcs11Library.C_GetSlotList(true);
-        assertEquals(1, slotIds.size());
-        assertEquals(0, slotIds.getFirst());
+        assertEquals(2, slotIds.size());
 
         // Check all slots
         for (Long slotId : slotIds) {
@@ -79,65 +102,45 @@ public class Pkcs11LibraryTest {
 
             // Get the slot information
             CkSlotInfo ckSlotInfo = pkcs11Library.C_GetSlotInfo(slotId);
-            assertTrue(ckSlotInfo.slotDescription().equals("SafeNet Token JC 0                                              ") || ckSlotInfo.slotDescription().equals("SafeNet eToken 5100 [eToken 5110 SC] 00 00                      "));
-            assertEquals("SafeNet, Inc.                   ", ckSlotInfo.manufacturerId());
-            assertEquals(7, ckSlotInfo.flags());
+            assertEquals(64, ckSlotInfo.slotDescription().length());
+            assertTrue(ckSlotInfo.slotDescription().startsWith("SoftHSM slot ID"));
+            assertEquals("SoftHSM project                 ", ckSlotInfo.manufacturerId());
+            assertEquals(CkSlotInfoFlag.CKF_TOKEN_PRESENT.value, ckSlotInfo.flags());
             CkVersion hardwareVersion = ckSlotInfo.hardwareVersion();
             assertNotNull(hardwareVersion);
             assertEquals(2, hardwareVersion.major());
-            assertEquals(0, hardwareVersion.minor());
             CkVersion firmwareVersion = ckSlotInfo.firmwareVersion();
             assertNotNull(firmwareVersion);
-            assertEquals(0, firmwareVersion.major());
-            assertEquals(0, firmwareVersion.minor());
+            assertEquals(2, firmwareVersion.major());
         }
     }
 
     @Test
     public void testGetTokenInfo() throws Pkcs11Exception {
-        // Get the slot list
-        List<Long> slotIds = pkcs11Library.C_GetSlotList(true);
-        assertEquals(1, slotIds.size());
-        assertEquals(0, slotIds.getFirst());
-
-        // Check all slots
-        for (Long slotId : slotIds) {
-            // Check the slot ID
-            assertTrue(slotId >= 0);
-
-            // Get the token information
-            CkTokenInfo ckTokenInfo = pkcs11Library.C_GetTokenInfo(slotId);
-            assertEquals("Secacon Gygli Engineering GmbH  ", ckTokenInfo.label());
-            assertEquals("SafeNet, Inc.                   ", ckTokenInfo.manufacturerId());
-            assertEquals("eToken          ", ckTokenInfo.model());
-            assertEquals("02c84d59        ", ckTokenInfo.serialNumber());
-            assertEquals(1549, ckTokenInfo.flags());
-            assertEquals(0, ckTokenInfo.maxSessionCount());
-            assertEquals(0, ckTokenInfo.sessionCount());
-            assertEquals(0, ckTokenInfo.maxRwSessionCount());
-            assertEquals(0, ckTokenInfo.rwSessionCount());
-            assertEquals(20, ckTokenInfo.maxPinLen());
-            assertEquals(8, ckTokenInfo.minPinLen());
-            assertEquals(81920, ckTokenInfo.totalPublicMemory());
-            assertEquals(32767, ckTokenInfo.freePublicMemory());
-            assertEquals(81920, ckTokenInfo.totalPrivateMemory());
-            assertEquals(32767, ckTokenInfo.freePrivateMemory());
-            CkVersion hardwareVersion = ckTokenInfo.hardwareVersion();
-            assertNotNull(hardwareVersion);
-            assertEquals(16, hardwareVersion.major());
-            assertEquals(0, hardwareVersion.minor());
-            CkVersion firmwareVersion = ckTokenInfo.firmwareVersion();
-            assertNotNull(firmwareVersion);
-            assertEquals(0, firmwareVersion.major());
-            assertEquals(0, firmwareVersion.minor());
-            assertArrayEquals(new byte[16], ckTokenInfo.utcTime().getBytes(StandardCharsets.UTF_8));
-        }
+        // Get the token information
+        CkTokenInfo ckTokenInfo = pkcs11Library.C_GetTokenInfo(slotId);
+        assertEquals("library                         ", ckTokenInfo.label());
+        assertEquals("SoftHSM project                 ", ckTokenInfo.manufacturerId());
+        assertEquals("SoftHSM v2      ", ckTokenInfo.model());
+        assertEquals(16, ckTokenInfo.serialNumber().length());
+        assertFalse(ckTokenInfo.serialNumber().isBlank());
+        long requiredFlags = CkTokenInfoFlag.CKF_RNG.value | CkTokenInfoFlag.CKF_LOGIN_REQUIRED.value | CkTokenInfoFlag.CKF_USER_PIN_INITIALIZED.value | CkTokenInfoFlag.CKF_TOKEN_INITIALIZED.value;
+        assertEquals(requiredFlags, ckTokenInfo.flags() & requiredFlags);
+        assertEquals(0, ckTokenInfo.flags() & CkTokenInfoFlag.CKF_WRITE_PROTECTED.value);
+        assertEquals(255, ckTokenInfo.maxPinLen());
+        assertEquals(4, ckTokenInfo.minPinLen());
+        CkVersion hardwareVersion = ckTokenInfo.hardwareVersion();
+        assertNotNull(hardwareVersion);
+        assertEquals(2, hardwareVersion.major());
+        CkVersion firmwareVersion = ckTokenInfo.firmwareVersion();
+        assertNotNull(firmwareVersion);
+        assertEquals(2, firmwareVersion.major());
+        assertEquals(16, ckTokenInfo.utcTime().getBytes(StandardCharsets.UTF_8).length);
     }
 
     @Test
     public void testSession() throws Pkcs11Exception {
         // Define the values
-        long slotId = 0;
         long sessionInfoFlags = CkSessionInfoFlag.CKF_RW_SESSION.value | CkSessionInfoFlag.CKF_SERIAL_SESSION.value;
 
         // Open a new session
@@ -161,7 +164,6 @@ public class Pkcs11LibraryTest {
     @Test
     public void testLoginAndLogout() throws Pkcs11Exception {
         // Define the values
-        long slotId = 0;
         long sessionInfoFlags = CkSessionInfoFlag.CKF_RW_SESSION.value | CkSessionInfoFlag.CKF_SERIAL_SESSION.value;
 
         // Open a new session
@@ -169,11 +171,11 @@ public class Pkcs11LibraryTest {
         assertTrue(sessionId > 0);
 
         // Login and logout as user
-        pkcs11Library.C_Login(sessionId, CkUserType.CKU_USER, Pkcs11TestTemplate.PKCS11_TOKEN_PIN);
+        pkcs11Library.C_Login(sessionId, CkUserType.CKU_USER, Pkcs11SoftHsm.USER_PIN);
         pkcs11Library.C_Logout(sessionId);
 
         // Login and logout as security officer
-        pkcs11Library.C_Login(sessionId, CkUserType.CKU_SO, Pkcs11TestTemplate.PKCS11_TOKEN_SO_PIN);
+        pkcs11Library.C_Login(sessionId, CkUserType.CKU_SO, Pkcs11SoftHsm.SO_PIN);
         pkcs11Library.C_Logout(sessionId);
 
         // Try to log in via protected authentication path
@@ -188,7 +190,6 @@ public class Pkcs11LibraryTest {
     @Test
     public void testPinChangeAndUnlock() throws Pkcs11Exception {
         // Define the values
-        long slotId = 0;
         long sessionInfoFlags = CkSessionInfoFlag.CKF_RW_SESSION.value | CkSessionInfoFlag.CKF_SERIAL_SESSION.value;
         String newPin = "11992288";
 
@@ -197,8 +198,8 @@ public class Pkcs11LibraryTest {
         assertTrue(sessionId > 0);
 
         // Login as user and change the user PIN
-        pkcs11Library.C_Login(sessionId, CkUserType.CKU_USER, Pkcs11TestTemplate.PKCS11_TOKEN_PIN);
-        pkcs11Library.C_SetPIN(sessionId, Pkcs11TestTemplate.PKCS11_TOKEN_PIN, newPin);
+        pkcs11Library.C_Login(sessionId, CkUserType.CKU_USER, Pkcs11SoftHsm.USER_PIN);
+        pkcs11Library.C_SetPIN(sessionId, Pkcs11SoftHsm.USER_PIN, newPin);
         pkcs11Library.C_Logout(sessionId);
 
         // Test the PIN
@@ -206,8 +207,8 @@ public class Pkcs11LibraryTest {
         pkcs11Library.C_Logout(sessionId);
 
         // Login as SO and (re-)set a new user PIN
-        pkcs11Library.C_Login(sessionId, CkUserType.CKU_SO, Pkcs11TestTemplate.PKCS11_TOKEN_SO_PIN);
-        pkcs11Library.C_InitPIN(sessionId, Pkcs11TestTemplate.PKCS11_TOKEN_PIN);
+        pkcs11Library.C_Login(sessionId, CkUserType.CKU_SO, Pkcs11SoftHsm.SO_PIN);
+        pkcs11Library.C_InitPIN(sessionId, Pkcs11SoftHsm.USER_PIN);
         pkcs11Library.C_Logout(sessionId);
 
         // Close the session
@@ -215,9 +216,8 @@ public class Pkcs11LibraryTest {
     }
 
     @Test
-    public void testObjects() throws Pkcs11Exception {
+    public void testObjects() throws Exception {
         // Define the values
-        long slotId = 0;
         long sessionInfoFlags = CkSessionInfoFlag.CKF_RW_SESSION.value | CkSessionInfoFlag.CKF_SERIAL_SESSION.value;
         int maxObjects = 10;
 
@@ -225,7 +225,7 @@ public class Pkcs11LibraryTest {
         long sessionId = pkcs11Library.C_OpenSession(slotId, sessionInfoFlags);
 
         // Login as user
-        pkcs11Library.C_Login(sessionId, CkUserType.CKU_USER, Pkcs11TestTemplate.PKCS11_TOKEN_PIN);
+        pkcs11Library.C_Login(sessionId, CkUserType.CKU_USER, Pkcs11SoftHsm.USER_PIN);
 
         // Define the private key find object template
         List<CkAttributeValue> ckAttributeSearchTemplate = new ArrayList<>();
@@ -237,11 +237,10 @@ public class Pkcs11LibraryTest {
         // Search the objects
         List<Long> objectHandles = pkcs11Library.C_FindObjects(sessionId, maxObjects);
         assertEquals(1, objectHandles.size());
-        assertTrue(objectHandles.contains(43450373L) || objectHandles.contains(206635013L));
 
-        // Get the object size
+        // Get the object size, SoftHSM2 doesn't provide it
         long objectSize = pkcs11Library.C_GetObjectSize(sessionId, objectHandles.getFirst());
-        assertEquals(54, objectSize);
+        assertNotEquals(0, objectSize);
 
         // Finalize the object search
         pkcs11Library.C_FindObjectsFinal(sessionId);
@@ -249,7 +248,6 @@ public class Pkcs11LibraryTest {
         // Define the certificate find object template
         ckAttributeSearchTemplate.clear();
         ckAttributeSearchTemplate.add(new CkAttributeValue(CkAttribute.CKA_CLASS, CkObjectClass.CKO_CERTIFICATE.value));
-        ckAttributeSearchTemplate.add(new CkAttributeValue(CkAttribute.CKA_VALUE, null));
 
         // Start the certificate object finding
         pkcs11Library.C_FindObjectsInit(sessionId, ckAttributeSearchTemplate);
@@ -257,25 +255,26 @@ public class Pkcs11LibraryTest {
         // Search the objects
         objectHandles = pkcs11Library.C_FindObjects(sessionId, maxObjects);
         assertEquals(3, objectHandles.size());
-        assertTrue(objectHandles.contains(236257286L) || objectHandles.contains(218038278L));
-        assertTrue(objectHandles.contains(11337735L) || objectHandles.contains(71958535L));
-        assertTrue(objectHandles.contains(236781576L) || objectHandles.contains(149684232L));
 
         // Get the object sizes
         for (long objectHandle : objectHandles) {
             objectSize = pkcs11Library.C_GetObjectSize(sessionId, objectHandle);
-            assertTrue(objectSize > 1300 && objectSize < 2000);
+            assertNotEquals(0, objectSize);
         }
 
         // Finalize the object search
         pkcs11Library.C_FindObjectsFinal(sessionId);
 
-        // Get the attribute values
+        // Get the attribute values and ensure each imported certificate is present
+        List<byte[]> attributeValues = new ArrayList<>();
         for (long objectHandle : objectHandles) {
-            List<byte[]> attributeValues = pkcs11Library.C_GetAttributeValue(sessionId, objectHandle, List.of(CkAttribute.CKA_VALUE));
-            assertEquals(1, attributeValues.size());
-            byte[] attributeValue = attributeValues.getFirst();
-            assertTrue(attributeValue.length >= 1380 && attributeValue.length <= 1852);
+            List<byte[]> objectAttributeValues = pkcs11Library.C_GetAttributeValue(sessionId, objectHandle, List.of(CkAttribute.CKA_VALUE));
+            assertEquals(1, objectAttributeValues.size());
+            attributeValues.add(objectAttributeValues.getFirst());
+        }
+        for (X509Certificate certificate : certificates) {
+            byte[] encodedCertificate = certificate.getEncoded();
+            assertTrue(attributeValues.stream().anyMatch(attributeValue -> Arrays.equals(attributeValue, encodedCertificate)));
         }
 
         // Logout
@@ -288,7 +287,6 @@ public class Pkcs11LibraryTest {
     @Test
     public void testDigesting() throws Pkcs11Exception {
         // Define the values
-        long slotId = 0;
         long sessionInfoFlags = CkSessionInfoFlag.CKF_RW_SESSION.value | CkSessionInfoFlag.CKF_SERIAL_SESSION.value;
 
         // Define the data and the expected digest
@@ -299,7 +297,7 @@ public class Pkcs11LibraryTest {
         long sessionId = pkcs11Library.C_OpenSession(slotId, sessionInfoFlags);
 
         // Login as user
-        pkcs11Library.C_Login(sessionId, CkUserType.CKU_USER, Pkcs11TestTemplate.PKCS11_TOKEN_PIN);
+        pkcs11Library.C_Login(sessionId, CkUserType.CKU_USER, Pkcs11SoftHsm.USER_PIN);
 
         // Digest a single block via single-part digest operation
         pkcs11Library.C_DigestInit(sessionId, CkMechanism.CKM_SHA256);
@@ -332,9 +330,8 @@ public class Pkcs11LibraryTest {
     }
 
     @Test
-    public void testSigning() throws Pkcs11Exception {
+    public void testSigning() throws Exception {
         // Define the values
-        long slotId = 0;
         long sessionInfoFlags = CkSessionInfoFlag.CKF_RW_SESSION.value | CkSessionInfoFlag.CKF_SERIAL_SESSION.value;
         int maxObjects = 10;
         byte[] message = "Message to sign!".getBytes(StandardCharsets.UTF_8);
@@ -343,7 +340,7 @@ public class Pkcs11LibraryTest {
         long sessionId = pkcs11Library.C_OpenSession(slotId, sessionInfoFlags);
 
         // Login as user
-        pkcs11Library.C_Login(sessionId, CkUserType.CKU_USER, Pkcs11TestTemplate.PKCS11_TOKEN_PIN);
+        pkcs11Library.C_Login(sessionId, CkUserType.CKU_USER, Pkcs11SoftHsm.USER_PIN);
 
         // Define the private key find object template
         List<CkAttributeValue> ckAttributeSearchTemplate = new ArrayList<>();
@@ -355,7 +352,6 @@ public class Pkcs11LibraryTest {
         // Search the objects
         List<Long> objectHandles = pkcs11Library.C_FindObjects(sessionId, maxObjects);
         assertEquals(1, objectHandles.size());
-        assertTrue(objectHandles.contains(43450373L) || objectHandles.contains(206635013L));
         long keyHandleId = objectHandles.getFirst();
 
         // Finalize the object search
@@ -367,6 +363,64 @@ public class Pkcs11LibraryTest {
         // Sign the message
         byte[] signedMessage = pkcs11Library.C_Sign(sessionId, message, 1000);
         assertFalse(Pkcs11Utils.isEmptyByteArray(signedMessage));
+        assertTrue(Pkcs11SoftHsm.verify("SHA256withRSA", certificates[0], message, signedMessage));
+
+        // Logout
+        pkcs11Library.C_Logout(sessionId);
+
+        // Close the session
+        pkcs11Library.C_CloseSession(sessionId);
+    }
+
+    @Test
+    public void testBatchSigning() throws Exception {
+        // Define the values
+        long sessionInfoFlags = CkSessionInfoFlag.CKF_RW_SESSION.value | CkSessionInfoFlag.CKF_SERIAL_SESSION.value;
+        int maxObjects = 10;
+
+        // Define heap and direct messages of different sizes
+        List<ByteBuffer> messages = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            byte[] message = ("Message " + i + " to sign!".repeat(i + 1)).getBytes(StandardCharsets.UTF_8);
+            messages.add(i % 2 == 0 ? ByteBuffer.wrap(message) : ByteBuffer.allocateDirect(message.length).put(message).flip());
+        }
+
+        // Open a new session
+        long sessionId = pkcs11Library.C_OpenSession(slotId, sessionInfoFlags);
+
+        // Login as user
+        pkcs11Library.C_Login(sessionId, CkUserType.CKU_USER, Pkcs11SoftHsm.USER_PIN);
+
+        // Find the private key
+        List<CkAttributeValue> ckAttributeSearchTemplate = List.of(new CkAttributeValue(CkAttribute.CKA_CLASS, CkObjectClass.CKO_PRIVATE_KEY.value));
+        pkcs11Library.C_FindObjectsInit(sessionId, ckAttributeSearchTemplate);
+        List<Long> objectHandles = pkcs11Library.C_FindObjects(sessionId, maxObjects);
+        assertEquals(1, objectHandles.size());
+        long keyHandleId = objectHandles.getFirst();
+        pkcs11Library.C_FindObjectsFinal(sessionId);
+
+        // Sign the batch and copy the signatures
+        List<byte[]> signatures = new ArrayList<>();
+        pkcs11Library.signBatch(sessionId, CkMechanism.CKM_SHA256_RSA_PKCS, keyHandleId, messages, 1000, (index, signature) -> {
+            assertEquals(signatures.size(), index);
+            byte[] signedMessage = new byte[signature.remaining()];
+            signature.get(signedMessage);
+            signatures.add(signedMessage);
+        });
+        assertEquals(messages.size(), signatures.size());
+
+        // Ensure the signatures are valid, match the ones of single sign operations and the messages were not consumed
+        for (int i = 0; i < messages.size(); i++) {
+            ByteBuffer message = messages.get(i);
+            byte[] messageData = new byte[message.remaining()];
+            message.duplicate().get(messageData);
+            assertTrue(Pkcs11SoftHsm.verify("SHA256withRSA", certificates[0], messageData, signatures.get(i)));
+            pkcs11Library.C_SignInit(sessionId, CkMechanism.CKM_SHA256_RSA_PKCS, keyHandleId);
+            assertArrayEquals(pkcs11Library.C_Sign(sessionId, messageData, 1000), signatures.get(i));
+        }
+
+        // Ensure an invalid signature size is rejected before signing
+        assertThrows(Pkcs11Exception.class, () -> pkcs11Library.signBatch(sessionId, CkMechanism.CKM_SHA256_RSA_PKCS, keyHandleId, messages, 0, (index, signature) -> fail()));
 
         // Logout
         pkcs11Library.C_Logout(sessionId);
@@ -378,7 +432,6 @@ public class Pkcs11LibraryTest {
     @Test
     public void testRandom() throws Pkcs11Exception {
         // Define the values
-        long slotId = 0;
         long sessionInfoFlags = CkSessionInfoFlag.CKF_RW_SESSION.value | CkSessionInfoFlag.CKF_SERIAL_SESSION.value;
 
         // Open a new session
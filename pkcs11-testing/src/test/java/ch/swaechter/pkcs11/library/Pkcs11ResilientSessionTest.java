@@ -0,0 +1,81 @@
+package ch.swaechter.pkcs11.library;
+
+import ch.swaechter.pkcs11.Pkcs11SoftHsm;
+import ch.swaechter.pkcs11.library.headers.CkAttribute;
+import ch.swaechter.pkcs11.library.headers.CkMechanism;
+import ch.swaechter.pkcs11.library.headers.CkObjectClass;
+import ch.swaechter.pkcs11.library.headers.CkResult;
+import ch.swaechter.pkcs11.library.headers.CkUserType;
+import ch.swaechter.pkcs11.library.objects.Pkcs11FailureClass;
+import ch.swaechter.pkcs11.library.objects.Pkcs11ObjectLocator;
+import ch.swaechter.pkcs11.library.objects.Pkcs11ResilientSession;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Token;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the failure classification and the resilient session against a SoftHSM2 token.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11ResilientSessionTest {
+
+    private static final byte[] MESSAGE = "Hello failover".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testClassification() {
+        // Test all classes
+        assertEquals(Pkcs11FailureClass.RETRYABLE, Pkcs11FailureClass.classify(CkResult.CKR_DEVICE_MEMORY));
+        assertEquals(Pkcs11FailureClass.SESSION_FATAL, Pkcs11FailureClass.classify(CkResult.CKR_SESSION_HANDLE_INVALID));
+        assertEquals(Pkcs11FailureClass.SESSION_FATAL, Pkcs11FailureClass.classify(CkResult.CKR_USER_NOT_LOGGED_IN));
+        assertEquals(Pkcs11FailureClass.TOKEN_FATAL, Pkcs11FailureClass.classify(CkResult.CKR_DEVICE_REMOVED));
+        assertEquals(Pkcs11FailureClass.TOKEN_FATAL, Pkcs11FailureClass.classify(CkResult.CKR_TOKEN_NOT_PRESENT));
+        assertEquals(Pkcs11FailureClass.PERMANENT, Pkcs11FailureClass.classify(CkResult.CKR_PIN_INCORRECT));
+        assertEquals(Pkcs11FailureClass.PERMANENT, Pkcs11FailureClass.classify(new Pkcs11Exception("Library error")));
+    }
+
+    @Test
+    @EnabledIf("ch.swaechter.pkcs11.Pkcs11SoftHsm#isAvailable")
+    public void testFailover() throws Exception {
+        // Create the harness with a token and a key
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("failover");
+            X509Certificate certificate = pkcs11SoftHsm.importKeyPair("failover", "key", new byte[]{0x01}, "RSA")[0];
+
+            // Create the PKCS11 module and get the token
+            try (Pkcs11Module pkcs11Module = pkcs11SoftHsm.createModule()) {
+                pkcs11Module.initializeModule();
+                Pkcs11Token pkcs11Token = Pkcs11SoftHsm.getSlot(pkcs11Module, "failover").getToken();
+
+                // A wrong PIN is permanent and reported right away
+                assertThrows(Pkcs11Exception.class, () -> new Pkcs11ResilientSession(pkcs11Token, false, CkUserType.CKU_USER, "0000"));
+
+                // Sign with the key referenced by its ID and label
+                Pkcs11ObjectLocator keyLocator = Pkcs11ObjectLocator.byId(CkObjectClass.CKO_PRIVATE_KEY, new byte[]{0x01});
+                try (Pkcs11ResilientSession pkcs11ResilientSession = new Pkcs11ResilientSession(pkcs11Token, false, CkUserType.CKU_USER, Pkcs11SoftHsm.USER_PIN, 3, Duration.ofMillis(10), Duration.ofMillis(100))) {
+                    assertTrue(Pkcs11SoftHsm.verify("SHA256withRSA", certificate, MESSAGE, pkcs11ResilientSession.sign(CkMechanism.CKM_SHA256_RSA_PKCS, keyLocator, MESSAGE)));
+                    assertArrayEquals("key".getBytes(StandardCharsets.UTF_8), pkcs11ResilientSession.getAttributeValue(Pkcs11ObjectLocator.byLabel(CkObjectClass.CKO_PRIVATE_KEY, "key"), List.of(CkAttribute.CKA_LABEL)).getFirst());
+                    assertEquals(0, pkcs11ResilientSession.getRebuildCount());
+
+                    // Let the session and the login disappear like after a middleware reset, the session is rebuilt transparently
+                    pkcs11Token.closeAllSessions();
+                    assertTrue(Pkcs11SoftHsm.verify("SHA256withRSA", certificate, MESSAGE, pkcs11ResilientSession.sign(CkMechanism.CKM_SHA256_RSA_PKCS, keyLocator, MESSAGE)));
+                    assertEquals(1, pkcs11ResilientSession.getRebuildCount());
+                    assertEquals(1, pkcs11ResilientSession.getRetryCount());
+
+                    // A missing object is not retried
+                    Pkcs11ObjectLocator missingLocator = Pkcs11ObjectLocator.byId(CkObjectClass.CKO_PRIVATE_KEY, new byte[]{0x02});
+                    assertThrows(Pkcs11Exception.class, () -> pkcs11ResilientSession.sign(CkMechanism.CKM_SHA256_RSA_PKCS, missingLocator, MESSAGE));
+                    assertEquals(1, pkcs11ResilientSession.getRetryCount());
+                }
+            }
+        }
+    }
+}
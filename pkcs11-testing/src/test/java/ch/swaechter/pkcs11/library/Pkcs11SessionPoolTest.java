@@ -0,0 +1,101 @@
+package ch.swaechter.pkcs11.library;
+
+import ch.swaechter.pkcs11.Pkcs11SoftHsm;
+import ch.swaechter.pkcs11.library.headers.CkUserType;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Session;
+import ch.swaechter.pkcs11.library.objects.Pkcs11SessionPool;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Token;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the blocking borrow, the session replacement and the close behaviour of the session pool against a SoftHSM2 token.
+ *
+ * @author Simon Wächter
+ */
+@EnabledIf("ch.swaechter.pkcs11.Pkcs11SoftHsm#isAvailable")
+public class Pkcs11SessionPoolTest {
+
+    @Test
+    public void testBorrowAndClose() throws Exception {
+        // Create the harness with a token
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("pool");
+
+            // Create the PKCS11 module and get the token
+            try (Pkcs11Module pkcs11Module = pkcs11SoftHsm.createModule()) {
+                pkcs11Module.initializeModule();
+                Pkcs11Token pkcs11Token = Pkcs11SoftHsm.getSlot(pkcs11Module, "pool").getToken();
+
+                Pkcs11SessionPool pkcs11SessionPool = new Pkcs11SessionPool(pkcs11Token, 1, false);
+                assertEquals(1, pkcs11SessionPool.getIdleSessionCount());
+
+                // A borrower waits until the only session is returned
+                Pkcs11Session pkcs11Session = pkcs11SessionPool.borrowSession();
+                CompletableFuture<Pkcs11Session> waitingBorrow = CompletableFuture.supplyAsync(() -> borrow(pkcs11SessionPool));
+                assertThrows(Exception.class, () -> waitingBorrow.get(200, TimeUnit.MILLISECONDS));
+                pkcs11SessionPool.returnSession(pkcs11Session);
+                Pkcs11Session borrowedPkcs11Session = waitingBorrow.get(5, TimeUnit.SECONDS);
+                assertSame(pkcs11Session, borrowedPkcs11Session);
+
+                // Closing wakes up a waiting borrower and waits for the borrowed session
+                CompletableFuture<Pkcs11Session> rejectedBorrow = CompletableFuture.supplyAsync(() -> borrow(pkcs11SessionPool));
+                CompletableFuture<Void> closing = CompletableFuture.runAsync(pkcs11SessionPool::close);
+                ExecutionException executionException = assertThrows(ExecutionException.class, () -> rejectedBorrow.get(5, TimeUnit.SECONDS));
+                assertInstanceOf(Pkcs11Exception.class, executionException.getCause().getCause());
+                assertThrows(Exception.class, () -> closing.get(200, TimeUnit.MILLISECONDS));
+                assertNotNull(borrowedPkcs11Session.getSessionInfo());
+
+                // The returned session is closed and the pool rejects further borrows
+                pkcs11SessionPool.returnSession(borrowedPkcs11Session);
+                closing.get(5, TimeUnit.SECONDS);
+                assertThrows(Pkcs11Exception.class, borrowedPkcs11Session::getSessionInfo);
+                assertThrows(Pkcs11Exception.class, pkcs11SessionPool::borrowSession);
+                assertEquals(0, pkcs11SessionPool.getIdleSessionCount());
+            }
+        }
+    }
+
+    @Test
+    public void testReplaceSession() throws Exception {
+        // Create the harness with a token
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("pool");
+
+            // Create the PKCS11 module and get the token
+            try (Pkcs11Module pkcs11Module = pkcs11SoftHsm.createModule()) {
+                pkcs11Module.initializeModule();
+                Pkcs11Token pkcs11Token = Pkcs11SoftHsm.getSlot(pkcs11Module, "pool").getToken();
+
+                try (Pkcs11SessionPool pkcs11SessionPool = new Pkcs11SessionPool(pkcs11Token, 2, false, CkUserType.CKU_USER, Pkcs11SoftHsm.USER_PIN)) {
+                    // Replace a borrowed session, the broken one is closed
+                    Pkcs11Session pkcs11Session = pkcs11SessionPool.borrowSession();
+                    Pkcs11Session newPkcs11Session = pkcs11SessionPool.replaceSession(pkcs11Session);
+                    assertNotSame(pkcs11Session, newPkcs11Session);
+                    assertThrows(Pkcs11Exception.class, pkcs11Session::getSessionInfo);
+                    assertEquals(16, newPkcs11Session.generateRandom(16).length);
+
+                    // The new session is returned as usual and the pool keeps its size
+                    pkcs11SessionPool.returnSession(newPkcs11Session);
+                    assertEquals(2, pkcs11SessionPool.getSessionCount());
+                    assertEquals(2, pkcs11SessionPool.getIdleSessionCount());
+                    assertThrows(Pkcs11Exception.class, () -> pkcs11SessionPool.replaceSession(pkcs11Session));
+                }
+            }
+        }
+    }
+
+    private static Pkcs11Session borrow(Pkcs11SessionPool pkcs11SessionPool) {
+        try {
+            return pkcs11SessionPool.borrowSession();
+        } catch (Pkcs11Exception exception) {
+            throw new RuntimeException(exception);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package ch.swaechter.pkcs11.library;
+
+import ch.swaechter.pkcs11.Pkcs11SoftHsm;
+import ch.swaechter.pkcs11.library.headers.CkMechanism;
+import ch.swaechter.pkcs11.library.objects.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the routing, the session recovery and the draining of the signing router against two SoftHSM2 tokens with the
+ * same key ID.
+ *
+ * @author Simon Wächter
+ */
+@EnabledIf("ch.swaechter.pkcs11.Pkcs11SoftHsm#isAvailable")
+public class Pkcs11SigningRouterTest {
+
+    private static final byte[] KEY_ID = new byte[]{0x01};
+
+    private static final byte[] MESSAGE = "Hello router".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testRouting() throws Exception {
+        // Create the harness with two tokens that hold a key with the same ID
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("router1");
+            pkcs11SoftHsm.initializeToken("router2");
+            X509Certificate certificate1 = pkcs11SoftHsm.importKeyPair("router1", "key", KEY_ID, "RSA")[0];
+            X509Certificate certificate2 = pkcs11SoftHsm.importKeyPair("router2", "key", KEY_ID, "RSA")[0];
+
+            // Create the PKCS11 module and get the tokens
+            try (Pkcs11Module pkcs11Module = pkcs11SoftHsm.createModule()) {
+                pkcs11Module.initializeModule();
+                Pkcs11Token pkcs11Token1 = Pkcs11SoftHsm.getSlot(pkcs11Module, "router1").getToken();
+                Pkcs11Token pkcs11Token2 = Pkcs11SoftHsm.getSlot(pkcs11Module, "router2").getToken();
+
+                // A token without the key can't be routed to
+                assertThrows(Pkcs11Exception.class, () -> new Pkcs11SigningRouter(List.of(pkcs11Token1), new byte[]{0x02}, 1, Pkcs11SoftHsm.USER_PIN, Pkcs11RoutingStrategy.LEAST_OUTSTANDING, null));
+
+                for (Pkcs11RoutingStrategy pkcs11RoutingStrategy : Pkcs11RoutingStrategy.values()) {
+                    try (Pkcs11SigningRouter pkcs11SigningRouter = new Pkcs11SigningRouter(List.of(pkcs11Token1, pkcs11Token2), KEY_ID, 2, Pkcs11SoftHsm.USER_PIN, pkcs11RoutingStrategy, null)) {
+                        // Sign concurrently and verify the signatures with the certificate of either token
+                        try (ExecutorService executorService = Executors.newFixedThreadPool(4)) {
+                            List<Future<byte[]>> futures = new ArrayList<>();
+                            for (int i = 0; i < 200; i++) {
+                                futures.add(executorService.submit(() -> pkcs11SigningRouter.sign(CkMechanism.CKM_SHA256_RSA_PKCS, MESSAGE)));
+                            }
+                            for (Future<byte[]> future : futures) {
+                                byte[] signature = future.get();
+                                assertTrue(Pkcs11SoftHsm.verify("SHA256withRSA", certificate1, MESSAGE, signature) || Pkcs11SoftHsm.verify("SHA256withRSA", certificate2, MESSAGE, signature));
+                            }
+                        }
+
+                        // Both tokens did work
+                        assertEquals(200, pkcs11SigningRouter.getSignatureCount());
+                        for (Pkcs11RoutedTokenStatus pkcs11RoutedTokenStatus : pkcs11SigningRouter.getStatuses()) {
+                            assertTrue(pkcs11RoutedTokenStatus.signatures() > 0, pkcs11RoutingStrategy + " did not use slot " + pkcs11RoutedTokenStatus.slotId());
+                            assertEquals(0, pkcs11RoutedTokenStatus.outstanding());
+                        }
+
+                        // Let the sessions of the first token disappear like after a middleware reset, the lost
+                        // sessions are replaced and the first token keeps signing
+                        long signatures1 = getStatus(pkcs11SigningRouter, pkcs11Token1).signatures();
+                        pkcs11Token1.closeAllSessions();
+                        for (int i = 0; i < 10; i++) {
+                            byte[] signature = pkcs11SigningRouter.sign(CkMechanism.CKM_SHA256_RSA_PKCS, MESSAGE);
+                            assertTrue(Pkcs11SoftHsm.verify("SHA256withRSA", certificate1, MESSAGE, signature) || Pkcs11SoftHsm.verify("SHA256withRSA", certificate2, MESSAGE, signature));
+                        }
+                        assertEquals(2, pkcs11SigningRouter.getActiveTokenCount());
+                        if (pkcs11RoutingStrategy == Pkcs11RoutingStrategy.LEAST_OUTSTANDING) {
+                            // Ties are rotated, so the first token was picked at least once
+                            Pkcs11RoutedTokenStatus pkcs11RoutedTokenStatus = getStatus(pkcs11SigningRouter, pkcs11Token1);
+                            assertTrue(pkcs11RoutedTokenStatus.recoveries() > 0);
+                            assertTrue(pkcs11RoutedTokenStatus.signatures() > signatures1);
+                            assertFalse(pkcs11RoutedTokenStatus.drained());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDraining() throws Exception {
+        // Create the harness with two tokens that hold a key with the same ID
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("router1");
+            pkcs11SoftHsm.initializeToken("router2");
+            X509Certificate certificate1 = pkcs11SoftHsm.importKeyPair("router1", "key", KEY_ID, "RSA")[0];
+            X509Certificate certificate2 = pkcs11SoftHsm.importKeyPair("router2", "key", KEY_ID, "RSA")[0];
+
+            // Create the PKCS11 module and get the tokens
+            try (Pkcs11Module pkcs11Module = pkcs11SoftHsm.createModule()) {
+                pkcs11Module.initializeModule();
+                Pkcs11Token pkcs11Token1 = Pkcs11SoftHsm.getSlot(pkcs11Module, "router1").getToken();
+                Pkcs11Token pkcs11Token2 = Pkcs11SoftHsm.getSlot(pkcs11Module, "router2").getToken();
+
+                try (Pkcs11SigningRouter pkcs11SigningRouter = new Pkcs11SigningRouter(List.of(pkcs11Token1, pkcs11Token2), KEY_ID, 2, Pkcs11SoftHsm.USER_PIN, Pkcs11RoutingStrategy.LEAST_OUTSTANDING, null)) {
+                    // Remove the first token like after it disappeared, so only the second one signs
+                    pkcs11SigningRouter.removeToken(pkcs11Token1.getSlotId());
+                    assertEquals(1, pkcs11SigningRouter.getActiveTokenCount());
+                    for (int i = 0; i < 10; i++) {
+                        assertTrue(Pkcs11SoftHsm.verify("SHA256withRSA", certificate2, MESSAGE, pkcs11SigningRouter.sign(CkMechanism.CKM_SHA256_RSA_PKCS, MESSAGE)));
+                    }
+
+                    // Re-admit the first token and drain the second one
+                    pkcs11SigningRouter.addToken(pkcs11Token1);
+                    pkcs11SigningRouter.removeToken(pkcs11Token2.getSlotId());
+                    assertEquals(1, pkcs11SigningRouter.getActiveTokenCount());
+                    for (int i = 0; i < 10; i++) {
+                        assertTrue(Pkcs11SoftHsm.verify("SHA256withRSA", certificate1, MESSAGE, pkcs11SigningRouter.sign(CkMechanism.CKM_SHA256_RSA_PKCS, MESSAGE)));
+                    }
+
+                    // Without any token there is nothing to sign with
+                    pkcs11SigningRouter.removeToken(pkcs11Token1.getSlotId());
+                    assertEquals(0, pkcs11SigningRouter.getActiveTokenCount());
+                    assertThrows(Pkcs11Exception.class, () -> pkcs11SigningRouter.sign(CkMechanism.CKM_SHA256_RSA_PKCS, MESSAGE));
+                }
+            }
+        }
+    }
+
+    private static Pkcs11RoutedTokenStatus getStatus(Pkcs11SigningRouter pkcs11SigningRouter, Pkcs11Token pkcs11Token) {
+        return pkcs11SigningRouter.getStatuses().stream().filter(pkcs11RoutedTokenStatus -> pkcs11RoutedTokenStatus.slotId() == pkcs11Token.getSlotId()).findFirst().orElseThrow();
+    }
+}
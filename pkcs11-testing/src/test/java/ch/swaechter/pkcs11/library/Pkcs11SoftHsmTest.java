@@ -0,0 +1,91 @@
+package ch.swaechter.pkcs11.library;
+
+import ch.swaechter.pkcs11.Pkcs11SoftHsm;
+import ch.swaechter.pkcs11.library.headers.*;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Info;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Session;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Token;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the library against throwaway SoftHSM2 tokens, which doesn't require a physical device.
+ *
+ * @author Simon Wächter
+ */
+@EnabledIf("ch.swaechter.pkcs11.Pkcs11SoftHsm#isAvailable")
+public class Pkcs11SoftHsmTest {
+
+    private static final byte[] MESSAGE = "Hello SoftHSM2".getBytes();
+
+    @Test
+    public void testProvisionedToken() throws Exception {
+        // Create the harness with two tokens, one with an RSA and EC key and an empty one
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("token1");
+            pkcs11SoftHsm.initializeToken("token2");
+            X509Certificate[] rsaChain = pkcs11SoftHsm.importKeyPair("token1", "rsa", new byte[]{0x01}, "RSA");
+            X509Certificate[] ecChain = pkcs11SoftHsm.importKeyPair("token1", "ec", new byte[]{0x02}, "EC");
+            assertEquals(3, rsaChain.length);
+            assertEquals(3, ecChain.length);
+
+            // Create the PKCS11 module
+            try (Pkcs11Module pkcs11Module = pkcs11SoftHsm.createModule()) {
+                // Initialize the module and check the information
+                pkcs11Module.initializeModule();
+                Pkcs11Info pkcs11Info = pkcs11Module.getInfo();
+                assertEquals("SoftHSM", pkcs11Info.getManufacturerId());
+
+                // Get the tokens, SoftHSM2 always provides an additional uninitialized token
+                assertEquals(3, pkcs11Module.getSlots(true).size());
+                Pkcs11Token pkcs11Token = Pkcs11SoftHsm.getSlot(pkcs11Module, "token1").getToken();
+                assertNotEquals(pkcs11Token.getSlotId(), Pkcs11SoftHsm.getSlot(pkcs11Module, "token2").getSlotId());
+                assertTrue(pkcs11Token.isLoginRequired());
+
+                // Open a session and login
+                try (Pkcs11Session pkcs11Session = pkcs11Token.openSession(true, true)) {
+                    pkcs11Session.loginUser(CkUserType.CKU_USER, Pkcs11SoftHsm.USER_PIN);
+
+                    // Find the private keys, public keys and certificates
+                    assertEquals(2, findObjects(pkcs11Session, CkObjectClass.CKO_PRIVATE_KEY).size());
+                    assertEquals(2, findObjects(pkcs11Session, CkObjectClass.CKO_PUBLIC_KEY).size());
+                    assertEquals(6, findObjects(pkcs11Session, CkObjectClass.CKO_CERTIFICATE).size());
+
+                    // Sign with both keys and verify the signatures with their certificates
+                    long rsaPrivateKey = findPrivateKey(pkcs11Session, new byte[]{0x01});
+                    long ecPrivateKey = findPrivateKey(pkcs11Session, new byte[]{0x02});
+                    byte[] rsaSignature = pkcs11Session.sign(CkMechanism.CKM_SHA256_RSA_PKCS, rsaPrivateKey, MESSAGE);
+                    byte[] ecSignature = pkcs11Session.sign(CkMechanism.CKM_ECDSA_SHA256, ecPrivateKey, MESSAGE);
+                    assertTrue(Pkcs11SoftHsm.verify("SHA256withRSA", rsaChain[0], MESSAGE, rsaSignature));
+                    assertTrue(Pkcs11SoftHsm.verify("SHA256withECDSAinP1363Format", ecChain[0], MESSAGE, ecSignature));
+
+                    // Signing with a host digest results in the same RSA signature and a valid ECDSA signature
+                    assertTrue(pkcs11Token.getMechanisms().contains(CkMechanism.CKM_RSA_PKCS));
+                    assertArrayEquals(rsaSignature, pkcs11Session.signWithHostDigest(CkMechanism.CKM_SHA256_RSA_PKCS, rsaPrivateKey, MESSAGE));
+                    assertTrue(Pkcs11SoftHsm.verify("SHA256withECDSAinP1363Format", ecChain[0], MESSAGE, pkcs11Session.signWithHostDigest(CkMechanism.CKM_ECDSA_SHA256, ecPrivateKey, MESSAGE)));
+
+                    // Logout
+                    pkcs11Session.logoutUser();
+                }
+            }
+        }
+    }
+
+    private static List<Long> findObjects(Pkcs11Session pkcs11Session, CkObjectClass ckObjectClass) throws Pkcs11Exception {
+        return pkcs11Session.findObjects(List.of(new CkAttributeValue(CkAttribute.CKA_CLASS, ckObjectClass.value)));
+    }
+
+    private static long findPrivateKey(Pkcs11Session pkcs11Session, byte[] keyId) throws Pkcs11Exception {
+        for (long privateKey : findObjects(pkcs11Session, CkObjectClass.CKO_PRIVATE_KEY)) {
+            if (Pkcs11Utils.bytesToHex(keyId).equals(Pkcs11Utils.bytesToHex(pkcs11Session.getAttributeValue(privateKey, List.of(CkAttribute.CKA_ID)).getFirst()))) {
+                return privateKey;
+            }
+        }
+        throw new Pkcs11Exception("Unable to find the private key " + Pkcs11Utils.bytesToHex(keyId));
+    }
+}
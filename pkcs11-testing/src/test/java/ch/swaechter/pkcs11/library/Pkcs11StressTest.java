@@ -0,0 +1,269 @@
+package ch.swaechter.pkcs11.library;
+
+import ch.swaechter.pkcs11.Pkcs11SoftHsm;
+import ch.swaechter.pkcs11.library.headers.*;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Session;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Token;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.TestReporter;
+import org.junit.jupiter.api.condition.EnabledIf;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Stress the library with N threads, each rotating over M sessions and running a mix of object searches, signatures,
+ * digests and random number generations against a SoftHSM2 token. Every result is checked, unexpected results and
+ * deadlocks fail the test. The native segments of the binding are allocated in arenas that are accounted in the direct
+ * buffer pool of the JVM, so every segment that is still allocated after the run is a leak and fails the test. The
+ * thread counts, sessions per thread and duration can be set via pkcs11.stress.threads (like 1,2,4,8),
+ * pkcs11.stress.sessions and pkcs11.stress.duration (seconds), so scaling curves can be produced from the throughput
+ * that is published as report entry.
+ *
+ * @author Simon Wächter
+ */
+@EnabledIf("ch.swaechter.pkcs11.Pkcs11SoftHsm#isAvailable")
+public class Pkcs11StressTest {
+
+    private static final String TOKEN_LABEL = "stress";
+
+    private static final byte[] KEY_ID = {0x01};
+
+    private static final int SESSIONS_PER_THREAD = Integer.getInteger("pkcs11.stress.sessions", 2);
+
+    private static final long DURATION_SECONDS = Long.getLong("pkcs11.stress.duration", 5);
+
+    private static final long DEADLOCK_TIMEOUT_SECONDS = 30;
+
+    private static final int RANDOM_SIZE = 32;
+
+    private static Pkcs11SoftHsm pkcs11SoftHsm;
+
+    private static Pkcs11Module pkcs11Module;
+
+    private static Pkcs11Token pkcs11Token;
+
+    private static Pkcs11Session loginSession;
+
+    private static PublicKey publicKey;
+
+    @BeforeAll
+    public static void setup() throws Exception {
+        // Provision the token with a single RSA key and its chain
+        pkcs11SoftHsm = new Pkcs11SoftHsm();
+        pkcs11SoftHsm.initializeToken(TOKEN_LABEL);
+        X509Certificate[] chain = pkcs11SoftHsm.importKeyPair(TOKEN_LABEL, "stress", KEY_ID, "RSA");
+        publicKey = chain[0].getPublicKey();
+
+        // Initialize the module and login once, the login state is shared by all sessions
+        pkcs11Module = pkcs11SoftHsm.createModule();
+        pkcs11Module.initializeModule();
+        pkcs11Token = Pkcs11SoftHsm.getSlot(pkcs11Module, TOKEN_LABEL).getToken();
+        loginSession = pkcs11Token.openSession(true, true);
+        loginSession.loginUser(CkUserType.CKU_USER, Pkcs11SoftHsm.USER_PIN);
+    }
+
+    @AfterAll
+    public static void tearDown() throws Exception {
+        // Logout, finalize the module and delete the token
+        if (loginSession != null) {
+            loginSession.logoutUser();
+            loginSession.close();
+        }
+        if (pkcs11Module != null) {
+            pkcs11Module.close();
+        }
+        if (pkcs11SoftHsm != null) {
+            pkcs11SoftHsm.close();
+        }
+    }
+
+    public static Stream<Integer> getThreadCounts() {
+        return Stream.of(System.getProperty("pkcs11.stress.threads", "1,2,4,8").split(",")).map(String::trim).map(Integer::valueOf);
+    }
+
+    @ParameterizedTest(name = "{0} threads")
+    @MethodSource("getThreadCounts")
+    public void testMixedOperations(int threadCount, TestReporter testReporter) throws Exception {
+        // Open the sessions of all threads
+        List<List<Pkcs11Session>> threadSessions = new ArrayList<>(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            List<Pkcs11Session> pkcs11Sessions = new ArrayList<>(SESSIONS_PER_THREAD);
+            for (int j = 0; j < SESSIONS_PER_THREAD; j++) {
+                pkcs11Sessions.add(pkcs11Token.openSession(true, true));
+            }
+            threadSessions.add(pkcs11Sessions);
+        }
+
+        try {
+            // Get the private key handle
+            long privateKey = threadSessions.getFirst().getFirst().findObjects(List.of(new CkAttributeValue(CkAttribute.CKA_CLASS, CkObjectClass.CKO_PRIVATE_KEY.value))).getFirst();
+
+            // Warm up, so lazily allocated direct buffers of the JVM don't count as leaks
+            run(threadSessions, privateKey, Math.max(1, DURATION_SECONDS / 5));
+            BufferPoolMXBean directBufferPool = getDirectBufferPool();
+            long segmentCountBefore = directBufferPool.getCount();
+            long segmentBytesBefore = directBufferPool.getMemoryUsed();
+
+            // Run the stress test and check the results
+            StressResult stressResult = run(threadSessions, privateKey, DURATION_SECONDS);
+            long leakedSegments = directBufferPool.getCount() - segmentCountBefore;
+            long leakedBytes = directBufferPool.getMemoryUsed() - segmentBytesBefore;
+            assertTrue(stressResult.wrongResults().isEmpty(), STR."Wrong results: \{stressResult.wrongResults()}");
+            assertTrue(stressResult.unexpectedResults().isEmpty(), STR."Unexpected results: \{stressResult.unexpectedResults()}");
+            assertEquals(0, leakedSegments, STR."\{leakedSegments} native segments with \{leakedBytes} bytes were not freed");
+            assertEquals(0, leakedBytes, STR."\{leakedBytes} bytes of native segments were not freed");
+            for (Operation operation : Operation.values()) {
+                assertTrue(stressResult.operations().get(operation) > 0, STR."No \{operation} operation completed");
+            }
+
+            // Report the sustained throughput
+            long totalOperations = stressResult.operations().values().stream().mapToLong(Long::longValue).sum();
+            Map<String, String> reportEntries = new LinkedHashMap<>();
+            reportEntries.put("threads", String.valueOf(threadCount));
+            reportEntries.put("sessionsPerThread", String.valueOf(SESSIONS_PER_THREAD));
+            reportEntries.put("operationsPerSecond", String.valueOf(totalOperations / DURATION_SECONDS));
+            stressResult.operations().forEach((operation, count) -> reportEntries.put(operation.name().toLowerCase(), String.valueOf(count)));
+            testReporter.publishEntry(reportEntries);
+        } finally {
+            // Close all sessions
+            for (List<Pkcs11Session> pkcs11Sessions : threadSessions) {
+                for (Pkcs11Session pkcs11Session : pkcs11Sessions) {
+                    pkcs11Session.close();
+                }
+            }
+        }
+    }
+
+    private static StressResult run(List<List<Pkcs11Session>> threadSessions, long privateKey, long durationSeconds) throws Exception {
+        // Start all threads at once
+        long endTime = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+        Map<Operation, LongAdder> operations = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            operations.put(operation, new LongAdder());
+        }
+        Queue<String> wrongResults = new ConcurrentLinkedQueue<>();
+        Map<String, LongAdder> unexpectedResults = new ConcurrentHashMap<>();
+        ExecutorService executorService = Executors.newFixedThreadPool(threadSessions.size());
+        try {
+            CyclicBarrier cyclicBarrier = new CyclicBarrier(threadSessions.size());
+            List<Future<?>> futures = new ArrayList<>(threadSessions.size());
+            for (int i = 0; i < threadSessions.size(); i++) {
+                List<Pkcs11Session> pkcs11Sessions = threadSessions.get(i);
+                int threadIndex = i;
+                futures.add(executorService.submit(() -> {
+                    cyclicBarrier.await();
+                    runOperations(pkcs11Sessions, privateKey, threadIndex, endTime, operations, wrongResults, unexpectedResults);
+                    return null;
+                }));
+            }
+
+            // Wait for all threads and report the blocked ones if they don't finish
+            for (Future<?> future : futures) {
+                try {
+                    future.get(durationSeconds + DEADLOCK_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (TimeoutException exception) {
+                    fail(STR."The threads did not finish, possible deadlock:\n\{getThreadDump()}");
+                }
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        // Return the result
+        Map<Operation, Long> operationCounts = new EnumMap<>(Operation.class);
+        operations.forEach((operation, count) -> operationCounts.put(operation, count.sum()));
+        Map<String, Long> unexpectedResultCounts = new TreeMap<>();
+        unexpectedResults.forEach((result, count) -> unexpectedResultCounts.put(result, count.sum()));
+        return new StressResult(operationCounts, List.copyOf(wrongResults), unexpectedResultCounts);
+    }
+
+    private static void runOperations(List<Pkcs11Session> pkcs11Sessions, long privateKey, int threadIndex, long endTime, Map<Operation, LongAdder> operations, Queue<String> wrongResults, Map<String, LongAdder> unexpectedResults) throws Exception {
+        // Prepare the host-side verification
+        MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        byte[] message = STR."Stress test message of thread \{threadIndex}".getBytes();
+        byte[] expectedDigest = messageDigest.digest(message);
+        byte[] previousRandom = new byte[RANDOM_SIZE];
+        List<CkAttributeValue> searchTemplate = List.of(new CkAttributeValue(CkAttribute.CKA_CLASS, CkObjectClass.CKO_CERTIFICATE.value));
+
+        // Rotate over the sessions and operations until the end
+        Operation[] allOperations = Operation.values();
+        for (int iteration = 0; System.nanoTime() < endTime; iteration++) {
+            Pkcs11Session pkcs11Session = pkcs11Sessions.get(iteration % pkcs11Sessions.size());
+            Operation operation = allOperations[(iteration + threadIndex) % allOperations.length];
+            try {
+                switch (operation) {
+                    case FIND -> {
+                        List<Long> certificates = pkcs11Session.findObjects(searchTemplate);
+                        if (certificates.size() != 3) {
+                            wrongResults.add(STR."Found \{certificates.size()} instead of 3 certificates");
+                        }
+                    }
+                    case SIGN -> {
+                        byte[] signatureValue = pkcs11Session.sign(CkMechanism.CKM_SHA256_RSA_PKCS, privateKey, message);
+                        signature.initVerify(publicKey);
+                        signature.update(message);
+                        if (!signature.verify(signatureValue)) {
+                            wrongResults.add("Invalid signature");
+                        }
+                    }
+                    case DIGEST -> {
+                        if (!Arrays.equals(expectedDigest, pkcs11Session.digest(CkMechanism.CKM_SHA256, message))) {
+                            wrongResults.add("Wrong digest");
+                        }
+                    }
+                    case RANDOM -> {
+                        byte[] random = pkcs11Session.generateRandom(RANDOM_SIZE);
+                        if (random.length != RANDOM_SIZE || Pkcs11Utils.isEmptyByteArray(random) || Arrays.equals(previousRandom, random)) {
+                            wrongResults.add("Wrong random data");
+                        }
+                        previousRandom = random;
+                    }
+                }
+                operations.get(operation).increment();
+            } catch (Pkcs11Exception exception) {
+                unexpectedResults.computeIfAbsent(STR."\{operation} \{exception.getCkResult() != null ? exception.getCkResult() : exception.getMessage()}", key -> new LongAdder()).increment();
+            }
+        }
+    }
+
+    private static BufferPoolMXBean getDirectBufferPool() {
+        // Native segments of arenas are accounted in the same pool as direct byte buffers
+        return ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream().filter(bufferPoolMXBean -> bufferPoolMXBean.getName().equals("direct")).findFirst().orElseThrow();
+    }
+
+    private static String getThreadDump() {
+        // Dump the deadlocked threads or all threads if the JVM did not detect a deadlock
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        long[] deadlockedThreadIds = threadMXBean.findDeadlockedThreads();
+        ThreadInfo[] threadInfos = deadlockedThreadIds != null ? threadMXBean.getThreadInfo(deadlockedThreadIds, true, true) : threadMXBean.dumpAllThreads(true, true);
+        StringBuilder stringBuilder = new StringBuilder();
+        for (ThreadInfo threadInfo : threadInfos) {
+            stringBuilder.append(threadInfo);
+        }
+        return stringBuilder.toString();
+    }
+
+    private enum Operation {
+        FIND, SIGN, DIGEST, RANDOM
+    }
+
+    private record StressResult(Map<Operation, Long> operations, List<String> wrongResults, Map<String, Long> unexpectedResults) {
+    }
+}
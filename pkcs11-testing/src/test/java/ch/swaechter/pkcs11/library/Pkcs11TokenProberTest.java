@@ -0,0 +1,94 @@
+package ch.swaechter.pkcs11.library;
+
+import ch.swaechter.pkcs11.Pkcs11SoftHsm;
+import ch.swaechter.pkcs11.library.headers.CkMechanism;
+import ch.swaechter.pkcs11.library.objects.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+import java.time.Duration;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the token prober against SoftHSM2 tokens.
+ *
+ * @author Simon Wächter
+ */
+@EnabledIf("ch.swaechter.pkcs11.Pkcs11SoftHsm#isAvailable")
+public class Pkcs11TokenProberTest {
+
+    @Test
+    public void testHealth() throws Exception {
+        // Create the harness with four tokens
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("healthy");
+            pkcs11SoftHsm.initializeToken("degraded");
+            pkcs11SoftHsm.initializeToken("failing");
+            pkcs11SoftHsm.initializeToken("hanging");
+
+            // Create the PKCS11 module and get the tokens
+            try (Pkcs11Module pkcs11Module = pkcs11SoftHsm.createModule()) {
+                pkcs11Module.initializeModule();
+                Pkcs11Token healthyToken = Pkcs11SoftHsm.getSlot(pkcs11Module, "healthy").getToken();
+                Pkcs11Token degradedToken = Pkcs11SoftHsm.getSlot(pkcs11Module, "degraded").getToken();
+                Pkcs11Token failingToken = Pkcs11SoftHsm.getSlot(pkcs11Module, "failing").getToken();
+                Pkcs11Token hangingToken = Pkcs11SoftHsm.getSlot(pkcs11Module, "hanging").getToken();
+
+                // Probe the tokens with a canary that meets the SLO, a slow one, a failing one and a hanging one
+                try (Pkcs11TokenProber pkcs11TokenProber = new Pkcs11TokenProber(Duration.ofMillis(20), Duration.ofMillis(100), Duration.ofMillis(500))) {
+                    pkcs11TokenProber.addToken(healthyToken, Pkcs11TokenProber.getRandomCanary());
+                    pkcs11TokenProber.addToken(degradedToken, pkcs11Session -> {
+                        sleep(Duration.ofMillis(150));
+                        return pkcs11Session.getSessionInfo();
+                    });
+                    pkcs11TokenProber.addToken(failingToken, Pkcs11TokenProber.getSignCanary(CkMechanism.CKM_SHA256_RSA_PKCS, 0xDEAD));
+                    pkcs11TokenProber.addToken(hangingToken, pkcs11Session -> {
+                        sleep(Duration.ofSeconds(5));
+                        return null;
+                    });
+
+                    // Check the health
+                    Pkcs11TokenStatus healthyStatus = awaitStatus(pkcs11TokenProber, healthyToken.getSlotId(), status -> status.lastProbe() != null);
+                    assertEquals(Pkcs11TokenHealth.HEALTHY, healthyStatus.health());
+                    assertTrue(healthyStatus.p50LatencyNanos() > 0);
+                    assertTrue(healthyStatus.p50LatencyNanos() <= healthyStatus.p99LatencyNanos());
+                    assertEquals(Pkcs11TokenHealth.DEGRADED, awaitStatus(pkcs11TokenProber, degradedToken.getSlotId(), status -> status.lastProbe() != null).health());
+                    Pkcs11TokenStatus failingStatus = awaitStatus(pkcs11TokenProber, failingToken.getSlotId(), status -> status.consecutiveFailures() >= 2);
+                    assertEquals(Pkcs11TokenHealth.UNAVAILABLE, failingStatus.health());
+                    assertNotNull(failingStatus.lastError());
+                    Pkcs11TokenStatus hangingStatus = awaitStatus(pkcs11TokenProber, hangingToken.getSlotId(), status -> status.health() == Pkcs11TokenHealth.UNAVAILABLE);
+                    assertEquals(1, hangingStatus.consecutiveFailures());
+                    assertEquals(Pkcs11TokenHealth.UNAVAILABLE, pkcs11TokenProber.getHealth(hangingToken.getSlotId()));
+                    assertEquals(4, pkcs11TokenProber.getStatuses().size());
+
+                    // Stop probing a token
+                    pkcs11TokenProber.removeToken(failingToken.getSlotId());
+                    assertTrue(pkcs11TokenProber.getStatus(failingToken.getSlotId()).isEmpty());
+                    assertEquals(Pkcs11TokenHealth.HEALTHY, pkcs11TokenProber.getHealth(failingToken.getSlotId()));
+                }
+            }
+        }
+    }
+
+    private static Pkcs11TokenStatus awaitStatus(Pkcs11TokenProber pkcs11TokenProber, long slotId, Predicate<Pkcs11TokenStatus> condition) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (System.nanoTime() < deadline) {
+            Pkcs11TokenStatus pkcs11TokenStatus = pkcs11TokenProber.getStatus(slotId).orElseThrow();
+            if (condition.test(pkcs11TokenStatus)) {
+                return pkcs11TokenStatus;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("The status of slot " + slotId + " did not reach the expected state");
+    }
+
+    private static void sleep(Duration duration) {
+        try {
+            Thread.sleep(duration);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -3,6 +3,7 @@ package ch.swaechter.pkcs11.library;
 import org.junit.jupiter.api.Test;
 
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.util.Optional;
@@ -55,6 +56,24 @@ public class Pkcs11UtilsTest {
         assertEquals(30, instant.atZone(ZoneOffset.UTC).getSecond());
     }
 
+    @Test
+    public void testEncodeDigestInfo() throws Exception {
+        // Encode a SHA-256 digest
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest("PKCS11".getBytes(StandardCharsets.US_ASCII));
+        byte[] digestInfo = Pkcs11Utils.encodeDigestInfo("SHA-256", digest);
+        assertEquals(51, digestInfo.length);
+        assertEquals("3031300d060960864801650304020105000420" + Pkcs11Utils.bytesToHex(digest), Pkcs11Utils.bytesToHex(digestInfo));
+
+        // Encode a SHA-512 digest
+        assertEquals(83, Pkcs11Utils.encodeDigestInfo("SHA-512", new byte[64]).length);
+
+        // Test an unsupported algorithm and a wrong digest length
+        Pkcs11Exception exception = assertThrows(Pkcs11Exception.class, () -> Pkcs11Utils.encodeDigestInfo("MD5", new byte[16]));
+        assertEquals("The digest algorithm MD5 is not supported", exception.getMessage());
+        exception = assertThrows(Pkcs11Exception.class, () -> Pkcs11Utils.encodeDigestInfo("SHA-256", new byte[20]));
+        assertEquals("A SHA-256 digest has to be 32 bytes long, not 20", exception.getMessage());
+    }
+
     @Test
     public void testBytesToHex() {
         // Convert a hash
@@ -0,0 +1,82 @@
+package ch.swaechter.pkcs11.library;
+
+import ch.swaechter.pkcs11.Pkcs11SoftHsm;
+import ch.swaechter.pkcs11.library.decorators.Pkcs11FunctionMetrics;
+import ch.swaechter.pkcs11.library.decorators.Pkcs11TraceRecord;
+import ch.swaechter.pkcs11.library.decorators.Pkcs11TraceReport;
+import ch.swaechter.pkcs11.library.decorators.TracingPkcs11Library;
+import ch.swaechter.pkcs11.library.headers.CkMechanism;
+import ch.swaechter.pkcs11.library.headers.CkUserType;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Session;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Token;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the tracing decorator and the trace report against a SoftHSM2 token.
+ *
+ * @author Simon Wächter
+ */
+@EnabledIf("ch.swaechter.pkcs11.Pkcs11SoftHsm#isAvailable")
+public class TracingPkcs11LibraryTest {
+
+    @Test
+    public void testTrace() throws Exception {
+        // Create the harness with a token
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("tracing");
+
+            // Create the PKCS11 module on top of the tracing decorator
+            Path traceFile = Files.createTempFile("pkcs11", ".jsonl");
+            try {
+                TracingPkcs11Library tracingPkcs11Library = new TracingPkcs11Library(pkcs11SoftHsm.createLibrary(), traceFile);
+                try (tracingPkcs11Library; Pkcs11Module pkcs11Module = new Pkcs11Module(tracingPkcs11Library)) {
+                    // Initialize the module and get the token
+                    pkcs11Module.initializeModule();
+                    Pkcs11Token pkcs11Token = Pkcs11SoftHsm.getSlot(pkcs11Module, "tracing").getToken();
+
+                    // Fail a login, login and digest some data
+                    try (Pkcs11Session pkcs11Session = pkcs11Token.openSession(true, true)) {
+                        assertThrows(Pkcs11Exception.class, () -> pkcs11Session.loginUser(CkUserType.CKU_USER, "0000"));
+                        pkcs11Session.loginUser(CkUserType.CKU_USER, Pkcs11SoftHsm.USER_PIN);
+                        for (int i = 0; i < 10; i++) {
+                            pkcs11Session.digest(CkMechanism.CKM_SHA256, new byte[1024]);
+                        }
+                        pkcs11Session.logoutUser();
+                    }
+                }
+
+                // Check the redacted records
+                List<String> lines = Files.readAllLines(traceFile);
+                assertFalse(String.join("\n", lines).contains(Pkcs11SoftHsm.USER_PIN));
+                Pkcs11TraceRecord loginRecord = lines.stream().map(Pkcs11TraceRecord::fromJson).filter(pkcs11TraceRecord -> pkcs11TraceRecord.functionName().equals("C_Login")).findFirst().orElseThrow();
+                assertEquals(List.of(loginRecord.arguments().get(0), "CKU_USER", "***"), loginRecord.arguments());
+                assertEquals("CKR_PIN_INCORRECT", loginRecord.result());
+                Pkcs11TraceRecord digestRecord = lines.stream().map(Pkcs11TraceRecord::fromJson).filter(pkcs11TraceRecord -> pkcs11TraceRecord.functionName().equals("C_Digest")).findFirst().orElseThrow();
+                assertEquals("byte[1024]", digestRecord.arguments().get(1));
+                assertEquals("byte[32]", digestRecord.output());
+                assertTrue(digestRecord.durationNanos() > 0);
+
+                // Replay the trace
+                Pkcs11TraceReport pkcs11TraceReport = Pkcs11TraceReport.read(traceFile);
+                assertEquals(lines.size(), pkcs11TraceReport.getRecordCount());
+                assertEquals(0, pkcs11TraceReport.getMissingRecordCount());
+                Pkcs11FunctionMetrics loginMetrics = pkcs11TraceReport.getMetrics().get("C_Login");
+                assertEquals(2, loginMetrics.calls());
+                assertEquals(1, loginMetrics.errors());
+                Pkcs11FunctionMetrics digestMetrics = pkcs11TraceReport.getMetrics().get("C_Digest");
+                assertEquals(10, digestMetrics.calls());
+                assertEquals(10 * 1024, digestMetrics.bytesIn());
+                assertTrue(pkcs11TraceReport.getTotalLatencyNanos() >= digestMetrics.totalLatencyNanos());
+            } finally {
+                Files.delete(traceFile);
+            }
+        }
+    }
+}
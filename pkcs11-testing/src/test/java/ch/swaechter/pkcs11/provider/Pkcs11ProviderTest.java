@@ -0,0 +1,121 @@
+package ch.swaechter.pkcs11.provider;
+
+import ch.swaechter.pkcs11.Pkcs11SoftHsm;
+import ch.swaechter.pkcs11.library.Pkcs11Module;
+import ch.swaechter.pkcs11.library.Pkcs11Utils;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Token;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the JCA provider against a SoftHSM2 token.
+ *
+ * @author Simon Wächter
+ */
+public class Pkcs11ProviderTest {
+
+    @Test
+    @EnabledIf("ch.swaechter.pkcs11.Pkcs11SoftHsm#isAvailable")
+    public void testProvider() throws Exception {
+        // Create the harness with a token and a key
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("provider");
+            X509Certificate[] certificates = pkcs11SoftHsm.importKeyPair("provider", "key", new byte[]{0x01}, "RSA");
+
+            // Create the PKCS11 module and get the token
+            try (Pkcs11Module pkcs11Module = pkcs11SoftHsm.createModule()) {
+                pkcs11Module.initializeModule();
+                Pkcs11Token pkcs11Token = Pkcs11SoftHsm.getSlot(pkcs11Module, "provider").getToken();
+
+                // Create the provider
+                try (Pkcs11Provider pkcs11Provider = new Pkcs11Provider(pkcs11Token, 2, Pkcs11SoftHsm.USER_PIN)) {
+                    // Load the key store and get the single key with its chain
+                    KeyStore keyStore = KeyStore.getInstance("PKCS11", pkcs11Provider);
+                    keyStore.load(null, null);
+                    List<String> aliases = Collections.list(keyStore.aliases());
+                    assertEquals(1, aliases.size());
+                    String alias = aliases.getFirst();
+                    assertTrue(keyStore.isKeyEntry(alias));
+                    PrivateKey privateKey = (PrivateKey) keyStore.getKey(alias, null);
+                    assertEquals("RSA", privateKey.getAlgorithm());
+                    Certificate[] certificateChain = keyStore.getCertificateChain(alias);
+                    assertTrue(certificateChain.length >= 1);
+                    assertEquals(certificates[0], certificateChain[0]);
+                    assertEquals(alias, keyStore.getCertificateAlias(certificateChain[0]));
+                    assertThrows(KeyStoreException.class, () -> keyStore.deleteEntry(alias));
+
+                    // Sign and verify the signature with the JDK
+                    byte[] message = "Message to sign!".getBytes(StandardCharsets.UTF_8);
+                    Signature signature = Signature.getInstance("SHA256withRSA", pkcs11Provider);
+                    signature.initSign(privateKey);
+                    signature.update(message);
+                    byte[] signedMessage = signature.sign();
+                    assertTrue(Pkcs11SoftHsm.verify("SHA256withRSA", certificateChain[0], message, signedMessage));
+
+                    // Sign a second time with the same key to reuse the cached objects
+                    signature.initSign(privateKey);
+                    signature.update(message);
+                    assertArrayEquals(signedMessage, signature.sign());
+
+                    // Digest and compare it with the JDK digest
+                    MessageDigest messageDigest = MessageDigest.getInstance("SHA-256", pkcs11Provider);
+                    assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(message), messageDigest.digest(message));
+
+                    // Digest data that spans multiple chunks and is passed to the token in parts
+                    byte[] largeMessage = new byte[3 * Pkcs11MessageDigestSpi.CHUNK_SIZE + 17];
+                    new SecureRandom().nextBytes(largeMessage);
+                    messageDigest.update(largeMessage, 0, 1000);
+                    messageDigest.update(largeMessage, 1000, largeMessage.length - 1000);
+                    assertEquals(pkcs11Provider.getSessionPool().getSessionCount(), pkcs11Provider.getSessionPool().getIdleSessionCount());
+                    assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(largeMessage), messageDigest.digest());
+
+                    // Reset a started multi-part digest and digest again
+                    messageDigest.update(largeMessage);
+                    messageDigest.reset();
+                    assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(message), messageDigest.digest(message));
+
+                    // Generate random data
+                    SecureRandom secureRandom = SecureRandom.getInstance("PKCS11", pkcs11Provider);
+                    byte[] firstRandom = new byte[32];
+                    byte[] secondRandom = new byte[32];
+                    secureRandom.nextBytes(firstRandom);
+                    secureRandom.nextBytes(secondRandom);
+                    assertFalse(MessageDigest.isEqual(firstRandom, secondRandom));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testEncodeEcdsaSignature() throws Exception {
+        // Create a raw signature like a token with a P-256 and a P-521 key and verify the DER encoded signature
+        for (String curveName : List.of("secp256r1", "secp521r1")) {
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+            keyPairGenerator.initialize(new ECGenParameterSpec(curveName));
+            KeyPair keyPair = keyPairGenerator.generateKeyPair();
+            byte[] message = "Message to sign!".getBytes(StandardCharsets.UTF_8);
+
+            // Sign in the raw format
+            Signature signature = Signature.getInstance("SHA256withECDSAinP1363Format");
+            signature.initSign(keyPair.getPrivate());
+            signature.update(message);
+            byte[] rawSignature = signature.sign();
+
+            // Verify the DER encoded signature
+            Signature verifier = Signature.getInstance("SHA256withECDSA");
+            verifier.initVerify(keyPair.getPublic());
+            verifier.update(message);
+            assertTrue(verifier.verify(Pkcs11Utils.encodeEcdsaSignature(rawSignature)));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package ch.swaechter.pkcs11.provider;
+
+import ch.swaechter.pkcs11.Pkcs11SoftHsm;
+import ch.swaechter.pkcs11.library.Pkcs11Module;
+import ch.swaechter.pkcs11.library.Pkcs11Utils;
+import ch.swaechter.pkcs11.library.objects.Pkcs11SessionPool;
+import ch.swaechter.pkcs11.library.objects.Pkcs11Token;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the buffered random data of a SoftHSM2 token.
+ *
+ * @author Simon Wächter
+ */
+@EnabledIf("ch.swaechter.pkcs11.Pkcs11SoftHsm#isAvailable")
+public class Pkcs11RandomBufferTest {
+
+    @Test
+    public void testConcurrentDraws() throws Exception {
+        // Create the harness with a token
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("random");
+
+            // Create the PKCS11 module and get the token
+            try (Pkcs11Module pkcs11Module = pkcs11SoftHsm.createModule()) {
+                pkcs11Module.initializeModule();
+                Pkcs11Token pkcs11Token = Pkcs11SoftHsm.getSlot(pkcs11Module, "random").getToken();
+
+                // Create a small buffer with a short reseed interval, so refills and reseeds happen during the test
+                try (Pkcs11SessionPool pkcs11SessionPool = new Pkcs11SessionPool(pkcs11Token, 2, false);
+                     Pkcs11RandomBuffer pkcs11RandomBuffer = new Pkcs11RandomBuffer(pkcs11SessionPool, 2, 1024, 512, 4096)) {
+                    // Draw small random values from several threads
+                    Set<String> randomValues = ConcurrentHashMap.newKeySet();
+                    List<Thread> threads = new ArrayList<>();
+                    for (int i = 0; i < 8; i++) {
+                        threads.add(Thread.ofPlatform().start(() -> {
+                            try {
+                                for (int j = 0; j < 500; j++) {
+                                    byte[] random = new byte[16];
+                                    pkcs11RandomBuffer.nextBytes(random);
+                                    assertFalse(Pkcs11Utils.isEmptyByteArray(random));
+                                    randomValues.add(Pkcs11Utils.bytesToHex(random));
+                                }
+                            } catch (Exception exception) {
+                                throw new RuntimeException(exception);
+                            }
+                        }));
+                    }
+                    for (Thread thread : threads) {
+                        thread.join();
+                    }
+
+                    // Ensure all values are unique and most requests were served from memory
+                    assertEquals(4000, randomValues.size());
+                    Pkcs11RandomBufferMetrics pkcs11RandomBufferMetrics = pkcs11RandomBuffer.getMetrics();
+                    assertEquals(4000 * 16, pkcs11RandomBufferMetrics.servedBytes());
+                    assertTrue(pkcs11RandomBufferMetrics.bufferedRequests() > pkcs11RandomBufferMetrics.directRequests());
+                    assertTrue(pkcs11RandomBufferMetrics.refills() > 0);
+                    assertTrue(pkcs11RandomBufferMetrics.maxRefillLatencyNanos() >= pkcs11RandomBufferMetrics.lastRefillLatencyNanos());
+
+                    // Large requests bypass the buffer
+                    byte[] largeRandom = new byte[1024];
+                    pkcs11RandomBuffer.nextBytes(largeRandom);
+                    assertFalse(Pkcs11Utils.isEmptyByteArray(largeRandom));
+                    assertEquals(pkcs11RandomBufferMetrics.directRequests() + 1, pkcs11RandomBuffer.getMetrics().directRequests());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testProviderSecureRandom() throws Exception {
+        // Create the harness with a token
+        try (Pkcs11SoftHsm pkcs11SoftHsm = new Pkcs11SoftHsm()) {
+            pkcs11SoftHsm.initializeToken("random");
+
+            // Create the PKCS11 module and get the token
+            try (Pkcs11Module pkcs11Module = pkcs11SoftHsm.createModule()) {
+                pkcs11Module.initializeModule();
+                Pkcs11Token pkcs11Token = Pkcs11SoftHsm.getSlot(pkcs11Module, "random").getToken();
+
+                // Get the buffered secure random of the provider
+                try (Pkcs11Provider pkcs11Provider = new Pkcs11Provider(pkcs11Token, 2, Pkcs11SoftHsm.USER_PIN)) {
+                    SecureRandom secureRandom = SecureRandom.getInstance("PKCS11Buffered", pkcs11Provider);
+                    byte[] firstRandom = new byte[32];
+                    byte[] secondRandom = new byte[32];
+                    secureRandom.nextBytes(firstRandom);
+                    secureRandom.nextBytes(secondRandom);
+                    assertFalse(Pkcs11Utils.isEmptyByteArray(firstRandom));
+                    assertFalse(Arrays.equals(firstRandom, secondRandom));
+                    assertEquals(64, pkcs11Provider.getRandomBuffer().getMetrics().servedBytes());
+                }
+            }
+        }
+    }
+}
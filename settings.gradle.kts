@@ -1,7 +1,9 @@
 rootProject.name = "pkcs11"
 
+include("pkcs11-benchmark")
 include("pkcs11-cli")
 include("pkcs11-library")
+include("pkcs11-provider")
 include("pkcs11-testing")
 
 dependencyResolutionManagement {
@@ -9,10 +11,12 @@ dependencyResolutionManagement {
         create("libraries") {
             // Plugins
             plugin("shadow", "com.github.johnrengelman.shadow").version("8.1.1")
+            plugin("jmh", "me.champeau.jmh").version("0.7.2")
 
             // Testing (General)
             library("junit-api", "org.junit.jupiter:junit-jupiter-api:5.10.3")
             library("junit-engine", "org.junit.jupiter:junit-jupiter-engine:5.10.3")
+            library("junit-params", "org.junit.jupiter:junit-jupiter-params:5.10.3")
 
             // Testing (PDF signing)
             library("slf4j-nop", "org.slf4j:slf4j-nop:2.0.13")